@@ -1,6 +1,9 @@
 package org.rakam.module.website;
 
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import com.snowplowanalytics.refererparser.CorruptYamlException;
 import com.snowplowanalytics.refererparser.Medium;
@@ -34,8 +37,15 @@ public class ReferrerEventMapper
     private final static Logger LOGGER = Logger.get(ReferrerEventMapper.class);
 
     private final Parser parser;
+    // keyed by the referrer and host since the internal medium depends on both
+    private final Cache<String, ResolvedReferrer> cache;
 
     public ReferrerEventMapper()
+    {
+        this(new WebsiteMapperConfig());
+    }
+
+    public ReferrerEventMapper(WebsiteMapperConfig config)
     {
         try {
             parser = new Parser();
@@ -43,6 +53,20 @@ public class ReferrerEventMapper
         catch (IOException | CorruptYamlException e) {
             throw Throwables.propagate(e);
         }
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(config.getReferrerCacheSize())
+                .recordStats()
+                .build();
+    }
+
+    public CacheStats getCacheStats()
+    {
+        return cache.stats();
+    }
+
+    public long getCacheSize()
+    {
+        return cache.size();
     }
 
     private void mapInternal(RequestParams extraProperties, Object referrer, Object host, GenericRecord record)
@@ -73,50 +97,94 @@ public class ReferrerEventMapper
             }
         }
 
-        Referer parse;
-        URI referrerUri;
+        if (referrerUrl == null) {
+            return;
+        }
 
-        if (referrerUrl != null) {
-            try {
-                referrerUri = new URI(referrerUrl);
-            }
-            catch (URISyntaxException e) {
-                return;
-            }
+        String key = hostUrl == null ? referrerUrl : (referrerUrl + '\0' + hostUrl);
+        ResolvedReferrer resolved = cache.getIfPresent(key);
+        if (resolved == null) {
+            resolved = resolve(referrerUrl, hostUrl);
+            cache.put(key, resolved);
+        }
 
-            try {
-                parse = parser.parse(referrerUri, hostUrl);
-            }
-            catch (Exception e) {
-                LOGGER.warn(e, "Error while parsing referrer");
-                return;
-            }
+        if (resolved == ResolvedReferrer.INVALID) {
+            return;
+        }
 
-            if (parse == null) {
-                return;
-            }
+        if (record.get("_referrer_medium") == null) {
+            record.put("_referrer_medium", resolved.medium);
+        }
+        if (record.get("_referrer_source") == null) {
+            record.put("_referrer_source", resolved.source);
+        }
 
-            if (record.get("_referrer_medium") == null) {
-                record.put("_referrer_medium", parse.medium != null ? parse.medium.toString().toLowerCase() : null);
-            }
-            if (record.get("_referrer_source") == null) {
-                record.put("_referrer_source", parse.source);
+        if (record.get("_referrer_term") == null) {
+            record.put("_referrer_term", resolved.term);
+        }
+
+        if (!resolved.internal) {
+            if (record.get("_referrer_domain") == null) {
+                record.put("_referrer_domain", resolved.domain);
             }
 
-            if (record.get("_referrer_term") == null) {
-                record.put("_referrer_term", parse.term);
+            if (record.get("_referrer_path") == null) {
+                record.put("_referrer_path", resolved.path);
             }
+        }
+    }
 
-            if (parse.medium != Medium.INTERNAL) {
-                if (record.get("_referrer_domain") == null) {
-                    record.put("_referrer_domain", referrerUri.getHost());
-                }
+    private ResolvedReferrer resolve(String referrerUrl, String hostUrl)
+    {
+        URI referrerUri;
+        try {
+            referrerUri = new URI(referrerUrl);
+        }
+        catch (URISyntaxException e) {
+            return ResolvedReferrer.INVALID;
+        }
 
-                if (record.get("_referrer_path") == null) {
-                    record.put("_referrer_path", referrerUri.getPath() +
-                            (referrerUri.getQuery() == null ? "" : ("?" + referrerUri.getQuery())));
-                }
-            }
+        Referer parse;
+        try {
+            parse = parser.parse(referrerUri, hostUrl);
+        }
+        catch (Exception e) {
+            LOGGER.warn(e, "Error while parsing referrer");
+            return ResolvedReferrer.INVALID;
+        }
+
+        if (parse == null) {
+            return ResolvedReferrer.INVALID;
+        }
+
+        return new ResolvedReferrer(
+                parse.medium != null ? parse.medium.toString().toLowerCase() : null,
+                parse.source,
+                parse.term,
+                referrerUri.getHost(),
+                referrerUri.getPath() + (referrerUri.getQuery() == null ? "" : ("?" + referrerUri.getQuery())),
+                parse.medium == Medium.INTERNAL);
+    }
+
+    private static class ResolvedReferrer
+    {
+        private static final ResolvedReferrer INVALID = new ResolvedReferrer(null, null, null, null, null, false);
+
+        private final String medium;
+        private final String source;
+        private final String term;
+        private final String domain;
+        private final String path;
+        private final boolean internal;
+
+        private ResolvedReferrer(String medium, String source, String term, String domain, String path, boolean internal)
+        {
+            this.medium = medium;
+            this.source = source;
+            this.term = term;
+            this.domain = domain;
+            this.path = path;
+            this.internal = internal;
         }
     }
 
@@ -1,6 +1,9 @@
 package org.rakam.module.website;
 
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -17,7 +20,6 @@ import org.rakam.plugin.user.ISingleUserBatchOperation;
 import org.rakam.plugin.user.UserPropertyMapper;
 import org.rakam.server.http.HttpRequestException;
 import org.rakam.util.MapProxyGenericRecord;
-import ua_parser.CachingParser;
 import ua_parser.Client;
 import ua_parser.Parser;
 
@@ -31,15 +33,29 @@ import java.util.List;
 public class UserAgentEventMapper implements SyncEventMapper, UserPropertyMapper {
     private final Parser uaParser;
     private final boolean trackSpiders;
+    // user agent strings are highly repetitive so the resolved fields are cached instead of the parser output
+    private final Cache<String, ResolvedUserAgent> cache;
 
     @Inject
     public UserAgentEventMapper(WebsiteMapperConfig config) {
         try {
-            uaParser = new CachingParser();
+            uaParser = new Parser();
         } catch (IOException e) {
             throw Throwables.propagate(e);
         }
         this.trackSpiders = config.getTrackSpiders();
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(config.getUserAgentCacheSize())
+                .recordStats()
+                .build();
+    }
+
+    public CacheStats getCacheStats() {
+        return cache.stats();
+    }
+
+    public long getCacheSize() {
+        return cache.size();
     }
 
     @Override
@@ -76,45 +92,88 @@ public class UserAgentEventMapper implements SyncEventMapper, UserPropertyMapper
         }
 
         if (userAgent != null) {
-            Client parsed;
-            try {
-                parsed = uaParser.parse(userAgent);
-            } catch (Exception e) {
+            ResolvedUserAgent parsed = cache.getIfPresent(userAgent);
+            if (parsed == null) {
+                parsed = resolve(userAgent);
+                cache.put(userAgent, parsed);
+            }
+
+            if (parsed == ResolvedUserAgent.UNKNOWN) {
                 return;
             }
 
-            if (parsed.device != null && "Spider".equals(parsed.device.family)) {
+            if (parsed.spider) {
                 // A bit SEO wouldn't hurt.
                 throw new HttpRequestException("Spiders are not allowed in Rakam Analytics.", HttpResponseStatus.FORBIDDEN);
             }
 
             if (properties.get("user_agent_family") == null) {
-                properties.put("_user_agent_family", parsed.userAgent.family);
+                properties.put("_user_agent_family", parsed.userAgentFamily);
             }
 
-            if (trackSpiders && parsed.userAgent != null && properties.get("_user_agent_version") == null) {
-                try {
-                    properties.put("_user_agent_version", Long.parseLong(parsed.userAgent.major));
-                } catch (NumberFormatException e) {
-                }
+            if (trackSpiders && parsed.userAgentVersion != null && properties.get("_user_agent_version") == null) {
+                properties.put("_user_agent_version", parsed.userAgentVersion);
             }
 
-            if (parsed.device != null && properties.get("_device_family") == null) {
-                properties.put("_device_family", parsed.device.family);
+            if (parsed.deviceFamily != null && properties.get("_device_family") == null) {
+                properties.put("_device_family", parsed.deviceFamily);
             }
 
-            if (parsed.os != null) {
-                if (properties.get("_os") == null) {
-                    properties.put("_os", parsed.os.family);
-                }
-
-                if (parsed.os.major != null && properties.get("_os_version") == null) {
-                    try {
-                        properties.put("_os_version", Long.parseLong(parsed.os.major));
-                    } catch (Exception e) {
-                    }
-                }
+            if (parsed.os != null && properties.get("_os") == null) {
+                properties.put("_os", parsed.os);
             }
+
+            if (parsed.osVersion != null && properties.get("_os_version") == null) {
+                properties.put("_os_version", parsed.osVersion);
+            }
+        }
+    }
+
+    private ResolvedUserAgent resolve(String userAgent) {
+        Client parsed;
+        try {
+            parsed = uaParser.parse(userAgent);
+        } catch (Exception e) {
+            return ResolvedUserAgent.UNKNOWN;
+        }
+
+        return new ResolvedUserAgent(
+                parsed.device != null && "Spider".equals(parsed.device.family),
+                parsed.userAgent != null ? parsed.userAgent.family : null,
+                parsed.userAgent != null ? parseVersion(parsed.userAgent.major) : null,
+                parsed.device != null ? parsed.device.family : null,
+                parsed.os != null ? parsed.os.family : null,
+                parsed.os != null ? parseVersion(parsed.os.major) : null);
+    }
+
+    private static Long parseVersion(String version) {
+        if (version == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(version);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static class ResolvedUserAgent {
+        private static final ResolvedUserAgent UNKNOWN = new ResolvedUserAgent(false, null, null, null, null, null);
+
+        private final boolean spider;
+        private final String userAgentFamily;
+        private final Long userAgentVersion;
+        private final String deviceFamily;
+        private final String os;
+        private final Long osVersion;
+
+        private ResolvedUserAgent(boolean spider, String userAgentFamily, Long userAgentVersion, String deviceFamily, String os, Long osVersion) {
+            this.spider = spider;
+            this.userAgentFamily = userAgentFamily;
+            this.userAgentVersion = userAgentVersion;
+            this.deviceFamily = deviceFamily;
+            this.os = os;
+            this.osVersion = osVersion;
         }
     }
 
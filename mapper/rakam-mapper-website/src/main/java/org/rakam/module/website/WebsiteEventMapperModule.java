@@ -31,7 +31,7 @@ public class WebsiteEventMapperModule
 
         WebsiteMapperConfig config = buildConfigObject(WebsiteMapperConfig.class);
         if (config.getReferrer()) {
-            ReferrerEventMapper referrerEventMapper = new ReferrerEventMapper();
+            ReferrerEventMapper referrerEventMapper = new ReferrerEventMapper(config);
             eventMappers.addBinding().toInstance(referrerEventMapper);
             userPropertyMappers.addBinding().toInstance(referrerEventMapper);
         }
@@ -6,6 +6,8 @@ public class WebsiteMapperConfig {
     private boolean userAgent = true;
     private boolean referrer = true;
     private boolean trackSpiders = false;
+    private int userAgentCacheSize = 10000;
+    private int referrerCacheSize = 10000;
 
     @Config("module.website.mapper.user-agent")
     public WebsiteMapperConfig setUserAgent(boolean enabled) {
@@ -40,4 +42,24 @@ public class WebsiteMapperConfig {
         this.trackSpiders = true;
         return this;
     }
+
+    public int getUserAgentCacheSize() {
+        return userAgentCacheSize;
+    }
+
+    @Config("module.website.mapper.user-agent.cache-size")
+    public WebsiteMapperConfig setUserAgentCacheSize(int userAgentCacheSize) {
+        this.userAgentCacheSize = userAgentCacheSize;
+        return this;
+    }
+
+    public int getReferrerCacheSize() {
+        return referrerCacheSize;
+    }
+
+    @Config("module.website.mapper.referrer.cache-size")
+    public WebsiteMapperConfig setReferrerCacheSize(int referrerCacheSize) {
+        this.referrerCacheSize = referrerCacheSize;
+        return this;
+    }
 }
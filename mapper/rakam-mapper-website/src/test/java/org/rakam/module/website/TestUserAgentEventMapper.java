@@ -151,4 +151,32 @@ public class TestUserAgentEventMapper {
             assertNull(event.getAttribute(field.getName()));
         }
     }
+
+    @Test()
+    public void testCachedUserAgent() throws Exception {
+        UserAgentEventMapper mapper = new UserAgentEventMapper(new WebsiteMapperConfig());
+        FieldDependencyBuilder builder = new FieldDependencyBuilder();
+        mapper.addFieldDependency(builder);
+
+        ImmutableList<Schema.Field> build = ImmutableList.<Schema.Field>builder()
+                .addAll(builder.build().dependentFields.get("_user_agent").stream()
+                        .map(AvroUtil::generateAvroField).collect(Collectors.toList()))
+                .add(new Schema.Field("_user_agent", Schema.create(NULL), null, null))
+                .build();
+        Schema schema = Schema.createRecord(build);
+
+        for (int i = 0; i < 2; i++) {
+            GenericData.Record properties = new GenericData.Record(schema);
+            properties.put("_user_agent", USER_AGENT);
+            Event event = new Event("testproject", "testcollection", null, null, properties);
+
+            mapper.map(event, EventMapper.RequestParams.EMPTY_PARAMS, InetAddress.getLocalHost(), null);
+
+            assertEquals("Chrome", event.getAttribute("_user_agent_family"));
+            assertEquals("Mac OS X", event.getAttribute("_os"));
+        }
+
+        assertEquals(mapper.getCacheSize(), 1);
+        assertEquals(mapper.getCacheStats().hitCount(), 1);
+    }
 }
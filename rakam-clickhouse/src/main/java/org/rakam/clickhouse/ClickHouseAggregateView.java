@@ -0,0 +1,259 @@
+package org.rakam.clickhouse;
+
+import com.facebook.presto.sql.tree.AliasedRelation;
+import com.facebook.presto.sql.tree.DereferenceExpression;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.FunctionCall;
+import com.facebook.presto.sql.tree.GroupingElement;
+import com.facebook.presto.sql.tree.LongLiteral;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.facebook.presto.sql.tree.Query;
+import com.facebook.presto.sql.tree.QuerySpecification;
+import com.facebook.presto.sql.tree.Relation;
+import com.facebook.presto.sql.tree.SelectItem;
+import com.facebook.presto.sql.tree.SimpleGroupBy;
+import com.facebook.presto.sql.tree.SingleColumn;
+import com.facebook.presto.sql.tree.Table;
+import com.google.common.collect.ImmutableList;
+import org.rakam.clickhouse.analysis.ClickhouseExpressionFormatter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static com.facebook.presto.sql.RakamExpressionFormatter.formatIdentifier;
+import static java.lang.String.format;
+import static org.rakam.util.ValidationUtil.checkCollection;
+
+/**
+ * The continuous queries that group the events of a single collection are stored in AggregatingMergeTree tables
+ * that have the intermediate states of the aggregations. The states of a group are merged when the parts of the
+ * table are merged and when the table is read, so the events that arrive late update the groups they belong to
+ * without recomputing the groups.
+ */
+class ClickHouseAggregateView
+{
+    private final String collection;
+    private final List<Column> keys;
+    private final List<Column> aggregations;
+    private final Optional<String> filter;
+
+    private ClickHouseAggregateView(String collection, List<Column> keys, List<Column> aggregations, Optional<String> filter)
+    {
+        this.collection = collection;
+        this.keys = keys;
+        this.aggregations = aggregations;
+        this.filter = filter;
+    }
+
+    public static Optional<ClickHouseAggregateView> analyze(Query query)
+    {
+        if (query.getWith().isPresent() || !query.getOrderBy().isEmpty() || query.getLimit().isPresent()
+                || !(query.getQueryBody() instanceof QuerySpecification)) {
+            return Optional.empty();
+        }
+
+        QuerySpecification specification = (QuerySpecification) query.getQueryBody();
+        if (specification.getSelect().isDistinct() || specification.getHaving().isPresent()
+                || specification.getLimit().isPresent() || !specification.getFrom().isPresent()) {
+            return Optional.empty();
+        }
+
+        Relation relation = specification.getFrom().get();
+        if (relation instanceof AliasedRelation) {
+            relation = ((AliasedRelation) relation).getRelation();
+        }
+        if (!(relation instanceof Table)) {
+            return Optional.empty();
+        }
+        Table table = (Table) relation;
+        if (table.getName().getPrefix().isPresent() && !table.getName().getPrefix().get().toString().equals("collection")) {
+            return Optional.empty();
+        }
+
+        List<SingleColumn> columns = new ArrayList<>();
+        for (SelectItem item : specification.getSelect().getSelectItems()) {
+            if (!(item instanceof SingleColumn) || !getName((SingleColumn) item).isPresent()) {
+                return Optional.empty();
+            }
+            columns.add((SingleColumn) item);
+        }
+
+        List<Expression> groupBy = new ArrayList<>();
+        if (specification.getGroupBy().isPresent()) {
+            for (GroupingElement element : specification.getGroupBy().get().getGroupingElements()) {
+                if (!(element instanceof SimpleGroupBy)) {
+                    return Optional.empty();
+                }
+                for (Expression expression : ((SimpleGroupBy) element).getColumnExpressions()) {
+                    if (expression instanceof LongLiteral) {
+                        long ordinal = ((LongLiteral) expression).getValue();
+                        if (ordinal < 1 || ordinal > columns.size()) {
+                            return Optional.empty();
+                        }
+                        expression = columns.get((int) ordinal - 1).getExpression();
+                    }
+                    groupBy.add(expression);
+                }
+            }
+        }
+
+        ImmutableList.Builder<Column> keys = ImmutableList.builder();
+        ImmutableList.Builder<Column> aggregations = ImmutableList.builder();
+        int keyCount = 0;
+        for (SingleColumn column : columns) {
+            String name = getName(column).get();
+            if (groupBy.contains(column.getExpression())) {
+                keys.add(new Column(name, formatExpression(column.getExpression()), null));
+                keyCount++;
+                continue;
+            }
+
+            Optional<Column> aggregation = getAggregation(name, column.getExpression());
+            if (!aggregation.isPresent()) {
+                return Optional.empty();
+            }
+            aggregations.add(aggregation.get());
+        }
+
+        // the groups that are not in the table can't be merged
+        if (keyCount != groupBy.stream().distinct().count()) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new ClickHouseAggregateView(table.getName().getSuffix(), keys.build(), aggregations.build(),
+                specification.getWhere().map(ClickHouseAggregateView::formatExpression)));
+    }
+
+    private static Optional<Column> getAggregation(String name, Expression expression)
+    {
+        if (!(expression instanceof FunctionCall)) {
+            return Optional.empty();
+        }
+        FunctionCall call = (FunctionCall) expression;
+        if (call.isDistinct() || call.getWindow().isPresent() || call.getArguments().size() > 1) {
+            return Optional.empty();
+        }
+
+        String function;
+        switch (call.getName().getSuffix().toLowerCase(Locale.ENGLISH)) {
+            case "count":
+            case "sum":
+            case "min":
+            case "max":
+            case "avg":
+                function = call.getName().getSuffix().toLowerCase(Locale.ENGLISH);
+                break;
+            case "approx_distinct":
+                function = "uniq";
+                break;
+            default:
+                return Optional.empty();
+        }
+
+        if (call.getArguments().isEmpty() && !function.equals("count")) {
+            return Optional.empty();
+        }
+
+        String argument = call.getArguments().isEmpty() ? "" : formatExpression(call.getArguments().get(0));
+        return Optional.of(new Column(name, format("%sState(%s)", function, argument), function + "Merge"));
+    }
+
+    private static Optional<String> getName(SingleColumn column)
+    {
+        if (column.getAlias().isPresent()) {
+            return column.getAlias();
+        }
+        if (column.getExpression() instanceof QualifiedNameReference) {
+            return Optional.of(((QualifiedNameReference) column.getExpression()).getName().getSuffix());
+        }
+        if (column.getExpression() instanceof DereferenceExpression) {
+            return Optional.of(((DereferenceExpression) column.getExpression()).getFieldName());
+        }
+        return Optional.empty();
+    }
+
+    private static String formatExpression(Expression expression)
+    {
+        return ClickhouseExpressionFormatter.formatExpression(expression,
+                name -> name.getParts().stream().map(e -> formatIdentifier(e, '`')).collect(Collectors.joining(".")),
+                // the alias of the collection is not used in the view
+                name -> formatIdentifier(name.getSuffix(), '`'), '`');
+    }
+
+    public String getCollection()
+    {
+        return collection;
+    }
+
+    /**
+     * Returns the query of the materialized view that aggregates the inserted events into the intermediate states.
+     * The events are partitioned by their date so that the states of the old days can be dropped.
+     *
+     * @param condition filters the events that are applied to the view
+     */
+    public String getStateQuery(String project, String condition)
+    {
+        return format("SELECT `$date`%s, %s FROM %s.%s WHERE %s GROUP BY `$date`%s",
+                keys.stream().map(key -> format(", %s AS %s", key.expression, quote(key.name))).collect(Collectors.joining()),
+                aggregations.stream().map(aggregation -> format("%s AS %s", aggregation.expression, quote(aggregation.name)))
+                        .collect(Collectors.joining(", ")),
+                project, checkCollection(collection, '`'),
+                filter.map(value -> format("(%s) AND %s", value, condition)).orElse(condition),
+                keys.stream().map(key -> ", " + key.expression).collect(Collectors.joining()));
+    }
+
+    /**
+     * Returns the primary key of the table that has the intermediate states, the rows with the same key are merged.
+     */
+    public String getPrimaryKey()
+    {
+        return "`$date`" + keys.stream().map(key -> ", " + quote(key.name)).collect(Collectors.joining());
+    }
+
+    /**
+     * Returns the query that merges the intermediate states of the groups into the result of the continuous query.
+     */
+    public String getMergeQuery(String stateTable)
+    {
+        String keyColumns = keys.stream().map(key -> quote(key.name)).collect(Collectors.joining(", "));
+        return format("SELECT %s%s FROM %s%s",
+                keyColumns.isEmpty() ? "" : keyColumns + ", ",
+                aggregations.stream().map(aggregation -> format("%s(%s) AS %s", aggregation.mergeFunction, quote(aggregation.name), quote(aggregation.name)))
+                        .collect(Collectors.joining(", ")),
+                stateTable,
+                keyColumns.isEmpty() ? "" : " GROUP BY " + keyColumns);
+    }
+
+    /**
+     * Returns the query of the materialized view that counts the events of the continuous query that don't match
+     * the condition.
+     */
+    public String getDroppedRowsQuery(String project, String condition)
+    {
+        return format("SELECT `$date`, count() AS dropped_rows FROM %s.%s WHERE %s GROUP BY `$date`",
+                project, checkCollection(collection, '`'),
+                filter.map(value -> format("(%s) AND NOT (%s)", value, condition)).orElse(format("NOT (%s)", condition)));
+    }
+
+    private static String quote(String name)
+    {
+        return formatIdentifier(name, '`');
+    }
+
+    private static class Column
+    {
+        private final String name;
+        private final String expression;
+        private final String mergeFunction;
+
+        private Column(String name, String expression, String mergeFunction)
+        {
+            this.name = name;
+            this.expression = expression;
+            this.mergeFunction = mergeFunction;
+        }
+    }
+}
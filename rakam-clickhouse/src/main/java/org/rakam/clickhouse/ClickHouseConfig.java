@@ -2,12 +2,18 @@ package org.rakam.clickhouse;
 
 import java.net.URI;
 import io.airlift.configuration.Config;
+import io.airlift.units.Duration;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class ClickHouseConfig
 {
     private URI address = URI.create("http://127.0.0.1:8123");
     private String hotStoragePrefix;
     private String coldStoragePrefix;
+    private Duration continuousQueryAllowedLateness = new Duration(1, HOURS);
+    private Duration continuousQueryWatermarkInterval = new Duration(10, SECONDS);
 
     @Config("clickhouse.address")
     public ClickHouseConfig setAddress(URI address)
@@ -44,4 +50,28 @@ public class ClickHouseConfig
         this.coldStoragePrefix = coldStoragePrefix;
         return this;
     }
+
+    @Config("clickhouse.continuous-query.allowed-lateness")
+    public ClickHouseConfig setContinuousQueryAllowedLateness(Duration continuousQueryAllowedLateness)
+    {
+        this.continuousQueryAllowedLateness = continuousQueryAllowedLateness;
+        return this;
+    }
+
+    public Duration getContinuousQueryAllowedLateness()
+    {
+        return continuousQueryAllowedLateness;
+    }
+
+    @Config("clickhouse.continuous-query.watermark-interval")
+    public ClickHouseConfig setContinuousQueryWatermarkInterval(Duration continuousQueryWatermarkInterval)
+    {
+        this.continuousQueryWatermarkInterval = continuousQueryWatermarkInterval;
+        return this;
+    }
+
+    public Duration getContinuousQueryWatermarkInterval()
+    {
+        return continuousQueryWatermarkInterval;
+    }
 }
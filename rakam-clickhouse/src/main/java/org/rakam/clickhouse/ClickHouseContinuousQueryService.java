@@ -1,58 +1,176 @@
 package org.rakam.clickhouse;
 
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Query;
+import com.facebook.presto.sql.tree.Statement;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import io.airlift.http.client.StringResponseHandler.StringResponse;
+import io.airlift.log.Logger;
 import org.rakam.analysis.ContinuousQueryService;
+import org.rakam.analysis.metadata.Metastore;
 import org.rakam.analysis.metadata.QueryMetadataStore;
+import org.rakam.clickhouse.analysis.ClickHouseQueryExecution;
 import org.rakam.collection.SchemaField;
+import org.rakam.config.ProjectConfig;
 import org.rakam.plugin.ContinuousQuery;
 import org.rakam.report.QueryExecution;
-import org.rakam.report.QueryExecutor;
 import org.rakam.report.QueryResult;
+import org.rakam.report.QueryStats;
 import org.rakam.util.AlreadyExistsException;
 import org.rakam.util.RakamException;
-import org.rakam.util.ValidationUtil;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkLiteral;
+import static org.rakam.util.ValidationUtil.checkProject;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
 
+/**
+ * The continuous queries are materialized views that aggregate the inserted events into the intermediate states
+ * (see {@link ClickHouseAggregateView}) and a view that merges the states when the query is read.
+ * <p>
+ * Each continuous query has a watermark that follows the latest event time of its collection by the allowed
+ * lateness. The events that arrive before the watermark update the groups they belong to, the older events are
+ * dropped so that the groups of the past are final once the watermark passes them. The dropped events are counted
+ * in a separate view and reported in the stats of {@link #refresh(String, String)}.
+ */
 public class ClickHouseContinuousQueryService
         extends ContinuousQueryService
 {
-    private final QueryExecutor queryExecutor;
+    private final static Logger LOGGER = Logger.get(ClickHouseContinuousQueryService.class);
+    public static final String CONTINUOUS_QUERY_PREFIX = "$continuous_";
+    private static final String STATE_SUFFIX = "$state";
+    private static final String DROPPED_ROWS_SUFFIX = "$dropped";
+    private static final String WATERMARK_TABLE = "`$continuous_watermarks`";
+
+    private final SqlParser sqlParser = new SqlParser();
+    private final ClickHouseConfig config;
+    private final Metastore metastore;
+    private final String timeColumn;
+    private final long allowedLatenessSeconds;
+    private final long watermarkIntervalMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Set<String> watermarkTables = ConcurrentHashMap.newKeySet();
 
     @Inject
-    public ClickHouseContinuousQueryService(QueryExecutor queryExecutor, QueryMetadataStore database)
+    public ClickHouseContinuousQueryService(ClickHouseConfig config, ProjectConfig projectConfig, Metastore metastore, QueryMetadataStore database)
     {
         super(database);
-        this.queryExecutor = queryExecutor;
+        this.config = config;
+        this.metastore = metastore;
+        this.timeColumn = checkTableColumn(projectConfig.getTimeColumn(), '`');
+        this.allowedLatenessSeconds = config.getContinuousQueryAllowedLateness().roundTo(SECONDS);
+        this.watermarkIntervalMillis = config.getContinuousQueryWatermarkInterval().toMillis();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("continuous-query-watermark")
+                .setUncaughtExceptionHandler((t, e) -> LOGGER.error(e))
+                .build());
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (String project : metastore.getProjects()) {
+                try {
+                    advanceWatermarks(project, list(project));
+                }
+                catch (Exception e) {
+                    LOGGER.error(e, "Error while advancing the watermarks of the continuous queries in project %s", project);
+                }
+            }
+        }, watermarkIntervalMillis, watermarkIntervalMillis, MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        scheduler.shutdownNow();
     }
 
     @Override
     public QueryExecution create(String project, ContinuousQuery report, boolean replayHistoricalData)
             throws AlreadyExistsException
     {
+        ClickHouseAggregateView view = analyze(report.getQuery());
+
         database.createContinuousQuery(project, report);
-        String.format("CREATE MATERIALIZED VIEW %s.%s ENGINE = AggregatingMergeTree(`$date`, (`$date`), 8192) AS %s");
+
+        List<String> createdTables = new ArrayList<>();
+        try {
+            createWatermarkTable(project);
+            // the query that is created again with the same name doesn't use the watermark of the deleted query
+            setWatermark(project, report.tableName, 0);
+
+            String condition = getWatermarkCondition(project, report.tableName);
+            String stateTable = getTableReference(project, report.tableName, STATE_SUFFIX);
+            runStatement(format("CREATE MATERIALIZED VIEW %s ENGINE = AggregatingMergeTree(`$date`, (%s), 8192) %s AS %s",
+                    stateTable, view.getPrimaryKey(), replayHistoricalData ? "POPULATE" : "", view.getStateQuery(project, condition)));
+            createdTables.add(stateTable);
+
+            String droppedRowsTable = getTableReference(project, report.tableName, DROPPED_ROWS_SUFFIX);
+            runStatement(format("CREATE MATERIALIZED VIEW %s ENGINE = SummingMergeTree(`$date`, (`$date`), 8192) AS %s",
+                    droppedRowsTable, view.getDroppedRowsQuery(project, condition)));
+            createdTables.add(droppedRowsTable);
+
+            runStatement(format("CREATE VIEW %s AS %s",
+                    getTableReference(project, report.tableName, ""), view.getMergeQuery(stateTable)));
+        }
+        catch (RakamException e) {
+            createdTables.forEach(table -> ClickHouseQueryExecution.runStatementSafe(config, "DROP TABLE IF EXISTS " + table));
+            database.deleteContinuousQuery(project, report.tableName);
+            throw new RakamException("Error while creating continuous query: " + e.getMessage(), BAD_REQUEST);
+        }
+
         return QueryExecution.completedQueryExecution(null, QueryResult.empty());
     }
 
+    private ClickHouseAggregateView analyze(Query query)
+    {
+        return ClickHouseAggregateView.analyze(query).orElseThrow(() -> new RakamException("Continuous queries must aggregate the events " +
+                "of a single collection with count, sum, min, max, avg or approx_distinct functions and select all the GROUP BY expressions " +
+                "with their names", BAD_REQUEST));
+    }
+
     @Override
     public CompletableFuture<Boolean> delete(String project, String tableName)
     {
-        String prestoQuery = format("drop table %s.%s", project, ValidationUtil.checkCollection(tableName));
-        return queryExecutor.executeRawQuery(prestoQuery).getResult().thenApply(result -> {
-            if (result.getError() == null) {
-                database.deleteContinuousQuery(project, tableName);
-                return true;
-            } else {
-                throw new RakamException("Error while deleting continuous query:" + result.getError().message, BAD_REQUEST);
+        for (String suffix : ImmutableList.of("", STATE_SUFFIX, DROPPED_ROWS_SUFFIX)) {
+            StringResponse response = ClickHouseQueryExecution.runStatementSafe(config,
+                    "DROP TABLE IF EXISTS " + getTableReference(project, tableName, suffix));
+            if (response.getStatusCode() != 200) {
+                throw new RakamException("Error while deleting continuous query:" + response.getBody(), BAD_REQUEST);
             }
-        });
+        }
+
+        database.deleteContinuousQuery(project, tableName);
+        return CompletableFuture.completedFuture(true);
     }
 
     @Override
@@ -64,12 +182,157 @@ public class ClickHouseContinuousQueryService
     @Override
     public boolean test(String project, String query)
     {
-        return false;
+        Statement statement;
+        try {
+            statement = sqlParser.createStatement(query);
+        }
+        catch (Exception e) {
+            return false;
+        }
+        return statement instanceof Query && ClickHouseAggregateView.analyze((Query) statement).isPresent();
     }
 
+    /**
+     * Advances the watermark of the continuous query and returns the watermark and the number of events that are
+     * dropped since the query is created.
+     */
     @Override
     public QueryExecution refresh(String project, String tableName)
     {
-        return null;
+        ContinuousQuery query = get(project, tableName);
+        List<SchemaField> columns = ImmutableList.of(new SchemaField("watermark", TIMESTAMP), new SchemaField("dropped_rows", LONG));
+        // the queries that are created before the watermarks were tracked don't drop the late events
+        if (!getStateTables(project).contains(tableName)) {
+            return QueryExecution.completedQueryExecution(null, new QueryResult(columns, ImmutableList.of(Arrays.asList(null, 0L))));
+        }
+
+        advanceWatermarks(project, ImmutableList.of(query));
+
+        long watermark = getWatermarks(project).getOrDefault(tableName, 0L);
+        long droppedRows = queryScalar(format("SELECT sum(dropped_rows) FROM %s",
+                getTableReference(project, tableName, DROPPED_ROWS_SUFFIX))).orElse(0L);
+
+        QueryResult result = new QueryResult(columns, ImmutableList.of(ImmutableList.of(Instant.ofEpochSecond(watermark), droppedRows)));
+        return QueryExecution.completedQueryExecution(null, result,
+                new QueryStats(100, QueryStats.State.FINISHED, null, null, null, null, null, null, null, droppedRows));
+    }
+
+    /**
+     * The watermark of a collection is the latest event time minus the allowed lateness. The event times in the
+     * future are ignored so that the events with a wrong clock don't move the watermark ahead of the other events.
+     */
+    void advanceWatermarks(String project, List<ContinuousQuery> queries)
+    {
+        if (queries.isEmpty()) {
+            return;
+        }
+
+        Set<String> stateTables = getStateTables(project);
+        Map<String, List<String>> tablesByCollection = new HashMap<>();
+        for (ContinuousQuery query : queries) {
+            if (!stateTables.contains(query.tableName)) {
+                continue;
+            }
+            ClickHouseAggregateView.analyze(query.getQuery()).ifPresent(view ->
+                    tablesByCollection.computeIfAbsent(view.getCollection(), k -> new ArrayList<>()).add(query.tableName));
+        }
+        if (tablesByCollection.isEmpty()) {
+            return;
+        }
+
+        createWatermarkTable(project);
+        Map<String, Long> watermarks = getWatermarks(project);
+        for (Map.Entry<String, List<String>> entry : tablesByCollection.entrySet()) {
+            Optional<Long> eventTime = queryScalar(format("SELECT toUnixTimestamp(least(max(%s), now())) FROM %s.%s WHERE `$date` >= yesterday()",
+                    timeColumn, checkProject(project), checkCollection(entry.getKey(), '`')));
+            if (!eventTime.isPresent() || eventTime.get() == 0) {
+                continue;
+            }
+
+            long watermark = eventTime.get() - allowedLatenessSeconds;
+            for (String tableName : entry.getValue()) {
+                if (watermark > watermarks.getOrDefault(tableName, 0L)) {
+                    setWatermark(project, tableName, watermark);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the continuous queries that have the views of the intermediate states, the queries that are created
+     * by the older versions are not materialized and don't have a watermark.
+     */
+    private Set<String> getStateTables(String project)
+    {
+        QueryResult result = runQuery(format("SELECT name FROM system.tables WHERE database = '%s' AND startsWith(name, '%s')",
+                checkLiteral(project), CONTINUOUS_QUERY_PREFIX));
+        if (result.isFailed()) {
+            throw new RakamException("Unable to fetch the tables of the continuous queries: " + result.getError().message, INTERNAL_SERVER_ERROR);
+        }
+
+        return result.getResult().stream().map(row -> row.get(0).toString())
+                .filter(name -> name.endsWith(STATE_SUFFIX))
+                .map(name -> name.substring(CONTINUOUS_QUERY_PREFIX.length(), name.length() - STATE_SUFFIX.length()))
+                .collect(Collectors.toSet());
+    }
+
+    private void createWatermarkTable(String project)
+    {
+        if (watermarkTables.contains(project)) {
+            return;
+        }
+        runStatement(format("CREATE TABLE IF NOT EXISTS %s.%s (`$date` Date, table_name String, watermark DateTime, version UInt64) " +
+                "ENGINE = ReplacingMergeTree(`$date`, (table_name), 8192, version)", checkProject(project), WATERMARK_TABLE));
+        watermarkTables.add(project);
+    }
+
+    private Map<String, Long> getWatermarks(String project)
+    {
+        QueryResult result = runQuery(format("SELECT table_name, toUnixTimestamp(argMax(watermark, version)) FROM %s.%s GROUP BY table_name",
+                checkProject(project), WATERMARK_TABLE));
+        if (result.isFailed()) {
+            throw new RakamException("Unable to fetch the watermarks: " + result.getError().message, INTERNAL_SERVER_ERROR);
+        }
+
+        return result.getResult().stream().collect(Collectors.toMap(row -> row.get(0).toString(), row -> ((Number) row.get(1)).longValue()));
+    }
+
+    private void setWatermark(String project, String tableName, long watermark)
+    {
+        runStatement(format("INSERT INTO %s.%s (`$date`, table_name, watermark, version) SELECT today(), '%s', toDateTime(%d), %d",
+                checkProject(project), WATERMARK_TABLE, checkLiteral(tableName), watermark, System.currentTimeMillis()));
+    }
+
+    private String getWatermarkCondition(String project, String tableName)
+    {
+        return format("%s >= (SELECT argMax(watermark, version) FROM %s.%s WHERE table_name = '%s')",
+                timeColumn, checkProject(project), WATERMARK_TABLE, checkLiteral(tableName));
+    }
+
+    private Optional<Long> queryScalar(String query)
+    {
+        QueryResult result = runQuery(query);
+        if (result.isFailed()) {
+            throw new RakamException(result.getError().message, INTERNAL_SERVER_ERROR);
+        }
+        if (result.getResult().isEmpty() || result.getResult().get(0).get(0) == null) {
+            return Optional.empty();
+        }
+        return Optional.of(((Number) result.getResult().get(0).get(0)).longValue());
+    }
+
+    void runStatement(String query)
+    {
+        ClickHouseQueryExecution.runStatement(config, query);
+    }
+
+    QueryResult runQuery(String query)
+    {
+        return new ClickHouseQueryExecution(config, query).getResult().join();
+    }
+
+    private static String getTableReference(String project, String tableName, String suffix)
+    {
+        return checkProject(project) + "." + checkCollection(CONTINUOUS_QUERY_PREFIX + tableName + suffix, '`');
     }
 }
@@ -13,6 +13,7 @@ import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EscapeIdentifier;
 import org.rakam.analysis.EventExplorer;
 import org.rakam.analysis.FunnelQueryExecutor;
+import org.rakam.analysis.HyperLogLogFunctions;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.RealtimeService.RealtimeAggregations;
@@ -70,6 +71,7 @@ public class ClickHouseModule
         binder.bind(MaterializedViewService.class).to(ClickHouseMaterializedViewService.class);
         binder.bind(String.class).annotatedWith(TimestampToEpochFunction.class)
                 .toInstance("toUnixTimestamp");
+        binder.bind(HyperLogLogFunctions.class).toInstance(ClickHouseEventExplorer.HYPERLOGLOG_FUNCTIONS);
 
         binder.bind(new TypeLiteral<List<AggregationType>>() {})
                 .annotatedWith(RealtimeAggregations.class)
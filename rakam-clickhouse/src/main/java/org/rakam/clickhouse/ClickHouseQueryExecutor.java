@@ -12,6 +12,7 @@ import org.rakam.report.QueryResult;
 import org.rakam.report.QuerySampling;
 import org.rakam.util.RakamException;
 
+import java.math.BigDecimal;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -19,7 +20,9 @@ import java.util.stream.Collectors;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static java.lang.String.format;
+import static org.rakam.clickhouse.ClickHouseContinuousQueryService.CONTINUOUS_QUERY_PREFIX;
 import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkLiteral;
 import static org.rakam.util.ValidationUtil.checkTableColumn;
 
 public class ClickHouseQueryExecutor implements QueryExecutor
@@ -56,7 +59,7 @@ public class ClickHouseQueryExecutor implements QueryExecutor
         if (node.getPrefix().isPresent()) {
             String prefix = node.getPrefix().get().toString();
             if (prefix.equals("continuous")) {
-                return ".`" + project + "`.`$continuous_" + checkCollection(node.getSuffix(), '`');
+                return project + "." + checkCollection(CONTINUOUS_QUERY_PREFIX + node.getSuffix(), '`');
             } else if (prefix.equals("materialized")) {
                 return ".`" + project + "`.`$materialized_" + checkCollection(node.getSuffix(), '`');
             } else if (prefix.equals("user")) {
@@ -81,28 +84,61 @@ public class ClickHouseQueryExecutor implements QueryExecutor
                         .map(collection -> format("select '%s' as `_collection`, %s from %s",
                                 collection,
                                 sharedColumns.isEmpty() ? "1" : sharedColumns,
-                                getTableReference(project, QualifiedName.of(collection))))
+                                getTableReference(project, QualifiedName.of(collection), sample)))
                         .collect(Collectors.joining(" union all ")) + ") ";
             } else {
                 return String.format("(select '' as `_collection`, '' as _user, now() as %s limit 0)", checkTableColumn(projectConfig.getTimeColumn(), '`'));
             }
 
         } else {
-            return getTableReference(project, node);
+            return getTableReference(project, node, sample);
         }
     }
 
-    private String getTableReference(String project, QualifiedName node) {
+    @Override
+    public Optional<Long> estimateRowCount(String project, String collection)
+    {
+        // the collections without the sampling key are not sampled automatically
+        if (!hasSamplingKey(project, collection)) {
+            return Optional.empty();
+        }
+
+        String coldStoragePrefix = Optional.ofNullable(config.getColdStoragePrefix()).map(e -> e + "_").orElse("");
+        QueryResult result = executeRawQuery(format("select sum(rows) from system.parts where active and database = '%s' and table = '%s'",
+                checkLiteral(coldStoragePrefix + project), checkLiteral(collection))).getResult().join();
+        if (result.isFailed() || result.getResult().isEmpty() || result.getResult().get(0).get(0) == null) {
+            return Optional.empty();
+        }
+        return Optional.of(((Number) result.getResult().get(0).get(0)).longValue());
+    }
+
+    private String getTableReference(String project, QualifiedName node, Optional<QuerySampling> sample) {
         String hotStoragePrefix = Optional.ofNullable(config.getHotStoragePrefix()).map(e -> e+"_").orElse(null);
         String coldStoragePrefix = Optional.ofNullable(config.getColdStoragePrefix()).map(e -> e + "_").orElse("");
         String table = project + "." + checkCollection(node.getSuffix(), '`');
 
+        // MergeTree samples the rows by the hash of _user so the sampling method is ignored
+        String sampleClause = "";
+        if (sample.isPresent()) {
+            if (!hasSamplingKey(project, node.getSuffix())) {
+                throw new RakamException(format("Collection %s can't be sampled since it doesn't have _user column", node.getSuffix()), BAD_REQUEST);
+            }
+            sampleClause = " SAMPLE " + BigDecimal.valueOf(sample.get().percentage / 100).stripTrailingZeros().toPlainString();
+        }
+
         if (hotStoragePrefix != null) {
-            return "((select * from "+ coldStoragePrefix + table + " union all " +
-                    "select * from " + hotStoragePrefix + table + ")" +
+            return "((select * from "+ coldStoragePrefix + table + sampleClause + " union all " +
+                    "select * from " + hotStoragePrefix + table + sampleClause + ")" +
                     " as " + node.getSuffix() + ")";
+        } else if (!sampleClause.isEmpty()) {
+            return "(select * from " + coldStoragePrefix + table + sampleClause + ")";
         } else {
             return coldStoragePrefix + table;
         }
     }
+
+    private boolean hasSamplingKey(String project, String collection) {
+        // the sampling key of the table is created with the table if the collection has _user column
+        return metastore.getCollection(project, collection).stream().anyMatch(f -> f.getName().equals("_user"));
+    }
 }
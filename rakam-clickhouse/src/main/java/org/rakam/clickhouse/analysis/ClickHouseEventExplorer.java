@@ -4,6 +4,7 @@ import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.Expression;
 import com.google.common.collect.ImmutableMap;
 import org.rakam.analysis.EventExplorer;
+import org.rakam.analysis.HyperLogLogFunctions;
 import org.rakam.config.ProjectConfig;
 import org.rakam.report.DelegateQueryExecution;
 import org.rakam.report.QueryExecution;
@@ -56,6 +57,10 @@ import static org.rakam.util.ValidationUtil.checkTableColumn;
 public class ClickHouseEventExplorer
         implements EventExplorer
 {
+    // the states of the uniq aggregation are stored in AggregateFunction(uniq, T) columns
+    public static final HyperLogLogFunctions HYPERLOGLOG_FUNCTIONS = new HyperLogLogFunctions(
+            "uniqState(%s)", "uniqMergeState(%s)", "finalizeAggregation(%s)");
+
     protected final Reference DEFAULT_SEGMENT = new Reference(COLUMN, "_collection");
 
     private static final Map<TimestampTransformation, String> timestampMapping = ImmutableMap.
@@ -243,7 +248,7 @@ public class ClickHouseEventExplorer
             case COUNT_UNIQUE:
                 return "uniqExact(%s)";
             case APPROXIMATE_UNIQUE:
-                return "uniq(distinct %s)";
+                return "uniq(%s)";
             default:
                 throw new IllegalArgumentException("aggregation type is not supported");
         }
@@ -288,6 +293,18 @@ public class ClickHouseEventExplorer
         return builder;
     }
 
+    @Override
+    public String getIntermediateForApproximateUniqueFunction()
+    {
+        return HYPERLOGLOG_FUNCTIONS.sketch("%s");
+    }
+
+    @Override
+    public String getFinalForApproximateUniqueFunction()
+    {
+        return HYPERLOGLOG_FUNCTIONS.mergedCardinality("%s");
+    }
+
     public String getColumnReference(Reference ref)
     {
         switch (ref.type) {
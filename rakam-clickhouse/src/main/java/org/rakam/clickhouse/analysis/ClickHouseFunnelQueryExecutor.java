@@ -124,9 +124,7 @@ public class ClickHouseFunnelQueryExecutor
                     data = new ArrayList<>(result.getResult().size() * steps.size());
 
                     long totalStep1 = 0;
-                    int totalsIndex = result.getResult().size() - 1;
-                    for (int i = 0; i < totalsIndex; i++) {
-                        List<Object> objects = result.getResult().get(i);
+                    for (List<Object> objects : result.getResult()) {
 
                         Object dimensionValue = (objects.get(0) == null || objects.get(0).toString().length() == 0) ?
                                 null : objects.get(0);
@@ -138,8 +136,9 @@ public class ClickHouseFunnelQueryExecutor
                         }
                     }
 
-                    List<Object> totalsRow = result.getResult().get(totalsIndex);
-                    if (totalStep1 < ((Long) totalsRow.get(1))) {
+                    // the row of WITH TOTALS is returned in the properties of the result
+                    List<Object> totalsRow = (List<Object>) result.getProperties().get("totals");
+                    if (totalsRow != null && totalStep1 < ((Long) totalsRow.get(1))) {
                         for (int idx = 1; idx < totalsRow.size(); idx++) {
                             data.add(Arrays.asList("Step " + idx, "Others", totalsRow.get(idx)));
                         }
@@ -47,7 +47,7 @@ public class ClickHouseMetastore
     @Override
     public Map<String, List<SchemaField>> getCollections(String project)
     {
-        List<List<Object>> data = new ClickHouseQueryExecution(config, format("select table, name, type from system.columns where database = '%s'",
+        List<List<Object>> data = new ClickHouseQueryExecution(config, format("select table, name, type from system.columns where database = '%s' and table not like '$%%' and table not like '.inner.%%'",
                 project)).getResult().join().getResult();
 
         HashMap<String, List<SchemaField>> map = new HashMap<>();
@@ -3,8 +3,10 @@ package org.rakam.clickhouse.analysis;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.CharStreams;
+import com.google.common.io.LittleEndianDataInputStream;
 import com.google.common.net.HostAndPort;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.airlift.http.client.HttpClientConfig;
 import io.airlift.http.client.Request;
 import io.airlift.http.client.Response;
@@ -21,14 +23,19 @@ import org.rakam.collection.SchemaField;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
 import org.rakam.report.QueryStats;
+import org.rakam.report.QueryStatsPublisher;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
 
 import javax.ws.rs.core.UriBuilder;
 
+import java.io.BufferedInputStream;
 import java.io.DataInput;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.ProxySelector;
@@ -36,13 +43,21 @@ import java.net.URI;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.LocalTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -53,8 +68,9 @@ import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERR
 import static java.lang.String.format;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.ZoneOffset.UTC;
+import static java.time.temporal.ChronoField.NANO_OF_SECOND;
 import static java.util.concurrent.TimeUnit.SECONDS;
-import static org.rakam.report.QueryStats.State.FINISHED;
+import static java.util.regex.Pattern.CASE_INSENSITIVE;
 import static org.rakam.report.QueryStats.State.RUNNING;
 
 public class ClickHouseQueryExecution
@@ -63,35 +79,123 @@ public class ClickHouseQueryExecution
     private static final Logger LOGGER = Logger.get(ClickHouseQueryExecution.class);
     public static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     public static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final DateTimeFormatter DATE_TIME_FRACTION_FORMATTER = new DateTimeFormatterBuilder()
+            .append(DATE_TIME_FORMATTER)
+            .optionalStart().appendFraction(NANO_OF_SECOND, 0, 9, true).optionalEnd()
+            .toFormatter();
+
+    private static final Map<String, ClickHouseQueryExecution> RUNNING_QUERIES = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService PROGRESS_TRACKER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("clickhouse-progress-tracker")
+            .setDaemon(true).build());
+
+    static {
+        PROGRESS_TRACKER.scheduleWithFixedDelay(ClickHouseQueryExecution::trackProgress, 1, 1, SECONDS);
+    }
 
-    private final CompletableFuture<ClickHouseQueryResult> result;
+    private final CompletableFuture<QueryResult> result;
+    private final QueryStatsPublisher statsPublisher = new QueryStatsPublisher(new QueryStats(RUNNING));
     protected static final JettyHttpClient HTTP_CLIENT = new JettyHttpClient(
             new HttpClientConfig()
                     .setConnectTimeout(new Duration(10, SECONDS))
                     .setSocksProxy(getSystemSocksProxy()), new JettyIoPool("rakam-clickhouse", new JettyIoPoolConfig()),
             ImmutableSet.of());
-    private static Pattern CLICKHOUSE_TYPE_PATTERN = Pattern.compile("^([A-Za-z0-9]+)\\(([A-Za-z0-9]+)\\)$");
+    private static Pattern CLICKHOUSE_TYPE_PATTERN = Pattern.compile("^([A-Za-z0-9]+)\\((.+)\\)$");
+    private static Pattern ENUM_VALUE_PATTERN = Pattern.compile("'((?:[^'\\\\]|\\\\.)*)'\\s*=\\s*(-?[0-9]+)");
+    // the binary formats don't have a section for the totals and the extremes
+    private static Pattern TOTALS_PATTERN = Pattern.compile("\\bWITH\\s+TOTALS\\b|\\bextremes\\s*=\\s*1\\b", CASE_INSENSITIVE);
+    private static final String STATS_FORMAT = "JSONCompact";
+    private static final QueryResponseHandler ROW_BINARY_HANDLER = new QueryResponseHandler("RowBinaryWithNamesAndTypes")
+    {
+        @Override
+        protected Optional<QueryResult> read(InputStream stream)
+                throws IOException
+        {
+            return readRowBinary(new BufferedInputStream(stream));
+        }
+    };
+    private static final QueryResponseHandler JSON_HANDLER = new QueryResponseHandler("JSONCompact")
+    {
+        @Override
+        protected Optional<QueryResult> read(InputStream stream)
+                throws IOException
+        {
+            return Optional.of(readJson(JsonHelper.read(stream, ClickHouseQueryResult.class)));
+        }
+    };
 
     private final String query;
     private final String queryId;
     private final ClickHouseConfig config;
+    private volatile ListenableFuture<?> request;
 
     public ClickHouseQueryExecution(ClickHouseConfig config, String query)
     {
         this.query = query;
         this.queryId = UUID.randomUUID().toString();
         this.config = config;
+
+        result = new CompletableFuture<QueryResult>()
+        {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning)
+            {
+                // propagate cancel to the running request
+                ListenableFuture<?> current = request;
+                boolean cancelled = current != null && current.cancel(mayInterruptIfRunning);
+                super.cancel(mayInterruptIfRunning);
+                return cancelled;
+            }
+        };
+
+        RUNNING_QUERIES.put(queryId, this);
+        result.whenComplete((queryResult, ex) -> {
+            RUNNING_QUERIES.remove(queryId);
+            statsPublisher.finish(ex != null ? null : queryResult);
+        });
+
+        execute(TOTALS_PATTERN.matcher(query).find() ? JSON_HANDLER : ROW_BINARY_HANDLER);
+    }
+
+    private void execute(QueryResponseHandler handler)
+    {
         URI uri = UriBuilder
                 .fromUri(config.getAddress())
                 .queryParam("query_id", queryId).build();
 
-        result = convertCompletableFuture(HTTP_CLIENT.executeAsync(
+        ListenableFuture<Optional<QueryResult>> future = HTTP_CLIENT.executeAsync(
                 Request.builder()
                         .setUri(uri)
                         .setMethod("POST")
-                        .setBodyGenerator(createStaticBodyGenerator(query + " format " + QueryResponseHandler.FORMAT, UTF_8))
+                        .setBodyGenerator(createStaticBodyGenerator(query + " format " + handler.format, UTF_8))
                         .build(),
-                new QueryResponseHandler()));
+                handler);
+        request = future;
+        if (result.isCancelled()) {
+            future.cancel(false);
+        }
+
+        future.addListener(() -> {
+            try {
+                Optional<QueryResult> queryResult = future.get();
+                if (queryResult.isPresent()) {
+                    result.complete(queryResult.get());
+                }
+                else if (!result.isDone()) {
+                    // the binary format can't decode some of the column types, the text format returns them as they are
+                    execute(JSON_HANDLER);
+                }
+            }
+            catch (InterruptedException e) {
+                result.completeExceptionally(e);
+            }
+            catch (ExecutionException e) {
+                result.completeExceptionally(e.getCause());
+            }
+            catch (CancellationException e) {
+                result.cancel(false);
+            }
+        }, Runnable::run);
     }
 
     public static String runStatement(ClickHouseConfig config, String query)
@@ -116,107 +220,65 @@ public class ClickHouseQueryExecution
     @Override
     public QueryStats currentStats()
     {
-        if (result.isDone()) {
-            return new QueryStats(100, FINISHED, null, null, null, null, null, null);
-        }
-        else {
-            String status = runStatement(config, format("select rows_read, bytes_read, total_rows_approx, memory_usage from system.processes where query_id = '%s' format "
-                    + QueryResponseHandler.FORMAT, queryId));
-            if (status.isEmpty()) {
-                if (result.isDone()) {
-                    return currentStats();
-                }
-                else {
-                    return new QueryStats(null, RUNNING, null, null, null, null, null, null);
-                }
-            }
-            ClickHouseQueryResult read = JsonHelper.read(status, ClickHouseQueryResult.class);
-            int percentage = (((Number) read.data.get(0)).intValue() * 100) / ((Number) read.data.get(2)).intValue();
-            return new QueryStats(percentage, RUNNING, null, ((Number) read.data.get(1)).longValue(), ((Number) read.data.get(2)).longValue(),
-                    null, null, null);
-        }
+        return statsPublisher.current();
     }
 
     @Override
-    public boolean isFinished()
+    public void addStatsListener(Consumer<QueryStats> listener)
     {
-        return result.isDone();
+        statsPublisher.addListener(listener);
     }
 
-    private QueryResult getSuccessfulQueryResult(ClickHouseQueryResult queryResult)
+    /**
+     * Fetches the progress of all the running queries of a server with a single query instead of
+     * querying the progress of each query separately.
+     */
+    private static void trackProgress()
     {
-        List<SchemaField> columns = queryResult.meta.stream().map(f -> new SchemaField(f.name, parseClickhouseType(f.type)))
-                .collect(Collectors.toList());
+        try {
+            Map<URI, List<ClickHouseQueryExecution>> executions = RUNNING_QUERIES.values().stream()
+                    .collect(Collectors.groupingBy(execution -> execution.config.getAddress()));
+
+            for (List<ClickHouseQueryExecution> serverExecutions : executions.values()) {
+                String queryIds = serverExecutions.stream()
+                        .map(execution -> "'" + execution.queryId + "'")
+                        .collect(Collectors.joining(", "));
+
+                String status = runStatement(serverExecutions.get(0).config,
+                        format("select query_id, rows_read, bytes_read, total_rows_approx from system.processes where query_id in (%s) format %s",
+                                queryIds, STATS_FORMAT));
+                ClickHouseQueryResult read = JsonHelper.read(status, ClickHouseQueryResult.class);
+
+                for (List<Object> row : read.data) {
+                    ClickHouseQueryExecution execution = RUNNING_QUERIES.get(row.get(0).toString());
+                    if (execution == null) {
+                        continue;
+                    }
 
-        ImmutableMap.Builder<String, Object> builder = ImmutableMap.builder();
-        if (queryResult.totals != null) {
-            builder.put("totals", queryResult.totals);
+                    // 64-bit integers are quoted in JSON formats
+                    long rowsRead = Long.parseLong(row.get(1).toString());
+                    long bytesRead = Long.parseLong(row.get(2).toString());
+                    long totalRows = Long.parseLong(row.get(3).toString());
+                    Integer percentage = totalRows == 0 ? null : (int) Math.min(100, (rowsRead * 100) / totalRows);
+                    execution.statsPublisher.update(new QueryStats(percentage, RUNNING, null, rowsRead, bytesRead, null, null, null));
+                }
+            }
         }
-        if (queryResult.extremes != null) {
-            builder.put("extremes", queryResult.extremes);
+        catch (Throwable e) {
+            LOGGER.warn(e, "Unable to fetch the progress of the running queries");
         }
-
-        return new QueryResult(columns, transformResultData(columns, queryResult.data),
-                builder.build());
     }
 
-    private List<List<Object>> transformResultData(List<SchemaField> columns, List<List<Object>> data)
+    @Override
+    public boolean isFinished()
     {
-        for (List<Object> objects : data) {
-            for (int i = 0; i < columns.size(); i++) {
-                String value = objects.get(i).toString();
-                if (value == null) {
-                    continue;
-                }
-
-                FieldType type = columns.get(i).getType();
-                switch (type) {
-                    case STRING:
-                        break;
-                    case LONG:
-                        objects.set(i, Long.parseLong(value));
-                        break;
-                    case INTEGER:
-                        objects.set(i, Integer.parseInt(value));
-                        break;
-                    case BOOLEAN:
-                        objects.set(i, value.equals("true"));
-                        break;
-                    case TIMESTAMP:
-                        objects.set(i, LocalDateTime.parse(value, DATE_TIME_FORMATTER).toInstant(UTC));
-                        break;
-                    case DATE:
-                        objects.set(i, LocalDate.parse(value));
-                        break;
-                    case TIME:
-                        objects.set(i, LocalTime.parse(value, TIME_FORMATTER));
-                        break;
-                    case BINARY:
-                        objects.set(i, value.getBytes(UTF_8));
-                        break;
-                    case DECIMAL:
-                    case DOUBLE:
-                        objects.set(i, Double.parseDouble(value));
-                        break;
-                    default:
-                        if (type.isArray()) {
-
-                        }
-
-                        if (type.isMap()) {
-
-                        }
-                }
-            }
-        }
-
-        return data;
+        return result.isDone();
     }
 
     @Override
     public CompletableFuture<QueryResult> getResult()
     {
-        return result.thenApply(this::getSuccessfulQueryResult);
+        return result;
     }
 
     @Override
@@ -227,13 +289,26 @@ public class ClickHouseQueryExecution
         }
     }
 
-    private static class QueryResponseHandler
-            implements ResponseHandler<ClickHouseQueryResult, RuntimeException>
+    /**
+     * The result is read in RowBinary format which is more compact than the text formats and doesn't require
+     * the values to be parsed again. The queries that return the totals or the extremes and the results that
+     * have column types which can't be decoded from the binary format are read in JSONCompact format.
+     */
+    private abstract static class QueryResponseHandler
+            implements ResponseHandler<Optional<QueryResult>, RuntimeException>
     {
-        private static final String FORMAT = "JSONCompact";
+        private final String format;
+
+        QueryResponseHandler(String format)
+        {
+            this.format = format;
+        }
+
+        protected abstract Optional<QueryResult> read(InputStream stream)
+                throws IOException;
 
         @Override
-        public ClickHouseQueryResult handleException(Request request, Exception exception)
+        public Optional<QueryResult> handleException(Request request, Exception exception)
                 throws RuntimeException
         {
             LOGGER.error(exception);
@@ -241,7 +316,7 @@ public class ClickHouseQueryExecution
         }
 
         @Override
-        public ClickHouseQueryResult handle(Request request, Response response)
+        public Optional<QueryResult> handle(Request request, Response response)
                 throws RuntimeException
         {
             if (response.getStatusCode() != 200) {
@@ -256,7 +331,7 @@ public class ClickHouseQueryExecution
             }
 
             try {
-                return JsonHelper.read(response.getInputStream(), ClickHouseQueryResult.class);
+                return read(response.getInputStream());
             }
             catch (IOException e) {
                 LOGGER.error(e, "An error occurred while reading query results");
@@ -279,115 +354,395 @@ public class ClickHouseQueryExecution
         return null;
     }
 
-    static <T> CompletableFuture<T> convertCompletableFuture(final ListenableFuture<T> listenableFuture)
+    /**
+     * Returns empty if the result has a column type that can't be decoded, the query needs to be
+     * run in a text format in that case.
+     */
+    public static Optional<QueryResult> readRowBinary(BufferedInputStream stream)
+            throws IOException
     {
-        CompletableFuture<T> completable = new CompletableFuture<T>()
-        {
-            @Override
-            public boolean cancel(boolean mayInterruptIfRunning)
-            {
-                // propagate cancel to the listenable future
-                boolean result = listenableFuture.cancel(mayInterruptIfRunning);
-                super.cancel(mayInterruptIfRunning);
-                return result;
-            }
-        };
+        LittleEndianDataInputStream input = new LittleEndianDataInputStream(stream);
 
-        listenableFuture.addListener(() -> {
-            try {
-                completable.complete(listenableFuture.get());
+        int columnCount = readVarInt(input);
+        List<String> names = new ArrayList<>(columnCount);
+        for (int i = 0; i < columnCount; i++) {
+            names.add(readString(input));
+        }
+
+        List<ValueReader> readers = new ArrayList<>(columnCount);
+        List<SchemaField> columns = new ArrayList<>(columnCount);
+        for (int i = 0; i < columnCount; i++) {
+            String type = readString(input);
+            ValueReader reader = getReader(type);
+            if (reader == null) {
+                LOGGER.debug("The type of the column %s can't be read in binary format: %s", names.get(i), type);
+                return Optional.empty();
             }
-            catch (InterruptedException e) {
-                completable.completeExceptionally(e);
+            readers.add(reader);
+            columns.add(new SchemaField(names.get(i), parseClickhouseType(type)));
+        }
+
+        List<List<Object>> rows = new ArrayList<>();
+        while (true) {
+            stream.mark(1);
+            if (stream.read() == -1) {
+                break;
             }
-            catch (ExecutionException e) {
-                completable.completeExceptionally(e.getCause());
+            stream.reset();
+
+            List<Object> row = new ArrayList<>(columnCount);
+            for (ValueReader reader : readers) {
+                row.add(reader.read(input));
             }
-        }, Runnable::run);
-        return completable;
+            rows.add(row);
+        }
+
+        return Optional.of(new QueryResult(columns, rows));
     }
 
-    public static List<Object> readRowBinary(DataInput input, List<String> types)
-            throws IOException
+    private interface ValueReader
     {
-        ArrayList<Object> list = new ArrayList<>(types.size());
-        for (String s : types) {
-            Object value;
-            switch (s) {
-                case "Enum":
-                    throw new UnsupportedOperationException();
-                case "UInt64":
-                case "Int64":
-                    value = input.readLong();
-                    break;
-                case "UInt16":
-                case "Int16":
-                    value = input.readShort();
-                    break;
-                case "Float32":
-                    value = input.readFloat();
-                    break;
-                case "Float64":
-                    value = input.readDouble();
-                    break;
-                case "String":
-                    byte[] bytes = new byte[readVarInt(input)];
-                    input.readFully(bytes);
-                    value = new String(bytes, UTF_8);
-                    break;
-                case "Int32":
-                case "UInt32":
-                    value = input.readInt();
-                    break;
-                case "UInt8":
-                case "Int8":
-                    value = (int) input.readByte();
-                    break;
-                case "DateTime":
-                    value = Instant.ofEpochMilli(input.readInt() * 1000);
-                    break;
-                case "Date":
-                    value = LocalDate.ofEpochDay(input.readShort());
-                    break;
-                default:
-                    Matcher matcher = Pattern.compile("([A-Za-z0-9]+)\\(([0-9]+)\\)$").matcher(s);
-                    if (matcher.find()) {
-                        String type = matcher.group(1);
-                        String group = matcher.group(2);
-                        int variable = Integer.parseInt(group);
-                        switch (type) {
-                            case "FixedString":
-                                bytes = new byte[variable];
-                                input.readFully(bytes);
-                                value = new String(bytes, UTF_8);
-                                break;
-                            case "Array":
-                                for (int i = 0; i < readVarInt(input); i++) {
-
-                                }
-                            default:
-                                throw new IllegalStateException();
+        Object read(DataInput input)
+                throws IOException;
+    }
+
+    private static ValueReader getReader(String type)
+    {
+        switch (type) {
+            case "UInt64":
+                return input -> {
+                    long value = input.readLong();
+                    return value >= 0 ? (Object) value : new BigInteger(Long.toUnsignedString(value));
+                };
+            case "Int64":
+                return DataInput::readLong;
+            case "UInt32":
+                return input -> input.readInt() & 0xFFFFFFFFL;
+            case "Int32":
+                return DataInput::readInt;
+            case "UInt16":
+                return DataInput::readUnsignedShort;
+            case "Int16":
+                return input -> (int) input.readShort();
+            case "UInt8":
+                return DataInput::readUnsignedByte;
+            case "Int8":
+                return input -> (int) input.readByte();
+            case "Bool":
+                return input -> input.readByte() != 0;
+            case "Float32":
+                return input -> (double) input.readFloat();
+            case "Float64":
+                return DataInput::readDouble;
+            case "String":
+                return ClickHouseQueryExecution::readString;
+            case "UUID":
+                return input -> new UUID(input.readLong(), input.readLong()).toString();
+            case "DateTime":
+                return input -> Instant.ofEpochSecond(input.readInt() & 0xFFFFFFFFL);
+            case "Date":
+                return input -> LocalDate.ofEpochDay(input.readUnsignedShort());
+            case "Nothing":
+                return input -> {
+                    input.readByte();
+                    return null;
+                };
+            default:
+                Matcher matcher = CLICKHOUSE_TYPE_PATTERN.matcher(type);
+                if (!matcher.find()) {
+                    return null;
+                }
+
+                String parameter = matcher.group(2);
+                switch (matcher.group(1)) {
+                    case "Nullable": {
+                        ValueReader reader = getReader(parameter);
+                        return reader == null ? null : input -> input.readByte() == 1 ? null : reader.read(input);
+                    }
+                    case "LowCardinality":
+                        return getReader(parameter);
+                    case "FixedString": {
+                        int length = Integer.parseInt(parameter);
+                        return input -> {
+                            byte[] bytes = new byte[length];
+                            input.readFully(bytes);
+                            return new String(bytes, UTF_8);
+                        };
+                    }
+                    case "Array": {
+                        ValueReader reader = getReader(parameter);
+                        return reader == null ? null : input -> {
+                            int size = readVarInt(input);
+                            List<Object> list = new ArrayList<>(size);
+                            for (int i = 0; i < size; i++) {
+                                list.add(reader.read(input));
+                            }
+                            return list;
+                        };
+                    }
+                    case "Tuple": {
+                        List<ValueReader> readers = new ArrayList<>();
+                        for (String element : splitParameters(parameter)) {
+                            ValueReader reader = getReader(getTupleElementType(element));
+                            if (reader == null) {
+                                return null;
+                            }
+                            readers.add(reader);
                         }
-                        // Nested
+                        return input -> {
+                            List<Object> values = new ArrayList<>(readers.size());
+                            for (ValueReader reader : readers) {
+                                values.add(reader.read(input));
+                            }
+                            return JsonHelper.encode(values);
+                        };
+                    }
+                    case "Enum8":
+                        return input -> getEnumName(type, parameter, input.readByte());
+                    case "Enum16":
+                        return input -> getEnumName(type, parameter, input.readShort());
+                    case "DateTime":
+                        // the time zone is only used for formatting, the value is a unix timestamp
+                        return input -> Instant.ofEpochSecond(input.readInt() & 0xFFFFFFFFL);
+                    case "DateTime64": {
+                        long scale = BigInteger.TEN.pow(Integer.parseInt(splitParameters(parameter).get(0))).longValue();
+                        return input -> {
+                            long ticks = input.readLong();
+                            return Instant.ofEpochSecond(Math.floorDiv(ticks, scale), Math.floorMod(ticks, scale) * (1_000_000_000 / scale));
+                        };
                     }
-                    else {
-                        throw new IllegalStateException();
+                    case "Decimal": {
+                        List<String> parameters = splitParameters(parameter);
+                        return getDecimalReader(Integer.parseInt(parameters.get(0)), Integer.parseInt(parameters.get(1)));
                     }
+                    case "Decimal32":
+                        return getDecimalReader(9, Integer.parseInt(parameter));
+                    case "Decimal64":
+                        return getDecimalReader(18, Integer.parseInt(parameter));
+                    case "Decimal128":
+                        return getDecimalReader(38, Integer.parseInt(parameter));
+                    case "Decimal256":
+                        return getDecimalReader(76, Integer.parseInt(parameter));
+                    default:
+                        return null;
+                }
+        }
+    }
+
+    private static ValueReader getDecimalReader(int precision, int scale)
+    {
+        if (precision <= 9) {
+            return input -> BigDecimal.valueOf(input.readInt(), scale);
+        }
+        if (precision <= 18) {
+            return input -> BigDecimal.valueOf(input.readLong(), scale);
+        }
+
+        int size = precision <= 38 ? 16 : 32;
+        return input -> {
+            byte[] bytes = new byte[size];
+            input.readFully(bytes);
+            // the value is a little-endian two's complement integer
+            for (int i = 0; i < size / 2; i++) {
+                byte tmp = bytes[i];
+                bytes[i] = bytes[size - i - 1];
+                bytes[size - i - 1] = tmp;
             }
+            return new BigDecimal(new BigInteger(bytes), scale);
+        };
+    }
+
+    static QueryResult readJson(ClickHouseQueryResult queryResult)
+    {
+        List<String> types = queryResult.meta.stream().map(column -> column.type).collect(Collectors.toList());
+        List<SchemaField> columns = queryResult.meta.stream()
+                .map(column -> new SchemaField(column.name, getTextFieldType(column.type)))
+                .collect(Collectors.toList());
+
+        List<List<Object>> rows = queryResult.data.stream()
+                .map(row -> readJsonRow(row, types))
+                .collect(Collectors.toList());
 
-            list.add(value);
+        ImmutableMap.Builder<String, Object> properties = ImmutableMap.builder();
+        if (queryResult.totals != null) {
+            properties.put("totals", readJsonRow(queryResult.totals, types));
+        }
+        if (queryResult.extremes != null) {
+            properties.put("extremes", ImmutableMap.of(
+                    "min", readJsonRow(queryResult.extremes.min, types),
+                    "max", readJsonRow(queryResult.extremes.max, types)));
         }
 
+        return new QueryResult(columns, rows, properties.build());
+    }
+
+    private static FieldType getTextFieldType(String type)
+    {
+        try {
+            return parseClickhouseType(type);
+        }
+        catch (IllegalStateException e) {
+            // the types that don't have a corresponding type are returned in their text representation
+            return FieldType.STRING;
+        }
+    }
+
+    private static List<Object> readJsonRow(List<Object> row, List<String> types)
+    {
+        List<Object> values = new ArrayList<>(types.size());
+        for (int i = 0; i < types.size(); i++) {
+            values.add(readJsonValue(row.get(i), types.get(i)));
+        }
+        return values;
+    }
+
+    private static Object readJsonValue(Object value, String type)
+    {
+        if (value == null) {
+            return null;
+        }
+
+        switch (type) {
+            case "UInt64": {
+                // 64-bit integers are quoted in JSON formats
+                BigInteger integer = new BigInteger(value.toString());
+                return integer.bitLength() < 64 ? (Object) integer.longValue() : integer;
+            }
+            case "Int64":
+            case "UInt32":
+                return Long.parseLong(value.toString());
+            case "Int32":
+            case "UInt16":
+            case "Int16":
+            case "UInt8":
+            case "Int8":
+                return Integer.parseInt(value.toString());
+            case "Bool":
+                return value instanceof Boolean ? value : value.toString().equals("true");
+            case "Float32":
+            case "Float64":
+                return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+            case "DateTime":
+                return LocalDateTime.parse(value.toString(), DATE_TIME_FRACTION_FORMATTER).toInstant(UTC);
+            case "Date":
+                return LocalDate.parse(value.toString());
+            default:
+                Matcher matcher = CLICKHOUSE_TYPE_PATTERN.matcher(type);
+                if (!matcher.find()) {
+                    return getText(value);
+                }
+
+                String parameter = matcher.group(2);
+                switch (matcher.group(1)) {
+                    case "Nullable":
+                    case "LowCardinality":
+                        return readJsonValue(value, parameter);
+                    case "Array":
+                        if (!(value instanceof List)) {
+                            return getText(value);
+                        }
+                        List<Object> list = new ArrayList<>();
+                        for (Object item : (List<?>) value) {
+                            list.add(readJsonValue(item, parameter));
+                        }
+                        return list;
+                    case "DateTime":
+                        return LocalDateTime.parse(value.toString(), DATE_TIME_FRACTION_FORMATTER)
+                                .atZone(getTimeZone(parameter)).toInstant();
+                    case "DateTime64": {
+                        List<String> parameters = splitParameters(parameter);
+                        ZoneId zone = parameters.size() > 1 ? getTimeZone(parameters.get(1)) : UTC;
+                        return LocalDateTime.parse(value.toString(), DATE_TIME_FRACTION_FORMATTER).atZone(zone).toInstant();
+                    }
+                    case "Decimal":
+                    case "Decimal32":
+                    case "Decimal64":
+                    case "Decimal128":
+                    case "Decimal256":
+                        return new BigDecimal(value.toString());
+                    default:
+                        return getText(value);
+                }
+        }
+    }
+
+    private static Object getText(Object value)
+    {
+        return value instanceof String ? value : JsonHelper.encode(value);
+    }
+
+    private static ZoneId getTimeZone(String parameter)
+    {
+        String zone = parameter.trim();
+        return ZoneId.of(zone.substring(1, zone.length() - 1));
+    }
+
+    /**
+     * Splits the parameters of a parametrized type such as {@code Tuple(String, Array(UInt8))} on the
+     * top-level commas.
+     */
+    private static List<String> splitParameters(String parameters)
+    {
+        List<String> list = new ArrayList<>();
+        int depth = 0;
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < parameters.length(); i++) {
+            char c = parameters.charAt(i);
+            if (c == '\\' && quoted) {
+                i++;
+            }
+            else if (c == '\'') {
+                quoted = !quoted;
+            }
+            else if (!quoted && c == '(') {
+                depth++;
+            }
+            else if (!quoted && c == ')') {
+                depth--;
+            }
+            else if (!quoted && depth == 0 && c == ',') {
+                list.add(parameters.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        list.add(parameters.substring(start).trim());
         return list;
     }
 
+    private static String getTupleElementType(String element)
+    {
+        // the elements of the named tuples are defined as `name Type`
+        int space = element.indexOf(' ');
+        int parenthesis = element.indexOf('(');
+        return space > -1 && (parenthesis == -1 || space < parenthesis) ? element.substring(space + 1).trim() : element;
+    }
+
+    private static String getEnumName(String type, String values, int value)
+    {
+        Matcher matcher = ENUM_VALUE_PATTERN.matcher(values);
+        while (matcher.find()) {
+            if (Integer.parseInt(matcher.group(2)) == value) {
+                return matcher.group(1).replace("\\'", "'");
+            }
+        }
+        throw new IllegalStateException(format("The value %d is not defined in %s", value, type));
+    }
+
+    private static String readString(DataInput input)
+            throws IOException
+    {
+        byte[] bytes = new byte[readVarInt(input)];
+        input.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
     public static FieldType parseClickhouseType(String type)
     {
         switch (type) {
-            case "Enum":
-                return FieldType.STRING;
             case "UInt64":
             case "Int64":
+            case "UInt32":
                 return FieldType.LONG;
             case "UInt16":
             case "Int16":
@@ -397,9 +752,11 @@ public class ClickHouseQueryExecution
             case "Float64":
                 return FieldType.DOUBLE;
             case "String":
+            case "UUID":
                 return FieldType.STRING;
+            case "Bool":
+                return FieldType.BOOLEAN;
             case "Int32":
-            case "UInt32":
             case "UInt8":
             case "Int8":
                 return FieldType.INTEGER;
@@ -414,7 +771,22 @@ public class ClickHouseQueryExecution
                     String group = matcher.group(2);
                     switch (actualType) {
                         case "FixedString":
+                        case "Enum8":
+                        case "Enum16":
+                        case "Tuple":
                             return FieldType.STRING;
+                        case "DateTime":
+                        case "DateTime64":
+                            return FieldType.TIMESTAMP;
+                        case "Decimal":
+                        case "Decimal32":
+                        case "Decimal64":
+                        case "Decimal128":
+                        case "Decimal256":
+                            return FieldType.DECIMAL;
+                        case "Nullable":
+                        case "LowCardinality":
+                            return parseClickhouseType(group);
                         case "Array":
                             return parseClickhouseType(group).convertToArrayType();
                         case "Nested":
@@ -19,8 +19,8 @@ class ClickHouseQueryResult
 {
     public final List<ClickHouseColumn> meta;
     public final List<List<Object>> data;
-    public final List<String> totals;
-    public final List<Extreme> extremes;
+    public final List<Object> totals;
+    public final Extreme extremes;
     public final long rows;
     public final Long rowsBeforeLimitAtLeast;
 
@@ -28,8 +28,8 @@ class ClickHouseQueryResult
     private ClickHouseQueryResult(
             @JsonProperty("meta") List<ClickHouseColumn> meta,
             @JsonProperty("data") List<List<Object>> data,
-            @JsonProperty("totals") List<String> totals,
-            @JsonProperty("extremes") List<Extreme> extremes,
+            @JsonProperty("totals") List<Object> totals,
+            @JsonProperty("extremes") Extreme extremes,
             @JsonProperty("rows") long rows,
             @JsonProperty("rows_before_limit_at_least") Long rowsBeforeLimitAtLeast)
     {
@@ -43,11 +43,11 @@ class ClickHouseQueryResult
 
     public static class Extreme
     {
-        public final List<String> min;
-        public final List<String> max;
+        public final List<Object> min;
+        public final List<Object> max;
 
         @JsonCreator
-        public Extreme(@JsonProperty("min") List<String> min, @JsonProperty("max") List<String> max)
+        public Extreme(@JsonProperty("min") List<Object> min, @JsonProperty("max") List<Object> max)
         {
             this.min = min;
             this.max = max;
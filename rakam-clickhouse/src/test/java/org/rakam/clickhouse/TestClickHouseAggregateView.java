@@ -0,0 +1,73 @@
+package org.rakam.clickhouse;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Query;
+import org.testng.annotations.Test;
+
+import java.util.Optional;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestClickHouseAggregateView
+{
+    private final SqlParser parser = new SqlParser();
+
+    @Test
+    public void testGroupedQuery()
+            throws Exception
+    {
+        ClickHouseAggregateView view = analyze("select _user, count(*) as total, sum(amount) as amount, approx_distinct(session) as sessions " +
+                "from collection.pageview p where amount > 10 group by 1").get();
+
+        assertEquals(view.getCollection(), "pageview");
+        assertEquals(view.getPrimaryKey(), "`$date`, `_user`");
+        assertEquals(view.getMergeQuery("test.`$continuous_users$state`"),
+                "SELECT `_user`, countMerge(`total`) AS `total`, sumMerge(`amount`) AS `amount`, uniqMerge(`sessions`) AS `sessions` " +
+                        "FROM test.`$continuous_users$state` GROUP BY `_user`");
+
+        String stateQuery = view.getStateQuery("test", "`_time` >= 0");
+        assertTrue(stateQuery.startsWith("SELECT `$date`, `_user` AS `_user`, countState() AS `total`, sumState(`amount`) AS `amount`, " +
+                "uniqState(`session`) AS `sessions` FROM test.`pageview` WHERE "), stateQuery);
+        assertTrue(stateQuery.endsWith(" AND `_time` >= 0 GROUP BY `$date`, `_user`"), stateQuery);
+
+        String droppedRowsQuery = view.getDroppedRowsQuery("test", "`_time` >= 0");
+        assertTrue(droppedRowsQuery.endsWith(" AND NOT (`_time` >= 0) GROUP BY `$date`"), droppedRowsQuery);
+    }
+
+    @Test
+    public void testGlobalAggregation()
+            throws Exception
+    {
+        ClickHouseAggregateView view = analyze("select count(*) as total, max(_time) as last_event from pageview").get();
+
+        assertEquals(view.getPrimaryKey(), "`$date`");
+        assertEquals(view.getMergeQuery("t"), "SELECT countMerge(`total`) AS `total`, maxMerge(`last_event`) AS `last_event` FROM t");
+        assertEquals(view.getStateQuery("test", "`_time` >= 0"),
+                "SELECT `$date`, countState() AS `total`, maxState(`_time`) AS `last_event` FROM test.`pageview` WHERE `_time` >= 0 GROUP BY `$date`");
+        assertEquals(view.getDroppedRowsQuery("test", "`_time` >= 0"),
+                "SELECT `$date`, count() AS dropped_rows FROM test.`pageview` WHERE NOT (`_time` >= 0) GROUP BY `$date`");
+    }
+
+    @Test
+    public void testNotSupportedQueries()
+            throws Exception
+    {
+        // the distinct values can't be merged
+        assertFalse(analyze("select _user, count(distinct session) as sessions from pageview group by 1").isPresent());
+        // the group keys must be in the table
+        assertFalse(analyze("select count(*) as total from pageview group by _user").isPresent());
+        // the name of the column is generated by the database
+        assertFalse(analyze("select _user, count(*) from pageview group by 1").isPresent());
+        assertFalse(analyze("select _user, count(*) as total from pageview join purchase using (_user) group by 1").isPresent());
+        assertFalse(analyze("select _user, count(*) as total from pageview group by 1 having count(*) > 10").isPresent());
+        assertFalse(analyze("select _user, stddev(amount) as deviation from pageview group by 1").isPresent());
+        assertFalse(analyze("select * from materialized.daily").isPresent());
+    }
+
+    private Optional<ClickHouseAggregateView> analyze(String query)
+    {
+        return ClickHouseAggregateView.analyze((Query) parser.createStatement(query));
+    }
+}
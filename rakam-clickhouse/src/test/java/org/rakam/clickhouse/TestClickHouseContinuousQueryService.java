@@ -0,0 +1,139 @@
+package org.rakam.clickhouse;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.EventBus;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.analysis.InMemoryQueryMetadataStore;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.ProjectConfig;
+import org.rakam.plugin.ContinuousQuery;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryResult;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestClickHouseContinuousQueryService
+{
+    private static final String PROJECT = "test";
+    private static final Pattern WATERMARK_INSERT = Pattern.compile("SELECT today\\(\\), '(.+)', toDateTime\\((\\d+)\\)");
+
+    private final List<String> statements = new ArrayList<>();
+    private final Map<String, Long> watermarks = new HashMap<>();
+    private TestingService service;
+
+    @BeforeMethod
+    public void setUp()
+            throws Exception
+    {
+        statements.clear();
+        watermarks.clear();
+
+        InMemoryQueryMetadataStore database = new InMemoryQueryMetadataStore();
+        database.createContinuousQuery(PROJECT, new ContinuousQuery("users", "Users",
+                "select _user, count(*) as total from pageview group by 1", null, null));
+        // created before the watermarks were tracked so it doesn't have the views of the intermediate states
+        database.createContinuousQuery(PROJECT, new ContinuousQuery("legacy", "Legacy",
+                "select _user, count(*) as total from pageview group by 1", null, null));
+
+        service = new TestingService(database);
+    }
+
+    @Test
+    public void testAdvanceWatermark()
+            throws Exception
+    {
+        QueryExecution execution = service.refresh(PROJECT, "users");
+
+        // the latest event time is 10000 and the allowed lateness is an hour
+        assertEquals(watermarks, ImmutableMap.of("users", 6400L));
+        assertEquals(execution.getResult().join().getResult(), ImmutableList.of(ImmutableList.of(Instant.ofEpochSecond(6400), 42L)));
+        assertEquals(execution.currentStats().droppedRows, Long.valueOf(42));
+        // the table of the watermarks is created for the projects whose queries are created by the older versions
+        assertTrue(statements.get(0).startsWith("CREATE TABLE IF NOT EXISTS test.`$continuous_watermarks`"), statements.get(0));
+    }
+
+    @Test
+    public void testWatermarkIsNotMovedBack()
+            throws Exception
+    {
+        watermarks.put("users", 9000L);
+        service.advanceWatermarks(PROJECT, service.list(PROJECT));
+
+        assertEquals(watermarks, ImmutableMap.of("users", 9000L));
+        assertFalse(statements.stream().anyMatch(statement -> statement.startsWith("INSERT")), statements.toString());
+    }
+
+    @Test
+    public void testQueriesWithoutWatermark()
+            throws Exception
+    {
+        service.advanceWatermarks(PROJECT, ImmutableList.of(service.get(PROJECT, "legacy")));
+        assertEquals(statements, ImmutableList.of());
+
+        QueryResult result = service.refresh(PROJECT, "legacy").getResult().join();
+        assertEquals(result.getResult(), ImmutableList.of(Arrays.asList(null, 0L)));
+        assertEquals(statements, ImmutableList.of());
+    }
+
+    private class TestingService
+            extends ClickHouseContinuousQueryService
+    {
+        private TestingService(InMemoryQueryMetadataStore database)
+        {
+            super(new ClickHouseConfig(), new ProjectConfig(), new InMemoryMetastore(new InMemoryApiKeyService(), new EventBus()), database);
+        }
+
+        @Override
+        void runStatement(String query)
+        {
+            statements.add(query);
+            Matcher matcher = WATERMARK_INSERT.matcher(query);
+            if (matcher.find()) {
+                watermarks.put(matcher.group(1), Long.parseLong(matcher.group(2)));
+            }
+        }
+
+        @Override
+        QueryResult runQuery(String query)
+        {
+            if (query.startsWith("SELECT name FROM system.tables")) {
+                return result(ImmutableList.of("$continuous_users", "$continuous_users$state", "$continuous_users$dropped", "$continuous_legacy")
+                        .stream().map(ImmutableList::<Object>of).collect(Collectors.toList()));
+            }
+            if (query.contains("GROUP BY table_name")) {
+                return result(watermarks.entrySet().stream()
+                        .map(entry -> ImmutableList.<Object>of(entry.getKey(), entry.getValue())).collect(Collectors.toList()));
+            }
+            if (query.contains("max(`_time`)")) {
+                return result(ImmutableList.of(ImmutableList.<Object>of(10000L)));
+            }
+            if (query.contains("sum(dropped_rows)")) {
+                return result(ImmutableList.of(ImmutableList.<Object>of(42L)));
+            }
+            throw new IllegalStateException(query);
+        }
+
+        private QueryResult result(List<? extends List<Object>> rows)
+        {
+            return new QueryResult(ImmutableList.of(new SchemaField("name", STRING), new SchemaField("value", LONG)), new ArrayList<>(rows));
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.rakam.clickhouse.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.LittleEndianDataOutputStream;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.QueryResult;
+import org.rakam.util.JsonHelper;
+import org.testng.annotations.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.clickhouse.collection.ClickHouseEventStore.writeVarInt;
+import static org.rakam.collection.FieldType.ARRAY_STRING;
+import static org.rakam.collection.FieldType.DATE;
+import static org.rakam.collection.FieldType.DECIMAL;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class TestClickHouseRowBinary
+{
+    @Test
+    public void testRead()
+            throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+
+        writeVarInt(5, out);
+        for (String name : new String[] {"count", "name", "time", "date", "tags"}) {
+            writeString(out, name);
+        }
+        for (String type : new String[] {"UInt64", "Nullable(String)", "DateTime", "Date", "Array(Enum8('a' = 1, 'b' = 2))"}) {
+            writeString(out, type);
+        }
+
+        out.writeLong(10);
+        out.writeByte(0);
+        writeString(out, "test");
+        out.writeInt(1500000000);
+        out.writeShort(17000);
+        writeVarInt(2, out);
+        out.writeByte(2);
+        out.writeByte(1);
+
+        out.writeLong(20);
+        out.writeByte(1);
+        out.writeInt(0);
+        out.writeShort(0);
+        writeVarInt(0, out);
+
+        QueryResult result = read(bytes);
+
+        assertEquals(result.getMetadata(), ImmutableList.of(new SchemaField("count", LONG), new SchemaField("name", STRING),
+                new SchemaField("time", TIMESTAMP), new SchemaField("date", DATE), new SchemaField("tags", ARRAY_STRING)));
+        assertEquals(result.getResult(), ImmutableList.of(
+                Arrays.asList(10L, "test", Instant.ofEpochSecond(1500000000), LocalDate.ofEpochDay(17000), ImmutableList.of("b", "a")),
+                Arrays.asList(20L, null, Instant.ofEpochSecond(0), LocalDate.ofEpochDay(0), ImmutableList.of())));
+    }
+
+    @Test
+    public void testUnsignedInt()
+            throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+
+        writeVarInt(1, out);
+        writeString(out, "value");
+        writeString(out, "UInt32");
+        out.writeInt((int) 4000000000L);
+
+        QueryResult result = read(bytes);
+
+        assertEquals(result.getMetadata(), ImmutableList.of(new SchemaField("value", LONG)));
+        assertEquals(result.getResult(), ImmutableList.of(ImmutableList.of(4000000000L)));
+    }
+
+    @Test
+    public void testUnsignedLong()
+            throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+
+        writeHeader(out, "UInt64");
+        out.writeLong(10);
+        out.writeLong(-1);
+
+        QueryResult result = read(bytes);
+
+        assertEquals(result.getMetadata(), ImmutableList.of(new SchemaField("value", LONG)));
+        assertEquals(result.getResult(), ImmutableList.of(ImmutableList.of(10L),
+                ImmutableList.of(new BigInteger("18446744073709551615"))));
+    }
+
+    @Test
+    public void testDecimal()
+            throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+
+        writeVarInt(3, out);
+        for (String name : new String[] {"a", "b", "c"}) {
+            writeString(out, name);
+        }
+        for (String type : new String[] {"Decimal(9, 2)", "Decimal64(4)", "Decimal(38, 3)"}) {
+            writeString(out, type);
+        }
+
+        out.writeInt(-12345);
+        out.writeLong(1234567);
+        // -1500 as a 128-bit integer
+        out.writeLong(-1500);
+        out.writeLong(-1);
+
+        QueryResult result = read(bytes);
+
+        assertEquals(result.getMetadata(), ImmutableList.of(new SchemaField("a", DECIMAL), new SchemaField("b", DECIMAL),
+                new SchemaField("c", DECIMAL)));
+        assertEquals(result.getResult(), ImmutableList.of(ImmutableList.of(
+                new BigDecimal("-123.45"), new BigDecimal("123.4567"), new BigDecimal("-1.500"))));
+    }
+
+    @Test
+    public void testDateTimeWithTimezone()
+            throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+
+        writeHeader(out, "DateTime('Europe/Istanbul')");
+        out.writeInt(1500000000);
+
+        QueryResult result = read(bytes);
+
+        assertEquals(result.getMetadata(), ImmutableList.of(new SchemaField("value", TIMESTAMP)));
+        assertEquals(result.getResult(), ImmutableList.of(ImmutableList.of(Instant.ofEpochSecond(1500000000))));
+    }
+
+    @Test
+    public void testDateTime64()
+            throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+
+        writeHeader(out, "DateTime64(3, 'UTC')");
+        out.writeLong(1500000000123L);
+        out.writeLong(-1);
+
+        QueryResult result = read(bytes);
+
+        assertEquals(result.getMetadata(), ImmutableList.of(new SchemaField("value", TIMESTAMP)));
+        assertEquals(result.getResult(), ImmutableList.of(
+                ImmutableList.of(Instant.ofEpochMilli(1500000000123L)),
+                ImmutableList.of(Instant.ofEpochMilli(-1))));
+    }
+
+    @Test
+    public void testUUID()
+            throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+
+        UUID uuid = UUID.fromString("61f0c404-5cb3-11e7-907b-a6006ad3dba0");
+        writeHeader(out, "UUID");
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+
+        QueryResult result = read(bytes);
+
+        assertEquals(result.getMetadata(), ImmutableList.of(new SchemaField("value", STRING)));
+        assertEquals(result.getResult(), ImmutableList.of(ImmutableList.of(uuid.toString())));
+    }
+
+    @Test
+    public void testTuple()
+            throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+
+        writeHeader(out, "Tuple(id UInt8, tags Array(String), name Nullable(String))");
+        out.writeByte(1);
+        writeVarInt(2, out);
+        writeString(out, "a");
+        writeString(out, "b,c");
+        out.writeByte(1);
+
+        QueryResult result = read(bytes);
+
+        assertEquals(result.getMetadata(), ImmutableList.of(new SchemaField("value", STRING)));
+        assertEquals(result.getResult(), ImmutableList.of(ImmutableList.of("[1,[\"a\",\"b,c\"],null]")));
+    }
+
+    @Test
+    public void testUnsupportedType()
+            throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+
+        writeHeader(out, "Map(String, UInt64)");
+        writeVarInt(0, out);
+
+        // the query is run in JSON format in that case
+        assertFalse(ClickHouseQueryExecution.readRowBinary(new BufferedInputStream(new ByteArrayInputStream(bytes.toByteArray()))).isPresent());
+    }
+
+    @Test
+    public void testJsonTotals()
+            throws Exception
+    {
+        ClickHouseQueryResult queryResult = JsonHelper.read("{" +
+                "\"meta\": [{\"name\": \"dimension\", \"type\": \"String\"}, {\"name\": \"count\", \"type\": \"UInt64\"}," +
+                "{\"name\": \"tags\", \"type\": \"Map(String, UInt8)\"}]," +
+                "\"data\": [[\"a\", \"2\", {\"x\": 1}], [\"b\", \"1\", {}]]," +
+                "\"totals\": [\"\", \"3\", {}]," +
+                "\"extremes\": {\"min\": [\"a\", \"1\", {}], \"max\": [\"b\", \"2\", {}]}," +
+                "\"rows\": 2}", ClickHouseQueryResult.class);
+
+        QueryResult result = ClickHouseQueryExecution.readJson(queryResult);
+
+        assertEquals(result.getMetadata(), ImmutableList.of(new SchemaField("dimension", STRING), new SchemaField("count", LONG),
+                new SchemaField("tags", STRING)));
+        // the totals row is not one of the rows
+        assertEquals(result.getResult(), ImmutableList.of(ImmutableList.of("a", 2L, "{\"x\":1}"), ImmutableList.of("b", 1L, "{}")));
+        assertEquals(result.getProperties().get("totals"), ImmutableList.of("", 3L, "{}"));
+        assertEquals(result.getProperties().get("extremes"), ImmutableMap.of(
+                "min", ImmutableList.of("a", 1L, "{}"),
+                "max", ImmutableList.of("b", 2L, "{}")));
+    }
+
+    private static QueryResult read(ByteArrayOutputStream bytes)
+            throws Exception
+    {
+        return ClickHouseQueryExecution.readRowBinary(new BufferedInputStream(new ByteArrayInputStream(bytes.toByteArray()))).get();
+    }
+
+    private static void writeHeader(LittleEndianDataOutputStream out, String type)
+            throws Exception
+    {
+        writeVarInt(1, out);
+        writeString(out, "value");
+        writeString(out, type);
+    }
+
+    private static void writeString(LittleEndianDataOutputStream out, String value)
+            throws Exception
+    {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarInt(bytes.length, out);
+        out.write(bytes);
+    }
+}
@@ -18,6 +18,7 @@ import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EscapeIdentifier;
 import org.rakam.analysis.EventExplorer;
 import org.rakam.analysis.FunnelQueryExecutor;
+import org.rakam.analysis.HyperLogLogFunctions;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.RealtimeService;
@@ -38,17 +39,19 @@ import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserPluginConfig;
 import org.rakam.postgresql.analysis.FastGenericFunnelQueryExecutor;
 import org.rakam.postgresql.analysis.PostgresqlConfig;
+import org.rakam.postgresql.analysis.PostgresqlContinuousQueryService;
 import org.rakam.postgresql.analysis.PostgresqlEventStore;
 import org.rakam.postgresql.analysis.PostgresqlMaterializedViewService;
 import org.rakam.postgresql.analysis.PostgresqlMetastore;
+import org.rakam.postgresql.analysis.PostgresqlPartitionManager;
 import org.rakam.postgresql.analysis.PostgresqlRetentionQueryExecutor;
 import org.rakam.postgresql.plugin.user.AbstractPostgresqlUserStorage;
 import org.rakam.postgresql.plugin.user.PostgresqlUserService;
 import org.rakam.postgresql.plugin.user.PostgresqlUserStorage;
 import org.rakam.postgresql.report.PostgresqlEventExplorer;
-import org.rakam.postgresql.report.PostgresqlPseudoContinuousQueryService;
 import org.rakam.postgresql.report.PostgresqlQueryExecutor;
 import org.rakam.report.QueryExecutor;
+import org.rakam.report.QueryResult;
 import org.rakam.report.eventexplorer.EventExplorerConfig;
 import org.rakam.report.realtime.AggregationType;
 import org.rakam.report.realtime.RealTimeConfig;
@@ -58,10 +61,14 @@ import org.rakam.util.RakamException;
 import javax.inject.Inject;
 
 import java.net.URISyntaxException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static org.rakam.report.realtime.AggregationType.APPROXIMATE_UNIQUE;
 import static org.rakam.report.realtime.AggregationType.MAXIMUM;
 import static org.rakam.report.realtime.AggregationType.MINIMUM;
@@ -93,8 +100,9 @@ public class PostgresqlModule
 
         binder.bind(MaterializedViewService.class).to(PostgresqlMaterializedViewService.class).in(Scopes.SINGLETON);
         binder.bind(QueryExecutor.class).to(PostgresqlQueryExecutor.class).in(Scopes.SINGLETON);
-        binder.bind(ContinuousQueryService.class).to(PostgresqlPseudoContinuousQueryService.class).in(Scopes.SINGLETON);
+        binder.bind(ContinuousQueryService.class).to(PostgresqlContinuousQueryService.class).in(Scopes.SINGLETON);
         binder.bind(String.class).annotatedWith(TimestampToEpochFunction.class).toInstance("to_unixtime");
+        binder.bind(HyperLogLogFunctions.class).toProvider(HyperLogLogFunctionsProvider.class);
 
         binder.bind(RealtimeService.class).to(PostgresqlRealtimeService.class);
 
@@ -119,6 +127,10 @@ public class PostgresqlModule
             binder.bind(EventExplorer.class).to(PostgresqlEventExplorer.class);
         }
 
+        if (postgresqlConfig.isPartitionEvents()) {
+            binder.bind(PostgresqlPartitionManager.class).asEagerSingleton();
+        }
+
         if (postgresqlConfig.isAutoIndexColumns()) {
             binder.bind(CollectionFieldIndexerListener.class).asEagerSingleton();
         }
@@ -203,6 +215,24 @@ public class PostgresqlModule
         }
     }
 
+    private static class HyperLogLogFunctionsProvider
+            implements Provider<HyperLogLogFunctions>
+    {
+        private final PostgresqlQueryExecutor executor;
+
+        @Inject
+        public HyperLogLogFunctionsProvider(PostgresqlQueryExecutor executor)
+        {
+            this.executor = executor;
+        }
+
+        @Override
+        public HyperLogLogFunctions get()
+        {
+            return executor.getHyperLogLogFunctions();
+        }
+    }
+
     private static class CollectionFieldIndexerListener
     {
         private final PostgresqlQueryExecutor executor;
@@ -214,16 +244,8 @@ public class PostgresqlModule
         {
             this.executor = executor;
             this.projectConfig = projectConfig;
-            try {
-                String version = executor.executeRawQuery("SHOW server_version")
-                        .getResult().join().getResult().get(0).get(0).toString();
-                String[] split = version.split("\\.", 2);
-                // Postgresql BRIN support came in 9.5 version
-                postgresql9_5 = Integer.parseInt(split[0]) > 9 || (Integer.parseInt(split[0]) == 9 && Double.parseDouble(split[1]) >= 5);
-            }
-            catch (Exception e) {
-                postgresql9_5 = false;
-            }
+            // Postgresql BRIN support came in 9.5 version
+            postgresql9_5 = executor.isServerVersionAtLeast(9, 5);
         }
 
         @Subscribe
@@ -240,7 +262,21 @@ public class PostgresqlModule
 
         public void onCreateCollectionFields(String project, String collection, List<SchemaField> fields)
         {
+            List<String> partitions;
+            try (Connection connection = executor.getConnection()) {
+                partitions = PostgresqlPartitionManager.isPartitioned(connection, project, collection) ?
+                        PostgresqlPartitionManager.getPartitions(connection, project, collection) : null;
+            }
+            catch (SQLException e) {
+                throw Throwables.propagate(e);
+            }
+
             for (SchemaField field : fields) {
+                if (partitions != null) {
+                    createPartitionedIndex(project, collection, partitions, field);
+                    continue;
+                }
+
                 try {
                     executor.executeRawStatement(String.format("CREATE INDEX CONCURRENTLY %s %s ON %s.%s USING %s(%s)",
                             postgresql9_5 ? "IF NOT EXISTS" : "",
@@ -258,6 +294,34 @@ public class PostgresqlModule
             }
         }
 
+        /**
+         * The indexes of the partitioned tables can't be created concurrently so the index of each partition
+         * is created concurrently and attached to the index of the table. The partitions that are created later
+         * have the index of the table.
+         */
+        private void createPartitionedIndex(String project, String collection, List<String> partitions, SchemaField field)
+        {
+            String method = field.getName().equals(projectConfig.getTimeColumn()) ? "BRIN" : "BTREE";
+            String indexName = checkCollection(String.format("%s_%s_%s_auto_index", project, collection, field.getName()));
+
+            List<String> queries = new ArrayList<>();
+            queries.add(String.format("CREATE INDEX IF NOT EXISTS %s ON ONLY %s.%s USING %s(%s)",
+                    indexName, project, checkCollection(collection), method, checkTableColumn(field.getName())));
+            for (String partition : partitions) {
+                String partitionIndexName = checkCollection(String.format("%s_%s_%s_auto_index", project, partition, field.getName()));
+                queries.add(String.format("CREATE INDEX CONCURRENTLY IF NOT EXISTS %s ON %s.%s USING %s(%s)",
+                        partitionIndexName, project, checkCollection(partition), method, checkTableColumn(field.getName())));
+                queries.add(String.format("ALTER INDEX %s.%s ATTACH PARTITION %s.%s", project, indexName, project, partitionIndexName));
+            }
+
+            for (String query : queries) {
+                QueryResult result = executor.executeRawStatement(query).getResult().join();
+                if (result.isFailed()) {
+                    throw new RakamException(result.getError().message, INTERNAL_SERVER_ERROR);
+                }
+            }
+        }
+
         private Set<FieldType> brinSupportedTypes = ImmutableSet.of(FieldType.DATE, FieldType.DECIMAL,
                 FieldType.DOUBLE, FieldType.INTEGER, FieldType.LONG,
                 FieldType.STRING, FieldType.TIMESTAMP, FieldType.TIME);
@@ -266,16 +330,14 @@ public class PostgresqlModule
     public static class PostgresqlRealtimeService
             extends RealtimeService
     {
+        private final HyperLogLogFunctions hyperLogLogFunctions;
+
         @Inject
-        public PostgresqlRealtimeService(ProjectConfig projectConfig, ContinuousQueryService service, QueryExecutor executor, @RealtimeAggregations List<AggregationType> aggregationTypes, RealTimeConfig config, @TimestampToEpochFunction String timestampToEpochFunction, @EscapeIdentifier char escapeIdentifier)
+        public PostgresqlRealtimeService(ProjectConfig projectConfig, ContinuousQueryService service, QueryExecutor executor, @RealtimeAggregations List<AggregationType> aggregationTypes, RealTimeConfig config, @TimestampToEpochFunction String timestampToEpochFunction, @EscapeIdentifier char escapeIdentifier,
+                HyperLogLogFunctions hyperLogLogFunctions)
         {
             super(projectConfig, service, executor, aggregationTypes, config, timestampToEpochFunction, escapeIdentifier);
-            executor.executeRawStatement("CREATE EXTENSION IF NOT EXISTS intarray").getResult().join();
-            executor.executeRawStatement("CREATE AGGREGATE array_agg_int (int[]) (\n" +
-                    "    SFUNC    = _int_union\n" +
-                    "   ,STYPE    = int[]\n" +
-                    "   ,INITCOND = '{}'\n" +
-                    ");").getResult().join();
+            this.hyperLogLogFunctions = hyperLogLogFunctions;
         }
 
         @Override
@@ -296,7 +358,7 @@ public class PostgresqlModule
                     format = "sum(%s)";
                     break;
                 case APPROXIMATE_UNIQUE:
-                    format = "array_agg(distinct hashtext(%s))";
+                    format = hyperLogLogFunctions.sketch("%s");
                     break;
                 default:
                     throw new RakamException("Aggregation type couldn't found.", BAD_REQUEST);
@@ -317,7 +379,8 @@ public class PostgresqlModule
                 case MAXIMUM:
                     return "max(%s)";
                 case APPROXIMATE_UNIQUE:
-                    return "array_length(array_agg_int(%s), 1)";
+                    // the merge functions also accept the arrays of hashes of the reports that are created before the sketches
+                    return hyperLogLogFunctions.mergedCardinality("%s");
                 default:
                     throw new RakamException("Aggregation type couldn't found.", BAD_REQUEST);
             }
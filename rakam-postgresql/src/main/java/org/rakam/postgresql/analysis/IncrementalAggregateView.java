@@ -0,0 +1,349 @@
+package org.rakam.postgresql.analysis;
+
+import com.facebook.presto.sql.tree.AliasedRelation;
+import com.facebook.presto.sql.tree.DereferenceExpression;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.FunctionCall;
+import com.facebook.presto.sql.tree.GroupingElement;
+import com.facebook.presto.sql.tree.LongLiteral;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.facebook.presto.sql.tree.Query;
+import com.facebook.presto.sql.tree.QuerySpecification;
+import com.facebook.presto.sql.tree.Relation;
+import com.facebook.presto.sql.tree.SelectItem;
+import com.facebook.presto.sql.tree.SimpleGroupBy;
+import com.facebook.presto.sql.tree.SingleColumn;
+import com.facebook.presto.sql.tree.Table;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+/**
+ * The materialized views that group the rows of a single collection and only use the aggregations that can be
+ * computed from the partial results (count, sum, min, max and the HyperLogLog sketches). The rows of these views are merged with the results
+ * of the new events using INSERT ... ON CONFLICT DO UPDATE so that the table has a single row for each group
+ * instead of a partial row for each update. The queries that aggregate all the rows without grouping them have
+ * a single row that is updated with the results of the new events.
+ */
+class IncrementalAggregateView
+{
+    private final List<String> keys;
+    private final List<Aggregation> aggregations;
+
+    private IncrementalAggregateView(List<String> keys, List<Aggregation> aggregations)
+    {
+        this.keys = keys;
+        this.aggregations = aggregations;
+    }
+
+    public static Optional<IncrementalAggregateView> analyze(Query query)
+    {
+        if (query.getWith().isPresent() || !query.getOrderBy().isEmpty() || !(query.getQueryBody() instanceof QuerySpecification)) {
+            return Optional.empty();
+        }
+
+        QuerySpecification specification = (QuerySpecification) query.getQueryBody();
+        if (specification.getSelect().isDistinct() || specification.getHaving().isPresent() || !specification.getFrom().isPresent()) {
+            return Optional.empty();
+        }
+
+        // the new rows of the joined relations can't be merged separately
+        Relation relation = specification.getFrom().get();
+        if (relation instanceof AliasedRelation) {
+            relation = ((AliasedRelation) relation).getRelation();
+        }
+        if (!(relation instanceof Table)) {
+            return Optional.empty();
+        }
+
+        Optional<List<String>> keys = specification.getGroupBy().isPresent() ?
+                getGroupKeys(specification) : Optional.of(ImmutableList.of());
+        if (!keys.isPresent()) {
+            return Optional.empty();
+        }
+
+        ImmutableList.Builder<Aggregation> aggregations = ImmutableList.builder();
+        for (SelectItem item : specification.getSelect().getSelectItems()) {
+            if (!(item instanceof SingleColumn) || !getName((SingleColumn) item).isPresent()) {
+                return Optional.empty();
+            }
+            SingleColumn column = (SingleColumn) item;
+            String name = getName(column).get();
+            if (keys.get().contains(name)) {
+                continue;
+            }
+
+            if (!(column.getExpression() instanceof FunctionCall)) {
+                return Optional.empty();
+            }
+            FunctionCall call = (FunctionCall) column.getExpression();
+            if (call.isDistinct() || call.getWindow().isPresent()) {
+                return Optional.empty();
+            }
+
+            String function = call.getName().getSuffix().toLowerCase(Locale.ENGLISH);
+            switch (function) {
+                case "count":
+                case "sum":
+                case "min":
+                case "max":
+                case "hll_sketch":
+                case "hll_union":
+                case "hll_add_agg":
+                case "hll_union_agg":
+                    aggregations.add(new Aggregation(name, function));
+                    break;
+                default:
+                    return Optional.empty();
+            }
+        }
+
+        return Optional.of(new IncrementalAggregateView(keys.get(), aggregations.build()));
+    }
+
+    /**
+     * Returns the columns that identify the rows of the query, the query must group the rows and select all
+     * the group expressions.
+     */
+    public static Optional<List<String>> getUniqueKeys(Query query)
+    {
+        if (!(query.getQueryBody() instanceof QuerySpecification)) {
+            return Optional.empty();
+        }
+        QuerySpecification specification = (QuerySpecification) query.getQueryBody();
+        if (specification.getSelect().isDistinct() || !specification.getGroupBy().isPresent()) {
+            return Optional.empty();
+        }
+        return getGroupKeys(specification);
+    }
+
+    private static Optional<List<String>> getGroupKeys(QuerySpecification specification)
+    {
+        List<SingleColumn> columns = new ArrayList<>();
+        for (SelectItem item : specification.getSelect().getSelectItems()) {
+            if (!(item instanceof SingleColumn) || !getName((SingleColumn) item).isPresent()) {
+                return Optional.empty();
+            }
+            columns.add((SingleColumn) item);
+        }
+
+        List<Expression> groupBy = new ArrayList<>();
+        for (GroupingElement element : specification.getGroupBy().get().getGroupingElements()) {
+            if (!(element instanceof SimpleGroupBy)) {
+                return Optional.empty();
+            }
+            for (Expression expression : ((SimpleGroupBy) element).getColumnExpressions()) {
+                if (expression instanceof LongLiteral) {
+                    long ordinal = ((LongLiteral) expression).getValue();
+                    if (ordinal < 1 || ordinal > columns.size()) {
+                        return Optional.empty();
+                    }
+                    expression = columns.get((int) ordinal - 1).getExpression();
+                }
+                groupBy.add(expression);
+            }
+        }
+
+        ImmutableList.Builder<String> keys = ImmutableList.builder();
+        int keyCount = 0;
+        for (SingleColumn column : columns) {
+            if (groupBy.contains(column.getExpression())) {
+                keys.add(getName(column).get());
+                keyCount++;
+            }
+        }
+
+        // all the groups must be in the table, otherwise the rows can't be matched
+        if (keyCount == 0 || keyCount != groupBy.stream().distinct().count()) {
+            return Optional.empty();
+        }
+
+        return Optional.of(keys.build());
+    }
+
+    private static Optional<String> getName(SingleColumn column)
+    {
+        if (column.getAlias().isPresent()) {
+            return column.getAlias();
+        }
+        if (column.getExpression() instanceof QualifiedNameReference) {
+            return Optional.of(((QualifiedNameReference) column.getExpression()).getName().getSuffix());
+        }
+        if (column.getExpression() instanceof DereferenceExpression) {
+            return Optional.of(((DereferenceExpression) column.getExpression()).getFieldName());
+        }
+        // the name of the column is generated by the database
+        return Optional.empty();
+    }
+
+    public List<String> getKeys()
+    {
+        return keys;
+    }
+
+    /**
+     * Returns the expressions of the unique index that the rows are merged on. The NULL values are distinct in
+     * the unique indexes so the NULL keys are replaced with a placeholder of the same type and the index has
+     * an additional expression that tells whether the key is NULL. The placeholder can't be derived from a cast
+     * to text since the index expressions must be immutable.
+     *
+     * @param keyTypes the Postgresql type names of the key columns
+     */
+    public Optional<String> getIndexExpressions(Map<String, String> keyTypes)
+    {
+        List<String> expressions = new ArrayList<>();
+        for (String key : keys) {
+            String placeholder = getPlaceholder(keyTypes.get(key));
+            if (placeholder == null) {
+                return Optional.empty();
+            }
+            expressions.add(format("(%s IS NULL), (COALESCE(%s, %s))", quote(key), quote(key), placeholder));
+        }
+        return Optional.of(String.join(", ", expressions));
+    }
+
+    private static String getPlaceholder(String type)
+    {
+        if (type == null) {
+            return null;
+        }
+
+        switch (type) {
+            case "bool":
+                return "false";
+            case "int2":
+            case "int4":
+            case "int8":
+            case "float4":
+            case "float8":
+            case "numeric":
+                return "0";
+            case "text":
+            case "varchar":
+            case "bpchar":
+            case "citext":
+                return "''";
+            case "date":
+                return "DATE '1970-01-01'";
+            case "time":
+                return "TIME '00:00:00'";
+            case "timestamp":
+                return "TIMESTAMP '1970-01-01 00:00:00'";
+            case "timestamptz":
+                return "TIMESTAMPTZ '1970-01-01 00:00:00+00'";
+            default:
+                return null;
+        }
+    }
+
+    public String createIndex(String indexName, String tableReference, String indexExpressions)
+    {
+        return format("CREATE UNIQUE INDEX %s ON %s (%s)", indexName, tableReference, indexExpressions);
+    }
+
+    /**
+     * Merges the result of the query that is executed on the new rows into the table. The table of the queries
+     * without group keys must have its single row before the first merge and the index expressions are not used.
+     */
+    public String merge(String tableReference, String query, String indexExpressions)
+    {
+        if (keys.isEmpty()) {
+            String updates = aggregations.stream()
+                    .map(aggregation -> format("%s = %s", quote(aggregation.column), aggregation.merge("t", "delta")))
+                    .collect(Collectors.joining(", "));
+            return format("UPDATE %s AS t SET %s FROM (%s) delta", tableReference, updates, query);
+        }
+
+        String updates = aggregations.stream()
+                .map(aggregation -> format("%s = %s", quote(aggregation.column), aggregation.merge("t", "EXCLUDED")))
+                .collect(Collectors.joining(", "));
+
+        return format("INSERT INTO %s AS t %s ON CONFLICT (%s) DO %s", tableReference, query, indexExpressions,
+                aggregations.isEmpty() ? "NOTHING" : "UPDATE SET " + updates);
+    }
+
+    /**
+     * Combines the partial rows of the same group, it's used when the table is read together with the new rows
+     * that are not merged yet.
+     */
+    public String combine(String relation)
+    {
+        String groupKeys = keys.stream().map(IncrementalAggregateView::quote).collect(Collectors.joining(", "));
+        String combinedColumns = aggregations.stream()
+                .map(aggregation -> format("%s AS %s", aggregation.combine(), quote(aggregation.column)))
+                .collect(Collectors.joining(", "));
+
+        if (keys.isEmpty()) {
+            return format("SELECT %s FROM %s", combinedColumns, relation);
+        }
+        return format("SELECT %s%s FROM %s GROUP BY %s", groupKeys, combinedColumns.isEmpty() ? "" : ", " + combinedColumns,
+                relation, groupKeys);
+    }
+
+    static String quote(String identifier)
+    {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+
+    private static class Aggregation
+    {
+        private final String column;
+        private final String function;
+
+        private Aggregation(String column, String function)
+        {
+            this.column = column;
+            this.function = function;
+        }
+
+        private String merge(String existing, String delta)
+        {
+            String left = existing + "." + quote(column);
+            String right = delta + "." + quote(column);
+            switch (function) {
+                case "count":
+                    return format("%s + %s", left, right);
+                case "sum":
+                    return format("CASE WHEN %s IS NULL THEN %s WHEN %s IS NULL THEN %s ELSE %s + %s END",
+                            left, right, right, left, left, right);
+                case "min":
+                    // LEAST and GREATEST ignore the NULL values
+                    return format("LEAST(%s, %s)", left, right);
+                case "max":
+                    return format("GREATEST(%s, %s)", left, right);
+                case "hll_sketch":
+                case "hll_union":
+                    // the registers of the sketches are merged, hll_merge returns the other sketch if one is NULL
+                    return format("hll_merge(%s, %s)", left, right);
+                case "hll_add_agg":
+                case "hll_union_agg":
+                    // the sketches of the postgresql-hll extension are merged with hll_union that returns NULL if one is NULL
+                    return format("COALESCE(hll_union(%s, %s), %s, %s)", left, right, left, right);
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        private String combine()
+        {
+            if (function.equals("count")) {
+                // sum of bigint values is numeric
+                return format("CAST(sum(%s) AS bigint)", quote(column));
+            }
+            if (function.equals("hll_sketch") || function.equals("hll_union")) {
+                return format("hll_union(%s)", quote(column));
+            }
+            if (function.equals("hll_add_agg") || function.equals("hll_union_agg")) {
+                return format("hll_union_agg(%s)", quote(column));
+            }
+            return format("%s(%s)", function, quote(column));
+        }
+    }
+}
@@ -1,11 +1,26 @@
 package org.rakam.postgresql.analysis;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class PostgresqlConfig {
 
     private boolean autoIndexColumns = true;
     private boolean enableEventStore = true;
+    private Duration continuousQueryBatchInterval = new Duration(5, SECONDS);
+    private Duration continuousQueryCommitDelay = new Duration(5, SECONDS);
+    private boolean partitionEvents;
+    private PartitionGranularity partitionGranularity = PartitionGranularity.MONTH;
+    private int precreatedPartitions = 2;
+    private Duration partitionRetention;
 
     @Config("postgresql.auto-index-columns")
     public PostgresqlConfig setAutoIndexColumns(boolean indexColumns)
@@ -17,4 +32,116 @@ public class PostgresqlConfig {
     public boolean isAutoIndexColumns() {
         return autoIndexColumns;
     }
+
+    @Config("postgresql.continuous-query.batch-interval")
+    @ConfigDescription("The interval of merging the new events into the continuous queries")
+    public PostgresqlConfig setContinuousQueryBatchInterval(Duration continuousQueryBatchInterval)
+    {
+        this.continuousQueryBatchInterval = continuousQueryBatchInterval;
+        return this;
+    }
+
+    public Duration getContinuousQueryBatchInterval() {
+        return continuousQueryBatchInterval;
+    }
+
+    @Config("postgresql.continuous-query.commit-delay")
+    @ConfigDescription("The events that are stored in the last period are not merged into the continuous queries " +
+            "until their transactions are likely to be committed")
+    public PostgresqlConfig setContinuousQueryCommitDelay(Duration continuousQueryCommitDelay)
+    {
+        this.continuousQueryCommitDelay = continuousQueryCommitDelay;
+        return this;
+    }
+
+    public Duration getContinuousQueryCommitDelay() {
+        return continuousQueryCommitDelay;
+    }
+
+    @Config("postgresql.partition-events")
+    @ConfigDescription("Creates the new event tables partitioned by the time column, requires Postgresql 11")
+    public PostgresqlConfig setPartitionEvents(boolean partitionEvents)
+    {
+        this.partitionEvents = partitionEvents;
+        return this;
+    }
+
+    public boolean isPartitionEvents() {
+        return partitionEvents;
+    }
+
+    @Config("postgresql.partition.granularity")
+    public PostgresqlConfig setPartitionGranularity(PartitionGranularity partitionGranularity)
+    {
+        this.partitionGranularity = partitionGranularity;
+        return this;
+    }
+
+    public PartitionGranularity getPartitionGranularity() {
+        return partitionGranularity;
+    }
+
+    @Config("postgresql.partition.precreated-partitions")
+    @ConfigDescription("The number of the partitions that are created ahead of the current one")
+    public PostgresqlConfig setPrecreatedPartitions(int precreatedPartitions)
+    {
+        this.precreatedPartitions = precreatedPartitions;
+        return this;
+    }
+
+    public int getPrecreatedPartitions() {
+        return precreatedPartitions;
+    }
+
+    @Config("postgresql.partition.retention")
+    @ConfigDescription("The partitions that only have the events older than the retention are dropped")
+    public PostgresqlConfig setPartitionRetention(Duration partitionRetention)
+    {
+        this.partitionRetention = partitionRetention;
+        return this;
+    }
+
+    public Duration getPartitionRetention() {
+        return partitionRetention;
+    }
+
+    public enum PartitionGranularity {
+        DAY {
+            @Override
+            public LocalDateTime truncate(LocalDateTime time) {
+                return time.truncatedTo(ChronoUnit.DAYS);
+            }
+
+            @Override
+            public LocalDateTime next(LocalDateTime start) {
+                return start.plusDays(1);
+            }
+        },
+        WEEK {
+            @Override
+            public LocalDateTime truncate(LocalDateTime time) {
+                return time.truncatedTo(ChronoUnit.DAYS).with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            }
+
+            @Override
+            public LocalDateTime next(LocalDateTime start) {
+                return start.plusWeeks(1);
+            }
+        },
+        MONTH {
+            @Override
+            public LocalDateTime truncate(LocalDateTime time) {
+                return time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+            }
+
+            @Override
+            public LocalDateTime next(LocalDateTime start) {
+                return start.plusMonths(1);
+            }
+        };
+
+        public abstract LocalDateTime truncate(LocalDateTime time);
+
+        public abstract LocalDateTime next(LocalDateTime start);
+    }
 }
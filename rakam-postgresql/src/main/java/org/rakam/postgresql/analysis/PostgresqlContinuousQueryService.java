@@ -0,0 +1,414 @@
+package org.rakam.postgresql.analysis;
+
+import com.facebook.presto.sql.RakamSqlFormatter;
+import com.facebook.presto.sql.parser.ParsingException;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.Query;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import io.airlift.log.Logger;
+import org.rakam.analysis.ContinuousQueryService;
+import org.rakam.analysis.metadata.QueryMetadataStore;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.ContinuousQuery;
+import org.rakam.postgresql.report.PostgresqlQueryExecutor;
+import org.rakam.report.DelegateQueryExecution;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryExecutorService;
+import org.rakam.report.QueryResult;
+import org.rakam.util.NotExistsException;
+import org.rakam.util.RakamException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.facebook.presto.sql.RakamSqlFormatter.formatSql;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.rakam.postgresql.report.PostgresqlQueryExecutor.CONTINUOUS_QUERY_PREFIX;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkLiteral;
+import static org.rakam.util.ValidationUtil.checkProject;
+
+/**
+ * The continuous queries that can be computed incrementally (see {@link IncrementalAggregateView}) are stored
+ * in tables that have the aggregated state of the query. The events that are stored after the watermark of
+ * the query are merged into its table periodically so that reading a continuous query costs as much as
+ * reading its groups. The other continuous queries are views that are computed when they're read.
+ */
+public class PostgresqlContinuousQueryService
+        extends ContinuousQueryService
+{
+    private final static Logger LOGGER = Logger.get(PostgresqlContinuousQueryService.class);
+    private static final String WATERMARK_TABLE = "public._continuous_query_watermarks";
+
+    private final PostgresqlQueryExecutor executor;
+    private final QueryExecutorService service;
+    private final long batchIntervalMillis;
+    private final long commitDelayMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, String> indexExpressions = new ConcurrentHashMap<>();
+    private final Set<String> indexedProjects = ConcurrentHashMap.newKeySet();
+
+    public PostgresqlContinuousQueryService(QueryMetadataStore database, QueryExecutorService service, PostgresqlQueryExecutor executor)
+    {
+        this(database, service, executor, new PostgresqlConfig());
+    }
+
+    @Inject
+    public PostgresqlContinuousQueryService(QueryMetadataStore database, QueryExecutorService service, PostgresqlQueryExecutor executor, PostgresqlConfig config)
+    {
+        super(database);
+        this.executor = executor;
+        this.service = service;
+        this.batchIntervalMillis = config.getContinuousQueryBatchInterval().toMillis();
+        this.commitDelayMillis = config.getContinuousQueryCommitDelay().toMillis();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("continuous-query-worker")
+                .setUncaughtExceptionHandler((t, e) -> LOGGER.error(e))
+                .build());
+        setup();
+    }
+
+    private void setup()
+    {
+        try (Connection connection = executor.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + WATERMARK_TABLE + " (" +
+                    "  project TEXT NOT NULL," +
+                    "  table_name TEXT NOT NULL," +
+                    "  watermark BIGINT NOT NULL," +
+                    "  PRIMARY KEY (project, table_name)" +
+                    "  )");
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                processNewEvents();
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Error while updating the continuous queries");
+            }
+        }, batchIntervalMillis, batchIntervalMillis, MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public QueryExecution create(String project, ContinuousQuery report, boolean replayHistoricalData)
+    {
+        Query statement = report.getQuery();
+        Optional<IncrementalAggregateView> aggregateView = IncrementalAggregateView.analyze(statement);
+        String table = format("%s.%s", checkProject(project), checkCollection(CONTINUOUS_QUERY_PREFIX + report.tableName));
+
+        QueryExecution execution;
+        if (aggregateView.isPresent()) {
+            execution = createStateTable(project, report, statement, aggregateView.get(), table, replayHistoricalData);
+        }
+        else {
+            String query = service.buildQuery(project, report.query, Optional.empty(), "collection", null, new HashMap<>(), new HashMap<>());
+            execution = executor.executeRawStatement(format("CREATE VIEW %s AS %s", table, query));
+        }
+
+        return new DelegateQueryExecution(execution, result -> {
+            if (!result.isFailed()) {
+                database.createContinuousQuery(project, report);
+            }
+            else {
+                throw new RakamException(result.getError().toString(), BAD_REQUEST);
+            }
+            return result;
+        });
+    }
+
+    private QueryExecution createStateTable(String project, ContinuousQuery report, Query statement, IncrementalAggregateView aggregateView, String table, boolean replayHistoricalData)
+    {
+        long watermark = Instant.now().toEpochMilli() - commitDelayMillis;
+        String query = formatQuery(project, statement);
+
+        List<String> statements = new ArrayList<>();
+        statements.add(format("CREATE TABLE %s AS %s WITH NO DATA", table, query));
+        if (!aggregateView.getKeys().isEmpty()) {
+            Map<String, String> columnTypes = getColumnTypes(query);
+            Optional<String> indexExpressions = aggregateView.getIndexExpressions(columnTypes);
+            if (!indexExpressions.isPresent()) {
+                return executor.executeRawStatement(format("CREATE VIEW %s AS %s", table, query));
+            }
+            statements.add(aggregateView.createIndex(
+                    checkCollection(CONTINUOUS_QUERY_PREFIX + report.tableName + "_groups"), table, indexExpressions.get()));
+        }
+
+        // the queries without group keys have a single row even if there is no event
+        statements.add(format("INSERT INTO %s %s", table, formatSql(statement,
+                name -> format("(SELECT * FROM %s WHERE %s) data", executor.formatTableReference(project, name, Optional.empty(), ImmutableMap.of(), "collection"),
+                        replayHistoricalData ? format("\"$server_time\" <= %s", toTimestamp(watermark)) : "false"), '"')));
+        statements.add(format("INSERT INTO %s (project, table_name, watermark) VALUES ('%s', '%s', %d)",
+                WATERMARK_TABLE, checkLiteral(project), checkLiteral(report.tableName), watermark));
+
+        return executor.executeTransaction(statements);
+    }
+
+    private Map<String, String> getColumnTypes(String query)
+    {
+        Map<String, String> types = new HashMap<>();
+        try (Connection connection = executor.getConnection();
+                PreparedStatement statement = connection.prepareStatement(query)) {
+            for (int i = 1; i <= statement.getMetaData().getColumnCount(); i++) {
+                types.put(statement.getMetaData().getColumnName(i), statement.getMetaData().getColumnTypeName(i));
+            }
+        }
+        catch (SQLException e) {
+            throw new RakamException("Unable to resolve the columns of the query: " + e.getMessage(), BAD_REQUEST);
+        }
+        return types;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(String project, String name)
+    {
+        String table = format("%s.%s", checkProject(project), checkCollection(CONTINUOUS_QUERY_PREFIX + name));
+        QueryExecution execution;
+        if (getWatermark(project, name).isPresent()) {
+            execution = executor.executeTransaction(ImmutableList.of(
+                    format("DROP TABLE %s", table),
+                    format("DELETE FROM %s WHERE project = '%s' AND table_name = '%s'", WATERMARK_TABLE, checkLiteral(project), checkLiteral(name))));
+        }
+        else {
+            execution = executor.executeRawStatement(format("DROP VIEW %s", table));
+        }
+
+        return execution.getResult().thenApply(result -> {
+            if (!result.isFailed()) {
+                indexExpressions.remove(project + "." + name);
+                database.deleteContinuousQuery(project, name);
+            }
+            else {
+                throw new RakamException(result.getError().toString(), INTERNAL_SERVER_ERROR);
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public Map<String, List<SchemaField>> getSchemas(String project)
+    {
+        Stream<Entry<ContinuousQuery, QueryExecution>> continuous = database.getContinuousQueries(project).stream()
+                .map(c -> new SimpleImmutableEntry<>(c, executor.executeRawQuery("SELECT * FROM " +
+                        executor.formatTableReference(project, QualifiedName.of("continuous", c.tableName), Optional.empty(), ImmutableMap.of(), "collection") + " limit 0")));
+        return continuous
+                .collect(Collectors.toMap(entry -> entry.getKey().tableName, entry -> {
+                    QueryResult join = entry.getValue().getResult().join();
+                    if (join.isFailed()) {
+                        return ImmutableList.of();
+                    }
+                    return join.getMetadata();
+                }));
+    }
+
+    @Override
+    public boolean test(String project, String query)
+    {
+        ContinuousQuery continuousQuery;
+        try {
+            continuousQuery = new ContinuousQuery("test", "name",
+                    query, ImmutableList.of(), ImmutableMap.of());
+        }
+        catch (ParsingException | IllegalArgumentException e) {
+            throw new RakamException("Query is not valid: " + e.getMessage(), BAD_REQUEST);
+        }
+
+        QueryExecution execution = executor
+                .executeRawQuery(formatQuery(project, continuousQuery.getQuery()) + " limit 0");
+        QueryResult result = execution.getResult().join();
+        if (result.isFailed()) {
+            throw new RakamException("Query error: " + result.getError().message, BAD_REQUEST);
+        }
+        return !result.isFailed();
+    }
+
+    /**
+     * Merges the events that are stored after the watermark of the continuous query into its table,
+     * the views are always up to date.
+     */
+    @Override
+    public QueryExecution refresh(String project, String tableName)
+    {
+        ContinuousQuery continuousQuery = database.getContinuousQuery(project, tableName);
+        Optional<Long> watermark = getWatermark(project, tableName);
+        if (!watermark.isPresent()) {
+            return QueryExecution.completedQueryExecution("", QueryResult.empty());
+        }
+        return merge(project, continuousQuery, watermark.get());
+    }
+
+    private void processNewEvents()
+            throws SQLException
+    {
+        Map<Entry<String, String>, Long> watermarks = new HashMap<>();
+        try (Connection connection = executor.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT project, table_name, watermark FROM " + WATERMARK_TABLE)) {
+            while (resultSet.next()) {
+                watermarks.put(new SimpleImmutableEntry<>(resultSet.getString(1), resultSet.getString(2)), resultSet.getLong(3));
+            }
+        }
+
+        for (Entry<Entry<String, String>, Long> entry : watermarks.entrySet()) {
+            String project = entry.getKey().getKey();
+            String tableName = entry.getKey().getValue();
+
+            ContinuousQuery continuousQuery;
+            try {
+                continuousQuery = database.getContinuousQuery(project, tableName);
+            }
+            catch (NotExistsException e) {
+                continue;
+            }
+
+            try {
+                QueryResult result = merge(project, continuousQuery, entry.getValue()).getResult().join();
+                if (result.isFailed()) {
+                    LOGGER.warn("Unable to update continuous query %s.%s: %s", project, tableName, result.getError().message);
+                }
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Unable to update continuous query %s.%s", project, tableName);
+            }
+        }
+    }
+
+    private QueryExecution merge(String project, ContinuousQuery continuousQuery, long watermark)
+    {
+        // the events are inserted with the time when their transaction is started so the events that are
+        // committed after the new watermark are not missed as long as their transactions are shorter than the delay
+        long newWatermark = Instant.now().toEpochMilli() - commitDelayMillis;
+        if (newWatermark <= watermark) {
+            return QueryExecution.completedQueryExecution("", QueryResult.empty());
+        }
+
+        createServerTimeIndexes(project);
+
+        Query statement = continuousQuery.getQuery();
+        IncrementalAggregateView aggregateView = IncrementalAggregateView.analyze(statement).get();
+        String table = format("%s.%s", checkProject(project), checkCollection(CONTINUOUS_QUERY_PREFIX + continuousQuery.tableName));
+
+        // the watermark is moved in the same statement so the events are not merged twice when
+        // the continuous query is updated by multiple nodes
+        String query = formatSql(statement, name -> format("(SELECT * FROM %s WHERE \"$server_time\" > %s AND \"$server_time\" <= %s " +
+                        "AND EXISTS (SELECT 1 FROM watermark)) data",
+                executor.formatTableReference(project, name, Optional.empty(), ImmutableMap.of(), "collection"),
+                toTimestamp(watermark), toTimestamp(newWatermark)), '"');
+
+        String indexExpressions = aggregateView.getKeys().isEmpty() ? null :
+                this.indexExpressions.computeIfAbsent(project + "." + continuousQuery.tableName,
+                        key -> aggregateView.getIndexExpressions(getColumnTypes("SELECT * FROM " + table)).get());
+
+        return executor.executeRawStatement(format("WITH watermark AS (UPDATE %s SET watermark = %d " +
+                        "WHERE project = '%s' AND table_name = '%s' AND watermark = %d RETURNING 1) %s",
+                WATERMARK_TABLE, newWatermark, checkLiteral(project), checkLiteral(continuousQuery.tableName), watermark,
+                aggregateView.merge(table, query, indexExpressions)));
+    }
+
+    /**
+     * The new events are found by the index of "$server_time" that is created with the collection tables, the tables
+     * that are created before the index was introduced are indexed before their events are merged.
+     */
+    private void createServerTimeIndexes(String project)
+    {
+        if (indexedProjects.contains(project)) {
+            return;
+        }
+
+        try (Connection connection = executor.getConnection()) {
+            List<String> collections = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement("SELECT c.relname FROM pg_catalog.pg_class c " +
+                    "JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace " +
+                    "JOIN pg_catalog.pg_attribute a ON a.attrelid = c.oid " +
+                    "WHERE n.nspname = ? AND c.relkind IN ('r', 'p') AND position('$' in c.relname) = 0 " +
+                    "AND a.attname = '$server_time' AND NOT a.attisdropped")) {
+                statement.setString(1, project);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        collections.add(resultSet.getString(1));
+                    }
+                }
+            }
+
+            for (String collection : collections) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(PostgresqlMetastore.createServerTimeIndex(project, collection));
+                }
+            }
+            indexedProjects.add(project);
+        }
+        catch (SQLException e) {
+            LOGGER.warn(e, "Unable to create the index of the new events of project %s", project);
+        }
+    }
+
+    private Optional<Long> getWatermark(String project, String tableName)
+    {
+        try (Connection connection = executor.getConnection();
+                PreparedStatement statement = connection.prepareStatement("SELECT watermark FROM " + WATERMARK_TABLE +
+                        " WHERE project = ? AND table_name = ?")) {
+            statement.setString(1, project);
+            statement.setString(2, tableName);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? Optional.of(resultSet.getLong(1)) : Optional.empty();
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private String formatQuery(String project, Query statement)
+    {
+        StringBuilder builder = new StringBuilder();
+        new RakamSqlFormatter.Formatter(builder, qualifiedName ->
+                executor.formatTableReference(project, qualifiedName, Optional.empty(), ImmutableMap.of(), "collection"), '"')
+                .process(statement, 1);
+        return builder.toString();
+    }
+
+    private static String toTimestamp(long epochMillis)
+    {
+        return format("timezone('UTC', to_timestamp(%d / 1000.0))", epochMillis);
+    }
+}
@@ -0,0 +1,180 @@
+package org.rakam.postgresql.analysis;
+
+import com.google.common.collect.ImmutableList;
+import org.rakam.analysis.HyperLogLogFunctions;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * HyperLogLog sketches that are implemented as stored functions since Postgresql doesn't have a built-in sketch type.
+ * The sketch is a bytea that has a register for each bucket of the hashes and the sketches are merged by taking
+ * the maximum of the registers, so the sketches of the different rows of a materialized view can be combined.
+ * The standard error of the estimations is 1.04 / sqrt(REGISTERS), about 2.3%. The aggregates are computed
+ * in parallel on Postgresql 9.6 and the later versions.
+ * <p>
+ * The stored functions are slow since they're interpreted, so the sketches of the postgresql-hll extension are used
+ * if the extension is available. The merge functions also accept the sketches of the stored functions and the
+ * arrays of hashes that the realtime reports stored before the sketches, so the existing tables can still be queried.
+ */
+public final class PostgresqlHyperLogLog
+{
+    public static final HyperLogLogFunctions FUNCTIONS = new HyperLogLogFunctions("hll_sketch(%s)", "hll_union(%s)", "hll_cardinality(%s)");
+    public static final HyperLogLogFunctions EXTENSION_FUNCTIONS = new HyperLogLogFunctions("hll_add_agg(hll_hash_any(%s))", "hll_union_agg(%s)",
+            "CAST(hll_cardinality(%s) AS bigint)");
+
+    private static final int INDEX_BITS = 11;
+    private static final int REGISTERS = 1 << INDEX_BITS;
+
+    private static final List<String> FUNCTION_STATEMENTS = ImmutableList.of(
+            // the lower bits of the hash is the register and the rank is the position of the first set bit of the remaining bits
+            format("CREATE OR REPLACE FUNCTION hll_add(sketch bytea, value anyelement) RETURNS bytea AS $$\n" +
+                    "DECLARE\n" +
+                    "    hash bigint;\n" +
+                    "    register int;\n" +
+                    "    rank int := 1;\n" +
+                    "BEGIN\n" +
+                    "    IF value IS NULL THEN\n" +
+                    "        RETURN sketch;\n" +
+                    "    END IF;\n" +
+                    "    IF sketch IS NULL THEN\n" +
+                    "        sketch := decode(repeat('00', %d), 'hex');\n" +
+                    "    END IF;\n" +
+                    "    hash := ('x' || substr(md5(value::text), 1, 16))::bit(64)::bigint;\n" +
+                    "    register := (hash & %d)::int;\n" +
+                    "    hash := (hash >> %d) & %d;\n" +
+                    "    WHILE rank <= %d AND (hash & 1) = 0 LOOP\n" +
+                    "        rank := rank + 1;\n" +
+                    "        hash := hash >> 1;\n" +
+                    "    END LOOP;\n" +
+                    "    IF get_byte(sketch, register) < rank THEN\n" +
+                    "        sketch := set_byte(sketch, register, rank);\n" +
+                    "    END IF;\n" +
+                    "    RETURN sketch;\n" +
+                    "END\n" +
+                    "$$ LANGUAGE plpgsql IMMUTABLE",
+                    REGISTERS, REGISTERS - 1, INDEX_BITS, (1L << (64 - INDEX_BITS - 1)) - 1, 64 - INDEX_BITS - 1),
+            "CREATE OR REPLACE FUNCTION hll_merge(left_sketch bytea, right_sketch bytea) RETURNS bytea AS $$\n" +
+                    "DECLARE\n" +
+                    "    merged bytea := left_sketch;\n" +
+                    "BEGIN\n" +
+                    "    IF left_sketch IS NULL THEN\n" +
+                    "        RETURN right_sketch;\n" +
+                    "    END IF;\n" +
+                    "    IF right_sketch IS NULL THEN\n" +
+                    "        RETURN left_sketch;\n" +
+                    "    END IF;\n" +
+                    "    FOR i IN 0 .. length(right_sketch) - 1 LOOP\n" +
+                    "        IF get_byte(right_sketch, i) > get_byte(merged, i) THEN\n" +
+                    "            merged := set_byte(merged, i, get_byte(right_sketch, i));\n" +
+                    "        END IF;\n" +
+                    "    END LOOP;\n" +
+                    "    RETURN merged;\n" +
+                    "END\n" +
+                    "$$ LANGUAGE plpgsql IMMUTABLE",
+            // the realtime reports stored the hashes of the values as int arrays before the sketches
+            "CREATE OR REPLACE FUNCTION hll_add_hashes(sketch bytea, hashes int[]) RETURNS bytea AS $$\n" +
+                    "DECLARE\n" +
+                    "    hash int;\n" +
+                    "BEGIN\n" +
+                    "    IF hashes IS NULL THEN\n" +
+                    "        RETURN sketch;\n" +
+                    "    END IF;\n" +
+                    "    FOREACH hash IN ARRAY hashes LOOP\n" +
+                    "        sketch := hll_add(sketch, hash);\n" +
+                    "    END LOOP;\n" +
+                    "    RETURN sketch;\n" +
+                    "END\n" +
+                    "$$ LANGUAGE plpgsql IMMUTABLE",
+            // the estimation is corrected with linear counting for the small cardinalities
+            "CREATE OR REPLACE FUNCTION hll_cardinality(sketch bytea) RETURNS bigint AS $$\n" +
+                    "DECLARE\n" +
+                    "    registers int := length(sketch);\n" +
+                    "    total double precision := 0;\n" +
+                    "    zeros int := 0;\n" +
+                    "    estimate double precision;\n" +
+                    "BEGIN\n" +
+                    "    IF sketch IS NULL THEN\n" +
+                    "        RETURN 0;\n" +
+                    "    END IF;\n" +
+                    "    FOR i IN 0 .. registers - 1 LOOP\n" +
+                    "        total := total + power(2.0, -get_byte(sketch, i));\n" +
+                    "        IF get_byte(sketch, i) = 0 THEN\n" +
+                    "            zeros := zeros + 1;\n" +
+                    "        END IF;\n" +
+                    "    END LOOP;\n" +
+                    "    estimate := (0.7213 / (1 + 1.079 / registers)) * registers * registers / total;\n" +
+                    "    IF estimate <= 2.5 * registers AND zeros > 0 THEN\n" +
+                    "        estimate := registers * ln(registers::double precision / zeros);\n" +
+                    "    END IF;\n" +
+                    "    RETURN round(estimate);\n" +
+                    "END\n" +
+                    "$$ LANGUAGE plpgsql IMMUTABLE");
+
+    // the merge function of the extension also accepts the sketches of the stored functions and the arrays of hashes
+    private static final List<String> AGGREGATE_STATEMENTS = ImmutableList.of(
+            "CREATE AGGREGATE hll_sketch(anyelement) (SFUNC = hll_add, STYPE = bytea%s)",
+            "CREATE AGGREGATE hll_union(bytea) (SFUNC = hll_merge, STYPE = bytea%s)",
+            "CREATE AGGREGATE hll_union(int[]) (SFUNC = hll_add_hashes, STYPE = bytea%s)",
+            "CREATE AGGREGATE hll_union_agg(bytea) (SFUNC = hll_merge, STYPE = bytea%s)",
+            "CREATE AGGREGATE hll_union_agg(int[]) (SFUNC = hll_add_hashes, STYPE = bytea%s)");
+
+    // the functions and the aggregates can't be executed in parallel before Postgresql 9.6
+    private static final String PARALLEL_FUNCTION = " PARALLEL SAFE";
+    private static final String PARALLEL_AGGREGATE = ", COMBINEFUNC = hll_merge, PARALLEL = SAFE";
+
+    private PostgresqlHyperLogLog()
+    {
+    }
+
+    /**
+     * Creates the stored functions and returns the functions of the sketches that are used by the new tables.
+     *
+     * @param parallel whether the server supports the parallel aggregates, which requires Postgresql 9.6
+     */
+    public static HyperLogLogFunctions createFunctions(Connection connection, boolean parallel)
+            throws SQLException
+    {
+        try (Statement statement = connection.createStatement()) {
+            for (String function : FUNCTION_STATEMENTS) {
+                statement.execute(parallel ? function + PARALLEL_FUNCTION : function);
+            }
+        }
+
+        for (String aggregate : AGGREGATE_STATEMENTS) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(format(aggregate, parallel ? PARALLEL_AGGREGATE : ""));
+            }
+            catch (SQLException e) {
+                // the aggregate is already created
+                if (!e.getSQLState().equals("42723")) {
+                    throw e;
+                }
+            }
+        }
+
+        return createExtension(connection) ? EXTENSION_FUNCTIONS : FUNCTIONS;
+    }
+
+    private static boolean createExtension(Connection connection)
+    {
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet resultSet = statement.executeQuery("SELECT 1 FROM pg_available_extensions WHERE name = 'hll'")) {
+                if (!resultSet.next()) {
+                    return false;
+                }
+            }
+            statement.execute("CREATE EXTENSION IF NOT EXISTS hll");
+            return true;
+        }
+        catch (SQLException e) {
+            // the user is not allowed to create the extension
+            return false;
+        }
+    }
+}
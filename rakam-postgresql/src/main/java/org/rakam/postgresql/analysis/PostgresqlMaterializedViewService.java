@@ -4,22 +4,30 @@ import com.facebook.presto.sql.RakamSqlFormatter;
 import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.QualifiedName;
 import com.facebook.presto.sql.tree.Query;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.metadata.QueryMetadataStore;
 import org.rakam.config.ProjectConfig;
 import org.rakam.plugin.MaterializedView;
 import org.rakam.postgresql.report.PostgresqlQueryExecutor;
+import org.rakam.report.ChainQueryExecution;
 import org.rakam.report.DelegateQueryExecution;
+import org.rakam.report.QueryAdmissionController;
 import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryPriority;
 import org.rakam.report.QueryResult;
 import org.rakam.util.RakamException;
 import org.rakam.util.ValidationUtil;
 
 import javax.inject.Inject;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.time.Clock;
-import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -27,75 +35,297 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import static com.facebook.presto.sql.RakamSqlFormatter.formatSql;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static java.lang.String.format;
 import static org.rakam.postgresql.report.PostgresqlQueryExecutor.MATERIALIZED_VIEW_PREFIX;
 import static org.rakam.util.ValidationUtil.checkCollection;
-import static org.rakam.util.ValidationUtil.checkTableColumn;
 
 public class PostgresqlMaterializedViewService extends MaterializedViewService {
+    private static final int MAX_IDENTIFIER_LENGTH = 63;
+    private static final int SWAP_LOCK_TIMEOUT_SECONDS = 10;
+
     private final SqlParser parser = new SqlParser();
 
     private final PostgresqlQueryExecutor queryExecutor;
     private final QueryMetadataStore database;
     private final ProjectConfig projectConfig;
+    private final QueryAdmissionController admissionController;
+    private final Map<String, Optional<String>> mergeTargets = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> concurrentRefreshes = new ConcurrentHashMap<>();
+    private final Map<String, Instant> shadowViews = new ConcurrentHashMap<>();
 
-    @Inject
     public PostgresqlMaterializedViewService(ProjectConfig projectConfig, PostgresqlQueryExecutor queryExecutor, QueryMetadataStore database) {
+        this(projectConfig, queryExecutor, database, QueryAdmissionController.UNLIMITED);
+    }
+
+    @Inject
+    public PostgresqlMaterializedViewService(ProjectConfig projectConfig, PostgresqlQueryExecutor queryExecutor, QueryMetadataStore database, QueryAdmissionController admissionController) {
         super(database, queryExecutor, '"');
         this.projectConfig = projectConfig;
         this.queryExecutor = queryExecutor;
         this.database = database;
+        this.admissionController = admissionController;
     }
 
     @Override
     public CompletableFuture<Void> create(String project, MaterializedView materializedView) {
         materializedView.validateQuery();
 
-        StringBuilder builder = new StringBuilder();
         Query statement;
         synchronized (parser) {
             statement = (Query) parser.createStatement(materializedView.query);
         }
-
-        new RakamSqlFormatter.Formatter(builder, name -> queryExecutor
-                .formatTableReference(project, name, Optional.empty(), new HashMap<String, String>() {
-                    @Override
-                    public String put(String key, String value)
-                    {
-                        throw new RakamException("Cross database materialized views are not supported in Postgresql deployment type.", BAD_REQUEST);
-                    }
-                }, "collection"), '"').process(statement, 1);
+        String query = formatQuery(project, statement);
 
         String format;
         if(!materializedView.incremental) {
             format = format("CREATE MATERIALIZED VIEW %s.%s AS %s WITH NO DATA",
-                    ValidationUtil.checkProject(project), checkCollection(MATERIALIZED_VIEW_PREFIX + materializedView.tableName), builder.toString());
+                    ValidationUtil.checkProject(project), checkCollection(MATERIALIZED_VIEW_PREFIX + materializedView.tableName), query);
         } else {
             format = format("CREATE TABLE %s.%s AS %s WITH NO DATA",
-                    ValidationUtil.checkProject(project), checkCollection(MATERIALIZED_VIEW_PREFIX + materializedView.tableName), builder.toString());
+                    ValidationUtil.checkProject(project), checkCollection(MATERIALIZED_VIEW_PREFIX + materializedView.tableName), query);
         }
 
         QueryResult result = queryExecutor.executeRawStatement(format).getResult().join();
         if (result.isFailed()) {
             throw new RakamException("Couldn't created table: " + result.getError().toString(), BAD_REQUEST);
         }
+
+        if (materializedView.incremental) {
+            Optional<IncrementalAggregateView> aggregateView = IncrementalAggregateView.analyze(statement);
+            // the views without group keys are appended for each update
+            if (aggregateView.isPresent() && !aggregateView.get().getKeys().isEmpty()) {
+                createMergeIndex(project, materializedView.tableName, aggregateView.get());
+            }
+        }
+        else {
+            Optional<List<String>> uniqueKeys = IncrementalAggregateView.getUniqueKeys(statement);
+            if (uniqueKeys.isPresent()) {
+                createUniqueIndex(project, materializedView.tableName, uniqueKeys.get());
+            }
+        }
         database.createMaterializedView(project, materializedView);
         return CompletableFuture.completedFuture(null);
     }
 
+    private String formatQuery(String project, Query statement) {
+        StringBuilder builder = new StringBuilder();
+        new RakamSqlFormatter.Formatter(builder, name -> queryExecutor
+                .formatTableReference(project, name, Optional.empty(), new HashMap<String, String>() {
+                    @Override
+                    public String put(String key, String value)
+                    {
+                        throw new RakamException("Cross database materialized views are not supported in Postgresql deployment type.", BAD_REQUEST);
+                    }
+                }, "collection"), '"').process(statement, 1);
+        return builder.toString();
+    }
+
+    /**
+     * The materialized views that have a unique index are refreshed concurrently without blocking the readers.
+     */
+    private void createUniqueIndex(String project, String tableName, List<String> keys) {
+        String columns = keys.stream().map(IncrementalAggregateView::quote).collect(Collectors.joining(", "));
+        QueryResult result = queryExecutor.executeRawStatement(format("CREATE UNIQUE INDEX %s ON %s.%s (%s)",
+                checkCollection(getGroupIndexName(tableName)), ValidationUtil.checkProject(project),
+                checkCollection(MATERIALIZED_VIEW_PREFIX + tableName), columns)).getResult().join();
+        if (result.isFailed()) {
+            throw new RakamException("Couldn't create index: " + result.getError().toString(), BAD_REQUEST);
+        }
+    }
+
+    private void createMergeIndex(String project, String tableName, IncrementalAggregateView aggregateView) {
+        Optional<String> indexExpressions = aggregateView.getIndexExpressions(getColumnTypes(project, tableName));
+        if (!indexExpressions.isPresent()) {
+            // the rows of the view will be appended for each update
+            return;
+        }
+
+        String table = format("%s.%s", ValidationUtil.checkProject(project), checkCollection(MATERIALIZED_VIEW_PREFIX + tableName));
+        QueryResult result = queryExecutor.executeRawStatement(aggregateView.createIndex(
+                checkCollection(getGroupIndexName(tableName)), table, indexExpressions.get())).getResult().join();
+        if (result.isFailed()) {
+            throw new RakamException("Couldn't create index: " + result.getError().toString(), BAD_REQUEST);
+        }
+    }
+
+    /**
+     * The views that are created before the merge index is introduced don't have the index and their rows
+     * are appended for each update.
+     */
+    private Optional<String> getMergeTarget(String project, MaterializedView materializedView, IncrementalAggregateView aggregateView) {
+        return mergeTargets.computeIfAbsent(project + "." + materializedView.tableName, key -> {
+            if (!hasGroupIndex(project, materializedView.tableName)) {
+                return Optional.empty();
+            }
+
+            return aggregateView.getIndexExpressions(getColumnTypes(project, materializedView.tableName));
+        });
+    }
+
+    private boolean hasGroupIndex(String project, String tableName) {
+        try (Connection connection = queryExecutor.getConnection();
+                PreparedStatement ps = connection.prepareStatement("SELECT 1 FROM pg_indexes WHERE schemaname = ? AND indexname = ?")) {
+            ps.setString(1, project);
+            ps.setString(2, getGroupIndexName(tableName));
+            try (ResultSet resultSet = ps.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * The views that depend on the materialized view follow the renamed relation, so the view can't be swapped.
+     */
+    private boolean hasDependentViews(String project, String tableName) {
+        try (Connection connection = queryExecutor.getConnection();
+                PreparedStatement ps = connection.prepareStatement("SELECT 1 FROM pg_depend d " +
+                        "JOIN pg_rewrite r ON (r.oid = d.objid) " +
+                        "JOIN pg_class c ON (c.oid = d.refobjid) " +
+                        "JOIN pg_namespace n ON (n.oid = c.relnamespace) " +
+                        "WHERE d.classid = 'pg_rewrite'::regclass AND n.nspname = ? AND c.relname = ? AND r.ev_class <> c.oid LIMIT 1")) {
+            ps.setString(1, project);
+            ps.setString(2, MATERIALIZED_VIEW_PREFIX + tableName);
+            try (ResultSet resultSet = ps.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private Map<String, String> getColumnTypes(String project, String tableName) {
+        Map<String, String> types = new HashMap<>();
+        try (Connection connection = queryExecutor.getConnection();
+                ResultSet columns = connection.getMetaData().getColumns(null, project, MATERIALIZED_VIEW_PREFIX + tableName, null)) {
+            while (columns.next()) {
+                types.put(columns.getString("COLUMN_NAME"), columns.getString("TYPE_NAME"));
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+        return types;
+    }
+
+    private static String getGroupIndexName(String tableName) {
+        return getRelationName(tableName, "_groups");
+    }
+
+    private static String getRelationName(String tableName, String suffix) {
+        String name = MATERIALIZED_VIEW_PREFIX + tableName;
+        // Postgresql truncates the identifiers so the name is truncated before the suffix is added
+        if (name.length() + suffix.length() > MAX_IDENTIFIER_LENGTH) {
+            name = name.substring(0, MAX_IDENTIFIER_LENGTH - suffix.length());
+        }
+        return name + suffix;
+    }
+
     @Override
     public CompletableFuture<QueryResult> delete(String project, String name) {
         MaterializedView materializedView = database.getMaterializedView(project, name);
-        database.deleteMaterializedView(project, name);
-        return queryExecutor.executeRawStatement(format("DROP MATERIALIZED VIEW \"%s\".\"%s%s\"",
-                project, MATERIALIZED_VIEW_PREFIX, materializedView.tableName)).getResult();
+        // the incremental views are tables, the metadata is kept until the relation is dropped so that
+        // the deletion can be retried if the drop fails
+        String query;
+        if (materializedView.incremental) {
+            query = format("DROP TABLE IF EXISTS \"%s\".\"%s%s\"", project, MATERIALIZED_VIEW_PREFIX, materializedView.tableName);
+        }
+        else {
+            // the shadow views of a failed refresh are dropped with the view
+            query = format("DROP MATERIALIZED VIEW IF EXISTS \"%s\".\"%s%s\", \"%s\".%s, \"%s\".%s",
+                    project, MATERIALIZED_VIEW_PREFIX, materializedView.tableName,
+                    project, checkCollection(getRelationName(materializedView.tableName, "$new")),
+                    project, checkCollection(getRelationName(materializedView.tableName, "$old")));
+        }
+        return queryExecutor.executeRawStatement(query).getResult()
+                .thenApply(result -> {
+                    if (!result.isFailed()) {
+                        database.deleteMaterializedView(project, name);
+                        mergeTargets.remove(project + "." + materializedView.tableName);
+                        concurrentRefreshes.remove(project + "." + materializedView.tableName);
+                        shadowViews.remove(project + "." + materializedView.tableName);
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * REFRESH MATERIALIZED VIEW blocks the readers of the view until the refresh is completed. The views that have
+     * a unique index are refreshed concurrently, the others are built into a shadow view that replaces the view
+     * in a short transaction. The views that other views depend on can't be replaced so they're refreshed in place.
+     *
+     * @param refreshedAt is set to the time that the data of the view is read from the collections
+     */
+    private QueryExecution refresh(String project, MaterializedView materializedView, Query statement, boolean populated, AtomicReference<Instant> refreshedAt) {
+        String schema = ValidationUtil.checkProject(project);
+        String collection = checkCollection(MATERIALIZED_VIEW_PREFIX + materializedView.tableName);
+        String key = project + "." + materializedView.tableName;
+        refreshedAt.set(Instant.now());
+        if (!populated) {
+            return queryExecutor.executeRawStatement(format("REFRESH MATERIALIZED VIEW %s.%s", schema, collection));
+        }
+
+        boolean concurrently = concurrentRefreshes.computeIfAbsent(key,
+                k -> hasGroupIndex(project, materializedView.tableName));
+        if (concurrently) {
+            return queryExecutor.executeRawStatement(format("REFRESH MATERIALIZED VIEW CONCURRENTLY %s.%s", schema, collection));
+        }
+
+        String shadow = checkCollection(getRelationName(materializedView.tableName, "$new"));
+        String old = checkCollection(getRelationName(materializedView.tableName, "$old"));
+        if (hasDependentViews(project, materializedView.tableName)) {
+            shadowViews.remove(key);
+            return queryExecutor.executeRawStatement(format("DROP MATERIALIZED VIEW IF EXISTS %s.%s; REFRESH MATERIALIZED VIEW %s.%s",
+                    schema, shadow, schema, collection));
+        }
+
+        // the shadow view that is built by the previous refresh is swapped again if the swap failed
+        Instant builtAt = shadowViews.get(key);
+        QueryExecution build;
+        if (builtAt != null) {
+            refreshedAt.set(builtAt);
+            build = QueryExecution.completedQueryExecution(null, QueryResult.empty());
+        }
+        else {
+            build = queryExecutor.executeRawStatement(format("DROP MATERIALIZED VIEW IF EXISTS %s.%s; CREATE MATERIALIZED VIEW %s.%s AS %s",
+                    schema, shadow, schema, shadow, formatQuery(project, statement)));
+        }
+
+        return new ChainQueryExecution(ImmutableList.of(build), null, results -> {
+            if (results.get(0).isFailed()) {
+                return build;
+            }
+            shadowViews.put(key, refreshedAt.get());
+            // the rename waits for the running queries of the view and the new queries of the view wait for
+            // the rename, the lock timeout bounds the time that they're queued
+            return queryExecutor.executeTransaction(ImmutableList.of(
+                    format("SET LOCAL lock_timeout = '%ds'", SWAP_LOCK_TIMEOUT_SECONDS),
+                    format("ALTER MATERIALIZED VIEW %s.%s RENAME TO %s", schema, collection, old),
+                    format("ALTER MATERIALIZED VIEW %s.%s RENAME TO %s", schema, shadow, collection),
+                    format("DROP MATERIALIZED VIEW %s.%s", schema, old)));
+        });
     }
 
     @Override
     public MaterializedViewExecution lockAndUpdateView(String project, MaterializedView materializedView) {
+        return execute(project, materializedView, true);
+    }
+
+    @Override
+    public MaterializedViewExecution getSnapshot(String project, MaterializedView materializedView) {
+        return execute(project, materializedView, false);
+    }
+
+    private MaterializedViewExecution execute(String project, MaterializedView materializedView, boolean update) {
         CompletableFuture<Instant> f = new CompletableFuture<>();
 
         String tableName = queryExecutor.formatTableReference(project,
@@ -107,15 +337,21 @@ public class PostgresqlMaterializedViewService extends MaterializedViewService {
 
         Map<String, String> sessionProperties = new HashMap<>();
         if (!materializedView.incremental) {
-            if (!materializedView.needsUpdate(Clock.systemUTC()) || !database.updateMaterializedView(project, materializedView, f)) {
+            // the view is not populated until its first refresh
+            boolean populated = materializedView.lastUpdate != null;
+            if (!update || !materializedView.needsUpdate(Clock.systemUTC()) || !database.updateMaterializedView(project, materializedView, f)) {
                 return new MaterializedViewExecution(null, tableName);
             }
 
-            String collection = checkCollection( MATERIALIZED_VIEW_PREFIX + materializedView.tableName);
-            QueryExecution execution = queryExecutor.executeRawStatement(format("REFRESH MATERIALIZED VIEW %s.%s ",
-                    project, collection));
+            AtomicReference<Instant> refreshedAt = new AtomicReference<>();
+            QueryExecution execution = admissionController.admit(project, QueryPriority.BATCH,
+                    () -> refresh(project, materializedView, statement, populated, refreshedAt));
             DelegateQueryExecution delegateQueryExecution = new DelegateQueryExecution(execution, result -> {
-                f.complete(!result.isFailed() ? Instant.now() : null);
+                if (!result.isFailed()) {
+                    // the shadow view is renamed to the view
+                    shadowViews.remove(project + "." + materializedView.tableName);
+                }
+                f.complete(!result.isFailed() ? refreshedAt.get() : null);
                 return result;
             });
             return new MaterializedViewExecution(delegateQueryExecution, tableName);
@@ -125,23 +361,29 @@ public class PostgresqlMaterializedViewService extends MaterializedViewService {
 
             Instant lastUpdated = materializedView.lastUpdate;
             Instant now = Instant.now();
-            boolean needsUpdate = lastUpdated == null || Duration
-                    .between(now, lastUpdated).compareTo(materializedView.updateInterval) > 0;
+            Optional<IncrementalAggregateView> aggregateView = IncrementalAggregateView.analyze(statement);
+            Optional<String> mergeTarget = aggregateView.flatMap(view -> getMergeTarget(project, materializedView, view));
 
             QueryExecution queryExecution;
-            if (needsUpdate && database.updateMaterializedView(project, materializedView, f)) {
+            boolean updating = update && materializedView.needsUpdate(Clock.systemUTC()) && database.updateMaterializedView(project, materializedView, f);
+            if (updating) {
                 String query = formatSql(statement,
                         name -> {
-                            String predicate = lastUpdated != null ? format("between timezone('UTC', to_timestamp(%d)) and  timezone('UTC', to_timestamp(%d))",
+                            // the rows at the boundary belong to the previous update
+                            String predicate = lastUpdated != null ? format("> timezone('UTC', to_timestamp(%d)) AND \"$server_time\" <= timezone('UTC', to_timestamp(%d))",
                                     lastUpdated.getEpochSecond(), now.getEpochSecond()) :
-                                    format(" < timezone('UTC', to_timestamp(%d))", now.getEpochSecond());
+                                    format("<= timezone('UTC', to_timestamp(%d))", now.getEpochSecond());
 
                             String collection = queryExecutor.formatTableReference(project, name, Optional.empty(),
                                     ImmutableMap.of(), "collection");
                             return format("(SELECT * FROM %s WHERE \"$server_time\" %s) data", collection, predicate);
                         }, '"');
 
-                queryExecution = queryExecutor.executeRawStatement(format("INSERT INTO %s %s", materializedTableReference, query), sessionProperties);
+                String statementToExecute = mergeTarget.isPresent() ?
+                        aggregateView.get().merge(materializedTableReference, query, mergeTarget.get()) :
+                        format("INSERT INTO %s %s", materializedTableReference, query);
+                queryExecution = admissionController.admit(project, QueryPriority.BATCH,
+                        () -> queryExecutor.executeRawStatement(statementToExecute, sessionProperties));
                 queryExecution.getResult().thenAccept(result -> f.complete(!result.isFailed() ? now : null));
 
             }
@@ -151,21 +393,24 @@ public class PostgresqlMaterializedViewService extends MaterializedViewService {
             }
 
             String reference;
-            if (!needsUpdate && !materializedView.realTime) {
+            if (!materializedView.realTime) {
                 reference = materializedTableReference;
             }
             else {
+                // the query waits for the update so the rows until now are already in the table
+                Instant watermark = updating || lastUpdated == null ? now : lastUpdated;
                 String query = formatSql(statement,
                         name -> {
                             String collection = format("(SELECT * FROM %s %s) data",
                                     queryExecutor.formatTableReference(project, name, Optional.empty(), ImmutableMap.of(), "collection"),
-                                    format("WHERE %s > to_timestamp(%d)",
-                                            checkTableColumn(projectConfig.getTimeColumn()),
-                                            (lastUpdated != null ? lastUpdated : now).getEpochSecond()));
+                                    format("WHERE \"$server_time\" > timezone('UTC', to_timestamp(%d))", watermark.getEpochSecond()));
                             return collection;
                         }, '"');
 
-                reference = format("(SELECT * from %s UNION ALL %s) data", materializedTableReference, query);
+                String union = format("(SELECT * from %s UNION ALL %s) data", materializedTableReference, query);
+                reference = mergeTarget.isPresent() ?
+                        format("(%s) data", aggregateView.get().combine(union)) :
+                        union;
             }
 
             return new MaterializedViewExecution(queryExecution, reference);
@@ -14,6 +14,7 @@ import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.metadata.AbstractMetastore;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.config.ProjectConfig;
 import org.rakam.util.NotExistsException;
 import org.rakam.util.ProjectCollection;
 import org.rakam.util.RakamException;
@@ -28,6 +29,8 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -54,12 +57,21 @@ public class PostgresqlMetastore
     private LoadingCache<ProjectCollection, List<SchemaField>> schemaCache;
     private LoadingCache<String, Set<String>> collectionCache;
     private final JDBCPoolDataSource connectionPool;
+    private final PostgresqlConfig config;
+    private final String timeColumn;
+
+    public PostgresqlMetastore(JDBCPoolDataSource connectionPool, EventBus eventBus)
+    {
+        this(connectionPool, eventBus, new PostgresqlConfig(), new ProjectConfig());
+    }
 
     @Inject
-    public PostgresqlMetastore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, EventBus eventBus)
+    public PostgresqlMetastore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, EventBus eventBus, PostgresqlConfig config, ProjectConfig projectConfig)
     {
         super(eventBus);
         this.connectionPool = connectionPool;
+        this.config = config;
+        this.timeColumn = projectConfig.getTimeColumn();
 
         schemaCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<ProjectCollection, List<SchemaField>>()
         {
@@ -89,7 +101,7 @@ public class PostgresqlMetastore
                                             "FROM pg_catalog.pg_class c\n" +
                                             "    JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace\n" +
                                             "    LEFT JOIN pg_inherits i ON (i.inhrelid = c.oid)\n" +
-                                            "    WHERE n.nspname = '%s' and c.relkind IN ('r', '') and i.inhrelid is null\n" +
+                                            "    WHERE n.nspname = '%s' and c.relkind IN ('r', 'p', '') and i.inhrelid is null\n" +
                                             "    AND n.nspname <> 'pg_catalog'\n" +
                                             "    AND n.nspname <> 'information_schema'\n" +
                                             "    AND n.nspname !~ '^pg_toast' AND c.relname != '_users' and c.relname not like '\\$%%' ESCAPE '\\'",
@@ -190,7 +202,7 @@ public class PostgresqlMetastore
                         "    JOIN pg_type t ON (a.atttypid = t.oid)\n" +
                         "    WHERE n.nspname = '%s' and c.relname = '%s' " +
                         "    AND a.attname != '$server_time'\n" +
-                        "    AND c.relkind IN ('r', '') and i.inhrelid IS NULL\n" +
+                        "    AND c.relkind IN ('r', 'p', '') and i.inhrelid IS NULL\n" +
                         "    AND n.nspname <> 'pg_catalog'\n" +
                         "    AND n.nspname <> 'information_schema'\n" +
                         "    AND n.nspname !~ '^pg_toast'     \n" +
@@ -224,7 +236,7 @@ public class PostgresqlMetastore
                         "    LEFT JOIN pg_inherits i ON (i.inhrelid = c.oid)\n" +
                         "    JOIN pg_attribute a ON (a.attrelid=c.oid)\n" +
                         "    JOIN pg_type t ON (a.atttypid = t.oid)\n" +
-                        "    WHERE n.nspname = '%s' and c.relkind IN ('r', '') and i.inhrelid is null\n" +
+                        "    WHERE n.nspname = '%s' and c.relkind IN ('r', 'p', '') and i.inhrelid is null\n" +
                         "    AND n.nspname <> 'pg_catalog'\n" +
                         "    AND n.nspname <> 'information_schema'\n" +
                         "    AND n.nspname !~ '^pg_toast'     \n" +
@@ -253,6 +265,7 @@ public class PostgresqlMetastore
     {
         List<SchemaField> currentFields = new ArrayList<>();
         String query;
+        List<String> tableQueries = ImmutableList.of();
         Runnable task;
 
         if (collection.equals("_users")) {
@@ -292,7 +305,20 @@ public class PostgresqlMetastore
                 if (queryEnd.isEmpty()) {
                     return currentFields;
                 }
-                query = format("CREATE TABLE \"%s\".%s (%s)", project, checkCollection(collection), queryEnd);
+                // the tables that are partitioned by the time column are pruned by the time predicates of the queries
+                if (config.isPartitionEvents() && schemaFields.stream()
+                        .anyMatch(f -> f.getName().equals(timeColumn) && f.getType() == FieldType.TIMESTAMP)) {
+                    query = PostgresqlPartitionManager.createPartitionedTable(project, collection, queryEnd, timeColumn);
+                    tableQueries = ImmutableList.<String>builder()
+                            .addAll(PostgresqlPartitionManager.createPartitions(project, collection, config.getPartitionGranularity(),
+                                    LocalDateTime.now(ZoneOffset.UTC), config.getPrecreatedPartitions(), ImmutableList.of()))
+                            .add(createServerTimeIndex(project, collection))
+                            .build();
+                }
+                else {
+                    query = format("CREATE TABLE \"%s\".%s (%s)", project, checkCollection(collection), queryEnd);
+                    tableQueries = ImmutableList.of(createServerTimeIndex(project, collection));
+                }
                 task = () -> super.onCreateCollection(project, collection, schemaFields);
             }
             else {
@@ -311,6 +337,9 @@ public class PostgresqlMetastore
             }
 
             connection.createStatement().execute(query);
+            for (String tableQuery : tableQueries) {
+                connection.createStatement().execute(tableQuery);
+            }
             connection.commit();
             connection.setAutoCommit(true);
             schemaCache.put(new ProjectCollection(project, collection), currentFields);
@@ -403,6 +432,16 @@ public class PostgresqlMetastore
         super.onDeleteProject(project);
     }
 
+    /**
+     * The continuous queries read the events that are stored after their watermark, the BRIN index keeps the cost of
+     * reading them proportional to the new events since "$server_time" increases with the insertion order.
+     */
+    public static String createServerTimeIndex(String project, String collection)
+    {
+        return format("CREATE INDEX IF NOT EXISTS %s ON \"%s\".%s USING BRIN (\"$server_time\")",
+                checkCollection(PostgresqlPartitionManager.getPartitionName(collection, "server_time")), project, checkCollection(collection));
+    }
+
     public static String toSql(FieldType type)
     {
         switch (type) {
@@ -0,0 +1,348 @@
+package org.rakam.postgresql.analysis;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.postgresql.analysis.PostgresqlConfig.PartitionGranularity;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * Manages the partitions of the event tables that are partitioned by the time column. The partitions of the
+ * next periods are created ahead of time so that the events are not stored in the default partition and
+ * the partitions that are older than the retention are dropped instead of deleting their rows.
+ */
+public class PostgresqlPartitionManager
+{
+    private final static Logger LOGGER = Logger.get(PostgresqlPartitionManager.class);
+    private static final int MAX_IDENTIFIER_LENGTH = 63;
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter PARTITION_BOUND = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String DEFAULT_PARTITION_SUFFIX = "default";
+    private static final String CHECK_VIOLATION = "23514";
+
+    private final JDBCPoolDataSource connectionPool;
+    private final Metastore metastore;
+    private final Clock clock;
+    private final PartitionGranularity granularity;
+    private final int precreatedPartitions;
+    private final Optional<Duration> retention;
+    private final ScheduledExecutorService scheduler;
+
+    @Inject
+    public PostgresqlPartitionManager(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, Metastore metastore, PostgresqlConfig config, Clock clock)
+    {
+        this.connectionPool = connectionPool;
+        this.metastore = metastore;
+        this.clock = clock;
+        this.granularity = config.getPartitionGranularity();
+        this.precreatedPartitions = config.getPrecreatedPartitions();
+        this.retention = Optional.ofNullable(config.getPartitionRetention())
+                .map(duration -> Duration.ofMillis(duration.toMillis()));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("postgresql-partition-manager")
+                .setUncaughtExceptionHandler((t, e) -> LOGGER.error(e))
+                .build());
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                managePartitions();
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Error while managing the partitions of the event tables");
+            }
+        }, 0, 1, HOURS);
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        scheduler.shutdownNow();
+    }
+
+    @VisibleForTesting
+    void managePartitions()
+    {
+        LocalDateTime now = LocalDateTime.ofInstant(clock.instant(), ZoneOffset.UTC);
+
+        for (String project : metastore.getProjects()) {
+            try (Connection connection = connectionPool.getConnection()) {
+                for (String collection : getPartitionedTables(connection, project)) {
+                    try {
+                        managePartitions(connection, project, collection, now);
+                    }
+                    catch (SQLException e) {
+                        LOGGER.error(e, "Unable to manage the partitions of %s.%s", project, collection);
+                    }
+                }
+            }
+            catch (SQLException e) {
+                LOGGER.error(e, "Unable to manage the partitions of project %s", project);
+            }
+        }
+    }
+
+    private void managePartitions(Connection connection, String project, String collection, LocalDateTime now)
+            throws SQLException
+    {
+        List<String> partitions = getPartitions(connection, project, collection);
+
+        boolean moveRows = false;
+        for (String query : createPartitions(project, collection, granularity, now, precreatedPartitions, partitions)) {
+            moveRows |= !execute(connection, query);
+        }
+
+        if (moveRows) {
+            moveDefaultPartitionRows(connection, project, collection, now);
+        }
+
+        if (retention.isPresent()) {
+            for (String query : dropPartitions(project, collection, granularity, now.minus(retention.get()), partitions)) {
+                execute(connection, query);
+            }
+        }
+    }
+
+    /**
+     * Returns false if the partition can't be created because the default partition has the events of its period.
+     */
+    private static boolean execute(Connection connection, String query)
+            throws SQLException
+    {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(query);
+            return true;
+        }
+        catch (SQLException e) {
+            if (CHECK_VIOLATION.equals(e.getSQLState())) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private void moveDefaultPartitionRows(Connection connection, String project, String collection, LocalDateTime now)
+            throws SQLException
+    {
+        String timeColumn = getPartitionColumn(connection, project, collection);
+        List<String> partitions = getPartitions(connection, project, collection);
+
+        LocalDateTime start = granularity.truncate(now);
+        for (int i = 0; i <= precreatedPartitions; i++) {
+            if (!partitions.contains(getPartitionName(collection, start.format(PARTITION_SUFFIX)))) {
+                connection.setAutoCommit(false);
+                try {
+                    for (String query : createPartitionFromDefault(project, collection, timeColumn, granularity, start)) {
+                        try (Statement statement = connection.createStatement()) {
+                            statement.execute(query);
+                        }
+                    }
+                    connection.commit();
+                }
+                catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                }
+                finally {
+                    connection.setAutoCommit(true);
+                }
+            }
+            start = granularity.next(start);
+        }
+    }
+
+    public static String createPartitionedTable(String project, String collection, String columns, String timeColumn)
+    {
+        return format("CREATE TABLE \"%s\".%s (%s) PARTITION BY RANGE (%s)", project, checkCollection(collection), columns,
+                checkTableColumn(timeColumn));
+    }
+
+    /**
+     * The events that don't belong to any period (or have null time) are stored in the default partition.
+     */
+    public static List<String> createPartitions(String project, String collection, PartitionGranularity granularity, LocalDateTime now, int precreatedPartitions, Collection<String> existingPartitions)
+    {
+        List<String> queries = new ArrayList<>();
+
+        String defaultPartition = getPartitionName(collection, DEFAULT_PARTITION_SUFFIX);
+        if (!existingPartitions.contains(defaultPartition)) {
+            queries.add(format("CREATE TABLE IF NOT EXISTS \"%s\".%s PARTITION OF \"%s\".%s DEFAULT",
+                    project, checkCollection(defaultPartition), project, checkCollection(collection)));
+        }
+
+        LocalDateTime start = granularity.truncate(now);
+        for (int i = 0; i <= precreatedPartitions; i++) {
+            LocalDateTime end = granularity.next(start);
+            String partition = getPartitionName(collection, start.format(PARTITION_SUFFIX));
+            if (!existingPartitions.contains(partition)) {
+                queries.add(createRangePartition(project, collection, partition, start, end));
+            }
+            start = end;
+        }
+
+        return queries;
+    }
+
+    /**
+     * A partition can't be created while the default partition has the events of its period so the default partition
+     * is detached, the events of the period are moved to the new partition and the default partition is attached again.
+     * The statements must be executed in a single transaction.
+     */
+    public static List<String> createPartitionFromDefault(String project, String collection, String timeColumn, PartitionGranularity granularity, LocalDateTime start)
+    {
+        LocalDateTime end = granularity.next(start);
+        String partition = getPartitionName(collection, start.format(PARTITION_SUFFIX));
+        String defaultPartition = checkCollection(getPartitionName(collection, DEFAULT_PARTITION_SUFFIX));
+        String predicate = format("%s >= '%s' AND %s < '%s'", checkTableColumn(timeColumn), start.format(PARTITION_BOUND),
+                checkTableColumn(timeColumn), end.format(PARTITION_BOUND));
+
+        return ImmutableList.of(
+                format("ALTER TABLE \"%s\".%s DETACH PARTITION \"%s\".%s", project, checkCollection(collection), project, defaultPartition),
+                createRangePartition(project, collection, partition, start, end),
+                format("INSERT INTO \"%s\".%s SELECT * FROM \"%s\".%s WHERE %s", project, checkCollection(partition), project, defaultPartition, predicate),
+                format("DELETE FROM \"%s\".%s WHERE %s", project, defaultPartition, predicate),
+                format("ALTER TABLE \"%s\".%s ATTACH PARTITION \"%s\".%s DEFAULT", project, checkCollection(collection), project, defaultPartition));
+    }
+
+    private static String createRangePartition(String project, String collection, String partition, LocalDateTime start, LocalDateTime end)
+    {
+        return format("CREATE TABLE IF NOT EXISTS \"%s\".%s PARTITION OF \"%s\".%s FOR VALUES FROM ('%s') TO ('%s')",
+                project, checkCollection(partition), project, checkCollection(collection),
+                start.format(PARTITION_BOUND), end.format(PARTITION_BOUND));
+    }
+
+    public static List<String> dropPartitions(String project, String collection, PartitionGranularity granularity, LocalDateTime retainAfter, Collection<String> existingPartitions)
+    {
+        ImmutableList.Builder<String> queries = ImmutableList.builder();
+        for (String partition : existingPartitions) {
+            Optional<LocalDateTime> start = getPartitionStart(collection, partition);
+            if (start.isPresent() && !granularity.next(start.get()).isAfter(retainAfter)) {
+                queries.add(format("DROP TABLE \"%s\".%s", project, checkCollection(partition)));
+            }
+        }
+        return queries.build();
+    }
+
+    static String getPartitionName(String collection, String suffix)
+    {
+        int maxLength = MAX_IDENTIFIER_LENGTH - suffix.length() - 1;
+        return (collection.length() > maxLength ? collection.substring(0, maxLength) : collection) + "$" + suffix;
+    }
+
+    private static Optional<LocalDateTime> getPartitionStart(String collection, String partition)
+    {
+        String suffix = partition.substring(partition.lastIndexOf('$') + 1);
+        if (!getPartitionName(collection, suffix).equals(partition)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(LocalDate.parse(suffix, PARTITION_SUFFIX).atStartOfDay());
+        }
+        catch (DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+
+    public static boolean isPartitioned(Connection connection, String project, String collection)
+            throws SQLException
+    {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM pg_catalog.pg_class c " +
+                "JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace " +
+                "WHERE n.nspname = ? AND c.relname = ? AND c.relkind = 'p'")) {
+            statement.setString(1, project);
+            statement.setString(2, collection);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
+    public static List<String> getPartitions(Connection connection, String project, String collection)
+            throws SQLException
+    {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT c.relname FROM pg_catalog.pg_inherits i " +
+                "JOIN pg_catalog.pg_class c ON c.oid = i.inhrelid " +
+                "JOIN pg_catalog.pg_class p ON p.oid = i.inhparent " +
+                "JOIN pg_catalog.pg_namespace n ON n.oid = p.relnamespace " +
+                "WHERE n.nspname = ? AND p.relname = ?")) {
+            statement.setString(1, project);
+            statement.setString(2, collection);
+            return getNames(statement);
+        }
+    }
+
+    private static String getPartitionColumn(Connection connection, String project, String collection)
+            throws SQLException
+    {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT a.attname FROM pg_catalog.pg_partitioned_table pt " +
+                "JOIN pg_catalog.pg_class c ON c.oid = pt.partrelid " +
+                "JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace " +
+                "JOIN pg_catalog.pg_attribute a ON a.attrelid = pt.partrelid AND a.attnum = pt.partattrs[0] " +
+                "WHERE n.nspname = ? AND c.relname = ?")) {
+            statement.setString(1, project);
+            statement.setString(2, collection);
+            List<String> names = getNames(statement);
+            if (names.isEmpty()) {
+                throw new SQLException(format("The partition column of %s.%s is not found", project, collection));
+            }
+            return names.get(0);
+        }
+    }
+
+    private static List<String> getPartitionedTables(Connection connection, String project)
+            throws SQLException
+    {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT c.relname FROM pg_catalog.pg_class c " +
+                "JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace " +
+                "WHERE n.nspname = ? AND c.relkind = 'p'")) {
+            statement.setString(1, project);
+            return getNames(statement);
+        }
+    }
+
+    private static List<String> getNames(PreparedStatement statement)
+            throws SQLException
+    {
+        List<String> names = new ArrayList<>();
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                names.add(resultSet.getString(1));
+            }
+        }
+        return names;
+    }
+}
@@ -16,13 +16,16 @@ package org.rakam.postgresql.report;
 import com.google.common.collect.ImmutableMap;
 import io.airlift.log.Logger;
 import org.rakam.analysis.ContinuousQueryService;
+import org.rakam.analysis.HyperLogLogFunctions;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.config.ProjectConfig;
+import org.rakam.postgresql.analysis.PostgresqlHyperLogLog;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutorService;
 import org.rakam.report.QueryResult;
 import org.rakam.report.eventexplorer.AbstractEventExplorer;
+import org.rakam.report.eventexplorer.EventExplorerRollupService;
 import org.rakam.report.realtime.AggregationType;
 import org.rakam.util.RakamException;
 import org.rakam.util.ValidationUtil;
@@ -64,14 +67,22 @@ public class PostgresqlEventExplorer
             .build();
     private final QueryExecutorService executorService;
     private final ProjectConfig projectConfig;
+    private final HyperLogLogFunctions hyperLogLogFunctions;
 
-    @Inject
     public PostgresqlEventExplorer(ProjectConfig projectConfig, QueryExecutorService service, MaterializedViewService materializedViewService,
             ContinuousQueryService continuousQueryService)
     {
-        super(projectConfig, service, materializedViewService, continuousQueryService, timestampMapping);
+        this(projectConfig, service, materializedViewService, continuousQueryService, null, PostgresqlHyperLogLog.FUNCTIONS);
+    }
+
+    @Inject
+    public PostgresqlEventExplorer(ProjectConfig projectConfig, QueryExecutorService service, MaterializedViewService materializedViewService,
+            ContinuousQueryService continuousQueryService, EventExplorerRollupService rollupService, HyperLogLogFunctions hyperLogLogFunctions)
+    {
+        super(projectConfig, service, materializedViewService, continuousQueryService, rollupService, timestampMapping);
         this.executorService = service;
         this.projectConfig = projectConfig;
+        this.hyperLogLogFunctions = hyperLogLogFunctions;
     }
 
     @Override
@@ -107,4 +118,16 @@ public class PostgresqlEventExplorer
 
         return column;
     }
+
+    @Override
+    public String getIntermediateForApproximateUniqueFunction()
+    {
+        return hyperLogLogFunctions.sketch("%s");
+    }
+
+    @Override
+    public String getFinalForApproximateUniqueFunction()
+    {
+        return hyperLogLogFunctions.mergedCardinality("%s");
+    }
 }
\ No newline at end of file
@@ -34,7 +34,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static java.lang.String.format;
 import static org.rakam.collection.FieldType.STRING;
@@ -51,53 +51,157 @@ public class PostgresqlQueryExecution
 {
     private final static Logger LOGGER = Logger.get(PostgresqlQueryExecution.class);
 
-    private final CompletableFuture<QueryResult> result;
+    private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
     private final String query;
-    private Statement statement;
+    private final boolean update;
+    private volatile Statement statement;
+    private volatile boolean killed;
 
     public PostgresqlQueryExecution(ConnectionFactory connectionPool, String sqlQuery, boolean update)
     {
-        this.query = sqlQuery;
+        this(sqlQuery, update);
 
         // TODO: unnecessary threads will be spawn
-        Supplier<QueryResult> task = () -> {
-            final QueryResult queryResult;
+        QUERY_EXECUTOR.execute(() -> {
+            try (Connection connection = connectionPool.openConnection()) {
+                result.complete(execute(connection));
+            }
+            catch (Exception e) {
+                result.complete(errorResult(e));
+            }
+        });
+    }
+
+    private PostgresqlQueryExecution(String sqlQuery, boolean update)
+    {
+        this.query = sqlQuery;
+        this.update = update;
+    }
+
+    /**
+     * Executes the queries one by one using the same connection so that a batch of small queries doesn't check out
+     * a connection from the pool for each query. The result of each query is available as soon as it's executed
+     * and the failure of a query doesn't affect the others since the connection is in auto-commit mode.
+     */
+    public static List<QueryExecution> executeBatch(ConnectionFactory connectionPool, List<String> queries)
+    {
+        List<PostgresqlQueryExecution> executions = queries.stream()
+                .map(query -> new PostgresqlQueryExecution(query, false))
+                .collect(Collectors.toList());
+
+        QUERY_EXECUTOR.execute(() -> {
             try (Connection connection = connectionPool.openConnection()) {
-                statement = connection.createStatement();
-                if (update) {
-                    statement.executeUpdate(sqlQuery);
-                    // CREATE TABLE queries doesn't return any value and
-                    // fail when using executeQuery so we fake the result data
-                    queryResult = new QueryResult(ImmutableList.of(new SchemaField("result", FieldType.BOOLEAN)),
-                            ImmutableList.of(ImmutableList.of(true)));
+                for (PostgresqlQueryExecution execution : executions) {
+                    if (execution.killed) {
+                        execution.result.complete(QueryResult.errorResult(QueryError.create("Query is killed"), execution.query));
+                    }
+                    else {
+                        execution.result.complete(execution.execute(connection));
+                    }
                 }
-                else {
-                    long beforeExecuted = System.currentTimeMillis();
-                    ResultSet resultSet = statement.executeQuery(sqlQuery);
-                    statement = null;
-                    queryResult = resultSetToQueryResult(resultSet,
-                            System.currentTimeMillis() - beforeExecuted);
+            }
+            catch (Exception e) {
+                for (PostgresqlQueryExecution execution : executions) {
+                    execution.result.complete(execution.errorResult(e));
+                }
+            }
+        });
+
+        return ImmutableList.copyOf(executions);
+    }
+
+    public static QueryExecution executeTransaction(ConnectionFactory connectionPool, List<String> statements)
+    {
+        PostgresqlQueryExecution execution = new PostgresqlQueryExecution(String.join(";\n", statements), true);
+
+        QUERY_EXECUTOR.execute(() -> {
+            try (Connection connection = connectionPool.openConnection()) {
+                connection.setAutoCommit(false);
+                try {
+                    for (String sql : statements) {
+                        if (execution.killed) {
+                            throw new SQLException("Query is killed");
+                        }
+                        try (Statement statement = connection.createStatement()) {
+                            execution.statement = statement;
+                            statement.executeUpdate(sql);
+                        }
+                        finally {
+                            execution.statement = null;
+                        }
+                    }
+                    connection.commit();
+                    execution.result.complete(new QueryResult(ImmutableList.of(new SchemaField("result", FieldType.BOOLEAN)),
+                            ImmutableList.of(ImmutableList.of(true))));
+                }
+                catch (Exception e) {
+                    connection.rollback();
+                    execution.result.complete(execution.errorResult(e));
+                }
+                finally {
+                    connection.setAutoCommit(true);
                 }
             }
             catch (Exception e) {
-                QueryError error;
-                if (e instanceof SQLException) {
-                    SQLException cause = (SQLException) e;
-                    error = new QueryError(cause.getMessage(), cause.getSQLState(), cause.getErrorCode(), null, null);
-                    LogUtil.logQueryError(query, error, PostgresqlQueryExecutor.class);
+                execution.result.complete(execution.errorResult(e));
+            }
+        });
+
+        return execution;
+    }
+
+    private QueryResult execute(Connection connection)
+    {
+        final QueryResult queryResult;
+        try {
+            statement = connection.createStatement();
+            if (update) {
+                statement.executeUpdate(query);
+                // CREATE TABLE queries doesn't return any value and
+                // fail when using executeQuery so we fake the result data
+                queryResult = new QueryResult(ImmutableList.of(new SchemaField("result", FieldType.BOOLEAN)),
+                        ImmutableList.of(ImmutableList.of(true)));
+            }
+            else {
+                long beforeExecuted = System.currentTimeMillis();
+                ResultSet resultSet = statement.executeQuery(query);
+                queryResult = resultSetToQueryResult(resultSet,
+                        System.currentTimeMillis() - beforeExecuted);
+            }
+        }
+        catch (Exception e) {
+            return errorResult(e);
+        }
+        finally {
+            Statement statement = this.statement;
+            this.statement = null;
+            if (statement != null) {
+                try {
+                    statement.close();
                 }
-                else {
-                    LOGGER.error(e, "Internal query execution error");
-                    error = new QueryError(e.getMessage(), null, null, null, null);
+                catch (SQLException e) {
+                    LOGGER.debug(e, "Unable to close the statement");
                 }
-                LOGGER.debug(e, format("Error while executing Postgresql query: \n%s", query));
-                return QueryResult.errorResult(error, query);
             }
+        }
 
-            return queryResult;
-        };
+        return queryResult;
+    }
 
-        this.result = CompletableFuture.supplyAsync(task, QUERY_EXECUTOR);
+    private QueryResult errorResult(Exception e)
+    {
+        QueryError error;
+        if (e instanceof SQLException) {
+            SQLException cause = (SQLException) e;
+            error = new QueryError(cause.getMessage(), cause.getSQLState(), cause.getErrorCode(), null, null);
+            LogUtil.logQueryError(query, error, PostgresqlQueryExecutor.class);
+        }
+        else {
+            LOGGER.error(e, "Internal query execution error");
+            error = new QueryError(e.getMessage(), null, null, null, null);
+        }
+        LOGGER.debug(e, format("Error while executing Postgresql query: \n%s", query));
+        return QueryResult.errorResult(error, query);
     }
 
     @Override
@@ -126,6 +230,8 @@ public class PostgresqlQueryExecution
     @Override
     public void kill()
     {
+        killed = true;
+        Statement statement = this.statement;
         if (statement != null) {
             try {
                 statement.cancel();
@@ -138,127 +244,133 @@ public class PostgresqlQueryExecution
 
     private QueryResult resultSetToQueryResult(ResultSet resultSet, long executionTimeInMillis)
     {
-        List<SchemaField> columns;
-        List<List<Object>> data;
         try {
-            ResultSetMetaData metaData = resultSet.getMetaData();
-            int columnCount = metaData.getColumnCount();
+            List<SchemaField> columns = getColumns(resultSet.getMetaData());
 
-            columns = new ArrayList<>(columnCount);
-            for (int i = 1; i < columnCount + 1; i++) {
-                FieldType type;
-                try {
-                    type = fromSql(metaData.getColumnType(i), metaData.getColumnTypeName(i));
-                }
-                catch (UnsupportedOperationException e) {
-                    LOGGER.warn(e.getMessage());
-                    type = STRING;
+            ImmutableList.Builder<List<Object>> builder = ImmutableList.builder();
+            while (resultSet.next()) {
+                if (killed) {
+                    // the rows are already fetched by the driver so the statement can't be cancelled anymore
+                    return QueryResult.errorResult(new QueryError("Query is killed", null, null, null, null), query);
                 }
+                builder.add(readRow(resultSet, columns));
+            }
+
+            return new QueryResult(columns, builder.build(), ImmutableMap.of(EXECUTION_TIME, executionTimeInMillis, QUERY, query));
+        }
+        catch (SQLException e) {
+            QueryError error = new QueryError(e.getMessage(), e.getSQLState(), e.getErrorCode(), null, null);
+            return QueryResult.errorResult(error, query);
+        }
+    }
+
+    static List<SchemaField> getColumns(ResultSetMetaData metaData)
+            throws SQLException
+    {
+        int columnCount = metaData.getColumnCount();
 
-                columns.add(new SchemaField(metaData.getColumnName(i), type));
+        List<SchemaField> columns = new ArrayList<>(columnCount);
+        for (int i = 1; i < columnCount + 1; i++) {
+            FieldType type;
+            try {
+                type = fromSql(metaData.getColumnType(i), metaData.getColumnTypeName(i));
+            }
+            catch (UnsupportedOperationException e) {
+                LOGGER.warn(e.getMessage());
+                type = STRING;
             }
 
-            ImmutableList.Builder<List<Object>> builder = ImmutableList.builder();
-            while (resultSet.next()) {
-                List<Object> rowBuilder = Arrays.asList(new Object[columnCount]);
-                for (int i = 0; i < columnCount; i++) {
-                    Object object;
-                    SchemaField schemaField = columns.get(i);
-                    if (schemaField == null) {
-                        continue;
+            columns.add(new SchemaField(metaData.getColumnName(i), type));
+        }
+
+        return columns;
+    }
+
+    static List<Object> readRow(ResultSet resultSet, List<SchemaField> columns)
+            throws SQLException
+    {
+        int columnCount = columns.size();
+        List<Object> rowBuilder = Arrays.asList(new Object[columnCount]);
+        for (int i = 0; i < columnCount; i++) {
+            Object object;
+            FieldType type = columns.get(i).getType();
+            switch (type) {
+                case STRING:
+                    object = resultSet.getString(i + 1);
+                    break;
+                case LONG:
+                    object = resultSet.getLong(i + 1);
+                    break;
+                case INTEGER:
+                    object = resultSet.getInt(i + 1);
+                    break;
+                case DECIMAL:
+                    BigDecimal bigDecimal = resultSet.getBigDecimal(i + 1);
+                    object = bigDecimal != null ? bigDecimal.doubleValue() : null;
+                    break;
+                case DOUBLE:
+                    object = resultSet.getDouble(i + 1);
+                    break;
+                case BOOLEAN:
+                    object = resultSet.getBoolean(i + 1);
+                    break;
+                case TIMESTAMP:
+                    Timestamp timestamp = resultSet.getTimestamp(i + 1, UTC_CALENDAR);
+                    object = timestamp != null ? timestamp.toInstant() : null;
+                    break;
+                case DATE:
+                    Date date = resultSet.getDate(i + 1, UTC_CALENDAR);
+                    object = date != null ? date.toLocalDate() : null;
+                    break;
+                case TIME:
+                    Time time = resultSet.getTime(i + 1, UTC_CALENDAR);
+                    object = time != null ? time.toLocalTime() : null;
+                    break;
+                case BINARY:
+                    InputStream binaryStream = resultSet.getBinaryStream(i + 1);
+                    if (binaryStream != null) {
+                        try {
+                            object = ByteStreams.toByteArray(binaryStream);
+                        }
+                        catch (IOException e) {
+                            LOGGER.error("Error while de-serializing BINARY type", e);
+                            object = null;
+                        }
                     }
-                    FieldType type = schemaField.getType();
-                    switch (type) {
-                        case STRING:
-                            object = resultSet.getString(i + 1);
-                            break;
-                        case LONG:
-                            object = resultSet.getLong(i + 1);
-                            break;
-                        case INTEGER:
-                            object = resultSet.getInt(i + 1);
-                            break;
-                        case DECIMAL:
-                            BigDecimal bigDecimal = resultSet.getBigDecimal(i + 1);
-                            object = bigDecimal != null ? bigDecimal.doubleValue() : null;
-                            break;
-                        case DOUBLE:
-                            object = resultSet.getDouble(i + 1);
-                            break;
-                        case BOOLEAN:
-                            object = resultSet.getBoolean(i + 1);
-                            break;
-                        case TIMESTAMP:
-                            Timestamp timestamp = resultSet.getTimestamp(i + 1, UTC_CALENDAR);
-                            object = timestamp != null ? timestamp.toInstant() : null;
-                            break;
-                        case DATE:
-                            Date date = resultSet.getDate(i + 1, UTC_CALENDAR);
-                            object = date != null ? date.toLocalDate() : null;
-                            break;
-                        case TIME:
-                            Time time = resultSet.getTime(i + 1, UTC_CALENDAR);
-                            object = time != null ? time.toLocalTime() : null;
-                            break;
-                        case BINARY:
-                            InputStream binaryStream = resultSet.getBinaryStream(i + 1);
-                            if (binaryStream != null) {
-                                try {
-                                    object = ByteStreams.toByteArray(binaryStream);
-                                }
-                                catch (IOException e) {
-                                    LOGGER.error("Error while de-serializing BINARY type", e);
-                                    object = null;
-                                }
-                            }
-                            else {
-                                object = null;
-                            }
-                            break;
-                        default:
-                            if (type.isArray()) {
-                                Array array = resultSet.getArray(i + 1);
-                                object = array == null ? null : array.getArray();
-                            }
-                            else if (type.isMap()) {
-                                PGobject pgObject = (PGobject) resultSet.getObject(i + 1);
-                                if (pgObject == null) {
-                                    object = null;
-                                }
-                                else {
-                                    if (pgObject.getType().equals("jsonb")) {
-                                        object = JsonHelper.read(pgObject.getValue());
-                                    }
-                                    else {
-                                        throw new UnsupportedOperationException("Postgresql type is not supported");
-                                    }
-                                }
+                    else {
+                        object = null;
+                    }
+                    break;
+                default:
+                    if (type.isArray()) {
+                        Array array = resultSet.getArray(i + 1);
+                        object = array == null ? null : array.getArray();
+                    }
+                    else if (type.isMap()) {
+                        PGobject pgObject = (PGobject) resultSet.getObject(i + 1);
+                        if (pgObject == null) {
+                            object = null;
+                        }
+                        else {
+                            if (pgObject.getType().equals("jsonb")) {
+                                object = JsonHelper.read(pgObject.getValue());
                             }
                             else {
-                                throw new IllegalStateException();
+                                throw new UnsupportedOperationException("Postgresql type is not supported");
                             }
+                        }
                     }
-
-                    if (resultSet.wasNull()) {
-                        object = null;
+                    else {
+                        throw new IllegalStateException();
                     }
-
-                    rowBuilder.set(i, object);
-                }
-                builder.add(rowBuilder);
             }
-            data = builder.build();
 
-            for (int i = 0; i < columns.size(); i++) {
-                if (columns.get(i) == null) {
-                    columns.set(i, new SchemaField(metaData.getColumnName(i + 1), STRING));
-                }
+            if (resultSet.wasNull()) {
+                object = null;
             }
-            return new QueryResult(columns, data, ImmutableMap.of(EXECUTION_TIME, executionTimeInMillis, QUERY, query));
-        }
-        catch (SQLException e) {
-            QueryError error = new QueryError(e.getMessage(), e.getSQLState(), e.getErrorCode(), null, null);
-            return QueryResult.errorResult(error, query);
+
+            rowBuilder.set(i, object);
         }
+        return rowBuilder;
     }
 }
@@ -5,9 +5,11 @@ import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.QualifiedName;
 import com.facebook.presto.sql.tree.Query;
 import com.facebook.presto.sql.tree.Statement;
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.name.Named;
 import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
 import io.airlift.log.Logger;
+import org.rakam.analysis.HyperLogLogFunctions;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.datasource.CustomDataSource;
 import org.rakam.analysis.datasource.CustomDataSourceService;
@@ -16,8 +18,10 @@ import org.rakam.analysis.datasource.SupportedCustomDatabase;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.SchemaField;
 import org.rakam.config.ProjectConfig;
+import org.rakam.postgresql.analysis.PostgresqlHyperLogLog;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
+import org.rakam.report.QueryResultStream;
 import org.rakam.report.QuerySampling;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
@@ -26,10 +30,14 @@ import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -39,6 +47,7 @@ import java.util.stream.Collectors;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.EXPECTATION_FAILED;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 import static java.lang.String.format;
 import static org.rakam.util.ValidationUtil.checkCollection;
@@ -52,6 +61,7 @@ public class PostgresqlQueryExecutor
     private final static Logger LOGGER = Logger.get(PostgresqlQueryExecutor.class);
     public final static String MATERIALIZED_VIEW_PREFIX = "$materialized_";
     public final static String CONTINUOUS_QUERY_PREFIX = "$view_";
+    private final static int STREAMING_FETCH_SIZE = 5000;
 
     private final JDBCPoolDataSource connectionPool;
     protected static final ExecutorService QUERY_EXECUTOR = Executors.newWorkStealingPool();
@@ -60,6 +70,9 @@ public class PostgresqlQueryExecutor
     private final CustomDataSourceService customDataSource;
     private final ProjectConfig projectConfig;
     private SqlParser sqlParser = new SqlParser();
+    private int serverMajorVersion;
+    private int serverMinorVersion;
+    private HyperLogLogFunctions hyperLogLogFunctions = PostgresqlHyperLogLog.FUNCTIONS;
 
     @Inject
     public PostgresqlQueryExecutor(
@@ -76,17 +89,35 @@ public class PostgresqlQueryExecutor
         this.userServiceIsPostgresql = userServiceIsPostgresql;
 
         try (Connection connection = connectionPool.getConnection()) {
+            serverMajorVersion = connection.getMetaData().getDatabaseMajorVersion();
+            serverMinorVersion = connection.getMetaData().getDatabaseMinorVersion();
             connection.createStatement().execute("CREATE OR REPLACE FUNCTION to_unixtime(timestamp) RETURNS double precision" +
                     "    AS 'select extract(epoch from $1);'" +
                     "    LANGUAGE SQL" +
                     "    IMMUTABLE" +
                     "    RETURNS NULL ON NULL INPUT");
+            // Postgresql supports the parallel aggregates since 9.6
+            hyperLogLogFunctions = PostgresqlHyperLogLog.createFunctions(connection, isServerVersionAtLeast(9, 6));
         }
         catch (SQLException e) {
             LOGGER.error(e, "Error while creating required Postgresql procedures.");
         }
     }
 
+    public boolean isServerVersionAtLeast(int major, int minor)
+    {
+        return serverMajorVersion > major || (serverMajorVersion == major && serverMinorVersion >= minor);
+    }
+
+    /**
+     * Returns the functions of the HyperLogLog sketches, the sketches of the postgresql-hll extension are used if
+     * the extension is available.
+     */
+    public HyperLogLogFunctions getHyperLogLogFunctions()
+    {
+        return hyperLogLogFunctions;
+    }
+
     @Override
     public QueryExecution executeRawQuery(String query)
     {
@@ -103,6 +134,56 @@ public class PostgresqlQueryExecutor
         return new PostgresqlQueryExecution(connectionPool::getConnection, query, false);
     }
 
+    @Override
+    public List<QueryExecution> executeRawQueries(List<String> queries, Map<String, String> sessionParameters)
+    {
+        if (sessionParameters.get("remotedb") != null) {
+            return QueryExecutor.super.executeRawQueries(queries, sessionParameters);
+        }
+        return PostgresqlQueryExecution.executeBatch(connectionPool::getConnection, queries);
+    }
+
+    /**
+     * Executes the statements in a single transaction, the changes of the statements are rolled back if one of them fails.
+     */
+    public QueryExecution executeTransaction(List<String> statements)
+    {
+        return PostgresqlQueryExecution.executeTransaction(connectionPool::getConnection, statements);
+    }
+
+    @Override
+    public CompletableFuture<QueryResultStream> executeStreamingQuery(String query, Map<String, String> sessionParameters)
+    {
+        if (sessionParameters.get("remotedb") != null) {
+            // the custom databases may not support server-side cursors
+            return QueryExecutor.super.executeStreamingQuery(query, sessionParameters);
+        }
+        return PostgresqlQueryResultStream.execute(connectionPool::getConnection, query, STREAMING_FETCH_SIZE);
+    }
+
+    @Override
+    public CompletableFuture<List<SchemaField>> describeQuery(String query, Map<String, String> sessionParameters)
+    {
+        if (sessionParameters.get("remotedb") != null) {
+            return QueryExecutor.super.describeQuery(query, sessionParameters);
+        }
+
+        // the driver only parses the prepared statement on the server in order to get its metadata
+        return CompletableFuture.supplyAsync(() -> {
+            try (Connection connection = connectionPool.getConnection();
+                    PreparedStatement statement = connection.prepareStatement(query)) {
+                ResultSetMetaData metaData = statement.getMetaData();
+                if (metaData == null) {
+                    throw new RakamException("The query doesn't return any rows", BAD_REQUEST);
+                }
+                return PostgresqlQueryExecution.getColumns(metaData);
+            }
+            catch (SQLException e) {
+                throw new RakamException(e.getMessage(), INTERNAL_SERVER_ERROR);
+            }
+        }, QUERY_EXECUTOR);
+    }
+
     @Override
     public QueryExecution executeRawStatement(String query)
     {
@@ -117,7 +198,7 @@ public class PostgresqlQueryExecutor
             switch (prefix) {
                 case "collection":
                     return project + "." + checkCollection(name.getSuffix()) +
-                            sample.map(e -> " TABLESAMPLE " + e.method.name() + "(" + e.percentage + ")").orElse("");
+                            sample.map(QuerySampling::getTableSampleClause).orElse("");
                 case "continuous":
                     return project + "." + checkCollection(CONTINUOUS_QUERY_PREFIX + name.getSuffix());
                 case "materialized":
@@ -158,19 +239,9 @@ public class PostgresqlQueryExecutor
         }
 
         if (name.getSuffix().equals("_all") && !name.getPrefix().isPresent()) {
-            List<Map.Entry<String, List<SchemaField>>> collections = metastore.getCollections(project).entrySet().stream()
-                    .collect(Collectors.toList());
+            Map<String, String> collections = getCollectionRelations(project, sample);
             if (!collections.isEmpty()) {
-                String sharedColumns = collections.get(0).getValue().stream()
-                        .filter(col -> collections.stream().allMatch(list -> list.getValue().contains(col)))
-                        .map(f -> checkTableColumn(f.getName()))
-                        .collect(Collectors.joining(", "));
-
-                return "(" + collections.stream().map(Map.Entry::getKey)
-                        .map(collection -> format("select cast('%s' as text) as \"_collection\", \"$server_time\" %s from %s t",
-                                checkLiteral(collection),
-                                sharedColumns.isEmpty() ? "" : (", " + sharedColumns),
-                                project + "." + checkCollection(collection)))
+                return "(" + collections.values().stream()
                         .collect(Collectors.joining(" union all \n")) + ") _all";
             }
             else {
@@ -178,11 +249,70 @@ public class PostgresqlQueryExecutor
                         checkTableColumn(projectConfig.getTimeColumn()));
             }
         }
+        else if (!name.getPrefix().isPresent() && "collection".equals(defaultSchema)) {
+            return project + "." + checkCollection(name.getSuffix()) +
+                    sample.map(QuerySampling::getTableSampleClause).orElse("");
+        }
         else {
             return project + "." + checkCollection(name.getSuffix());
         }
     }
 
+    @Override
+    public Optional<Map<String, String>> getCollectionRelations(String project)
+    {
+        // the planner runs the branches of UNION ALL one after another so the collections are queried in parallel
+        return Optional.of(getCollectionRelations(project, Optional.empty()));
+    }
+
+    private Map<String, String> getCollectionRelations(String project, Optional<QuerySampling> sample)
+    {
+        List<Map.Entry<String, List<SchemaField>>> collections = metastore.getCollections(project).entrySet().stream()
+                .collect(Collectors.toList());
+        if (collections.isEmpty()) {
+            return ImmutableMap.of();
+        }
+
+        String sharedColumns = collections.get(0).getValue().stream()
+                .filter(col -> collections.stream().allMatch(list -> list.getValue().contains(col)))
+                .map(f -> checkTableColumn(f.getName()))
+                .collect(Collectors.joining(", "));
+
+        ImmutableMap.Builder<String, String> relations = ImmutableMap.builder();
+        for (Map.Entry<String, List<SchemaField>> collection : collections) {
+            relations.put(collection.getKey(), format("select cast('%s' as text) as \"_collection\", \"$server_time\" %s from %s t%s",
+                    checkLiteral(collection.getKey()),
+                    sharedColumns.isEmpty() ? "" : (", " + sharedColumns),
+                    project + "." + checkCollection(collection.getKey()),
+                    sample.map(QuerySampling::getTableSampleClause).orElse("")));
+        }
+        return relations.build();
+    }
+
+    @Override
+    public Optional<Long> estimateRowCount(String project, String collection)
+    {
+        // reltuples is updated by VACUUM and ANALYZE, the rows of the partitioned collections are in the child tables
+        try (Connection connection = connectionPool.getConnection();
+                PreparedStatement statement = connection.prepareStatement("SELECT sum(greatest(c.reltuples, 0)) FROM pg_class c " +
+                        "JOIN pg_namespace n ON (n.oid = c.relnamespace) WHERE n.nspname = ? AND (c.relname = ? OR c.oid IN " +
+                        "(SELECT i.inhrelid FROM pg_inherits i JOIN pg_class p ON (p.oid = i.inhparent) WHERE p.relnamespace = n.oid AND p.relname = ?))")) {
+            statement.setString(1, project);
+            statement.setString(2, collection);
+            statement.setString(3, collection);
+            ResultSet resultSet = statement.executeQuery();
+            // the tables that are not analyzed yet don't have statistics
+            if (!resultSet.next() || resultSet.getLong(1) <= 0) {
+                return Optional.empty();
+            }
+            return Optional.of(resultSet.getLong(1));
+        }
+        catch (SQLException e) {
+            LOGGER.warn(e, "Unable to fetch the row count of %s.%s", project, collection);
+            return Optional.empty();
+        }
+    }
+
     public Connection getConnection()
             throws SQLException
     {
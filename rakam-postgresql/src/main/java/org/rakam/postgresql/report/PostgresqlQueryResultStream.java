@@ -0,0 +1,156 @@
+package org.rakam.postgresql.report;
+
+import io.airlift.log.Logger;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.QueryError;
+import org.rakam.report.QueryResultStream;
+import org.rakam.util.LogUtil;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.rakam.postgresql.report.PostgresqlQueryExecutor.QUERY_EXECUTOR;
+
+/**
+ * Reads the result of a query using a server-side cursor. Postgresql driver only uses cursors when the
+ * autocommit is disabled and the fetch size is set, otherwise it fetches the whole result into memory
+ * before returning the first row.
+ */
+public class PostgresqlQueryResultStream
+        implements QueryResultStream
+{
+    private final static Logger LOGGER = Logger.get(PostgresqlQueryResultStream.class);
+
+    private final String query;
+    private final int fetchSize;
+
+    private Connection connection;
+    private volatile Statement statement;
+    private ResultSet resultSet;
+    private List<SchemaField> columns;
+    private volatile QueryError error;
+    private volatile boolean closed;
+
+    private PostgresqlQueryResultStream(String query, int fetchSize)
+    {
+        this.query = query;
+        this.fetchSize = fetchSize;
+    }
+
+    public static CompletableFuture<QueryResultStream> execute(ConnectionFactory connectionFactory, String query, int fetchSize)
+    {
+        PostgresqlQueryResultStream stream = new PostgresqlQueryResultStream(query, fetchSize);
+        return CompletableFuture.supplyAsync(() -> {
+            stream.open(connectionFactory);
+            return stream;
+        }, QUERY_EXECUTOR);
+    }
+
+    private synchronized void open(ConnectionFactory connectionFactory)
+    {
+        try {
+            connection = connectionFactory.openConnection();
+            connection.setAutoCommit(false);
+            Statement statement = connection.createStatement();
+            statement.setFetchSize(fetchSize);
+            this.statement = statement;
+            if (closed) {
+                release();
+                return;
+            }
+            resultSet = statement.executeQuery(query);
+            columns = PostgresqlQueryExecution.getColumns(resultSet.getMetaData());
+        }
+        catch (SQLException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public List<SchemaField> getColumns()
+    {
+        return columns;
+    }
+
+    @Override
+    public synchronized List<List<Object>> nextPage()
+    {
+        if (closed || resultSet == null) {
+            return null;
+        }
+
+        try {
+            List<List<Object>> page = new ArrayList<>(fetchSize);
+            while (page.size() < fetchSize && resultSet.next()) {
+                page.add(PostgresqlQueryExecution.readRow(resultSet, columns));
+            }
+
+            if (page.size() < fetchSize) {
+                release();
+            }
+
+            return page.isEmpty() ? null : page;
+        }
+        catch (SQLException e) {
+            fail(e);
+            return null;
+        }
+    }
+
+    @Override
+    public QueryError getError()
+    {
+        return error;
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        Statement statement = this.statement;
+        if (statement != null) {
+            try {
+                // interrupts the fetch that may be in progress in the consumer thread
+                statement.cancel();
+            }
+            catch (SQLException e) {
+                LOGGER.warn(e, "Unable to cancel the query");
+            }
+        }
+
+        synchronized (this) {
+            release();
+        }
+    }
+
+    private void fail(SQLException e)
+    {
+        if (!closed) {
+            error = new QueryError(e.getMessage(), e.getSQLState(), e.getErrorCode(), null, null);
+            LogUtil.logQueryError(query, error, PostgresqlQueryExecutor.class);
+        }
+        release();
+    }
+
+    private void release()
+    {
+        resultSet = null;
+        statement = null;
+        if (connection != null) {
+            try (Connection connection = this.connection) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            catch (SQLException e) {
+                LOGGER.warn(e, "Error while releasing the connection");
+            }
+            this.connection = null;
+        }
+    }
+}
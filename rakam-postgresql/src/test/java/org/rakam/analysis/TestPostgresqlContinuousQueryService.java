@@ -1,39 +1,110 @@
 package org.rakam.analysis;
 
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.eventbus.EventBus;
+import io.airlift.units.Duration;
 import org.rakam.TestingEnvironment;
 import org.rakam.analysis.datasource.CustomDataSourceService;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.config.ProjectConfig;
+import org.rakam.plugin.ContinuousQuery;
+import org.rakam.postgresql.analysis.PostgresqlConfig;
+import org.rakam.postgresql.analysis.PostgresqlContinuousQueryService;
 import org.rakam.postgresql.analysis.PostgresqlMaterializedViewService;
 import org.rakam.postgresql.analysis.PostgresqlMetastore;
-import org.rakam.postgresql.report.PostgresqlPseudoContinuousQueryService;
 import org.rakam.postgresql.report.PostgresqlQueryExecutor;
 import org.rakam.report.QueryExecutorService;
+import org.rakam.report.QueryResult;
 import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.time.Clock;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 
 public class TestPostgresqlContinuousQueryService extends TestContinuousQueryService {
 
     private TestingEnvironment testingPostgresqlServer;
-    private PostgresqlPseudoContinuousQueryService continuousQueryService;
+    private PostgresqlContinuousQueryService continuousQueryService;
     private PostgresqlMetastore metastore;
+    private PostgresqlQueryExecutor queryExecutor;
+    private JDBCPoolDataSource dataSource;
 
     @BeforeSuite
     public void setUp() throws Exception {
         testingPostgresqlServer = new TestingEnvironment();
 
         InMemoryQueryMetadataStore queryMetadataStore = new InMemoryQueryMetadataStore();
-        JDBCPoolDataSource dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingPostgresqlServer.getPostgresqlConfig());
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingPostgresqlServer.getPostgresqlConfig());
 
         metastore = new PostgresqlMetastore(dataSource, new EventBus());
 
-        PostgresqlQueryExecutor queryExecutor = new PostgresqlQueryExecutor(new ProjectConfig(), dataSource, metastore, new CustomDataSourceService(dataSource), false);
+        queryExecutor = new PostgresqlQueryExecutor(new ProjectConfig(), dataSource, metastore, new CustomDataSourceService(dataSource), false);
         QueryExecutorService executorService = new QueryExecutorService(queryExecutor, metastore,
                 new PostgresqlMaterializedViewService(new ProjectConfig(), queryExecutor, queryMetadataStore), Clock.systemUTC(), '"');
-        continuousQueryService = new PostgresqlPseudoContinuousQueryService(queryMetadataStore, executorService, queryExecutor);
+        // the events are merged as soon as they are stored
+        continuousQueryService = new PostgresqlContinuousQueryService(queryMetadataStore, executorService, queryExecutor,
+                new PostgresqlConfig().setContinuousQueryCommitDelay(new Duration(0, MILLISECONDS)));
+    }
+
+    @Test
+    public void testMergeNewEvents()
+            throws Exception
+    {
+        ContinuousQuery report = new ContinuousQuery("streamtest", "name", "select test, count(*) as total from test group by 1",
+                ImmutableList.of(), ImmutableMap.of());
+        assertFalse(continuousQueryService.create(PROJECT_NAME, report, false).getResult().join().isFailed());
+
+        Thread.sleep(10);
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(format("INSERT INTO %s.test (test) VALUES (1), (1), (2)", PROJECT_NAME));
+        }
+        Thread.sleep(10);
+
+        assertFalse(continuousQueryService.refresh(PROJECT_NAME, "streamtest").getResult().join().isFailed());
+        assertEquals(getGroups(), ImmutableList.of(Arrays.asList(1L, 2L), Arrays.asList(2L, 1L)));
+
+        // the events that are merged are not read again
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(format("INSERT INTO %s.test (test) VALUES (2)", PROJECT_NAME));
+        }
+        Thread.sleep(10);
+
+        assertFalse(continuousQueryService.refresh(PROJECT_NAME, "streamtest").getResult().join().isFailed());
+        assertEquals(getGroups(), ImmutableList.of(Arrays.asList(1L, 2L), Arrays.asList(2L, 2L)));
+
+        // the new events are found by the index instead of scanning the collection
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery(format("SELECT indexdef FROM pg_indexes " +
+                        "WHERE schemaname = '%s' AND tablename = 'test'", PROJECT_NAME))) {
+            boolean indexed = false;
+            while (resultSet.next()) {
+                indexed |= resultSet.getString(1).contains("USING brin (\"$server_time\")");
+            }
+            assertTrue(indexed);
+        }
+    }
+
+    private List<List<Object>> getGroups()
+    {
+        String table = queryExecutor.formatTableReference(PROJECT_NAME, QualifiedName.of("continuous", "streamtest"),
+                Optional.empty(), ImmutableMap.of(), "collection");
+        QueryResult result = queryExecutor.executeRawQuery(format("SELECT test, total FROM %s ORDER BY 1", table)).getResult().join();
+        assertFalse(result.isFailed());
+        return result.getResult();
     }
 
     @Override
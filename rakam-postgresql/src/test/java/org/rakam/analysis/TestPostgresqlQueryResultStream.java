@@ -0,0 +1,77 @@
+package org.rakam.analysis;
+
+import org.rakam.TestingEnvironment;
+import org.rakam.postgresql.report.PostgresqlQueryResultStream;
+import org.rakam.report.QueryResultStream;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestPostgresqlQueryResultStream
+{
+    private JDBCPoolDataSource dataSource;
+
+    @BeforeSuite
+    public void setup()
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment();
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig());
+    }
+
+    @Test
+    public void testPages()
+            throws Exception
+    {
+        try (QueryResultStream stream = PostgresqlQueryResultStream.execute(dataSource::getConnection,
+                "select i from generate_series(1, 25) i", 10).join()) {
+            assertFalse(stream.isFailed());
+            assertEquals(stream.getColumns().size(), 1);
+
+            int rows = 0, pages = 0;
+            List<List<Object>> page;
+            while ((page = stream.nextPage()) != null) {
+                rows += page.size();
+                pages++;
+            }
+
+            assertEquals(rows, 25);
+            assertEquals(pages, 3);
+            assertNull(stream.getError());
+        }
+    }
+
+    @Test
+    public void testErrorWhileFetching()
+            throws Exception
+    {
+        try (QueryResultStream stream = PostgresqlQueryResultStream.execute(dataSource::getConnection,
+                "select 1 / (20 - i) from generate_series(1, 25) i", 10).join()) {
+            List<List<Object>> page;
+            while ((page = stream.nextPage()) != null) {
+                assertTrue(page.size() <= 10);
+            }
+
+            assertNotNull(stream.getError());
+        }
+    }
+
+    @Test
+    public void testClose()
+            throws Exception
+    {
+        QueryResultStream stream = PostgresqlQueryResultStream.execute(dataSource::getConnection,
+                "select i from generate_series(1, 100) i", 10).join();
+        assertNotNull(stream.nextPage());
+        stream.close();
+
+        assertNull(stream.nextPage());
+        assertNull(stream.getError());
+    }
+}
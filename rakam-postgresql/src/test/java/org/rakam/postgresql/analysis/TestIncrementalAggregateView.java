@@ -0,0 +1,111 @@
+package org.rakam.postgresql.analysis;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Query;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.Test;
+
+import java.util.Optional;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class TestIncrementalAggregateView
+{
+    private final SqlParser parser = new SqlParser();
+
+    @Test
+    public void testMerge()
+            throws Exception
+    {
+        IncrementalAggregateView view = analyze("select _user, date_trunc('day', _time) as day, count(*) as total, sum(amount) as amount, " +
+                "max(_time) as last_seen from pageview where amount > 0 group by 1, 2").get();
+        assertEquals(view.getKeys(), ImmutableList.of("_user", "day"));
+
+        String indexExpressions = view.getIndexExpressions(ImmutableMap.of("_user", "text", "day", "timestamp")).get();
+        assertEquals(indexExpressions, "(\"_user\" IS NULL), (COALESCE(\"_user\", '')), " +
+                "(\"day\" IS NULL), (COALESCE(\"day\", TIMESTAMP '1970-01-01 00:00:00'))");
+
+        assertEquals(view.merge("tbl", "SELECT 1", indexExpressions), "INSERT INTO tbl AS t SELECT 1 ON CONFLICT (" + indexExpressions + ") " +
+                "DO UPDATE SET \"total\" = t.\"total\" + EXCLUDED.\"total\", " +
+                "\"amount\" = CASE WHEN t.\"amount\" IS NULL THEN EXCLUDED.\"amount\" WHEN EXCLUDED.\"amount\" IS NULL THEN t.\"amount\" " +
+                "ELSE t.\"amount\" + EXCLUDED.\"amount\" END, " +
+                "\"last_seen\" = GREATEST(t.\"last_seen\", EXCLUDED.\"last_seen\")");
+
+        assertEquals(view.combine("data"), "SELECT \"_user\", \"day\", CAST(sum(\"total\") AS bigint) AS \"total\", " +
+                "sum(\"amount\") AS \"amount\", max(\"last_seen\") AS \"last_seen\" FROM data GROUP BY \"_user\", \"day\"");
+    }
+
+    @Test
+    public void testDistinctGroups()
+            throws Exception
+    {
+        IncrementalAggregateView view = analyze("select _user from pageview group by _user").get();
+        assertEquals(view.merge("tbl", "SELECT 1", "\"_user\""), "INSERT INTO tbl AS t SELECT 1 ON CONFLICT (\"_user\") DO NOTHING");
+    }
+
+    @Test
+    public void testGlobalAggregation()
+            throws Exception
+    {
+        IncrementalAggregateView view = analyze("select count(*) as total, min(_time) as first_seen from pageview").get();
+        assertEquals(view.getKeys(), ImmutableList.of());
+        assertEquals(view.merge("tbl", "SELECT 1", null), "UPDATE tbl AS t SET \"total\" = t.\"total\" + delta.\"total\", " +
+                "\"first_seen\" = LEAST(t.\"first_seen\", delta.\"first_seen\") FROM (SELECT 1) delta");
+        assertEquals(view.combine("data"), "SELECT CAST(sum(\"total\") AS bigint) AS \"total\", min(\"first_seen\") AS \"first_seen\" FROM data");
+    }
+
+    @Test
+    public void testSketchAggregation()
+            throws Exception
+    {
+        IncrementalAggregateView view = analyze("select date_trunc('day', _time) as day, hll_sketch(_user) as users from pageview group by 1").get();
+        assertEquals(view.merge("tbl", "SELECT 1", "\"day\""), "INSERT INTO tbl AS t SELECT 1 ON CONFLICT (\"day\") " +
+                "DO UPDATE SET \"users\" = hll_merge(t.\"users\", EXCLUDED.\"users\")");
+        assertEquals(view.combine("data"), "SELECT \"day\", hll_union(\"users\") AS \"users\" FROM data GROUP BY \"day\"");
+
+        // the sketches of the postgresql-hll extension
+        view = analyze("select date_trunc('day', _time) as day, hll_add_agg(hll_hash_any(_user)) as users from pageview group by 1").get();
+        assertEquals(view.merge("tbl", "SELECT 1", "\"day\""), "INSERT INTO tbl AS t SELECT 1 ON CONFLICT (\"day\") " +
+                "DO UPDATE SET \"users\" = COALESCE(hll_union(t.\"users\", EXCLUDED.\"users\"), t.\"users\", EXCLUDED.\"users\")");
+        assertEquals(view.combine("data"), "SELECT \"day\", hll_union_agg(\"users\") AS \"users\" FROM data GROUP BY \"day\"");
+    }
+
+    @Test
+    public void testNotMergeable()
+            throws Exception
+    {
+        assertFalse(analyze("select _user, count(*) as total from pageview").isPresent());
+        assertFalse(analyze("select count(*) as total from pageview group by _user").isPresent());
+        assertFalse(analyze("select _user, avg(amount) as amount from pageview group by 1").isPresent());
+        assertFalse(analyze("select _user, count(distinct _time) as total from pageview group by 1").isPresent());
+        assertFalse(analyze("select _user, count(*) from pageview group by 1").isPresent());
+        assertFalse(analyze("select _user, count(*) as total from pageview group by 1 having count(*) > 1").isPresent());
+        assertFalse(analyze("select p._user, count(*) as total from pageview p join purchase using (_user) group by 1").isPresent());
+        assertFalse(analyze("select _user, count(*) as total from pageview group by rollup (_user)").isPresent());
+
+        IncrementalAggregateView view = analyze("select _user, count(*) as total from pageview group by 1").get();
+        assertFalse(view.getIndexExpressions(ImmutableMap.of("_user", "json")).isPresent());
+    }
+
+    @Test
+    public void testUniqueKeys()
+            throws Exception
+    {
+        assertEquals(IncrementalAggregateView.getUniqueKeys(parse("select p._user, approx_distinct(_time) as days from pageview p " +
+                "join purchase using (_user) group by 1 having count(*) > 1 order by 2")).get(), ImmutableList.of("_user"));
+        assertFalse(IncrementalAggregateView.getUniqueKeys(parse("select _user, _time from pageview")).isPresent());
+        assertFalse(IncrementalAggregateView.getUniqueKeys(parse("select count(*) as total from pageview group by _user")).isPresent());
+    }
+
+    private Query parse(String query)
+    {
+        return (Query) parser.createStatement(query);
+    }
+
+    private Optional<IncrementalAggregateView> analyze(String query)
+    {
+        return IncrementalAggregateView.analyze((Query) parser.createStatement(query));
+    }
+}
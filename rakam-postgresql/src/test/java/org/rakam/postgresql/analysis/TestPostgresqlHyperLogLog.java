@@ -0,0 +1,82 @@
+package org.rakam.postgresql.analysis;
+
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.testng.annotations.BeforeSuite;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestPostgresqlHyperLogLog
+{
+    private JDBCPoolDataSource dataSource;
+
+    @BeforeSuite
+    public void setUp()
+            throws Exception
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment();
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig());
+        try (Connection connection = dataSource.getConnection()) {
+            boolean parallel = connection.getMetaData().getDatabaseMajorVersion() > 9
+                    || connection.getMetaData().getDatabaseMinorVersion() >= 6;
+            PostgresqlHyperLogLog.createFunctions(connection, parallel);
+            // the functions can be created more than once
+            PostgresqlHyperLogLog.createFunctions(connection, parallel);
+        }
+    }
+
+    @Test
+    public void testCardinality()
+            throws Exception
+    {
+        assertEstimate(query("select hll_cardinality(hll_sketch(i)) from generate_series(1, 100) i"), 100);
+        assertEstimate(query("select hll_cardinality(hll_sketch(i % 10)) from generate_series(1, 1000) i"), 10);
+        assertEquals(query("select hll_cardinality(hll_sketch(i)) from generate_series(1, 0) i"), 0);
+        assertEstimate(query("select hll_cardinality(hll_sketch('user' || i)) from generate_series(1, 100000) i"), 100000);
+    }
+
+    @Test
+    public void testMerge()
+            throws Exception
+    {
+        // the sketches of the overlapping ranges don't count the same values twice
+        assertEstimate(query("select hll_cardinality(hll_union(sketch)) from (" +
+                "select i % 10 as bucket, hll_sketch(i) as sketch from generate_series(1, 50000) i group by 1 " +
+                "union all select 10, hll_sketch(i) from generate_series(25001, 75000) i) t"), 75000);
+        assertEstimate(query("select hll_cardinality(hll_merge(hll_sketch(i), null)) from generate_series(1, 10) i"), 10);
+    }
+
+    @Test
+    public void testHashArrays()
+            throws Exception
+    {
+        // the realtime reports stored the hashes of the values before the sketches
+        assertEstimate(query("select hll_cardinality(hll_union(hashes)) from (" +
+                "select array_agg(distinct hashtext(i::text)) as hashes from generate_series(1, 1000) i " +
+                "union all select array_agg(distinct hashtext(i::text)) from generate_series(501, 1500) i) t"), 1500);
+        assertEstimate(query("select hll_cardinality(hll_union_agg(sketch)) from (" +
+                "select hll_sketch(i) as sketch from generate_series(1, 1000) i) t"), 1000);
+    }
+
+    private static void assertEstimate(long estimate, long expected)
+    {
+        // three times the standard error of the sketches
+        assertTrue(Math.abs(estimate - expected) <= Math.max(1, expected * 0.07), "estimate: " + estimate + ", expected: " + expected);
+    }
+
+    private long query(String query)
+            throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection()) {
+            ResultSet resultSet = connection.createStatement().executeQuery(query);
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.rakam.postgresql.analysis;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.rakam.postgresql.analysis.PostgresqlConfig.PartitionGranularity.DAY;
+import static org.rakam.postgresql.analysis.PostgresqlConfig.PartitionGranularity.MONTH;
+import static org.rakam.postgresql.analysis.PostgresqlConfig.PartitionGranularity.WEEK;
+import static org.testng.Assert.assertEquals;
+
+public class TestPostgresqlPartitionManager
+{
+    @Test
+    public void testCreatePartitions()
+            throws Exception
+    {
+        List<String> queries = PostgresqlPartitionManager.createPartitions("test", "pageview", MONTH,
+                LocalDateTime.of(2016, 12, 15, 10, 30), 1, ImmutableList.of("pageview$20161201"));
+
+        assertEquals(queries, ImmutableList.of(
+                "CREATE TABLE IF NOT EXISTS \"test\".\"pageview$default\" PARTITION OF \"test\".\"pageview\" DEFAULT",
+                "CREATE TABLE IF NOT EXISTS \"test\".\"pageview$20170101\" PARTITION OF \"test\".\"pageview\" " +
+                        "FOR VALUES FROM ('2017-01-01 00:00:00') TO ('2017-02-01 00:00:00')"));
+    }
+
+    @Test
+    public void testWeeklyPartitions()
+            throws Exception
+    {
+        List<String> queries = PostgresqlPartitionManager.createPartitions("test", "pageview", WEEK,
+                LocalDateTime.of(2016, 12, 15, 10, 30), 0, ImmutableList.of("pageview$default"));
+
+        assertEquals(queries, ImmutableList.of("CREATE TABLE IF NOT EXISTS \"test\".\"pageview$20161212\" PARTITION OF \"test\".\"pageview\" " +
+                "FOR VALUES FROM ('2016-12-12 00:00:00') TO ('2016-12-19 00:00:00')"));
+    }
+
+    @Test
+    public void testCreatePartitionFromDefault()
+            throws Exception
+    {
+        List<String> queries = PostgresqlPartitionManager.createPartitionFromDefault("test", "pageview", "_time", DAY,
+                LocalDateTime.of(2016, 12, 15, 0, 0));
+
+        assertEquals(queries, ImmutableList.of(
+                "ALTER TABLE \"test\".\"pageview\" DETACH PARTITION \"test\".\"pageview$default\"",
+                "CREATE TABLE IF NOT EXISTS \"test\".\"pageview$20161215\" PARTITION OF \"test\".\"pageview\" " +
+                        "FOR VALUES FROM ('2016-12-15 00:00:00') TO ('2016-12-16 00:00:00')",
+                "INSERT INTO \"test\".\"pageview$20161215\" SELECT * FROM \"test\".\"pageview$default\" " +
+                        "WHERE \"_time\" >= '2016-12-15 00:00:00' AND \"_time\" < '2016-12-16 00:00:00'",
+                "DELETE FROM \"test\".\"pageview$default\" WHERE \"_time\" >= '2016-12-15 00:00:00' AND \"_time\" < '2016-12-16 00:00:00'",
+                "ALTER TABLE \"test\".\"pageview\" ATTACH PARTITION \"test\".\"pageview$default\" DEFAULT"));
+    }
+
+    @Test
+    public void testDropPartitions()
+            throws Exception
+    {
+        List<String> queries = PostgresqlPartitionManager.dropPartitions("test", "pageview", DAY,
+                LocalDateTime.of(2016, 12, 15, 10, 30),
+                ImmutableList.of("pageview$default", "pageview$20161214", "pageview$20161215", "pageview_test$20161201"));
+
+        assertEquals(queries, ImmutableList.of("DROP TABLE \"test\".\"pageview$20161214\""));
+    }
+
+    @Test
+    public void testLongCollectionName()
+            throws Exception
+    {
+        String collection = "a_very_long_collection_name_that_does_not_fit_in_postgresql_identifiers";
+        String partition = PostgresqlPartitionManager.getPartitionName(collection, "20161201");
+
+        assertEquals(partition.length(), 63);
+        assertEquals(PostgresqlPartitionManager.dropPartitions("test", collection, DAY, LocalDateTime.of(2016, 12, 15, 0, 0),
+                ImmutableList.of(partition)), ImmutableList.of("DROP TABLE \"test\".\"" + partition + "\""));
+    }
+}
@@ -19,6 +19,7 @@ import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EscapeIdentifier;
 import org.rakam.analysis.EventExplorer;
 import org.rakam.analysis.FunnelQueryExecutor;
+import org.rakam.analysis.HyperLogLogFunctions;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.RealtimeService;
@@ -103,6 +104,7 @@ public class PrestoModule
         binder.bind(char.class).annotatedWith(EscapeIdentifier.class).toInstance('"');
         binder.bind(MaterializedViewService.class).to(PrestoMaterializedViewService.class);
         binder.bind(String.class).annotatedWith(TimestampToEpochFunction.class).toInstance("to_unixtime");
+        binder.bind(HyperLogLogFunctions.class).toInstance(PrestoEventExplorer.HYPERLOGLOG_FUNCTIONS);
 
         buildConfigObject(JDBCConfig.class, "report.metadata.store.jdbc");
 
@@ -15,11 +15,13 @@ package org.rakam.presto.analysis;
 
 import com.google.common.collect.ImmutableMap;
 import org.rakam.analysis.ContinuousQueryService;
+import org.rakam.analysis.HyperLogLogFunctions;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.config.ProjectConfig;
 import org.rakam.report.QueryExecutorService;
 import org.rakam.report.eventexplorer.AbstractEventExplorer;
+import org.rakam.report.eventexplorer.EventExplorerRollupService;
 import org.rakam.report.realtime.AggregationType;
 
 import javax.inject.Inject;
@@ -30,6 +32,10 @@ import java.util.Set;
 import static org.rakam.analysis.EventExplorer.TimestampTransformation.*;
 
 public class PrestoEventExplorer extends AbstractEventExplorer {
+    // the sketches are stored as varbinary since the tables can't have hyperloglog columns
+    public static final HyperLogLogFunctions HYPERLOGLOG_FUNCTIONS = new HyperLogLogFunctions(
+            "CAST(approx_set(%s) AS VARBINARY)", "merge(CAST(%s AS HYPERLOGLOG))", "cardinality(%s)");
+
     private static final Map<TimestampTransformation, String> timestampMapping = ImmutableMap.
             <TimestampTransformation, String>builder()
             .put(HOUR_OF_DAY, "lpad(cast(hour(%s) as varchar), 2, '0')||':00'")
@@ -45,10 +51,15 @@ public class PrestoEventExplorer extends AbstractEventExplorer {
             .put(YEAR, "date_trunc('year', %s)")
             .build();
 
-    @Inject
     public PrestoEventExplorer(ProjectConfig projectConfig, QueryExecutorService executor, ContinuousQueryService continuousQueryService,
                                MaterializedViewService materializedViewService) {
-        super(projectConfig, executor, materializedViewService, continuousQueryService, timestampMapping);
+        this(projectConfig, executor, continuousQueryService, materializedViewService, null);
+    }
+
+    @Inject
+    public PrestoEventExplorer(ProjectConfig projectConfig, QueryExecutorService executor, ContinuousQueryService continuousQueryService,
+                               MaterializedViewService materializedViewService, EventExplorerRollupService rollupService) {
+        super(projectConfig, executor, materializedViewService, continuousQueryService, rollupService, timestampMapping);
     }
 
     @Override
@@ -75,11 +86,11 @@ public class PrestoEventExplorer extends AbstractEventExplorer {
 
     @Override
     public String getIntermediateForApproximateUniqueFunction() {
-        return "CAST(approx_set(%s) AS VARBINARY)";
+        return HYPERLOGLOG_FUNCTIONS.sketch("%s");
     }
 
     @Override
     public String getFinalForApproximateUniqueFunction() {
-        return "cardinality(CAST(%s AS HYPERLOGLOG))";
+        return HYPERLOGLOG_FUNCTIONS.mergedCardinality("%s");
     }
 }
\ No newline at end of file
@@ -125,19 +125,31 @@ public class PrestoMaterializedViewService
     public CompletableFuture<QueryResult> delete(String project, String name)
     {
         MaterializedView materializedView = database.getMaterializedView(project, name);
-        database.deleteMaterializedView(project, name);
         String reference = queryExecutor.formatTableReference(project, QualifiedName.of("materialized", materializedView.tableName), Optional.empty(), ImmutableMap.of(), "collection");
-        return queryExecutor.executeRawQuery(format("DROP TABLE %s",
+        return queryExecutor.executeRawQuery(format("DROP TABLE IF EXISTS %s",
                 reference)).getResult().thenApply(result -> {
             if (result.isFailed()) {
                 throw new RakamException("Error while deleting materialized table: " + result.getError().toString(), INTERNAL_SERVER_ERROR);
             }
+            // the metadata is kept until the table is dropped so that the deletion can be retried
+            database.deleteMaterializedView(project, name);
             return result;
         });
     }
 
     @Override
     public MaterializedViewExecution lockAndUpdateView(String project, MaterializedView materializedView)
+    {
+        return execute(project, materializedView, true);
+    }
+
+    @Override
+    public MaterializedViewExecution getSnapshot(String project, MaterializedView materializedView)
+    {
+        return execute(project, materializedView, false);
+    }
+
+    private MaterializedViewExecution execute(String project, MaterializedView materializedView, boolean update)
     {
         CompletableFuture<Instant> f = new CompletableFuture<>();
 
@@ -147,7 +159,7 @@ public class PrestoMaterializedViewService
 
         Map<String, String> sessionProperties = new HashMap<>();
         if (!materializedView.incremental) {
-            if (!database.updateMaterializedView(project, materializedView, f)) {
+            if (!update || !database.updateMaterializedView(project, materializedView, f)) {
                 return new MaterializedViewExecution(null, tableName);
             }
 
@@ -178,7 +190,7 @@ public class PrestoMaterializedViewService
             Instant now = Instant.now();
 
             QueryExecution queryExecution;
-            if (database.updateMaterializedView(project, materializedView, f)) {
+            if (update && database.updateMaterializedView(project, materializedView, f)) {
                 String query = formatSql(statement,
                         name -> {
                             String predicate = lastUpdated != null ? String.format("between from_unixtime(%d) and from_unixtime(%d)",
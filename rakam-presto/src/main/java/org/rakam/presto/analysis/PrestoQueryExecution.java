@@ -1,7 +1,11 @@
 package org.rakam.presto.analysis;
 
+import com.facebook.presto.jdbc.internal.airlift.http.client.FullJsonResponseHandler;
+import com.facebook.presto.jdbc.internal.airlift.http.client.FullJsonResponseHandler.JsonResponse;
+import com.facebook.presto.jdbc.internal.airlift.http.client.HttpClient.HttpResponseFuture;
 import com.facebook.presto.jdbc.internal.airlift.http.client.HttpClientConfig;
 import com.facebook.presto.jdbc.internal.airlift.http.client.HttpRequestFilter;
+import com.facebook.presto.jdbc.internal.airlift.http.client.HttpStatus;
 import com.facebook.presto.jdbc.internal.airlift.http.client.Request;
 import com.facebook.presto.jdbc.internal.airlift.http.client.jetty.JettyHttpClient;
 import com.facebook.presto.jdbc.internal.airlift.http.client.jetty.JettyIoPool;
@@ -10,8 +14,8 @@ import com.facebook.presto.jdbc.internal.airlift.units.Duration;
 import com.facebook.presto.jdbc.internal.client.ClientSession;
 import com.facebook.presto.jdbc.internal.client.ClientTypeSignatureParameter;
 import com.facebook.presto.jdbc.internal.client.ErrorLocation;
+import com.facebook.presto.jdbc.internal.client.PrestoHeaders;
 import com.facebook.presto.jdbc.internal.client.QueryResults;
-import com.facebook.presto.jdbc.internal.client.StatementClient;
 import com.facebook.presto.jdbc.internal.client.StatementStats;
 import com.facebook.presto.jdbc.internal.guava.collect.ImmutableSet;
 import com.facebook.presto.jdbc.internal.guava.collect.Lists;
@@ -20,16 +24,16 @@ import com.facebook.presto.jdbc.internal.guava.net.HttpHeaders;
 import com.facebook.presto.jdbc.internal.spi.type.StandardTypes;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.airlift.log.Logger;
-import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.report.QueryError;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
 import org.rakam.report.QueryStats;
+import org.rakam.report.QueryStatsPublisher;
 import org.rakam.util.LogUtil;
-import org.rakam.util.RakamException;
 
 import java.net.InetSocketAddress;
 import java.net.Proxy;
@@ -39,26 +43,39 @@ import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static com.facebook.presto.jdbc.internal.airlift.http.client.FullJsonResponseHandler.createFullJsonResponseHandler;
+import static com.facebook.presto.jdbc.internal.airlift.http.client.HttpUriBuilder.uriBuilderFrom;
 import static com.facebook.presto.jdbc.internal.airlift.http.client.Request.Builder.fromRequest;
+import static com.facebook.presto.jdbc.internal.airlift.http.client.Request.Builder.prepareDelete;
+import static com.facebook.presto.jdbc.internal.airlift.http.client.Request.Builder.prepareGet;
+import static com.facebook.presto.jdbc.internal.airlift.http.client.Request.Builder.preparePost;
+import static com.facebook.presto.jdbc.internal.airlift.http.client.StaticBodyGenerator.createStaticBodyGenerator;
+import static com.facebook.presto.jdbc.internal.airlift.http.client.StatusResponseHandler.createStatusResponseHandler;
 import static com.facebook.presto.jdbc.internal.airlift.json.JsonCodec.jsonCodec;
 import static com.facebook.presto.jdbc.internal.guava.base.Preconditions.checkNotNull;
 import static com.facebook.presto.jdbc.internal.spi.type.ParameterKind.TYPE;
-import static com.google.common.base.Throwables.propagate;
-import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.ZoneOffset.UTC;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.rakam.collection.FieldType.BINARY;
 import static org.rakam.collection.FieldType.BOOLEAN;
@@ -72,6 +89,11 @@ import static org.rakam.collection.FieldType.TIME;
 import static org.rakam.collection.FieldType.TIMESTAMP;
 import static org.rakam.report.QueryStats.State.FINISHED;
 
+/**
+ * Tracks a Presto query without holding a thread while the query is running. Each page of the result is fetched
+ * asynchronously and the request for the next page is sent from the continuation of the previous one so the
+ * number of concurrent queries is not bounded by the size of a thread pool.
+ */
 public class PrestoQueryExecution
         implements QueryExecution
 {
@@ -83,33 +105,45 @@ public class PrestoQueryExecution
             new JettyIoPool("presto-jdbc", new JettyIoPoolConfig()),
             ImmutableSet.of(new UserAgentRequestFilter("rakam")));
 
-    private static final ThreadPoolExecutor QUERY_EXECUTOR = new ThreadPoolExecutor(0, 60,
-            300L, TimeUnit.SECONDS,
-            new SynchronousQueue<>());
+    // the continuations only decode the pages and send the next request so they don't need many threads
+    private static final ScheduledExecutorService TRACKER_EXECUTOR = Executors.newScheduledThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()),
+            new ThreadFactoryBuilder().setNameFormat("presto-query-tracker-%d").setDaemon(true).build());
 
-    private final List<List<Object>> data = Lists.newArrayList();
     private static final com.facebook.presto.jdbc.internal.airlift.json.JsonCodec<QueryResults> QUERY_RESULTS_JSON_CODEC = jsonCodec(QueryResults.class);
+    private static final FullJsonResponseHandler<QueryResults> RESPONSE_HANDLER = createFullJsonResponseHandler(QUERY_RESULTS_JSON_CODEC);
+    private static final long RETRY_INTERVAL_MILLIS = 100;
+
+    private final List<List<Object>> data = Lists.newArrayList();
     private final String query;
+    private final ClientSession session;
     private List<SchemaField> columns;
+    private List<Function<Object, Object>> converters;
 
     private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
+    private final QueryStatsPublisher statsPublisher = new QueryStatsPublisher(new QueryStats(QueryStats.State.QUEUED));
     public static final DateTimeFormatter PRESTO_TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
     public static final DateTimeFormatter PRESTO_TIMESTAMP_WITH_TIMEZONE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS z");
 
-    private StatementClient client;
+    private volatile QueryResults current;
     private final Instant startTime;
 
     public PrestoQueryExecution(ClientSession session, String query)
     {
         this.startTime = Instant.now();
         this.query = query;
+        this.session = session;
+        result.thenAccept(statsPublisher::finish);
+
+        Request request;
         try {
-            QUERY_EXECUTOR.execute(new QueryTracker(session));
+            request = buildQueryRequest(session, query);
         }
-        catch (RejectedExecutionException e) {
-            // TODO: make this configurable and optional
-            throw new RakamException("There are already 60 running queries. Please calm down.", HttpResponseStatus.TOO_MANY_REQUESTS);
+        catch (RuntimeException e) {
+            serverNotActive(e);
+            return;
         }
+        fetch(request, true, System.nanoTime());
     }
 
     public static FieldType fromPrestoType(String rawType, Iterator<String> parameter)
@@ -152,16 +186,16 @@ public class PrestoQueryExecution
     @Override
     public QueryStats currentStats()
     {
-        if (client == null) {
-            return new QueryStats(QueryStats.State.WAITING_FOR_AVAILABLE_THREAD);
+        QueryResults current = this.current;
+        if (current == null) {
+            return result.isDone() ? new QueryStats(QueryStats.State.FAILED) : new QueryStats(QueryStats.State.QUEUED);
         }
 
-        if (client.isFailed()) {
+        if (current.getError() != null) {
             return new QueryStats(QueryStats.State.FAILED);
         }
 
-        StatementStats stats = (!client.isValid() ? client.finalResults() : client.current())
-                .getStats();
+        StatementStats stats = current.getStats();
 
         int totalSplits = stats.getTotalSplits();
         QueryStats.State state = QueryStats.State.valueOf(stats.getState().toUpperCase(Locale.ENGLISH));
@@ -177,6 +211,12 @@ public class PrestoQueryExecution
                 stats.getWallTimeMillis());
     }
 
+    @Override
+    public void addStatsListener(Consumer<QueryStats> listener)
+    {
+        statsPublisher.addListener(listener);
+    }
+
     @Override
     public boolean isFinished()
     {
@@ -197,179 +237,283 @@ public class PrestoQueryExecution
     @Override
     public void kill()
     {
-        client.close();
-    }
+        if (!result.complete(QueryResult.errorResult(QueryError.create("Query aborted by user"), query))) {
+            return;
+        }
 
-    private static HostAndPort getSystemSocksProxy()
-    {
-        URI uri = URI.create("socket://0.0.0.0:80");
-        for (Proxy proxy : ProxySelector.getDefault().select(uri)) {
-            if (proxy.type() == Proxy.Type.SOCKS &&
-                    proxy.address() instanceof InetSocketAddress) {
-                InetSocketAddress address = (InetSocketAddress) proxy.address();
-                return HostAndPort.fromParts(address.getHostString(), address.getPort());
-            }
+        QueryResults current = this.current;
+        if (current != null && current.getNextUri() != null) {
+            // cancel the query on the server, the pending response is ignored when it arrives
+            Request request = prepareDelete().setUri(current.getNextUri()).build();
+            HTTP_CLIENT.executeAsync(request, createStatusResponseHandler());
         }
-        return null;
     }
 
-    static class UserAgentRequestFilter
-            implements HttpRequestFilter
+    private static Request buildQueryRequest(ClientSession session, String query)
     {
-        private final String userAgent;
+        Request.Builder builder = preparePost()
+                .setUri(uriBuilderFrom(session.getServer()).replacePath("/v1/statement").build())
+                .setBodyGenerator(createStaticBodyGenerator(query, UTF_8));
 
-        public UserAgentRequestFilter(String userAgent)
-        {
-            this.userAgent = checkNotNull(userAgent, "userAgent is null");
+        if (session.getSource() != null) {
+            builder.setHeader(PrestoHeaders.PRESTO_SOURCE, session.getSource());
+        }
+        if (session.getCatalog() != null) {
+            builder.setHeader(PrestoHeaders.PRESTO_CATALOG, session.getCatalog());
         }
+        if (session.getSchema() != null) {
+            builder.setHeader(PrestoHeaders.PRESTO_SCHEMA, session.getSchema());
+        }
+        builder.setHeader(PrestoHeaders.PRESTO_TIME_ZONE, session.getTimeZoneId());
+        builder.setHeader(PrestoHeaders.PRESTO_LANGUAGE, session.getLocale().toLanguageTag());
 
-        @Override
-        public Request filterRequest(Request request)
-        {
-            return fromRequest(request)
-                    .addHeader(HttpHeaders.USER_AGENT, userAgent)
-                    .build();
+        for (Map.Entry<String, String> property : session.getProperties().entrySet()) {
+            builder.addHeader(PrestoHeaders.PRESTO_SESSION, property.getKey() + "=" + property.getValue());
         }
-    }
 
-    private static final String SERVER_NOT_ACTIVE = "Database server is not active.";
+        builder.setHeader(PrestoHeaders.PRESTO_TRANSACTION_ID, session.getTransactionId() == null ? "NONE" : session.getTransactionId());
+        return builder.build();
+    }
 
-    private class QueryTracker
-            implements Runnable
+    private void fetch(Request request, boolean initial, long startNanos)
     {
-        private final ClientSession session;
-
-        public QueryTracker(ClientSession session)
-        {
-            this.session = session;
+        HttpResponseFuture<JsonResponse<QueryResults>> future;
+        try {
+            future = HTTP_CLIENT.executeAsync(request, RESPONSE_HANDLER);
         }
-
-        private void waitForQuery()
-        {
-            while (client.isValid()) {
-                if (Thread.currentThread().isInterrupted()) {
-                    client.close();
-                    throw propagate(new RakamException("Query executor thread was interrupted", INTERNAL_SERVER_ERROR));
-                }
-                transformAndAdd(client.current());
-
-                client.advance();
+        catch (RuntimeException e) {
+            if (initial) {
+                serverNotActive(e);
             }
+            else {
+                fail(e);
+            }
+            return;
         }
 
-        @Override
-        public void run()
-        {
+        future.addListener(() -> {
             try {
-                client = new StatementClient(HTTP_CLIENT, QUERY_RESULTS_JSON_CODEC, session, query);
-            }
-            catch (RuntimeException e) {
-                String message = SERVER_NOT_ACTIVE + " " + e.getMessage();
-                LOGGER.warn(e, message);
-                result.complete(QueryResult.errorResult(QueryError.create(message), query));
-                return;
+                processResponse(request, getUninterruptibly(future), initial, startNanos);
             }
-
-            try {
-                waitForQuery();
-
-                if (client.isClosed()) {
-                    QueryError queryError = QueryError.create("Query aborted by user");
-                    result.complete(QueryResult.errorResult(queryError, query));
-                }
-                else if (client.isGone()) {
-                    QueryError queryError = QueryError.create("Query is gone (server restarted?)");
-                    result.complete(QueryResult.errorResult(queryError, query));
-                }
-                else if (client.isFailed()) {
-                    com.facebook.presto.jdbc.internal.client.QueryError error = client.finalResults().getError();
-                    ErrorLocation errorLocation = error.getErrorLocation();
-                    QueryError queryError = new QueryError(
-                            Optional.ofNullable(error.getFailureInfo().getMessage())
-                                    .orElse(error.getFailureInfo().toException().toString()),
-                            error.getSqlState(),
-                            error.getErrorCode(),
-                            errorLocation != null ? errorLocation.getLineNumber() : null,
-                            errorLocation != null ? errorLocation.getColumnNumber() : null);
-                    LogUtil.logQueryError(query, queryError, PrestoQueryExecutor.class);
-                    result.complete(QueryResult.errorResult(queryError, query));
+            catch (ExecutionException e) {
+                if (initial) {
+                    serverNotActive(e.getCause());
                 }
                 else {
-                    transformAndAdd(client.finalResults());
-
-                    ImmutableMap<String, Object> stats = ImmutableMap.of(
-                            QueryResult.EXECUTION_TIME, startTime.until(Instant.now(), ChronoUnit.MILLIS),
-                            QueryResult.QUERY, query);
-
-                    result.complete(new QueryResult(columns, data, stats));
+                    fail(e.getCause());
                 }
             }
             catch (Exception e) {
-                QueryError queryError = QueryError.create(e.getMessage());
-                LogUtil.logQueryError(query, queryError, PrestoQueryExecutor.class);
-                result.complete(QueryResult.errorResult(queryError, query));
+                fail(e);
             }
+        }, TRACKER_EXECUTOR);
+    }
+
+    private void processResponse(Request request, JsonResponse<QueryResults> response, boolean initial, long startNanos)
+    {
+        if (result.isDone()) {
+            // the query is killed
+            return;
         }
 
-        private void transformAndAdd(QueryResults result)
-        {
-            if (result.getError() != null || result.getColumns() == null) {
+        if (response.getStatusCode() == HttpStatus.SERVICE_UNAVAILABLE.code() && !initial) {
+            long timeout = session.getClientRequestTimeout().toMillis();
+            if (MILLISECONDS.convert(System.nanoTime() - startNanos, NANOSECONDS) < timeout) {
+                TRACKER_EXECUTOR.schedule(() -> fetch(request, false, startNanos), RETRY_INTERVAL_MILLIS, MILLISECONDS);
                 return;
             }
+        }
 
-            if (columns == null) {
-                columns = result.getColumns().stream()
-                        .map(c -> {
-                            List<ClientTypeSignatureParameter> arguments = c.getTypeSignature().getArguments();
-                            return new SchemaField(c.getName(), fromPrestoType(c.getTypeSignature().getRawType(),
-                                    arguments.stream()
-                                            .filter(argument -> argument.getKind() == TYPE)
-                                            .map(argument -> argument.getTypeSignature().getRawType()).iterator()));
-                        })
-                        .collect(Collectors.toList());
+        if (response.getStatusCode() == HttpStatus.GONE.code() && !initial) {
+            result.complete(QueryResult.errorResult(QueryError.create("Query is gone (server restarted?)"), query));
+            return;
+        }
+
+        if (response.getStatusCode() != HttpStatus.OK.code() || !response.hasValue()) {
+            String message = format("Error %s query: %s %s", initial ? "starting" : "fetching next result of",
+                    response.getStatusCode(), response.getStatusMessage());
+            if (initial) {
+                serverNotActive(new RuntimeException(message, response.getException()));
+            }
+            else {
+                fail(new RuntimeException(message, response.getException()));
             }
+            return;
+        }
 
-            if (result.getData() == null) {
-                return;
+        QueryResults results = response.getValue();
+        current = results;
+        statsPublisher.update(currentStats());
+
+        if (results.getError() != null) {
+            com.facebook.presto.jdbc.internal.client.QueryError error = results.getError();
+            ErrorLocation errorLocation = error.getErrorLocation();
+            QueryError queryError = new QueryError(
+                    Optional.ofNullable(error.getFailureInfo().getMessage())
+                            .orElse(error.getFailureInfo().toException().toString()),
+                    error.getSqlState(),
+                    error.getErrorCode(),
+                    errorLocation != null ? errorLocation.getLineNumber() : null,
+                    errorLocation != null ? errorLocation.getColumnNumber() : null);
+            LogUtil.logQueryError(query, queryError, PrestoQueryExecutor.class);
+            result.complete(QueryResult.errorResult(queryError, query));
+            return;
+        }
+
+        transformAndAdd(results);
+
+        if (results.getNextUri() == null) {
+            ImmutableMap<String, Object> stats = ImmutableMap.of(
+                    QueryResult.EXECUTION_TIME, startTime.until(Instant.now(), ChronoUnit.MILLIS),
+                    QueryResult.QUERY, query);
+
+            result.complete(new QueryResult(columns, data, stats));
+        }
+        else {
+            fetch(prepareGet().setUri(results.getNextUri()).build(), false, System.nanoTime());
+        }
+    }
+
+    private void serverNotActive(Throwable e)
+    {
+        String message = SERVER_NOT_ACTIVE + " " + e.getMessage();
+        LOGGER.warn(e, message);
+        result.complete(QueryResult.errorResult(QueryError.create(message), query));
+    }
+
+    private void fail(Throwable e)
+    {
+        QueryError queryError = QueryError.create(e.getMessage());
+        LogUtil.logQueryError(query, queryError, PrestoQueryExecutor.class);
+        result.complete(QueryResult.errorResult(queryError, query));
+    }
+
+    private void transformAndAdd(QueryResults result)
+    {
+        if (result.getColumns() == null) {
+            return;
+        }
+
+        if (columns == null) {
+            columns = result.getColumns().stream()
+                    .map(c -> {
+                        List<ClientTypeSignatureParameter> arguments = c.getTypeSignature().getArguments();
+                        return new SchemaField(c.getName(), fromPrestoType(c.getTypeSignature().getRawType(),
+                                arguments.stream()
+                                        .filter(argument -> argument.getKind() == TYPE)
+                                        .map(argument -> argument.getTypeSignature().getRawType()).iterator()));
+                    })
+                    .collect(Collectors.toList());
+            converters = result.getColumns().stream()
+                    .map(c -> createConverter(c.getTypeSignature().getRawType()))
+                    .collect(Collectors.toList());
+        }
+
+        if (result.getData() == null) {
+            return;
+        }
+
+        int columnCount = columns.size();
+        for (List<Object> objects : result.getData()) {
+            Object[] row = new Object[columnCount];
+
+            for (int i = 0; i < objects.size(); i++) {
+                Object value = objects.get(i);
+                row[i] = value == null ? null : converters.get(i).apply(value);
             }
 
-            for (List<Object> objects : result.getData()) {
-                Object[] row = new Object[columns.size()];
-
-                for (int i = 0; i < objects.size(); i++) {
-                    String type = result.getColumns().get(i).getTypeSignature().getRawType();
-                    Object value = objects.get(i);
-                    if (value != null) {
-                        if (type.equals(StandardTypes.TIMESTAMP)) {
-                            try {
-                                row[i] = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_FORMAT).toInstant(UTC);
-                            }
-                            catch (Exception e) {
-                                LOGGER.error(e, "Error while parsing Presto TIMESTAMP.");
-                            }
-                        }
-                        else if (type.equals(StandardTypes.TIMESTAMP_WITH_TIME_ZONE)) {
-                            try {
-                                row[i] = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_WITH_TIMEZONE_FORMAT).toInstant(UTC);
-                            }
-                            catch (Exception e) {
-                                LOGGER.error(e, "Error while parsing Presto TIMESTAMP WITH TIMEZONE.");
-                            }
-                        }
-                        else if (type.equals(StandardTypes.DATE)) {
-                            row[i] = LocalDate.parse((CharSequence) value);
-                        }
-                        else {
-                            row[i] = objects.get(i);
-                        }
+            data.add(Arrays.asList(row));
+        }
+    }
+
+    /**
+     * Returns the function that converts the JSON values of the column to the Java types of {@link FieldType}.
+     * The converters are created once for each column instead of checking the column type for each value.
+     */
+    static Function<Object, Object> createConverter(String rawType)
+    {
+        switch (rawType) {
+            case StandardTypes.TIMESTAMP:
+            case StandardTypes.TIMESTAMP_WITH_TIME_ZONE:
+                DateTimeFormatter formatter = rawType.equals(StandardTypes.TIMESTAMP) ?
+                        PRESTO_TIMESTAMP_FORMAT : PRESTO_TIMESTAMP_WITH_TIMEZONE_FORMAT;
+                return value -> {
+                    try {
+                        return parseTimestamp((String) value, formatter);
                     }
-                    else {
-                        row[i] = objects.get(i);
+                    catch (Exception e) {
+                        LOGGER.error(e, "Error while parsing Presto %s.", rawType);
+                        return null;
                     }
-                }
+                };
+            case StandardTypes.DATE:
+                return value -> LocalDate.parse((CharSequence) value);
+            default:
+                return Function.identity();
+        }
+    }
+
+    /**
+     * Parses the timestamps in yyyy-MM-dd HH:mm:ss.SSS format without using the formatter, the time zone
+     * part of the value is ignored. The values in other formats are parsed with the given formatter.
+     */
+    static Instant parseTimestamp(String value, DateTimeFormatter formatter)
+    {
+        if (value.length() < 23 || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != ' '
+                || value.charAt(13) != ':' || value.charAt(16) != ':' || value.charAt(19) != '.'
+                || (value.length() > 23 && value.charAt(23) != ' ')) {
+            return LocalDateTime.parse(value, formatter).toInstant(UTC);
+        }
+
+        long epochDay = LocalDate.of(digits(value, 0, 4), digits(value, 5, 7), digits(value, 8, 10)).toEpochDay();
+        long seconds = epochDay * 86400 + digits(value, 11, 13) * 3600 + digits(value, 14, 16) * 60 + digits(value, 17, 19);
+        return Instant.ofEpochSecond(seconds, digits(value, 20, 23) * 1_000_000L);
+    }
 
-                data.add(Arrays.asList(row));
+    private static int digits(String value, int start, int end)
+    {
+        int number = 0;
+        for (int i = start; i < end; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new DateTimeParseException("Invalid timestamp", value, i);
+            }
+            number = number * 10 + digit;
+        }
+        return number;
+    }
+
+    private static HostAndPort getSystemSocksProxy()
+    {
+        URI uri = URI.create("socket://0.0.0.0:80");
+        for (Proxy proxy : ProxySelector.getDefault().select(uri)) {
+            if (proxy.type() == Proxy.Type.SOCKS &&
+                    proxy.address() instanceof InetSocketAddress) {
+                InetSocketAddress address = (InetSocketAddress) proxy.address();
+                return HostAndPort.fromParts(address.getHostString(), address.getPort());
             }
         }
+        return null;
     }
+
+    static class UserAgentRequestFilter
+            implements HttpRequestFilter
+    {
+        private final String userAgent;
+
+        public UserAgentRequestFilter(String userAgent)
+        {
+            this.userAgent = checkNotNull(userAgent, "userAgent is null");
+        }
+
+        @Override
+        public Request filterRequest(Request request)
+        {
+            return fromRequest(request)
+                    .addHeader(HttpHeaders.USER_AGENT, userAgent)
+                    .build();
+        }
+    }
+
+    private static final String SERVER_NOT_ACTIVE = "Database server is not active.";
 }
@@ -27,6 +27,7 @@ import org.rakam.analysis.datasource.JDBCSchemaConfig;
 import org.rakam.analysis.datasource.SupportedCustomDatabase;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
+import org.rakam.report.QueryResult;
 import org.rakam.report.QuerySampling;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
@@ -58,6 +59,7 @@ import static org.rakam.presto.analysis.PrestoMaterializedViewService.MATERIALIZ
 import static org.rakam.presto.analysis.PrestoRakamRaptorMetastore.toType;
 import static org.rakam.util.JsonHelper.encodeAsBytes;
 import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkLiteral;
 import static org.rakam.util.ValidationUtil.checkProject;
 import static org.rakam.util.ValidationUtil.checkTableColumn;
 
@@ -336,11 +338,27 @@ public class PrestoQueryExecutor
         }
     }
 
+    @Override
+    public Optional<Long> estimateRowCount(String project, String collection)
+    {
+        // only Raptor keeps the row counts of the tables, the rows of the hot storage are not included
+        if (!prestoConfig.getColdStorageConnector().equals("rakam_raptor")) {
+            return Optional.empty();
+        }
+
+        QueryResult result = executeRawQuery(format("SELECT sum(row_count) FROM %s.system.shards WHERE table_schema = '%s' AND table_name = '%s'",
+                prestoConfig.getColdStorageConnector(), checkLiteral(project), checkLiteral(collection))).getResult().join();
+        if (result.isFailed() || result.getResult().isEmpty() || result.getResult().get(0).get(0) == null) {
+            return Optional.empty();
+        }
+        return Optional.of(((Number) result.getResult().get(0).get(0)).longValue());
+    }
+
     private String getTableReference(String project, String tableName, Optional<QuerySampling> sample)
     {
         String hotStorageConnector = prestoConfig.getHotStorageConnector();
         String table = checkCollection(project) + "." + checkCollection(tableName) +
-                sample.map(e -> " TABLESAMPLE " + e.method.name() + "(" + e.percentage + ")").orElse("");
+                sample.map(QuerySampling::getTableSampleClause).orElse("");
 
         if (hotStorageConnector != null) {
             return "((select * from " + prestoConfig.getColdStorageConnector() + "." + table + " union all " +
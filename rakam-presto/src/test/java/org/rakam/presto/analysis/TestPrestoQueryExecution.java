@@ -0,0 +1,46 @@
+package org.rakam.presto.analysis;
+
+import com.facebook.presto.jdbc.internal.spi.type.StandardTypes;
+import org.testng.annotations.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.function.Function;
+
+import static java.time.ZoneOffset.UTC;
+import static org.rakam.presto.analysis.PrestoQueryExecution.PRESTO_TIMESTAMP_FORMAT;
+import static org.rakam.presto.analysis.PrestoQueryExecution.PRESTO_TIMESTAMP_WITH_TIMEZONE_FORMAT;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+public class TestPrestoQueryExecution
+{
+    @Test
+    public void testParseTimestamp()
+            throws Exception
+    {
+        for (String value : new String[] {"2016-02-29 23:59:59.999", "1969-12-31 00:00:00.001", "2017-01-05 10:20:30.000"}) {
+            assertEquals(PrestoQueryExecution.parseTimestamp(value, PRESTO_TIMESTAMP_FORMAT),
+                    LocalDateTime.parse(value, PRESTO_TIMESTAMP_FORMAT).toInstant(UTC));
+        }
+
+        assertEquals(PrestoQueryExecution.parseTimestamp("2017-01-05 10:20:30.123 UTC", PRESTO_TIMESTAMP_WITH_TIMEZONE_FORMAT),
+                Instant.parse("2017-01-05T10:20:30.123Z"));
+    }
+
+    @Test
+    public void testConverters()
+            throws Exception
+    {
+        assertEquals(PrestoQueryExecution.createConverter(StandardTypes.TIMESTAMP).apply("2017-01-05 10:20:30.123"),
+                Instant.parse("2017-01-05T10:20:30.123Z"));
+        assertEquals(PrestoQueryExecution.createConverter(StandardTypes.DATE).apply("2017-01-05"), LocalDate.of(2017, 1, 5));
+        assertNull(PrestoQueryExecution.createConverter(StandardTypes.TIMESTAMP).apply("invalid"));
+
+        Function<Object, Object> identity = PrestoQueryExecution.createConverter(StandardTypes.BIGINT);
+        Object value = 10L;
+        assertSame(identity.apply(value), value);
+    }
+}
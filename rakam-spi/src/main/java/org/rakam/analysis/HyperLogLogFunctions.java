@@ -0,0 +1,50 @@
+package org.rakam.analysis;
+
+import static java.lang.String.format;
+
+/**
+ * The SQL functions of the HyperLogLog sketches of the backend. The sketches can be stored as a column of the
+ * materialized views and the sketches of the different rows can be merged, so that the approximate distinct count
+ * of any time range can be computed from the sketches of its buckets without scanning the events again.
+ */
+public class HyperLogLogFunctions
+{
+    private final String sketch;
+    private final String merge;
+    private final String cardinality;
+
+    /**
+     * @param sketch the aggregation that creates the sketch of the values
+     * @param merge the aggregation that merges the sketches
+     * @param cardinality the function that returns the estimated distinct count of a sketch
+     */
+    public HyperLogLogFunctions(String sketch, String merge, String cardinality)
+    {
+        this.sketch = sketch;
+        this.merge = merge;
+        this.cardinality = cardinality;
+    }
+
+    public String sketch(String expression)
+    {
+        return format(sketch, expression);
+    }
+
+    public String merge(String expression)
+    {
+        return format(merge, expression);
+    }
+
+    public String cardinality(String expression)
+    {
+        return format(cardinality, expression);
+    }
+
+    /**
+     * Returns the aggregation that merges the sketches and computes the distinct count of the merged sketch.
+     */
+    public String mergedCardinality(String expression)
+    {
+        return cardinality(merge(expression));
+    }
+}
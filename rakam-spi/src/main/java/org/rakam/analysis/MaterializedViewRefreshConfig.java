@@ -0,0 +1,69 @@
+package org.rakam.analysis;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import javax.validation.constraints.Min;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+public class MaterializedViewRefreshConfig
+{
+    private boolean enabled = true;
+    private int maxConcurrentRefreshes = 4;
+    private Duration checkInterval = new Duration(10, SECONDS);
+    private Duration maxBackoff = new Duration(10, MINUTES);
+
+    public boolean getEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("materialized-view.background-refresh.enabled")
+    @ConfigDescription("Refresh the materialized views in the background instead of refreshing them when they're queried")
+    public MaterializedViewRefreshConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxConcurrentRefreshes()
+    {
+        return maxConcurrentRefreshes;
+    }
+
+    @Config("materialized-view.background-refresh.max-concurrency")
+    public MaterializedViewRefreshConfig setMaxConcurrentRefreshes(int maxConcurrentRefreshes)
+    {
+        this.maxConcurrentRefreshes = maxConcurrentRefreshes;
+        return this;
+    }
+
+    public Duration getCheckInterval()
+    {
+        return checkInterval;
+    }
+
+    @Config("materialized-view.background-refresh.check-interval")
+    public MaterializedViewRefreshConfig setCheckInterval(Duration checkInterval)
+    {
+        this.checkInterval = checkInterval;
+        return this;
+    }
+
+    public Duration getMaxBackoff()
+    {
+        return maxBackoff;
+    }
+
+    @Config("materialized-view.background-refresh.max-backoff")
+    @ConfigDescription("The maximum delay between the refresh attempts of a materialized view that fails to refresh")
+    public MaterializedViewRefreshConfig setMaxBackoff(Duration maxBackoff)
+    {
+        this.maxBackoff = maxBackoff;
+        return this;
+    }
+}
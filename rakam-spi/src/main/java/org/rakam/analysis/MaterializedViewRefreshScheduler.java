@@ -0,0 +1,209 @@
+package org.rakam.analysis;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.rakam.analysis.MaterializedViewService.MaterializedViewExecution;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.report.QueryResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Refreshes the materialized views in the background so that the queries read the latest snapshot of the views
+ * instead of waiting for their refresh. A view is refreshed before its update interval elapses by the duration of
+ * its previous refresh, the views that fail to refresh are retried with an exponential backoff.
+ */
+public class MaterializedViewRefreshScheduler
+{
+    private final static Logger LOGGER = Logger.get(MaterializedViewRefreshScheduler.class);
+
+    private final Metastore metastore;
+    private final MaterializedViewService materializedViewService;
+    private final Clock clock;
+    private final boolean enabled;
+    private final int maxConcurrentRefreshes;
+    private final Duration checkInterval;
+    private final Duration maxBackoff;
+    private final Map<String, RefreshState> states = new ConcurrentHashMap<>();
+    private final AtomicInteger runningRefreshes = new AtomicInteger();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService executor;
+
+    @Inject
+    public MaterializedViewRefreshScheduler(Metastore metastore, MaterializedViewService materializedViewService, MaterializedViewRefreshConfig config, Clock clock)
+    {
+        this.metastore = metastore;
+        this.materializedViewService = materializedViewService;
+        this.clock = clock;
+        this.enabled = config.getEnabled();
+        this.maxConcurrentRefreshes = config.getMaxConcurrentRefreshes();
+        this.checkInterval = Duration.ofMillis(config.getCheckInterval().toMillis());
+        this.maxBackoff = Duration.ofMillis(config.getMaxBackoff().toMillis());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("materialized-view-refresh-scheduler")
+                .setUncaughtExceptionHandler((t, e) -> LOGGER.error(e))
+                .build());
+        this.executor = Executors.newFixedThreadPool(maxConcurrentRefreshes, new ThreadFactoryBuilder()
+                .setNameFormat("materialized-view-refresh-%d")
+                .setUncaughtExceptionHandler((t, e) -> LOGGER.error(e))
+                .build());
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        if (!enabled) {
+            return;
+        }
+
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                refreshDueViews();
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Error while scheduling the materialized view refreshes");
+            }
+        }, checkInterval.toMillis(), checkInterval.toMillis(), MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @VisibleForTesting
+    void refreshDueViews()
+    {
+        Instant now = clock.instant();
+        Set<String> views = new HashSet<>();
+
+        for (String project : metastore.getProjects()) {
+            List<MaterializedView> materializedViews;
+            try {
+                materializedViews = materializedViewService.list(project);
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Unable to fetch the materialized views of project %s", project);
+                continue;
+            }
+
+            for (MaterializedView materializedView : materializedViews) {
+                // the views without an update interval are only built when they're queried for the first time
+                if (materializedView.updateInterval == null) {
+                    continue;
+                }
+
+                String key = project + "." + materializedView.tableName;
+                views.add(key);
+                RefreshState state = states.computeIfAbsent(key, k -> new RefreshState());
+                if (state.running || now.isBefore(state.nextAttempt) || !isDue(materializedView, state, now)) {
+                    continue;
+                }
+
+                if (runningRefreshes.get() >= maxConcurrentRefreshes) {
+                    return;
+                }
+
+                state.running = true;
+                runningRefreshes.incrementAndGet();
+                executor.execute(() -> refresh(project, materializedView, state));
+            }
+        }
+
+        states.keySet().retainAll(views);
+    }
+
+    @VisibleForTesting
+    int getRunningRefreshes()
+    {
+        return runningRefreshes.get();
+    }
+
+    private static boolean isDue(MaterializedView materializedView, RefreshState state, Instant now)
+    {
+        if (materializedView.lastUpdate == null) {
+            return true;
+        }
+        return !materializedView.lastUpdate.plus(materializedView.updateInterval).minus(getLeadTime(materializedView, state)).isAfter(now);
+    }
+
+    private static Duration getLeadTime(MaterializedView materializedView, RefreshState state)
+    {
+        Duration halfInterval = materializedView.updateInterval.dividedBy(2);
+        return state.lastDuration.compareTo(halfInterval) > 0 ? halfInterval : state.lastDuration;
+    }
+
+    private void refresh(String project, MaterializedView materializedView, RefreshState state)
+    {
+        Instant start = clock.instant();
+        boolean success = false;
+        try {
+            // the lock of the view is acquired only if its update interval is elapsed so the view is
+            // refreshed with the interval that is shortened by the lead time
+            MaterializedView aheadOfExpiry = new MaterializedView(materializedView.tableName, materializedView.name,
+                    materializedView.query, materializedView.updateInterval.minus(getLeadTime(materializedView, state)),
+                    materializedView.incremental, materializedView.realTime, materializedView.options);
+            aheadOfExpiry.lastUpdate = materializedView.lastUpdate;
+
+            MaterializedViewExecution execution = materializedViewService.lockAndUpdateView(project, aheadOfExpiry);
+            if (execution == null || execution.queryExecution == null) {
+                // the view doesn't need to be refreshed or it's being refreshed by another node
+                success = true;
+            }
+            else {
+                QueryResult result = execution.queryExecution.getResult().join();
+                success = !result.isFailed();
+                if (!success) {
+                    LOGGER.warn("Unable to refresh materialized view %s.%s: %s", project, materializedView.tableName, result.getError().message);
+                }
+            }
+        }
+        catch (Exception e) {
+            LOGGER.error(e, "Unable to refresh materialized view %s.%s", project, materializedView.tableName);
+        }
+        finally {
+            Instant end = clock.instant();
+            if (success) {
+                state.failures = 0;
+                state.lastDuration = Duration.between(start, end);
+                state.nextAttempt = Instant.MIN;
+            }
+            else {
+                state.failures++;
+                Duration backoff = checkInterval.multipliedBy(1L << Math.min(state.failures, 16));
+                state.nextAttempt = end.plus(backoff.compareTo(maxBackoff) > 0 ? maxBackoff : backoff);
+            }
+            state.running = false;
+            runningRefreshes.decrementAndGet();
+        }
+    }
+
+    private static class RefreshState
+    {
+        private volatile boolean running;
+        private volatile int failures;
+        private volatile Duration lastDuration = Duration.ZERO;
+        private volatile Instant nextAttempt = Instant.MIN;
+    }
+}
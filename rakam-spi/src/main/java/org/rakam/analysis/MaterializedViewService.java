@@ -79,6 +79,14 @@ public abstract class MaterializedViewService {
 
     public abstract MaterializedViewExecution lockAndUpdateView(String project, MaterializedView materializedView);
 
+    /**
+     * Returns the latest snapshot of the view without refreshing it. The views that are refreshed by
+     * {@link MaterializedViewRefreshScheduler} are read with this method so that the queries don't wait for the refresh.
+     */
+    public MaterializedViewExecution getSnapshot(String project, MaterializedView materializedView) {
+        return lockAndUpdateView(project, materializedView);
+    }
+
     public List<MaterializedView> list(String project) {
         return database.getMaterializedViews(project);
     }
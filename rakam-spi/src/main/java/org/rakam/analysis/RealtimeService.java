@@ -3,6 +3,7 @@ package org.rakam.analysis;
 import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.Expression;
 import com.facebook.presto.sql.tree.QualifiedName;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
@@ -96,12 +97,22 @@ public abstract class RealtimeService
                         IntStream.range(0, report.dimensions.size()).mapToObj(i -> ", " + (i + 2)).collect(Collectors.joining("")) : "")
                 .toString();
 
+        // the report definition is kept in the options so that it can be aggregated in memory as well
+        ImmutableMap.Builder<String, Object> options = ImmutableMap.<String, Object>builder()
+                .put("realtime", true)
+                .put("aggregation", report.measures)
+                .put("collections", report.collections);
+        if (report.dimensions != null) {
+            options.put("dimensions", report.dimensions);
+        }
+        if (report.filter != null) {
+            options.put("filter", report.filter);
+        }
+
         ContinuousQuery query = new ContinuousQuery(report.table_name, report.name,
                 sqlQuery,
                 ImmutableList.of(),
-                ImmutableMap.of(
-                        "realtime", true,
-                        "aggregation", report.measures));
+                options.build());
 
         return service.create(project, query, false).getResult()
                 .thenApply(SuccessMessage::map);
@@ -254,12 +265,22 @@ public abstract class RealtimeService
         public final long start;
         public final long end;
         public final Object result;
+        // the range of the result that has all the events, the buckets after it are still updated
+        @JsonProperty("coverage_start") public final long coverageStart;
+        @JsonProperty("coverage_end") public final long coverageEnd;
 
         public RealTimeQueryResult(long start, long end, Object result)
+        {
+            this(start, end, result, start, end);
+        }
+
+        public RealTimeQueryResult(long start, long end, Object result, long coverageStart, long coverageEnd)
         {
             this.start = start;
             this.end = end;
             this.result = result;
+            this.coverageStart = coverageStart;
+            this.coverageEnd = coverageEnd;
         }
     }
 
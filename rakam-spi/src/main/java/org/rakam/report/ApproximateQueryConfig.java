@@ -0,0 +1,60 @@
+package org.rakam.report;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+public class ApproximateQueryConfig
+{
+    private Duration targetLatency = new Duration(5, SECONDS);
+    private long scanRate = 5_000_000;
+    private double minPercentage = 0.01;
+
+    public Duration getTargetLatency()
+    {
+        return targetLatency;
+    }
+
+    @Config("query.approximate.target-latency")
+    @ConfigDescription("The default latency that the sample rate of the approximate queries is picked for")
+    public ApproximateQueryConfig setTargetLatency(Duration targetLatency)
+    {
+        this.targetLatency = targetLatency;
+        return this;
+    }
+
+    @Min(1)
+    public long getScanRate()
+    {
+        return scanRate;
+    }
+
+    @Config("query.approximate.scan-rate")
+    @ConfigDescription("The number of rows that the database can scan in a second")
+    public ApproximateQueryConfig setScanRate(long scanRate)
+    {
+        this.scanRate = scanRate;
+        return this;
+    }
+
+    @DecimalMin("0.0001")
+    @DecimalMax("100")
+    public double getMinPercentage()
+    {
+        return minPercentage;
+    }
+
+    @Config("query.approximate.min-percentage")
+    @ConfigDescription("The smallest sample rate, the queries of the large tables may exceed the target latency")
+    public ApproximateQueryConfig setMinPercentage(double minPercentage)
+    {
+        this.minPercentage = minPercentage;
+        return this;
+    }
+}
@@ -0,0 +1,367 @@
+package org.rakam.report;
+
+import com.facebook.presto.sql.tree.AliasedRelation;
+import com.facebook.presto.sql.tree.AllColumns;
+import com.facebook.presto.sql.tree.DefaultTraversalVisitor;
+import com.facebook.presto.sql.tree.FunctionCall;
+import com.facebook.presto.sql.tree.Query;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.QuerySpecification;
+import com.facebook.presto.sql.tree.Relation;
+import com.facebook.presto.sql.tree.SelectItem;
+import com.facebook.presto.sql.tree.SingleColumn;
+import com.facebook.presto.sql.tree.Statement;
+import com.facebook.presto.sql.tree.Table;
+import com.facebook.presto.sql.tree.WithQuery;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.util.ProjectCollection;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Executes the queries on a sample of the collections. The sample rate of the automatic sampling is picked from
+ * the row counts of the collections so that the sampled rows can be scanned within the target latency. The count
+ * and sum aggregations of the queries that read a single relation are scaled by the sampling factor and the result
+ * has the scaled columns and the 95% confidence intervals of the counts, the intervals assume that the rows are sampled independently so
+ * they are narrower than the actual error of SYSTEM sampling if the similar rows are stored together. The results of
+ * the explicit sample rates are not scaled unless the request asks for it.
+ */
+class ApproximateQueryPlanner
+{
+    private final static Logger LOGGER = Logger.get(ApproximateQueryPlanner.class);
+    public static final String SAMPLING = "sampling";
+    private static final double CONFIDENCE = 0.95;
+    private static final double Z_SCORE = 1.959964;
+
+    private final QueryExecutor executor;
+    private final Metastore metastore;
+    private final Duration targetLatency;
+    private final long scanRate;
+    private final double minPercentage;
+    // the statistics of the tables change slowly so the row counts are not fetched for each query
+    private final Cache<ProjectCollection, RowCount> rowCounts = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+    private final ExecutorService rowCountExecutor = Executors.newFixedThreadPool(4, new ThreadFactoryBuilder()
+            .setNameFormat("approximate-query-row-count-%d")
+            .setDaemon(true)
+            .build());
+
+    ApproximateQueryPlanner(QueryExecutor executor, Metastore metastore, ApproximateQueryConfig config)
+    {
+        this.executor = executor;
+        this.metastore = metastore;
+        this.targetLatency = Duration.ofMillis(config.getTargetLatency().toMillis());
+        this.scanRate = config.getScanRate();
+        this.minPercentage = config.getMinPercentage();
+    }
+
+    /**
+     * Picks the sample rate of the automatic sampling, the query is not sampled if it can be executed within the
+     * target latency or the row counts of the tables are not known. The query doesn't wait for the row counts, only
+     * the cached counts are used and the counts that are missing or stale are fetched in the background.
+     */
+    public Optional<QuerySampling> resolve(String project, Statement statement, String defaultSchema, QuerySampling sample)
+    {
+        if (!sample.isAutomatic()) {
+            return Optional.of(sample);
+        }
+
+        Optional<Set<String>> collections = getCollections(project, statement, defaultSchema);
+        if (!collections.isPresent()) {
+            return Optional.empty();
+        }
+
+        long rows = 0;
+        boolean known = true;
+        for (String collection : collections.get()) {
+            // all the counts are requested so that the next queries of the collections can be sampled
+            Optional<Long> rowCount = getRowCount(project, collection);
+            if (rowCount.isPresent()) {
+                rows += rowCount.get();
+            }
+            else {
+                known = false;
+            }
+        }
+        if (!known) {
+            return Optional.empty();
+        }
+
+        Duration latency = sample.targetLatency != null ? sample.targetLatency : targetLatency;
+        double scannedRows = scanRate * (latency.toMillis() / 1000.0);
+        if (rows <= scannedRows) {
+            return Optional.empty();
+        }
+
+        // the rate is rounded down so that the rewritten queries of the similar row counts can be cached
+        double percentage = new BigDecimal(scannedRows * 100 / rows).round(new MathContext(2, RoundingMode.DOWN)).doubleValue();
+        return Optional.of(new QuerySampling(sample.method, Math.max(minPercentage, percentage), null, sample.scale));
+    }
+
+    private Optional<Long> getRowCount(String project, String collection)
+    {
+        ProjectCollection key = new ProjectCollection(project, collection);
+        RowCount rowCount = rowCounts.asMap().computeIfAbsent(key, k -> new RowCount());
+
+        if (rowCount.needsRefresh() && rowCount.refreshing.compareAndSet(false, true)) {
+            rowCountExecutor.execute(() -> {
+                try {
+                    Optional<Long> value = executor.estimateRowCount(project, collection);
+                    rowCount.updatedAt = System.nanoTime();
+                    rowCount.value = value;
+                }
+                catch (Exception e) {
+                    // the failed estimates are fetched again by the next query
+                    LOGGER.warn(e, "Unable to estimate the row count of %s.%s", project, collection);
+                }
+                finally {
+                    rowCount.refreshing.set(false);
+                }
+            });
+        }
+
+        // the stale count is used until it's refreshed
+        Optional<Long> value = rowCount.value;
+        return value != null ? value : Optional.empty();
+    }
+
+    /**
+     * Returns the collections that the query reads or empty if it reads the other tables such as the materialized
+     * views whose row counts are not known.
+     */
+    private Optional<Set<String>> getCollections(String project, Statement statement, String defaultSchema)
+    {
+        Set<String> withQueries = new HashSet<>();
+        Set<String> collections = new HashSet<>();
+        boolean[] unknownTable = {false};
+
+        new DefaultTraversalVisitor<Void, Void>()
+        {
+            @Override
+            protected Void visitQuery(Query node, Void context)
+            {
+                node.getWith().ifPresent(with -> with.getQueries().stream().map(WithQuery::getName).forEach(withQueries::add));
+                return super.visitQuery(node, context);
+            }
+
+            @Override
+            protected Void visitTable(Table node, Void context)
+            {
+                QualifiedName name = node.getName();
+                String schema = name.getPrefix().map(Object::toString).orElse(null);
+                if (schema == null && withQueries.contains(name.getSuffix())) {
+                    return null;
+                }
+
+                if (schema == null && name.getSuffix().equals("_all")) {
+                    collections.addAll(metastore.getCollectionNames(project));
+                }
+                else if ("collection".equals(schema) || (schema == null && "collection".equals(defaultSchema)
+                        && !name.getSuffix().equals("users") && !name.getSuffix().equals("_users"))) {
+                    collections.add(name.getSuffix());
+                }
+                else {
+                    unknownTable[0] = true;
+                }
+                return null;
+            }
+        }.process(statement, null);
+
+        return unknownTable[0] ? Optional.empty() : Optional.of(collections);
+    }
+
+    /**
+     * Scales the aggregations of the sampled query and adds the sampling information to the result. A new result is
+     * returned, the rows of the given result are not modified.
+     */
+    public QueryResult estimate(QueryResult result, Statement statement, QuerySampling sample)
+    {
+        if (result.isFailed()) {
+            return result;
+        }
+
+        double fraction = sample.percentage / 100;
+        Map<String, Object> sampling = new HashMap<>();
+        sampling.put("method", sample.method.name());
+        sampling.put("percentage", sample.percentage);
+
+        Optional<List<AggregationType>> aggregations = sample.scale ? getScalableAggregations(statement) : Optional.empty();
+        List<List<Object>> rows = result.getResult();
+        if (!aggregations.isPresent() || aggregations.get().size() != result.getMetadata().size()) {
+            sampling.put("scaled", false);
+            sampling.put("scaledColumns", ImmutableList.of());
+        }
+        else {
+            List<List<Object>> scaledRows = new ArrayList<>(rows.size());
+            List<List<double[]>> intervals = new ArrayList<>(rows.size());
+            for (List<Object> row : rows) {
+                List<Object> scaledRow = new ArrayList<>(row);
+                double[][] rowIntervals = new double[row.size()][];
+                for (int i = 0; i < row.size(); i++) {
+                    AggregationType aggregation = aggregations.get().get(i);
+                    if (aggregation == null || !(row.get(i) instanceof Number)) {
+                        continue;
+                    }
+                    scaledRow.set(i, scale((Number) row.get(i), fraction));
+                    if (aggregation == AggregationType.COUNT) {
+                        rowIntervals[i] = getCountInterval(((Number) row.get(i)).longValue(), fraction);
+                    }
+                }
+                scaledRows.add(scaledRow);
+                intervals.add(Arrays.asList(rowIntervals));
+            }
+
+            // the other columns such as the averages and the group keys are not scaled
+            List<String> scaledColumns = new ArrayList<>();
+            for (int i = 0; i < aggregations.get().size(); i++) {
+                if (aggregations.get().get(i) != null) {
+                    scaledColumns.add(result.getMetadata().get(i).getName());
+                }
+            }
+
+            rows = scaledRows;
+            sampling.put("scaled", !scaledColumns.isEmpty());
+            sampling.put("scaledColumns", scaledColumns);
+            sampling.put("confidence", CONFIDENCE);
+            sampling.put("confidenceIntervals", intervals);
+        }
+
+        QueryResult estimatedResult = new QueryResult(result.getMetadata(), rows, new HashMap<>(result.getProperties()));
+        estimatedResult.setProperty(SAMPLING, ImmutableMap.copyOf(sampling));
+        return estimatedResult;
+    }
+
+    /**
+     * Returns true if the result of the sampled query has the aggregations that are scaled, the rows of these
+     * queries are materialized since the result is rewritten.
+     */
+    public static boolean isScaled(Statement statement)
+    {
+        return getScalableAggregations(statement).map(list -> list.stream().anyMatch(aggregation -> aggregation != null)).orElse(false);
+    }
+
+    private static Object scale(Number value, double fraction)
+    {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short) {
+            return Math.round(value.longValue() / fraction);
+        }
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).divide(BigDecimal.valueOf(fraction), MathContext.DECIMAL64);
+        }
+        return value.doubleValue() / fraction;
+    }
+
+    /**
+     * The sampled count has binomial distribution so the variance of the scaled count is count * (1 - p) / p^2.
+     * The interval of an empty sample is based on the rule of three.
+     */
+    private static double[] getCountInterval(long count, double fraction)
+    {
+        if (count == 0) {
+            return new double[] {0, 3 / fraction};
+        }
+        double estimate = count / fraction;
+        double margin = Z_SCORE * Math.sqrt(count * (1 - fraction)) / fraction;
+        return new double[] {Math.max(count, estimate - margin), estimate + margin};
+    }
+
+    /**
+     * Returns the aggregation of each column, the columns that are not scaled are null. The queries that read more
+     * than one sampled relation can't be scaled since the sampling factors of the relations are multiplied, and the
+     * HAVING clause filters the groups by the unscaled values.
+     */
+    private static Optional<List<AggregationType>> getScalableAggregations(Statement statement)
+    {
+        if (!(statement instanceof Query)) {
+            return Optional.empty();
+        }
+        Query query = (Query) statement;
+        if (query.getWith().isPresent() || !(query.getQueryBody() instanceof QuerySpecification)) {
+            return Optional.empty();
+        }
+
+        QuerySpecification specification = (QuerySpecification) query.getQueryBody();
+        if (specification.getSelect().isDistinct() || specification.getHaving().isPresent() || !specification.getFrom().isPresent()) {
+            return Optional.empty();
+        }
+
+        Relation relation = specification.getFrom().get();
+        if (relation instanceof AliasedRelation) {
+            relation = ((AliasedRelation) relation).getRelation();
+        }
+        if (!(relation instanceof Table)) {
+            return Optional.empty();
+        }
+
+        List<AggregationType> aggregations = new ArrayList<>();
+        for (SelectItem item : specification.getSelect().getSelectItems()) {
+            if (item instanceof AllColumns) {
+                return Optional.empty();
+            }
+
+            AggregationType aggregation = null;
+            if (((SingleColumn) item).getExpression() instanceof FunctionCall) {
+                FunctionCall call = (FunctionCall) ((SingleColumn) item).getExpression();
+                if (!call.isDistinct() && !call.getWindow().isPresent()) {
+                    switch (call.getName().getSuffix().toLowerCase(Locale.ENGLISH)) {
+                        case "count":
+                            aggregation = AggregationType.COUNT;
+                            break;
+                        case "sum":
+                            aggregation = AggregationType.SUM;
+                            break;
+                    }
+                }
+            }
+            aggregations.add(aggregation);
+        }
+
+        return Optional.of(aggregations);
+    }
+
+    private static class RowCount
+    {
+        private static final long REFRESH_INTERVAL = MINUTES.toNanos(10);
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        // null until the count is fetched
+        private volatile Optional<Long> value;
+        private volatile long updatedAt;
+
+        private boolean needsRefresh()
+        {
+            return value == null || System.nanoTime() - updatedAt > REFRESH_INTERVAL;
+        }
+    }
+
+    private enum AggregationType
+    {
+        COUNT, SUM
+    }
+}
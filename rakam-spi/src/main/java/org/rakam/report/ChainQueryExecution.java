@@ -4,6 +4,7 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -119,6 +120,22 @@ public class ChainQueryExecution
         return future;
     }
 
+    @Override
+    public void addStatsListener(Consumer<QueryStats> listener)
+    {
+        // the stats of the chain are the merged stats of all the executions
+        for (QueryExecution execution : executions) {
+            execution.addStatsListener(stats -> listener.accept(currentStats()));
+        }
+        if (chainedQuery != null) {
+            chainedQuery.thenAccept(query -> {
+                if (query != null) {
+                    query.addStatsListener(stats -> listener.accept(currentStats()));
+                }
+            });
+        }
+    }
+
     @Override
     public void kill()
     {
@@ -0,0 +1,700 @@
+package org.rakam.report;
+
+import com.facebook.presto.sql.RakamSqlFormatter;
+import com.facebook.presto.sql.tree.AliasedRelation;
+import com.facebook.presto.sql.tree.AllColumns;
+import com.facebook.presto.sql.tree.DefaultTraversalVisitor;
+import com.facebook.presto.sql.tree.DereferenceExpression;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.FunctionCall;
+import com.facebook.presto.sql.tree.GroupingElement;
+import com.facebook.presto.sql.tree.LongLiteral;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.facebook.presto.sql.tree.Query;
+import com.facebook.presto.sql.tree.QuerySpecification;
+import com.facebook.presto.sql.tree.Relation;
+import com.facebook.presto.sql.tree.SelectItem;
+import com.facebook.presto.sql.tree.SimpleGroupBy;
+import com.facebook.presto.sql.tree.SingleColumn;
+import com.facebook.presto.sql.tree.SortItem;
+import com.facebook.presto.sql.tree.Statement;
+import com.facebook.presto.sql.tree.Table;
+import com.google.common.collect.ImmutableList;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.RakamException;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.facebook.presto.sql.RakamExpressionFormatter.formatGroupBy;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static java.lang.String.format;
+
+/**
+ * Executes the queries on the _all pseudo-collection as a separate query for each collection. The databases that
+ * run the branches of UNION ALL one after another scan the collections serially, so the branches are executed in
+ * parallel instead and the filters and the aggregations of the query are applied in each branch. The partial
+ * aggregations are merged here, only the aggregations that can be merged from the partial results (count, sum,
+ * min and max) are supported and the other queries are executed as a single query on the union of the collections.
+ * The queries that don't aggregate the events return the top rows of each branch and the rows are merged by
+ * the ORDER BY clause of the query.
+ * <p>
+ * The groups of the aggregations are merged in memory so each branch returns at most maxGroups groups. The query
+ * is executed on the union of the collections instead if a collection has more groups. Each branch uses its own
+ * connection, so the branches are admitted as separate queries of the project.
+ */
+class CollectionFanOutExecutor
+{
+    private final QueryExecutor executor;
+    private final char escapeIdentifier;
+    private final int maxParallelism;
+    private final int minCollections;
+    private final int maxGroups;
+
+    CollectionFanOutExecutor(QueryExecutor executor, char escapeIdentifier, QueryFanOutConfig config)
+    {
+        this.executor = executor;
+        this.escapeIdentifier = escapeIdentifier;
+        this.maxParallelism = config.getMaxParallelism();
+        this.minCollections = config.getMinCollections();
+        this.maxGroups = config.getMaxGroups();
+    }
+
+    /**
+     * Returns the queries of the collections or empty if the query can't be executed on the collections separately.
+     */
+    public Optional<FanOutQuery> plan(String project, Statement statement, int maxLimit)
+    {
+        if (!(statement instanceof Query)) {
+            return Optional.empty();
+        }
+        Query query = (Query) statement;
+        if (query.getWith().isPresent() || !(query.getQueryBody() instanceof QuerySpecification)) {
+            return Optional.empty();
+        }
+
+        QuerySpecification specification = (QuerySpecification) query.getQueryBody();
+        if (specification.getSelect().isDistinct() || specification.getHaving().isPresent() || !specification.getFrom().isPresent()) {
+            return Optional.empty();
+        }
+        if ((!query.getOrderBy().isEmpty() && !specification.getOrderBy().isEmpty())
+                || (query.getLimit().isPresent() && specification.getLimit().isPresent())) {
+            return Optional.empty();
+        }
+
+        Relation relation = specification.getFrom().get();
+        boolean aliased = relation instanceof AliasedRelation;
+        if (aliased) {
+            AliasedRelation aliasedRelation = (AliasedRelation) relation;
+            if (aliasedRelation.getColumnNames() != null && !aliasedRelation.getColumnNames().isEmpty()) {
+                return Optional.empty();
+            }
+            relation = aliasedRelation.getRelation();
+        }
+        // the subqueries of the query may read the other tables
+        if (!(relation instanceof Table) || !isAllCollections(((Table) relation).getName()) || getTableCount(statement) != 1) {
+            return Optional.empty();
+        }
+
+        Optional<List<Merge>> merges = getMerges(specification);
+        if (!merges.isPresent()) {
+            return Optional.empty();
+        }
+        boolean aggregation = specification.getGroupBy().isPresent() || merges.get().stream().anyMatch(merge -> merge != Merge.KEY);
+
+        List<SortItem> sortItems = !query.getOrderBy().isEmpty() ? query.getOrderBy() : specification.getOrderBy();
+        Optional<List<SortKey>> sortKeys = getSortKeys(specification, sortItems);
+        if (!sortKeys.isPresent()) {
+            return Optional.empty();
+        }
+
+        Optional<String> limitValue = query.getLimit().isPresent() ? query.getLimit() : specification.getLimit();
+        int limit = maxLimit;
+        if (limitValue.isPresent() && !limitValue.get().equalsIgnoreCase("all")) {
+            limit = Integer.parseInt(limitValue.get());
+            if (limit > maxLimit) {
+                throw new RakamException(format("The maximum value of LIMIT statement is %s", maxLimit), BAD_REQUEST);
+            }
+        }
+
+        Optional<Map<String, String>> relations = executor.getCollectionRelations(project);
+        if (!relations.isPresent() || relations.get().size() < minCollections) {
+            return Optional.empty();
+        }
+
+        List<String> queries = new ArrayList<>(relations.get().size());
+        for (String collectionRelation : relations.get().values()) {
+            String branchRelation = "(" + collectionRelation + ")" + (aliased ? "" : " _all");
+            // the extra group tells that the collection has more groups than the limit
+            queries.add(formatBranch(specification, branchRelation, aggregation ? ImmutableList.of() : sortItems,
+                    aggregation ? maxGroups + 1 : limit));
+        }
+
+        return Optional.of(new FanOutQuery(queries, aggregation, merges.get(), sortKeys.get(), limit));
+    }
+
+    /**
+     * @param runner executes the query of a collection
+     * @param fallback executes the query on the union of the collections, it's used if a collection has more
+     * groups than the limit
+     */
+    public QueryExecution execute(FanOutQuery query, Function<String, QueryExecution> runner, Supplier<QueryExecution> fallback)
+    {
+        return new FanOutQueryExecution(query, runner, fallback);
+    }
+
+    private String formatBranch(QuerySpecification specification, String relation, List<SortItem> sortItems, int limit)
+    {
+        Function<QualifiedName, String> tableNameMapper = name -> relation;
+        StringBuilder builder = new StringBuilder();
+        RakamSqlFormatter.Formatter formatter = new RakamSqlFormatter.Formatter(builder, tableNameMapper, escapeIdentifier);
+
+        formatter.process(specification.getSelect(), 0);
+        builder.append("FROM ");
+        formatter.process(specification.getFrom().get(), 0);
+
+        specification.getWhere().ifPresent(where -> builder.append(" WHERE ")
+                .append(RakamSqlFormatter.formatExpression(where, tableNameMapper, escapeIdentifier)));
+        specification.getGroupBy().ifPresent(groupBy -> builder.append(" GROUP BY ")
+                .append(formatGroupBy(groupBy.getGroupingElements(), tableNameMapper, Optional.empty(), escapeIdentifier)));
+
+        if (!sortItems.isEmpty()) {
+            builder.append(" ORDER BY ").append(sortItems.stream()
+                    .map(item -> RakamSqlFormatter.formatExpression(item.getSortKey(), tableNameMapper, escapeIdentifier)
+                            + (item.getOrdering() == SortItem.Ordering.DESCENDING ? " DESC" : " ASC")
+                            + (item.getNullOrdering() == SortItem.NullOrdering.FIRST ? " NULLS FIRST" :
+                            (item.getNullOrdering() == SortItem.NullOrdering.LAST ? " NULLS LAST" : "")))
+                    .collect(Collectors.joining(", ")));
+        }
+        builder.append(" LIMIT ").append(limit);
+        return builder.toString();
+    }
+
+    private static boolean isAllCollections(QualifiedName name)
+    {
+        return !name.getPrefix().isPresent() && name.getSuffix().equals("_all");
+    }
+
+    private static int getTableCount(Statement statement)
+    {
+        int[] tables = {0};
+        new DefaultTraversalVisitor<Void, Void>()
+        {
+            @Override
+            protected Void visitTable(Table node, Void context)
+            {
+                tables[0]++;
+                return null;
+            }
+        }.process(statement, null);
+        return tables[0];
+    }
+
+    /**
+     * Returns how the values of each column of the branches are merged. The group keys must be in the result,
+     * otherwise the rows of the different groups that have the same values in the result would be merged.
+     */
+    private static Optional<List<Merge>> getMerges(QuerySpecification specification)
+    {
+        List<SelectItem> items = specification.getSelect().getSelectItems();
+        List<Expression> groupBy = new ArrayList<>();
+        if (specification.getGroupBy().isPresent()) {
+            if (specification.getGroupBy().get().isDistinct()) {
+                return Optional.empty();
+            }
+            for (GroupingElement element : specification.getGroupBy().get().getGroupingElements()) {
+                if (!(element instanceof SimpleGroupBy) || ((SimpleGroupBy) element).getColumnExpressions().size() != 1) {
+                    return Optional.empty();
+                }
+                Expression expression = ((SimpleGroupBy) element).getColumnExpressions().get(0);
+                if (expression instanceof LongLiteral) {
+                    long ordinal = ((LongLiteral) expression).getValue();
+                    if (ordinal < 1 || ordinal > items.size() || !(items.get((int) ordinal - 1) instanceof SingleColumn)) {
+                        return Optional.empty();
+                    }
+                    expression = ((SingleColumn) items.get((int) ordinal - 1)).getExpression();
+                }
+                groupBy.add(expression);
+            }
+        }
+
+        List<Merge> merges = new ArrayList<>();
+        List<Expression> keys = new ArrayList<>();
+        for (SelectItem item : items) {
+            if (item instanceof AllColumns) {
+                merges.add(Merge.KEY);
+                continue;
+            }
+
+            Expression expression = ((SingleColumn) item).getExpression();
+            if (groupBy.contains(expression)) {
+                merges.add(Merge.KEY);
+                keys.add(expression);
+                continue;
+            }
+
+            Optional<Merge> aggregation = getAggregation(expression);
+            if (aggregation.isPresent()) {
+                merges.add(aggregation.get());
+            }
+            else if (groupBy.isEmpty() && !hasFunctionCall(expression)) {
+                // the functions may be aggregations or window functions whose values depend on the other rows
+                merges.add(Merge.KEY);
+                keys.add(expression);
+            }
+            else {
+                return Optional.empty();
+            }
+        }
+
+        boolean aggregation = !groupBy.isEmpty() || merges.stream().anyMatch(merge -> merge != Merge.KEY);
+        if (aggregation) {
+            if (items.stream().anyMatch(item -> item instanceof AllColumns)
+                    || !keys.stream().allMatch(groupBy::contains)
+                    || keys.stream().distinct().count() != groupBy.stream().distinct().count()) {
+                return Optional.empty();
+            }
+        }
+
+        return Optional.of(merges);
+    }
+
+    private static Optional<Merge> getAggregation(Expression expression)
+    {
+        if (!(expression instanceof FunctionCall)) {
+            return Optional.empty();
+        }
+        FunctionCall call = (FunctionCall) expression;
+        if (call.isDistinct() || call.getWindow().isPresent() || call.getArguments().stream().anyMatch(CollectionFanOutExecutor::hasFunctionCall)) {
+            return Optional.empty();
+        }
+
+        switch (call.getName().toString().toLowerCase(Locale.ENGLISH)) {
+            case "count":
+                return Optional.of(Merge.COUNT);
+            case "sum":
+                return Optional.of(Merge.SUM);
+            case "min":
+                return Optional.of(Merge.MIN);
+            case "max":
+                return Optional.of(Merge.MAX);
+            default:
+                return Optional.empty();
+        }
+    }
+
+    private static boolean hasFunctionCall(Expression expression)
+    {
+        boolean[] functionCall = {false};
+        new DefaultTraversalVisitor<Void, Void>()
+        {
+            @Override
+            protected Void visitFunctionCall(FunctionCall node, Void context)
+            {
+                functionCall[0] = true;
+                return null;
+            }
+        }.process(expression, null);
+        return functionCall[0];
+    }
+
+    /**
+     * The rows are sorted after they are merged so the sort keys must be the columns of the result.
+     */
+    private static Optional<List<SortKey>> getSortKeys(QuerySpecification specification, List<SortItem> sortItems)
+    {
+        List<SelectItem> items = specification.getSelect().getSelectItems();
+        boolean allColumns = items.stream().anyMatch(item -> item instanceof AllColumns);
+
+        List<SortKey> sortKeys = new ArrayList<>();
+        for (SortItem sortItem : sortItems) {
+            Expression sortKey = sortItem.getSortKey();
+            boolean ascending = sortItem.getOrdering() != SortItem.Ordering.DESCENDING;
+            // the nulls are larger than the other values by default as in Postgresql
+            boolean nullsFirst = sortItem.getNullOrdering() == SortItem.NullOrdering.UNDEFINED ? !ascending :
+                    sortItem.getNullOrdering() == SortItem.NullOrdering.FIRST;
+
+            if (sortKey instanceof LongLiteral) {
+                long ordinal = ((LongLiteral) sortKey).getValue();
+                if (allColumns || ordinal < 1 || ordinal > items.size()) {
+                    return Optional.empty();
+                }
+                sortKeys.add(new SortKey(null, (int) ordinal - 1, ascending, nullsFirst));
+                continue;
+            }
+
+            int index = -1;
+            for (int i = 0; i < items.size() && !allColumns; i++) {
+                SingleColumn column = (SingleColumn) items.get(i);
+                if (column.getExpression().equals(sortKey) || getName(sortKey).filter(name -> name.equals(getName(column).orElse(null))).isPresent()) {
+                    index = i;
+                    break;
+                }
+            }
+
+            if (index >= 0) {
+                sortKeys.add(new SortKey(null, index, ascending, nullsFirst));
+            }
+            else if (allColumns && getName(sortKey).isPresent()) {
+                // the position of the column is known when the result is fetched
+                sortKeys.add(new SortKey(getName(sortKey).get(), -1, ascending, nullsFirst));
+            }
+            else {
+                return Optional.empty();
+            }
+        }
+        return Optional.of(sortKeys);
+    }
+
+    private static Optional<String> getName(SingleColumn column)
+    {
+        if (column.getAlias().isPresent()) {
+            return column.getAlias();
+        }
+        return getName(column.getExpression());
+    }
+
+    private static Optional<String> getName(Expression expression)
+    {
+        if (expression instanceof QualifiedNameReference) {
+            return Optional.of(((QualifiedNameReference) expression).getName().getSuffix());
+        }
+        if (expression instanceof DereferenceExpression) {
+            return Optional.of(((DereferenceExpression) expression).getFieldName());
+        }
+        return Optional.empty();
+    }
+
+    private enum Merge
+    {
+        KEY, COUNT, SUM, MIN, MAX
+    }
+
+    private static class SortKey
+    {
+        private final String name;
+        private final int index;
+        private final boolean ascending;
+        private final boolean nullsFirst;
+
+        private SortKey(String name, int index, boolean ascending, boolean nullsFirst)
+        {
+            this.name = name;
+            this.index = index;
+            this.ascending = ascending;
+            this.nullsFirst = nullsFirst;
+        }
+    }
+
+    static class FanOutQuery
+    {
+        final List<String> queries;
+        private final boolean aggregation;
+        private final List<Merge> merges;
+        private final List<SortKey> sortKeys;
+        private final int limit;
+
+        private FanOutQuery(List<String> queries, boolean aggregation, List<Merge> merges, List<SortKey> sortKeys, int limit)
+        {
+            this.queries = ImmutableList.copyOf(queries);
+            this.aggregation = aggregation;
+            this.merges = merges;
+            this.sortKeys = sortKeys;
+            this.limit = limit;
+        }
+
+        /**
+         * Merges the results of the collections into the result of the query, the results must be successful.
+         */
+        QueryResult merge(List<QueryResult> results)
+        {
+            List<SchemaField> metadata = results.get(0).getMetadata();
+
+            List<List<Object>> rows;
+            if (merges.stream().allMatch(merge -> merge == Merge.KEY)) {
+                rows = results.stream().flatMap(result -> result.getResult().stream()).collect(Collectors.toList());
+            }
+            else {
+                Map<List<Object>, Object[]> groups = new LinkedHashMap<>();
+                for (QueryResult result : results) {
+                    for (List<Object> row : result.getResult()) {
+                        List<Object> key = new ArrayList<>();
+                        for (int i = 0; i < merges.size(); i++) {
+                            if (merges.get(i) == Merge.KEY) {
+                                key.add(row.get(i));
+                            }
+                        }
+
+                        Object[] group = groups.get(key);
+                        if (group == null) {
+                            groups.put(key, row.toArray());
+                            continue;
+                        }
+                        for (int i = 0; i < merges.size(); i++) {
+                            group[i] = merge(merges.get(i), group[i], row.get(i));
+                        }
+                    }
+                }
+                rows = groups.values().stream().map(Arrays::asList).collect(Collectors.toList());
+            }
+
+            if (!sortKeys.isEmpty()) {
+                rows.sort(getComparator(metadata));
+            }
+            if (rows.size() > limit) {
+                rows = new ArrayList<>(rows.subList(0, limit));
+            }
+
+            return new QueryResult(metadata, rows, new HashMap<>(results.get(0).getProperties()));
+        }
+
+        private Comparator<List<Object>> getComparator(List<SchemaField> metadata)
+        {
+            Comparator<List<Object>> comparator = (first, second) -> 0;
+            for (SortKey sortKey : sortKeys) {
+                int index = sortKey.index;
+                if (sortKey.name != null) {
+                    index = -1;
+                    for (int i = 0; i < metadata.size() && index < 0; i++) {
+                        if (metadata.get(i).getName().equalsIgnoreCase(sortKey.name)) {
+                            index = i;
+                        }
+                    }
+                    if (index < 0) {
+                        throw new IllegalStateException(format("The column %s is not in the result", sortKey.name));
+                    }
+                }
+
+                int column = index;
+                comparator = comparator.thenComparing((first, second) -> {
+                    Object left = first.get(column);
+                    Object right = second.get(column);
+                    if (left == null || right == null) {
+                        if (left == right) {
+                            return 0;
+                        }
+                        return (left == null) == sortKey.nullsFirst ? -1 : 1;
+                    }
+                    int value = compare(left, right);
+                    return sortKey.ascending ? value : -value;
+                });
+            }
+            return comparator;
+        }
+
+        private static Object merge(Merge merge, Object left, Object right)
+        {
+            if (merge == Merge.KEY || right == null) {
+                return left;
+            }
+            if (left == null) {
+                return right;
+            }
+
+            switch (merge) {
+                case COUNT:
+                case SUM:
+                    return add((Number) left, (Number) right);
+                case MIN:
+                    return compare(left, right) <= 0 ? left : right;
+                case MAX:
+                    return compare(left, right) >= 0 ? left : right;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        private static Number add(Number left, Number right)
+        {
+            if (left instanceof BigDecimal || right instanceof BigDecimal) {
+                return new BigDecimal(left.toString()).add(new BigDecimal(right.toString()));
+            }
+            if (left instanceof Double || left instanceof Float || right instanceof Double || right instanceof Float) {
+                return left.doubleValue() + right.doubleValue();
+            }
+            return left.longValue() + right.longValue();
+        }
+
+        private static int compare(Object left, Object right)
+        {
+            if (left instanceof Number && right instanceof Number && left.getClass() != right.getClass()) {
+                return Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+            }
+            if (left instanceof Comparable && left.getClass() == right.getClass()) {
+                return ((Comparable) left).compareTo(right);
+            }
+            return left.toString().compareTo(right.toString());
+        }
+    }
+
+    /**
+     * Executes the queries of the collections in at most maxParallelism queries at the same time. The result of
+     * the query is the error of the first query that fails.
+     */
+    private class FanOutQueryExecution
+            implements QueryExecution
+    {
+        private final FanOutQuery query;
+        private final Function<String, QueryExecution> runner;
+        private final Supplier<QueryExecution> fallback;
+        private final QueryResult[] results;
+        private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
+        private final Map<Integer, QueryExecution> executions = new ConcurrentHashMap<>();
+        private final AtomicInteger nextQuery = new AtomicInteger();
+        private final AtomicInteger finishedQueries = new AtomicInteger();
+        private final AtomicBoolean fellBack = new AtomicBoolean();
+        private volatile QueryExecution fallbackExecution;
+
+        private FanOutQueryExecution(FanOutQuery query, Function<String, QueryExecution> runner, Supplier<QueryExecution> fallback)
+        {
+            this.query = query;
+            this.runner = runner;
+            this.fallback = fallback;
+            this.results = new QueryResult[query.queries.size()];
+            for (int i = 0; i < Math.min(maxParallelism, query.queries.size()); i++) {
+                executeNext();
+            }
+        }
+
+        private void executeNext()
+        {
+            int index = nextQuery.getAndIncrement();
+            if (index >= query.queries.size() || result.isDone()) {
+                return;
+            }
+
+            QueryExecution execution;
+            try {
+                execution = runner.apply(query.queries.get(index));
+            }
+            catch (Exception e) {
+                fail(e);
+                return;
+            }
+
+            executions.put(index, execution);
+            execution.getResult().whenComplete((branchResult, ex) -> {
+                executions.remove(index);
+                // the branches that are cancelled for the fallback query fail
+                if (fellBack.get()) {
+                    return;
+                }
+                if (ex != null) {
+                    fail(ex);
+                    return;
+                }
+                if (branchResult.isFailed()) {
+                    result.complete(branchResult);
+                    cancelQueries();
+                    return;
+                }
+                if (query.aggregation && branchResult.getResult().size() > maxGroups) {
+                    fallBack();
+                    return;
+                }
+
+                results[index] = branchResult;
+                if (finishedQueries.incrementAndGet() == results.length) {
+                    try {
+                        result.complete(query.merge(Arrays.asList(results)));
+                    }
+                    catch (Exception e) {
+                        fail(e);
+                    }
+                }
+                else {
+                    executeNext();
+                }
+            });
+        }
+
+        private void fallBack()
+        {
+            if (!fellBack.compareAndSet(false, true)) {
+                return;
+            }
+            cancelQueries();
+
+            try {
+                fallbackExecution = fallback.get();
+            }
+            catch (Exception e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            fallbackExecution.getResult().whenComplete((fallbackResult, ex) -> {
+                if (ex != null) {
+                    result.completeExceptionally(ex);
+                }
+                else {
+                    result.complete(fallbackResult);
+                }
+            });
+        }
+
+        private void fail(Throwable e)
+        {
+            result.completeExceptionally(e);
+            cancelQueries();
+        }
+
+        private void cancelQueries()
+        {
+            nextQuery.set(results.length);
+            executions.values().forEach(QueryExecution::kill);
+        }
+
+        @Override
+        public QueryStats currentStats()
+        {
+            QueryExecution fallbackExecution = this.fallbackExecution;
+            if (fallbackExecution != null) {
+                return fallbackExecution.currentStats();
+            }
+            if (result.isDone()) {
+                return new QueryStats(100, result.isCompletedExceptionally() || result.join().isFailed() ?
+                        QueryStats.State.FAILED : QueryStats.State.FINISHED, null, null, null, null, null, null);
+            }
+            return new QueryStats(finishedQueries.get() * 100 / results.length, QueryStats.State.RUNNING,
+                    null, null, null, null, null, null);
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult()
+        {
+            return result;
+        }
+
+        @Override
+        public void kill()
+        {
+            cancelQueries();
+            QueryExecution fallbackExecution = this.fallbackExecution;
+            if (fallbackExecution != null) {
+                fallbackExecution.kill();
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.rakam.report;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 public class DelegateQueryExecution implements QueryExecution {
@@ -32,4 +33,9 @@ public class DelegateQueryExecution implements QueryExecution {
     public void kill() {
         execution.kill();
     }
+
+    @Override
+    public void addStatsListener(Consumer<QueryStats> listener) {
+        execution.addStatsListener(listener);
+    }
 }
@@ -0,0 +1,17 @@
+package org.rakam.report;
+
+import java.util.function.Supplier;
+
+/**
+ * Decides when the queries are sent to the database. The implementations may run the query immediately,
+ * queue it until the project has an available slot or reject it.
+ */
+public interface QueryAdmissionController
+{
+    QueryAdmissionController UNLIMITED = (project, priority, execution) -> execution.get();
+
+    /**
+     * @param execution starts the query, it's called at most once and possibly in a different thread if the query is queued.
+     */
+    QueryExecution admit(String project, QueryPriority priority, Supplier<QueryExecution> execution);
+}
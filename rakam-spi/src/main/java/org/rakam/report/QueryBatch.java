@@ -0,0 +1,164 @@
+package org.rakam.report;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * The queries that are sent to the database together with {@link QueryExecutor#executeRawQueries(List, java.util.Map)}.
+ * The batch takes a single slot in the resource group of the project since its queries share the same session,
+ * each query of the batch is exposed as a separate execution that completes independently.
+ */
+class QueryBatch
+{
+    private final List<BatchItem> items = new ArrayList<>();
+    private volatile QueryExecution admission;
+
+    public QueryExecution add(String query)
+    {
+        BatchItem item = new BatchItem(query);
+        items.add(item);
+        return item;
+    }
+
+    public void start(String project, QueryAdmissionController admissionController, Function<List<String>, List<QueryExecution>> executor)
+    {
+        if (items.isEmpty()) {
+            return;
+        }
+
+        QueryExecution admission = admissionController.admit(project, QueryPriority.INTERACTIVE, () -> run(executor));
+        this.admission = admission;
+        // the batch may be rejected or killed while it's waiting in the queue
+        admission.getResult().whenComplete((result, ex) -> {
+            QueryResult failure = ex != null ? QueryResult.errorResult(QueryError.create(ex.getMessage())) : result;
+            if (failure.isFailed()) {
+                items.forEach(item -> item.failIfNotStarted(failure));
+            }
+        });
+    }
+
+    private QueryExecution run(Function<List<String>, List<QueryExecution>> executor)
+    {
+        // the queries that are killed before the batch is started are not sent to the database
+        List<BatchItem> pending = items.stream()
+                .filter(item -> !item.result.isDone())
+                .collect(Collectors.toList());
+
+        List<QueryExecution> executions = pending.isEmpty() ? ImmutableList.of() :
+                executor.apply(pending.stream().map(item -> item.query).collect(Collectors.toList()));
+        for (int i = 0; i < pending.size(); i++) {
+            pending.get(i).start(executions.get(i));
+        }
+
+        CompletableFuture<QueryResult> result = CompletableFuture.allOf(executions.stream()
+                .map(QueryExecution::getResult)
+                .toArray(CompletableFuture[]::new))
+                .handle((ignored, ex) -> QueryResult.empty());
+
+        return new QueryExecution()
+        {
+            @Override
+            public QueryStats currentStats()
+            {
+                return new QueryStats(result.isDone() ? QueryStats.State.FINISHED : QueryStats.State.RUNNING);
+            }
+
+            @Override
+            public boolean isFinished()
+            {
+                return result.isDone();
+            }
+
+            @Override
+            public CompletableFuture<QueryResult> getResult()
+            {
+                return result;
+            }
+
+            @Override
+            public void kill()
+            {
+                executions.forEach(QueryExecution::kill);
+            }
+        };
+    }
+
+    private class BatchItem
+            implements QueryExecution
+    {
+        private final String query;
+        private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
+        private volatile QueryExecution execution;
+
+        private BatchItem(String query)
+        {
+            this.query = query;
+        }
+
+        private synchronized void start(QueryExecution execution)
+        {
+            this.execution = execution;
+            execution.getResult().whenComplete((queryResult, ex) -> {
+                if (ex != null) {
+                    result.completeExceptionally(ex);
+                }
+                else {
+                    result.complete(queryResult);
+                }
+            });
+        }
+
+        private synchronized void failIfNotStarted(QueryResult failure)
+        {
+            if (execution == null) {
+                result.complete(QueryResult.errorResult(failure.getError(), query));
+            }
+        }
+
+        @Override
+        public QueryStats currentStats()
+        {
+            QueryExecution execution = this.execution;
+            if (execution != null) {
+                return execution.currentStats();
+            }
+
+            QueryExecution admission = QueryBatch.this.admission;
+            if (result.isDone()) {
+                return new QueryStats(QueryStats.State.FAILED);
+            }
+            return admission != null ? admission.currentStats() : new QueryStats(QueryStats.State.QUEUED);
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult()
+        {
+            return result;
+        }
+
+        @Override
+        public void kill()
+        {
+            QueryExecution execution;
+            synchronized (this) {
+                execution = this.execution;
+                if (execution == null) {
+                    result.complete(QueryResult.errorResult(QueryError.create("Query is killed"), query));
+                    return;
+                }
+            }
+            execution.kill();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.rakam.report;
 
 
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 
 public interface QueryExecution {
@@ -10,11 +11,24 @@ public interface QueryExecution {
     CompletableFuture<QueryResult> getResult();
     void kill();
 
+    /**
+     * Registers a listener that is notified when the stats of the query change. The updates may be coalesced
+     * so the listener may not see all the intermediate states. The executions that don't track the progress
+     * of the query notify the listener only once with the current stats.
+     */
+    default void addStatsListener(Consumer<QueryStats> listener) {
+        listener.accept(currentStats());
+    }
+
     static QueryExecution completedQueryExecution(String query, QueryResult result) {
+        return completedQueryExecution(query, result, new QueryStats(100, QueryStats.State.FINISHED, null, null, null, null, null, null));
+    }
+
+    static QueryExecution completedQueryExecution(String query, QueryResult result, QueryStats stats) {
         return new QueryExecution() {
             @Override
             public QueryStats currentStats() {
-                return new QueryStats(100, QueryStats.State.FINISHED, null, null, null, null, null, null);
+                return stats;
             }
 
             @Override
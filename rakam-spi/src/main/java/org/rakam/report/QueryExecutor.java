@@ -1,9 +1,16 @@
 package org.rakam.report;
 
 import com.facebook.presto.sql.tree.QualifiedName;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.RakamException;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 
 public interface QueryExecutor
 {
@@ -19,5 +26,60 @@ public interface QueryExecutor
 
     QueryExecution executeRawStatement(String sqlQuery);
 
+    /**
+     * Executes the queries that are sent together such as the queries of a dashboard. The default implementation
+     * executes the queries independently, the executors that can run them in a single session override it.
+     */
+    default List<QueryExecution> executeRawQueries(List<String> sqlQueries, Map<String, String> sessionParameters) {
+        return sqlQueries.stream()
+                .map(query -> executeRawQuery(query, sessionParameters))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Executes the query and returns its result as a stream once the query starts returning rows.
+     * The default implementation materializes the whole result, the executors that support server-side
+     * cursors override it in order to keep the memory usage bounded.
+     */
+    default CompletableFuture<QueryResultStream> executeStreamingQuery(String sqlQuery, Map<String, String> sessionParameters) {
+        return executeRawQuery(sqlQuery, sessionParameters).getResult().thenApply(QueryResultStream::of);
+    }
+
+    /**
+     * Returns the columns of the query without fetching its rows. The default implementation executes the query
+     * with LIMIT 0, the executors that can describe the queries without executing them override it.
+     * The future fails with {@link RakamException} if the query is not valid.
+     */
+    default CompletableFuture<List<SchemaField>> describeQuery(String sqlQuery, Map<String, String> sessionParameters) {
+        CompletableFuture<List<SchemaField>> future = new CompletableFuture<>();
+        executeRawQuery(sqlQuery + " limit 0", sessionParameters).getResult().thenAccept(result -> {
+            if (result.isFailed()) {
+                future.completeExceptionally(new RakamException(result.getError().message, INTERNAL_SERVER_ERROR));
+            }
+            else {
+                future.complete(result.getMetadata());
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Returns the number of rows of the collection from the statistics of the database without scanning the table.
+     * It's used for picking the sample rate of the approximate queries, the executors that don't keep the row counts
+     * return empty and the queries are executed without sampling.
+     */
+    default Optional<Long> estimateRowCount(String project, String collection) {
+        return Optional.empty();
+    }
+
+    /**
+     * Returns the relations of the collections that the _all pseudo-collection is the union of. If the executor returns
+     * them, the queries on _all are executed on each relation separately in parallel and their results are merged.
+     * The executors that already execute the branches of UNION ALL in parallel return empty.
+     */
+    default Optional<Map<String, String>> getCollectionRelations(String project) {
+        return Optional.empty();
+    }
+
     String formatTableReference(String project, QualifiedName name, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema);
 }
@@ -8,9 +8,12 @@ import com.facebook.presto.sql.tree.QualifiedName;
 import com.facebook.presto.sql.tree.Query;
 import com.facebook.presto.sql.tree.QuerySpecification;
 import com.facebook.presto.sql.tree.Statement;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
-import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.analysis.EscapeIdentifier;
+import org.rakam.analysis.MaterializedViewRefreshConfig;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.MaterializedViewService.MaterializedViewExecution;
 import org.rakam.analysis.metadata.Metastore;
@@ -22,13 +25,19 @@ import org.rakam.util.NotExistsException;
 import org.rakam.util.RakamException;
 
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -39,7 +48,18 @@ import static org.rakam.report.QueryResult.EXECUTION_TIME;
 
 public class QueryExecutorService
 {
-    private final SqlParser parser = new SqlParser();
+    // SqlParser instances are not shared between threads so that the queries can be parsed concurrently
+    private final ThreadLocal<SqlParser> parser = ThreadLocal.withInitial(SqlParser::new);
+    // the metadata that the rewritten queries depend on, such as the columns of _all table, may change so the entries expire
+    private final Cache<RewriteKey, RewrittenQuery> rewriteCache = CacheBuilder.newBuilder()
+            .maximumSize(5000)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
+    // the columns of the collections may be added so the resolved query metadata expires as well
+    private final Cache<RewriteKey, List<SchemaField>> metadataCache = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
     public static final int DEFAULT_QUERY_RESULT_COUNT = 50000;
     public static final int MAX_QUERY_RESULT_LIMIT = 1000000;
 
@@ -47,18 +67,54 @@ public class QueryExecutorService
     private final MaterializedViewService materializedViewService;
     private final Metastore metastore;
     private final char escapeIdentifier;
+    private final QueryResultCache resultCache;
+    private final QueryAdmissionController admissionController;
+    private final QueryMetadataResolver metadataResolver;
+    private final ApproximateQueryPlanner approximateQueryPlanner;
+    private final CollectionFanOutExecutor fanOutExecutor;
+    private final boolean backgroundRefresh;
     private volatile Set<String> projectCache;
 
-    @Inject
     public QueryExecutorService(QueryExecutor executor, Metastore metastore, MaterializedViewService materializedViewService, Clock clock, @EscapeIdentifier char escapeIdentifier)
+    {
+        this(executor, metastore, materializedViewService, clock, escapeIdentifier, QueryResultCache.disabled(), QueryAdmissionController.UNLIMITED,
+                new MaterializedViewRefreshConfig().setEnabled(false), new ApproximateQueryConfig(), new QueryFanOutConfig());
+    }
+
+    @Inject
+    public QueryExecutorService(QueryExecutor executor, Metastore metastore, MaterializedViewService materializedViewService, Clock clock, @EscapeIdentifier char escapeIdentifier, QueryResultCache resultCache, QueryAdmissionController admissionController, MaterializedViewRefreshConfig refreshConfig, ApproximateQueryConfig approximateQueryConfig, QueryFanOutConfig fanOutConfig)
     {
         this.executor = executor;
         this.materializedViewService = materializedViewService;
         this.metastore = metastore;
         this.escapeIdentifier = escapeIdentifier;
+        this.resultCache = resultCache;
+        this.admissionController = admissionController;
+        this.metadataResolver = new QueryMetadataResolver(metastore);
+        this.approximateQueryPlanner = new ApproximateQueryPlanner(executor, metastore, approximateQueryConfig);
+        this.fanOutExecutor = new CollectionFanOutExecutor(executor, escapeIdentifier, fanOutConfig);
+        this.backgroundRefresh = refreshConfig.getEnabled();
     }
 
     public QueryExecution executeQuery(String project, String sqlQuery, Optional<QuerySampling> sample, String defaultSchema, int limit)
+    {
+        return executeQuery(project, sqlQuery, sample, defaultSchema, limit, null);
+    }
+
+    /**
+     * @param maxStaleness the maximum age of a cached result that can be returned for the query.
+     * The default of the result cache is used if it's null and the cache is bypassed if it's zero.
+     */
+    public QueryExecution executeQuery(String project, String sqlQuery, Optional<QuerySampling> sample, String defaultSchema, int limit, Duration maxStaleness)
+    {
+        return executeQuery(project, sqlQuery, sample, defaultSchema, limit, maxStaleness, QueryPriority.INTERACTIVE);
+    }
+
+    /**
+     * @param priority the queries of a project may wait in the queue of the project if it's already running
+     * too many queries, the interactive queries are started before the batch queries.
+     */
+    public QueryExecution executeQuery(String project, String sqlQuery, Optional<QuerySampling> sample, String defaultSchema, int limit, Duration maxStaleness, QueryPriority priority)
     {
         if (!projectExists(project)) {
             throw new NotExistsException("Project");
@@ -66,16 +122,150 @@ public class QueryExecutorService
         HashMap<MaterializedView, MaterializedViewExecution> materializedViews = new HashMap<>();
         Map<String, String> sessionParameters = new HashMap<>();
 
-        String query;
-
+        Optional<QuerySampling> resolvedSample;
+        RewrittenQuery rewritten;
         try {
-            query = buildQuery(project, sqlQuery, sample, defaultSchema, limit, materializedViews, sessionParameters);
+            resolvedSample = resolveSample(project, sqlQuery, sample, defaultSchema);
+            Optional<CollectionFanOutExecutor.FanOutQuery> fanOutQuery = !resolvedSample.isPresent() && sqlQuery.contains("_all") ?
+                    fanOutExecutor.plan(project, parseQuery(sqlQuery), limit) : Optional.empty();
+            if (fanOutQuery.isPresent()) {
+                return executeFanOut(project, sqlQuery, defaultSchema, limit, maxStaleness, priority, fanOutQuery.get());
+            }
+            rewritten = rewrite(project, sqlQuery, resolvedSample, defaultSchema, limit, materializedViews, sessionParameters);
         }
         catch (ParsingException e) {
-            QueryError error = new QueryError(e.getMessage(), null, null, e.getLineNumber(), e.getColumnNumber());
-            LogUtil.logQueryError(sqlQuery, error, executor.getClass());
-            return QueryExecution.completedQueryExecution(sqlQuery, QueryResult.errorResult(error, sqlQuery));
+            return parsingError(sqlQuery, e);
+        }
+
+        QueryExecution execution = execute(project, rewritten, materializedViews, maxStaleness,
+                query -> admissionController.admit(project, priority, () -> executor.executeRawQuery(query, sessionParameters)));
+        return estimate(execution, rewritten, resolvedSample);
+    }
+
+    /**
+     * Executes the query of each collection separately, the queries are admitted separately since each of them uses
+     * its own connection. The query is executed on the union of the collections if a collection has too many groups
+     * to merge them in memory.
+     */
+    private QueryExecution executeFanOut(String project, String sqlQuery, String defaultSchema, int limit, Duration maxStaleness, QueryPriority priority, CollectionFanOutExecutor.FanOutQuery fanOutQuery)
+    {
+        String cacheKey = String.join("\n", fanOutQuery.queries);
+        List<Object> snapshot = null;
+        if (resultCache.isEnabled() && !Duration.ZERO.equals(maxStaleness)) {
+            QueryResultCache.Dependencies dependencies = new QueryResultCache.Dependencies();
+            dependencies.addAllCollections();
+            snapshot = resultCache.snapshot(project, dependencies, ImmutableMap.of());
+            QueryResult cachedResult = resultCache.get(project, cacheKey, snapshot, maxStaleness);
+            if (cachedResult != null) {
+                return QueryExecution.completedQueryExecution(sqlQuery, cachedResult);
+            }
+        }
+
+        Map<String, String> sessionParameters = new HashMap<>();
+        QueryExecution execution = fanOutExecutor.execute(fanOutQuery,
+                query -> admissionController.admit(project, priority, () -> executor.executeRawQuery(query, sessionParameters)),
+                () -> {
+                    HashMap<MaterializedView, MaterializedViewExecution> materializedViews = new HashMap<>();
+                    Map<String, String> unionSessionParameters = new HashMap<>();
+                    RewrittenQuery rewritten = rewrite(project, sqlQuery, Optional.empty(), defaultSchema, limit, materializedViews, unionSessionParameters);
+                    return execute(project, rewritten, materializedViews, maxStaleness,
+                            query -> admissionController.admit(project, priority, () -> executor.executeRawQuery(query, unionSessionParameters)));
+                });
+
+        if (snapshot != null) {
+            List<Object> finalSnapshot = snapshot;
+            execution = new DelegateQueryExecution(execution, result -> {
+                resultCache.put(project, cacheKey, finalSnapshot, result);
+                return result;
+            });
+        }
+        return execution;
+    }
+
+    /**
+     * Executes the queries that are sent together such as the queries of a dashboard. The queries are sent to the
+     * database in a single batch so that they share the same session if the executor supports it, the queries that
+     * need to update the materialized views before they're executed are executed separately.
+     *
+     * @return the executions of the queries in the same order, the failure of a query doesn't affect the others.
+     */
+    public List<QueryExecution> executeQueries(String project, List<String> sqlQueries, Optional<QuerySampling> sample, String defaultSchema, int limit, Duration maxStaleness)
+    {
+        if (!projectExists(project)) {
+            throw new NotExistsException("Project");
+        }
+
+        List<QueryExecution> executions = new ArrayList<>(sqlQueries.size());
+        Map<Map<String, String>, QueryBatch> batches = new LinkedHashMap<>();
+        for (String sqlQuery : sqlQueries) {
+            HashMap<MaterializedView, MaterializedViewExecution> materializedViews = new HashMap<>();
+            Map<String, String> sessionParameters = new HashMap<>();
+
+            Optional<QuerySampling> resolvedSample;
+            RewrittenQuery rewritten;
+            try {
+                resolvedSample = resolveSample(project, sqlQuery, sample, defaultSchema);
+                rewritten = rewrite(project, sqlQuery, resolvedSample, defaultSchema, limit, materializedViews, sessionParameters);
+            }
+            catch (ParsingException e) {
+                executions.add(parsingError(sqlQuery, e));
+                continue;
+            }
+            catch (RakamException e) {
+                executions.add(QueryExecution.completedQueryExecution(sqlQuery,
+                        QueryResult.errorResult(QueryError.create(e.getMessage()), sqlQuery)));
+                continue;
+            }
+
+            boolean updatesMaterializedViews = materializedViews.values().stream().anyMatch(m -> m.queryExecution != null);
+            QueryBatch batch = batches.computeIfAbsent(sessionParameters, key -> new QueryBatch());
+            QueryExecution execution = execute(project, rewritten, materializedViews, maxStaleness, query -> updatesMaterializedViews ?
+                    admissionController.admit(project, QueryPriority.INTERACTIVE, () -> executor.executeRawQuery(query, sessionParameters)) :
+                    batch.add(query));
+            executions.add(estimate(execution, rewritten, resolvedSample));
+        }
+
+        batches.forEach((sessionParameters, batch) -> batch.start(project, admissionController,
+                queries -> executor.executeRawQueries(queries, sessionParameters)));
+        return executions;
+    }
+
+    /**
+     * Picks the sample rate of the automatic sampling from the row counts of the collections that the query reads.
+     */
+    private Optional<QuerySampling> resolveSample(String project, String sqlQuery, Optional<QuerySampling> sample, String defaultSchema)
+    {
+        if (!sample.isPresent() || !sample.get().isAutomatic()) {
+            return sample;
+        }
+        return approximateQueryPlanner.resolve(project, parseQuery(sqlQuery), defaultSchema, sample.get());
+    }
+
+    /**
+     * The result of the sampled query is scaled when it's fetched so that the result cache keeps the sampled values.
+     */
+    private QueryExecution estimate(QueryExecution execution, RewrittenQuery rewritten, Optional<QuerySampling> sample)
+    {
+        if (!sample.isPresent()) {
+            return execution;
         }
+        return new DelegateQueryExecution(execution, result -> approximateQueryPlanner.estimate(result, rewritten.statement, sample.get()));
+    }
+
+    private QueryExecution parsingError(String sqlQuery, ParsingException e)
+    {
+        QueryError error = new QueryError(e.getMessage(), null, null, e.getLineNumber(), e.getColumnNumber());
+        LogUtil.logQueryError(sqlQuery, error, executor.getClass());
+        return QueryExecution.completedQueryExecution(sqlQuery, QueryResult.errorResult(error, sqlQuery));
+    }
+
+    /**
+     * @param runner sends the rewritten query to the database
+     */
+    private QueryExecution execute(String project, RewrittenQuery rewritten, HashMap<MaterializedView, MaterializedViewExecution> materializedViews, Duration maxStaleness, Function<String, QueryExecution> runner)
+    {
+        String query = rewritten.query;
+        QueryResultCache.Dependencies dependencies = rewritten.dependencies;
 
         long startTime = System.currentTimeMillis();
 
@@ -84,17 +274,33 @@ public class QueryExecutorService
                 .collect(Collectors.toList());
 
         if (queryExecutions.isEmpty()) {
-            QueryExecution execution = executor.executeRawQuery(query, sessionParameters);
-            if (materializedViews.isEmpty()) {
-                return execution;
+            List<Object> snapshot = null;
+            if (resultCache.isEnabled() && dependencies.isCacheable() && !Duration.ZERO.equals(maxStaleness)) {
+                snapshot = resultCache.snapshot(project, dependencies, materializedViews);
+                QueryResult cachedResult = resultCache.get(project, query, snapshot, maxStaleness);
+                if (cachedResult != null) {
+                    return QueryExecution.completedQueryExecution(query, cachedResult);
+                }
             }
-            else {
+
+            QueryExecution execution = runner.apply(query);
+            if (!materializedViews.isEmpty()) {
                 Map<String, Long> collect = materializedViews.entrySet().stream().collect(Collectors.toMap(v -> v.getKey().tableName, v -> v.getKey().lastUpdate != null ? v.getKey().lastUpdate.toEpochMilli() : -1));
-                return new DelegateQueryExecution(execution, result -> {
+                execution = new DelegateQueryExecution(execution, result -> {
                     result.setProperty("materializedViews", collect);
                     return result;
                 });
             }
+
+            if (snapshot != null) {
+                List<Object> finalSnapshot = snapshot;
+                execution = new DelegateQueryExecution(execution, result -> {
+                    resultCache.put(project, query, finalSnapshot, result);
+                    return result;
+                });
+            }
+
+            return execution;
         }
         else {
             List<QueryExecution> executions = queryExecutions.stream()
@@ -117,7 +323,7 @@ public class QueryExecutorService
                     }
                 }
 
-                return executor.executeRawQuery(query, sessionParameters);
+                return runner.apply(query);
             }), result -> {
                 if (!result.isFailed()) {
                     Map<String, Long> collect = materializedViews.entrySet().stream()
@@ -133,6 +339,43 @@ public class QueryExecutorService
         }
     }
 
+    /**
+     * Same as {@link #executeQuery(String, String, Optional, String, int)} but the result is consumed incrementally.
+     * If the query depends on materialized views that need to be updated, the views are updated first and the
+     * result is materialized as usual. The query takes a running slot of the project until the stream is closed.
+     */
+    public CompletableFuture<QueryResultStream> executeStreamingQuery(String project, String sqlQuery, Optional<QuerySampling> sample, String defaultSchema, int limit)
+    {
+        if (!projectExists(project)) {
+            throw new NotExistsException("Project");
+        }
+        HashMap<MaterializedView, MaterializedViewExecution> materializedViews = new HashMap<>();
+        Map<String, String> sessionParameters = new HashMap<>();
+
+        Optional<QuerySampling> resolvedSample;
+        RewrittenQuery rewritten;
+        try {
+            resolvedSample = resolveSample(project, sqlQuery, sample, defaultSchema);
+            rewritten = rewrite(project, sqlQuery, resolvedSample, defaultSchema, limit, materializedViews, sessionParameters);
+        }
+        catch (ParsingException e) {
+            QueryError error = new QueryError(e.getMessage(), null, null, e.getLineNumber(), e.getColumnNumber());
+            LogUtil.logQueryError(sqlQuery, error, executor.getClass());
+            return CompletableFuture.completedFuture(QueryResultStream.of(QueryResult.errorResult(error, sqlQuery)));
+        }
+
+        // the aggregations of the sampled queries are scaled after the whole result is fetched
+        boolean requiresUpdate = materializedViews.values().stream().anyMatch(m -> m.queryExecution != null);
+        boolean scaled = resolvedSample.isPresent() && resolvedSample.get().scale && ApproximateQueryPlanner.isScaled(rewritten.statement);
+        if (requiresUpdate || scaled) {
+            return executeQuery(project, sqlQuery, resolvedSample, defaultSchema, limit).getResult()
+                    .thenApply(QueryResultStream::of);
+        }
+
+        return StreamingQueryExecution.admit(project, admissionController,
+                () -> executor.executeStreamingQuery(rewritten.query, sessionParameters));
+    }
+
     public QueryExecution executeQuery(String project, String sqlQuery)
     {
         return executeQuery(project, sqlQuery, Optional.empty(), "collection", DEFAULT_QUERY_RESULT_COUNT);
@@ -166,35 +409,47 @@ public class QueryExecutorService
 
     public String buildQuery(String project, String query, Optional<QuerySampling> sample, String defaultSchema, Integer maxLimit, Map<MaterializedView, MaterializedViewExecution> materializedViews, Map<String, String> sessionParameters)
     {
-        Query statement;
-        Function<QualifiedName, String> tableNameMapper = tableNameMapper(project, materializedViews, sample, defaultSchema, sessionParameters);
-        synchronized (parser) {
-            Statement queryStatement = parser.createStatement(query);
-            if ((queryStatement instanceof Query)) {
-                statement = (Query) queryStatement;
-            }
-            else if ((queryStatement instanceof Call)) {
-                StringBuilder builder = new StringBuilder();
-                new RakamSqlFormatter.Formatter(builder, tableNameMapper, escapeIdentifier)
-                        .process(queryStatement, 1);
-                return builder.toString();
+        return rewrite(project, query, resolveSample(project, query, sample, defaultSchema), defaultSchema, maxLimit, materializedViews, sessionParameters).query;
+    }
+
+    private RewrittenQuery rewrite(String project, String query, Optional<QuerySampling> sample, String defaultSchema, Integer maxLimit, Map<MaterializedView, MaterializedViewExecution> materializedViews, Map<String, String> sessionParameters)
+    {
+        RewriteKey key = new RewriteKey(project, query, sample, defaultSchema, maxLimit);
+        RewrittenQuery rewritten = rewriteCache.getIfPresent(key);
+        if (rewritten != null) {
+            // the compute query of a materialized view depends on the time it's updated so it needs to be resolved again
+            boolean upToDate = true;
+            for (Map.Entry<String, String> entry : rewritten.materializedViews.entrySet()) {
+                MaterializedViewExecution execution = resolveMaterializedView(project, entry.getKey(), materializedViews);
+                upToDate &= execution.computeQuery.equals(entry.getValue());
             }
-            else {
-                throw new RakamException(queryStatement.getClass().getSimpleName() + " is not supported", BAD_REQUEST);
+
+            if (upToDate) {
+                sessionParameters.putAll(rewritten.sessionParameters);
+                return rewritten;
             }
         }
 
+        Statement statement = rewritten != null ? rewritten.statement : parseQuery(query);
+
+        Map<String, String> newSessionParameters = new HashMap<>();
+        Map<String, String> materializedViewQueries = new HashMap<>();
+        QueryResultCache.Dependencies dependencies = new QueryResultCache.Dependencies();
+        Function<QualifiedName, String> tableNameMapper = tableNameMapper(project, materializedViews,
+                materializedViewQueries, dependencies, sample, defaultSchema, newSessionParameters);
+
         StringBuilder builder = new StringBuilder();
         new RakamSqlFormatter.Formatter(builder, tableNameMapper, escapeIdentifier)
                 .process(statement, 1);
 
-        if (maxLimit != null) {
+        if (maxLimit != null && statement instanceof Query) {
+            Query queryStatement = (Query) statement;
             Integer limit = null;
-            if (statement.getLimit().isPresent()) {
-                limit = Integer.parseInt(statement.getLimit().get());
+            if (queryStatement.getLimit().isPresent()) {
+                limit = Integer.parseInt(queryStatement.getLimit().get());
             }
-            if (statement.getQueryBody() instanceof QuerySpecification && ((QuerySpecification) statement.getQueryBody()).getLimit().isPresent()) {
-                limit = Integer.parseInt(((QuerySpecification) statement.getQueryBody()).getLimit().get());
+            if (queryStatement.getQueryBody() instanceof QuerySpecification && ((QuerySpecification) queryStatement.getQueryBody()).getLimit().isPresent()) {
+                limit = Integer.parseInt(((QuerySpecification) queryStatement.getQueryBody()).getLimit().get());
             }
             if (limit != null) {
                 if (limit > maxLimit) {
@@ -206,62 +461,195 @@ public class QueryExecutorService
             }
         }
 
-        return builder.toString();
+        RewrittenQuery rewrittenQuery = new RewrittenQuery(statement, builder.toString(),
+                ImmutableMap.copyOf(newSessionParameters), ImmutableMap.copyOf(materializedViewQueries), dependencies);
+        rewriteCache.put(key, rewrittenQuery);
+        sessionParameters.putAll(newSessionParameters);
+        return rewrittenQuery;
+    }
+
+    private Statement parseQuery(String query)
+    {
+        Statement queryStatement = parser.get().createStatement(query);
+        if (!(queryStatement instanceof Query) && !(queryStatement instanceof Call)) {
+            throw new RakamException(queryStatement.getClass().getSimpleName() + " is not supported", BAD_REQUEST);
+        }
+        return queryStatement;
     }
 
-    private Function<QualifiedName, String> tableNameMapper(String project, Map<MaterializedView, MaterializedViewExecution> materializedViews, Optional<QuerySampling> sample, String defaultSchema, Map<String, String> sessionParameters)
+    private Function<QualifiedName, String> tableNameMapper(String project, Map<MaterializedView, MaterializedViewExecution> materializedViews, Map<String, String> materializedViewQueries, QueryResultCache.Dependencies dependencies, Optional<QuerySampling> sample, String defaultSchema, Map<String, String> sessionParameters)
     {
         return (node) -> {
             if (node.getPrefix().isPresent() && node.getPrefix().get().toString().equals("materialized")) {
-                MaterializedView materializedView;
-                try {
-                    materializedView = materializedViewService.get(project, node.getSuffix());
-                }
-                catch (NotExistsException e) {
-                    throw new MaterializedViewNotExists(node.getSuffix());
-                }
+                MaterializedViewExecution materializedViewExecution = resolveMaterializedView(project, node.getSuffix(), materializedViews);
+                materializedViewQueries.put(node.getSuffix(), materializedViewExecution.computeQuery);
+                addDependency(dependencies, node, defaultSchema, materializedViews);
+                return materializedViewExecution.computeQuery;
+            }
 
-                MaterializedViewExecution materializedViewExecution = materializedViews.computeIfAbsent(materializedView,
-                        (key) -> materializedViewService.lockAndUpdateView(project, materializedView));
+            addDependency(dependencies, node, defaultSchema, materializedViews);
+            return executor.formatTableReference(project, node, sample, sessionParameters, defaultSchema);
+        };
+    }
 
-                if (materializedViewExecution == null) {
-                    throw new IllegalStateException();
-                }
+    private static void addDependency(QueryResultCache.Dependencies dependencies, QualifiedName node, String defaultSchema, Map<MaterializedView, MaterializedViewExecution> materializedViews)
+    {
+        String schema = node.getPrefix().map(Object::toString).orElse(null);
+        String table = node.getSuffix();
 
-                return materializedViewExecution.computeQuery ;
+        if (schema == null && table.equals("_all")) {
+            dependencies.addAllCollections();
+        }
+        else if (schema == null && (table.equals("users") || table.equals("_users"))) {
+            dependencies.markUncacheable();
+        }
+        else if ("collection".equals(schema) || (schema == null && "collection".equals(defaultSchema))) {
+            dependencies.addCollection(table);
+        }
+        else if ("continuous".equals(schema)) {
+            dependencies.addAllCollections();
+        }
+        else if ("materialized".equals(schema)) {
+            // the incremental and real-time views read the recent events from the collections
+            boolean readsCollections = materializedViews.keySet().stream()
+                    .anyMatch(view -> view.tableName.equals(table) && (view.incremental || view.realTime));
+            if (readsCollections) {
+                dependencies.addAllCollections();
             }
+        }
+        else {
+            dependencies.markUncacheable();
+        }
+    }
 
-            return executor.formatTableReference(project, node, sample, sessionParameters, defaultSchema);
-        };
+    private MaterializedViewExecution resolveMaterializedView(String project, String name, Map<MaterializedView, MaterializedViewExecution> materializedViews)
+    {
+        MaterializedView materializedView;
+        try {
+            materializedView = materializedViewService.get(project, name);
+        }
+        catch (NotExistsException e) {
+            throw new MaterializedViewNotExists(name);
+        }
+
+        // the views that are refreshed in the background are only built by the query if they don't have a snapshot yet,
+        // the scheduler doesn't refresh the views without an update interval so they're refreshed when they're read
+        MaterializedViewExecution materializedViewExecution = materializedViews.computeIfAbsent(materializedView,
+                (key) -> backgroundRefresh && materializedView.lastUpdate != null && materializedView.updateInterval != null ?
+                        materializedViewService.getSnapshot(project, materializedView) :
+                        materializedViewService.lockAndUpdateView(project, materializedView));
+
+        if (materializedViewExecution == null) {
+            throw new IllegalStateException();
+        }
+
+        return materializedViewExecution;
     }
 
+    /**
+     * Returns the columns of the query. The columns of the simple queries are resolved from the collection schemas,
+     * the other queries are described by the database without fetching their rows.
+     */
     public CompletableFuture<List<SchemaField>> metadata(String project, String query)
     {
-        StringBuilder builder = new StringBuilder();
+        RewriteKey key = new RewriteKey(project, checkNotNull(query, "query is required"), Optional.empty(), "collection", null);
+        List<SchemaField> cachedColumns = metadataCache.getIfPresent(key);
+        if (cachedColumns != null) {
+            return CompletableFuture.completedFuture(cachedColumns);
+        }
+
         Query queryStatement;
         try {
-            queryStatement = (Query) parser.createStatement(checkNotNull(query, "query is required"));
+            queryStatement = (Query) parser.get().createStatement(query);
         }
         catch (Exception e) {
             throw new RakamException("Unable to parse query: " + e.getMessage(), BAD_REQUEST);
         }
 
+        Optional<List<SchemaField>> resolvedColumns = metadataResolver.resolve(project, queryStatement);
+        if (resolvedColumns.isPresent()) {
+            metadataCache.put(key, resolvedColumns.get());
+            return CompletableFuture.completedFuture(resolvedColumns.get());
+        }
+
+        StringBuilder builder = new StringBuilder();
         Map<String, String> map = new HashMap<>();
         new RakamSqlFormatter.Formatter(builder, qualifiedName ->
                 executor.formatTableReference(project, qualifiedName, Optional.empty(), map, "collection"), escapeIdentifier)
                 .process(queryStatement, 1);
 
-        QueryExecution execution = executor
-                .executeRawQuery(builder.toString() + " limit 0", map);
         CompletableFuture<List<SchemaField>> f = new CompletableFuture<>();
-        execution.getResult().thenAccept(result -> {
-            if (result.isFailed()) {
-                f.completeExceptionally(new RakamException(result.getError().message, HttpResponseStatus.INTERNAL_SERVER_ERROR));
+        executor.describeQuery(builder.toString(), map).whenComplete((columns, ex) -> {
+            if (ex != null) {
+                f.completeExceptionally(ex instanceof CompletionException ? ex.getCause() : ex);
             }
             else {
-                f.complete(result.getMetadata());
+                metadataCache.put(key, columns);
+                f.complete(columns);
             }
         });
         return f;
     }
+
+    private static class RewriteKey
+    {
+        private final String project;
+        private final String query;
+        private final QuerySampling.SampleMethod sampleMethod;
+        private final Double samplePercentage;
+        private final String defaultSchema;
+        private final Integer limit;
+
+        private RewriteKey(String project, String query, Optional<QuerySampling> sample, String defaultSchema, Integer limit)
+        {
+            this.project = project;
+            this.query = query;
+            this.sampleMethod = sample.map(e -> e.method).orElse(null);
+            this.samplePercentage = sample.map(e -> e.percentage).orElse(null);
+            this.defaultSchema = defaultSchema;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RewriteKey)) {
+                return false;
+            }
+            RewriteKey that = (RewriteKey) o;
+            return Objects.equals(project, that.project) &&
+                    Objects.equals(query, that.query) &&
+                    sampleMethod == that.sampleMethod &&
+                    Objects.equals(samplePercentage, that.samplePercentage) &&
+                    Objects.equals(defaultSchema, that.defaultSchema) &&
+                    Objects.equals(limit, that.limit);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, query, sampleMethod, samplePercentage, defaultSchema, limit);
+        }
+    }
+
+    private static class RewrittenQuery
+    {
+        private final Statement statement;
+        private final String query;
+        private final Map<String, String> sessionParameters;
+        private final Map<String, String> materializedViews;
+        private final QueryResultCache.Dependencies dependencies;
+
+        private RewrittenQuery(Statement statement, String query, Map<String, String> sessionParameters, Map<String, String> materializedViews, QueryResultCache.Dependencies dependencies)
+        {
+            this.statement = statement;
+            this.query = query;
+            this.sessionParameters = sessionParameters;
+            this.materializedViews = materializedViews;
+            this.dependencies = dependencies;
+        }
+    }
 }
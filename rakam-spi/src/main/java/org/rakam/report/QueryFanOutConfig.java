@@ -0,0 +1,56 @@
+package org.rakam.report;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+
+import javax.validation.constraints.Min;
+
+public class QueryFanOutConfig
+{
+    private int maxParallelism = 8;
+    private int minCollections = 10;
+    private int maxGroups = 1000;
+
+    @Min(1)
+    public int getMaxParallelism()
+    {
+        return maxParallelism;
+    }
+
+    @Config("query.fan-out.max-parallelism")
+    @ConfigDescription("The number of collections of a query on _all that are queried at the same time")
+    public QueryFanOutConfig setMaxParallelism(int maxParallelism)
+    {
+        this.maxParallelism = maxParallelism;
+        return this;
+    }
+
+    @Min(1)
+    public int getMinCollections()
+    {
+        return minCollections;
+    }
+
+    @Config("query.fan-out.min-collections")
+    @ConfigDescription("The queries on _all are executed as a single query if the project has fewer collections")
+    public QueryFanOutConfig setMinCollections(int minCollections)
+    {
+        this.minCollections = minCollections;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxGroups()
+    {
+        return maxGroups;
+    }
+
+    @Config("query.fan-out.max-groups")
+    @ConfigDescription("The number of groups of a collection that are merged by the aggregation queries on _all, " +
+            "the queries are executed on the union of the collections if a collection has more groups")
+    public QueryFanOutConfig setMaxGroups(int maxGroups)
+    {
+        this.maxGroups = maxGroups;
+        return this;
+    }
+}
@@ -0,0 +1,390 @@
+package org.rakam.report;
+
+import com.facebook.presto.sql.tree.AliasedRelation;
+import com.facebook.presto.sql.tree.AllColumns;
+import com.facebook.presto.sql.tree.ArithmeticBinaryExpression;
+import com.facebook.presto.sql.tree.BetweenPredicate;
+import com.facebook.presto.sql.tree.BooleanLiteral;
+import com.facebook.presto.sql.tree.Cast;
+import com.facebook.presto.sql.tree.ComparisonExpression;
+import com.facebook.presto.sql.tree.DereferenceExpression;
+import com.facebook.presto.sql.tree.DoubleLiteral;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.FunctionCall;
+import com.facebook.presto.sql.tree.GroupingElement;
+import com.facebook.presto.sql.tree.InListExpression;
+import com.facebook.presto.sql.tree.InPredicate;
+import com.facebook.presto.sql.tree.IsNotNullPredicate;
+import com.facebook.presto.sql.tree.IsNullPredicate;
+import com.facebook.presto.sql.tree.LikePredicate;
+import com.facebook.presto.sql.tree.Literal;
+import com.facebook.presto.sql.tree.LogicalBinaryExpression;
+import com.facebook.presto.sql.tree.LongLiteral;
+import com.facebook.presto.sql.tree.NotExpression;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.facebook.presto.sql.tree.Query;
+import com.facebook.presto.sql.tree.QuerySpecification;
+import com.facebook.presto.sql.tree.Relation;
+import com.facebook.presto.sql.tree.SelectItem;
+import com.facebook.presto.sql.tree.SimpleGroupBy;
+import com.facebook.presto.sql.tree.SingleColumn;
+import com.facebook.presto.sql.tree.SortItem;
+import com.facebook.presto.sql.tree.StringLiteral;
+import com.facebook.presto.sql.tree.Table;
+import com.facebook.presto.sql.tree.TimestampLiteral;
+import com.google.common.collect.ImmutableList;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.JDBCUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Infers the columns of simple queries that read a single collection from the collection schema so that
+ * the query doesn't need to be sent to the database. The queries that can't be analyzed such as joins,
+ * subqueries or the expressions whose types depend on the database are not resolved.
+ * <p>
+ * The metadata of a query that fails to execute must not be returned, so the WHERE, GROUP BY and ORDER BY
+ * clauses are validated as well. They may only reference the columns of the collection, and the operands of
+ * their operators must have compatible types. The queries that aggregate the rows may only select the grouped
+ * columns outside the aggregations.
+ */
+class QueryMetadataResolver
+{
+    private final Metastore metastore;
+
+    QueryMetadataResolver(Metastore metastore)
+    {
+        this.metastore = metastore;
+    }
+
+    public Optional<List<SchemaField>> resolve(String project, Query query)
+    {
+        if (query.getWith().isPresent() || !(query.getQueryBody() instanceof QuerySpecification)) {
+            return Optional.empty();
+        }
+
+        QuerySpecification specification = (QuerySpecification) query.getQueryBody();
+        if (!specification.getFrom().isPresent()) {
+            return Optional.empty();
+        }
+
+        Relation relation = specification.getFrom().get();
+        String alias = null;
+        if (relation instanceof AliasedRelation) {
+            AliasedRelation aliasedRelation = (AliasedRelation) relation;
+            if (aliasedRelation.getColumnNames() != null && !aliasedRelation.getColumnNames().isEmpty()) {
+                return Optional.empty();
+            }
+            alias = aliasedRelation.getAlias();
+            relation = aliasedRelation.getRelation();
+        }
+
+        if (!(relation instanceof Table)) {
+            return Optional.empty();
+        }
+
+        QualifiedName tableName = ((Table) relation).getName();
+        String collection = tableName.getSuffix();
+        if (tableName.getPrefix().isPresent()) {
+            if (!tableName.getPrefix().get().toString().equals("collection")) {
+                return Optional.empty();
+            }
+        }
+        else if (collection.equals("_all") || collection.equals("users") || collection.equals("_users")) {
+            return Optional.empty();
+        }
+
+        List<SchemaField> fields = metastore.getCollection(project, collection);
+        if (fields == null || fields.isEmpty()) {
+            // let the database report the missing table
+            return Optional.empty();
+        }
+
+        String relationName = alias != null ? alias : collection;
+        List<SelectItem> items = specification.getSelect().getSelectItems();
+        if (specification.getHaving().isPresent()
+                || (specification.getWhere().isPresent() && getFilterType(specification.getWhere().get(), fields, relationName) != FieldType.BOOLEAN)) {
+            return Optional.empty();
+        }
+
+        List<Expression> groupBy = new ArrayList<>();
+        if (specification.getGroupBy().isPresent()) {
+            for (GroupingElement element : specification.getGroupBy().get().getGroupingElements()) {
+                if (!(element instanceof SimpleGroupBy)) {
+                    return Optional.empty();
+                }
+                for (Expression expression : ((SimpleGroupBy) element).getColumnExpressions()) {
+                    if (expression instanceof LongLiteral) {
+                        long ordinal = ((LongLiteral) expression).getValue();
+                        if (ordinal < 1 || ordinal > items.size() || !(items.get((int) ordinal - 1) instanceof SingleColumn)) {
+                            return Optional.empty();
+                        }
+                        expression = ((SingleColumn) items.get((int) ordinal - 1)).getExpression();
+                    }
+                    else if (getFilterType(expression, fields, relationName) == null) {
+                        return Optional.empty();
+                    }
+                    if (expression instanceof FunctionCall) {
+                        return Optional.empty();
+                    }
+                    groupBy.add(expression);
+                }
+            }
+        }
+
+        boolean aggregation = !groupBy.isEmpty() || items.stream()
+                .anyMatch(item -> item instanceof SingleColumn && ((SingleColumn) item).getExpression() instanceof FunctionCall);
+
+        ImmutableList.Builder<SchemaField> columns = ImmutableList.builder();
+        for (SelectItem item : items) {
+            if (item instanceof AllColumns) {
+                Optional<QualifiedName> prefix = ((AllColumns) item).getPrefix();
+                if (aggregation || (prefix.isPresent() && !prefix.get().toString().equals(relationName))) {
+                    return Optional.empty();
+                }
+                columns.addAll(fields);
+                continue;
+            }
+
+            SingleColumn column = (SingleColumn) item;
+            FieldType type = getType(column.getExpression(), fields, relationName);
+            if (type == null) {
+                return Optional.empty();
+            }
+            if (aggregation && !(column.getExpression() instanceof FunctionCall) && !isGrouped(column.getExpression(), groupBy, relationName)) {
+                return Optional.empty();
+            }
+
+            String name;
+            if (column.getAlias().isPresent()) {
+                name = column.getAlias().get();
+            }
+            else {
+                // the names of the unaliased expressions are generated by the database
+                name = getColumnName(column.getExpression(), relationName);
+                if (name == null) {
+                    return Optional.empty();
+                }
+            }
+
+            columns.add(new SchemaField(name, type));
+        }
+
+        List<SortItem> sortItems = ImmutableList.<SortItem>builder().addAll(query.getOrderBy()).addAll(specification.getOrderBy()).build();
+        for (SortItem sortItem : sortItems) {
+            if (!isValidSortKey(sortItem.getSortKey(), items, groupBy, aggregation, fields, relationName)) {
+                return Optional.empty();
+            }
+        }
+
+        return Optional.of(columns.build());
+    }
+
+    private static boolean isValidSortKey(Expression sortKey, List<SelectItem> items, List<Expression> groupBy, boolean aggregation, List<SchemaField> fields, String relationName)
+    {
+        if (sortKey instanceof LongLiteral) {
+            long ordinal = ((LongLiteral) sortKey).getValue();
+            return ordinal >= 1 && ordinal <= items.size();
+        }
+
+        for (SelectItem item : items) {
+            if (!(item instanceof SingleColumn)) {
+                continue;
+            }
+            SingleColumn column = (SingleColumn) item;
+            if (column.getExpression().equals(sortKey)) {
+                return true;
+            }
+            if (sortKey instanceof QualifiedNameReference && column.getAlias().isPresent()
+                    && column.getAlias().get().equals(((QualifiedNameReference) sortKey).getName().toString())) {
+                return true;
+            }
+        }
+
+        if (aggregation) {
+            return isGrouped(sortKey, groupBy, relationName);
+        }
+        return getFilterType(sortKey, fields, relationName) != null;
+    }
+
+    /**
+     * Returns true if the expression only references the grouped columns so that it can be selected outside of
+     * the aggregations.
+     */
+    private static boolean isGrouped(Expression expression, List<Expression> groupBy, String relationName)
+    {
+        if (groupBy.contains(expression) || expression instanceof Literal) {
+            return true;
+        }
+        if (expression instanceof Cast) {
+            return isGrouped(((Cast) expression).getExpression(), groupBy, relationName);
+        }
+
+        String columnName = getColumnName(expression, relationName);
+        return columnName != null && groupBy.stream().anyMatch(key -> columnName.equals(getColumnName(key, relationName)));
+    }
+
+    /**
+     * Returns the type of the expression of the WHERE, GROUP BY or ORDER BY clauses or null if the expression
+     * can't be validated without the database.
+     */
+    private static FieldType getFilterType(Expression expression, List<SchemaField> fields, String relationName)
+    {
+        if (expression instanceof ComparisonExpression) {
+            ComparisonExpression comparison = (ComparisonExpression) expression;
+            return isComparable(fields, relationName, comparison.getLeft(), comparison.getRight()) ? FieldType.BOOLEAN : null;
+        }
+        if (expression instanceof BetweenPredicate) {
+            BetweenPredicate between = (BetweenPredicate) expression;
+            return isComparable(fields, relationName, between.getValue(), between.getMin(), between.getMax()) ? FieldType.BOOLEAN : null;
+        }
+        if (expression instanceof InPredicate) {
+            InPredicate in = (InPredicate) expression;
+            if (!(in.getValueList() instanceof InListExpression)) {
+                return null;
+            }
+            List<Expression> values = new ArrayList<>(((InListExpression) in.getValueList()).getValues());
+            values.add(in.getValue());
+            return isComparable(fields, relationName, values.toArray(new Expression[0])) ? FieldType.BOOLEAN : null;
+        }
+        if (expression instanceof LikePredicate) {
+            LikePredicate like = (LikePredicate) expression;
+            return like.getEscape() == null && like.getPattern() instanceof StringLiteral
+                    && getFilterType(like.getValue(), fields, relationName) == FieldType.STRING ? FieldType.BOOLEAN : null;
+        }
+        if (expression instanceof IsNullPredicate) {
+            return getFilterType(((IsNullPredicate) expression).getValue(), fields, relationName) != null ? FieldType.BOOLEAN : null;
+        }
+        if (expression instanceof IsNotNullPredicate) {
+            return getFilterType(((IsNotNullPredicate) expression).getValue(), fields, relationName) != null ? FieldType.BOOLEAN : null;
+        }
+        if (expression instanceof NotExpression) {
+            return getFilterType(((NotExpression) expression).getValue(), fields, relationName) == FieldType.BOOLEAN ? FieldType.BOOLEAN : null;
+        }
+        if (expression instanceof LogicalBinaryExpression) {
+            LogicalBinaryExpression logical = (LogicalBinaryExpression) expression;
+            return getFilterType(logical.getLeft(), fields, relationName) == FieldType.BOOLEAN
+                    && getFilterType(logical.getRight(), fields, relationName) == FieldType.BOOLEAN ? FieldType.BOOLEAN : null;
+        }
+        if (expression instanceof ArithmeticBinaryExpression) {
+            FieldType left = getFilterType(((ArithmeticBinaryExpression) expression).getLeft(), fields, relationName);
+            FieldType right = getFilterType(((ArithmeticBinaryExpression) expression).getRight(), fields, relationName);
+            if (left == null || right == null || !left.isNumeric() || !right.isNumeric()) {
+                return null;
+            }
+            return left == right ? left : FieldType.DOUBLE;
+        }
+        if (expression instanceof FunctionCall) {
+            return null;
+        }
+
+        return getType(expression, fields, relationName);
+    }
+
+    private static boolean isComparable(List<SchemaField> fields, String relationName, Expression... expressions)
+    {
+        FieldType type = null;
+        for (Expression expression : expressions) {
+            FieldType expressionType = getFilterType(expression, fields, relationName);
+            if (expressionType == null) {
+                return false;
+            }
+            if (type != null && type != expressionType && !(type.isNumeric() && expressionType.isNumeric())) {
+                return false;
+            }
+            type = expressionType;
+        }
+        return true;
+    }
+
+    private static FieldType getType(Expression expression, List<SchemaField> fields, String relationName)
+    {
+        String columnName = getColumnName(expression, relationName);
+        if (columnName != null) {
+            return fields.stream().filter(field -> field.getName().equals(columnName))
+                    .map(SchemaField::getType).findAny().orElse(null);
+        }
+
+        if (expression instanceof LongLiteral) {
+            return FieldType.LONG;
+        }
+        if (expression instanceof DoubleLiteral) {
+            return FieldType.DOUBLE;
+        }
+        if (expression instanceof StringLiteral) {
+            return FieldType.STRING;
+        }
+        if (expression instanceof BooleanLiteral) {
+            return FieldType.BOOLEAN;
+        }
+        if (expression instanceof TimestampLiteral) {
+            return FieldType.TIMESTAMP;
+        }
+
+        if (expression instanceof Cast) {
+            if (getType(((Cast) expression).getExpression(), fields, relationName) == null) {
+                return null;
+            }
+            FieldType type;
+            try {
+                type = JDBCUtil.getType(((Cast) expression).getType());
+            }
+            catch (IllegalArgumentException e) {
+                return null;
+            }
+            // the precision of the decimal and the element types of the complex types depend on the database
+            return type == FieldType.DECIMAL || type.isArray() || type.isMap() ? null : type;
+        }
+
+        if (expression instanceof FunctionCall) {
+            FunctionCall call = (FunctionCall) expression;
+            // the aggregations can't be nested and the window functions are not validated
+            if (call.getWindow().isPresent() || call.getArguments().stream().anyMatch(argument -> argument instanceof FunctionCall
+                    || getType(argument, fields, relationName) == null)) {
+                return null;
+            }
+            String function = call.getName().getSuffix().toLowerCase(Locale.ENGLISH);
+            switch (function) {
+                case "count":
+                    return FieldType.LONG;
+                case "min":
+                case "max":
+                    if (call.getArguments().size() != 1) {
+                        return null;
+                    }
+                    return getType(call.getArguments().get(0), fields, relationName);
+                default:
+                    return null;
+            }
+        }
+
+        return null;
+    }
+
+    private static String getColumnName(Expression expression, String relationName)
+    {
+        if (expression instanceof QualifiedNameReference) {
+            QualifiedName name = ((QualifiedNameReference) expression).getName();
+            if (name.getPrefix().isPresent() && !name.getPrefix().get().toString().equals(relationName)) {
+                return null;
+            }
+            return name.getSuffix();
+        }
+
+        if (expression instanceof DereferenceExpression) {
+            DereferenceExpression dereference = (DereferenceExpression) expression;
+            if (dereference.getBase() instanceof QualifiedNameReference &&
+                    ((QualifiedNameReference) dereference.getBase()).getName().toString().equals(relationName)) {
+                return dereference.getFieldName();
+            }
+        }
+
+        return null;
+    }
+}
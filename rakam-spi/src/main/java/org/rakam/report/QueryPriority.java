@@ -0,0 +1,13 @@
+package org.rakam.report;
+
+public enum QueryPriority
+{
+    /**
+     * The queries that a user waits for, such as the ones that are sent from the query editor and the reports.
+     */
+    INTERACTIVE,
+    /**
+     * The queries that are run in the background, such as the materialized view refreshes.
+     */
+    BATCH
+}
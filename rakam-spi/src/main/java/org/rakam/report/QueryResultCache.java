@@ -0,0 +1,240 @@
+package org.rakam.report;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import org.rakam.plugin.MaterializedView;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the results of the queries together with the version of the data that they read.
+ * The collections have version counters that are incremented when new events are collected and
+ * the materialized views are versioned by their last update time, so an entry is only served if
+ * none of its sources changed since it was computed.
+ */
+public class QueryResultCache
+{
+    private final boolean enabled;
+    private final Duration maxStaleness;
+    private final Cache<CacheKey, CachedResult> cache;
+    private final Map<String, ProjectVersions> versions = new ConcurrentHashMap<>();
+
+    @Inject
+    public QueryResultCache(QueryResultCacheConfig config)
+    {
+        this.enabled = config.getEnabled() && config.getMaxCells() > 0;
+        this.maxStaleness = Duration.ofMillis(config.getMaxStaleness().toMillis());
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(config.getMaxCells())
+                .weigher((CacheKey key, CachedResult value) -> value.weight)
+                .expireAfterWrite(config.getMaxStaleness().toMillis(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public static QueryResultCache disabled()
+    {
+        return new QueryResultCache(new QueryResultCacheConfig().setEnabled(false));
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public void markUpdated(String project, String collection)
+    {
+        ProjectVersions projectVersions = versions.get(project);
+        if (projectVersions == null) {
+            // no query that depends on the project has been cached yet
+            return;
+        }
+        projectVersions.all.incrementAndGet();
+        projectVersions.collections.computeIfAbsent(collection, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    public void invalidate(String project)
+    {
+        ProjectVersions projectVersions = versions.get(project);
+        if (projectVersions != null) {
+            projectVersions.all.incrementAndGet();
+            projectVersions.collections.values().forEach(AtomicLong::incrementAndGet);
+        }
+    }
+
+    /**
+     * Captures the current version of the sources of the query. The snapshot must be taken before the query
+     * is executed so that the events that are collected while the query is running invalidate the result.
+     */
+    public List<Object> snapshot(String project, Dependencies dependencies, Map<MaterializedView, ?> materializedViews)
+    {
+        ProjectVersions projectVersions = versions.computeIfAbsent(project, k -> new ProjectVersions());
+
+        ImmutableList.Builder<Object> builder = ImmutableList.builder();
+        builder.add(dependencies.allCollections ? projectVersions.all.get() : -1);
+        for (String collection : dependencies.collections) {
+            builder.add(projectVersions.collections.computeIfAbsent(collection, k -> new AtomicLong()).get());
+        }
+
+        TreeMap<String, Long> viewVersions = new TreeMap<>();
+        for (MaterializedView view : materializedViews.keySet()) {
+            viewVersions.put(view.tableName, view.lastUpdate == null ? -1 : view.lastUpdate.toEpochMilli());
+        }
+        builder.add(viewVersions);
+
+        return builder.build();
+    }
+
+    public QueryResult get(String project, String query, List<Object> snapshot, Duration maxStaleness)
+    {
+        if (!enabled) {
+            return null;
+        }
+
+        CacheKey key = new CacheKey(project, query);
+        CachedResult cached = cache.getIfPresent(key);
+        if (cached == null) {
+            return null;
+        }
+
+        if (!cached.snapshot.equals(snapshot)) {
+            cache.invalidate(key);
+            return null;
+        }
+
+        Duration limit = maxStaleness == null ? this.maxStaleness : maxStaleness;
+        if (Duration.between(cached.createdAt, Instant.now()).compareTo(limit) > 0) {
+            return null;
+        }
+
+        return copyOf(cached.result);
+    }
+
+    public void put(String project, String query, List<Object> snapshot, QueryResult result)
+    {
+        if (!enabled || result.isFailed()) {
+            return;
+        }
+
+        List<List<Object>> rows = result.getResult();
+        int columns = result.getMetadata() == null ? 1 : Math.max(1, result.getMetadata().size());
+        long weight = (long) (rows == null ? 0 : rows.size()) * columns;
+        cache.put(new CacheKey(project, query),
+                new CachedResult(copyOf(result), snapshot, Instant.now(), (int) Math.min(Integer.MAX_VALUE, weight + 1)));
+    }
+
+    /**
+     * The callers set the properties of the results, so the cached result is not shared with them.
+     */
+    private static QueryResult copyOf(QueryResult result)
+    {
+        Map<String, Object> properties = result.getProperties();
+        return new QueryResult(result.getMetadata(),
+                result.getResult() == null ? null : Collections.unmodifiableList(result.getResult()),
+                properties.isEmpty() ? null : new HashMap<>(properties));
+    }
+
+    public CacheStats getStats()
+    {
+        return cache.stats();
+    }
+
+    /**
+     * The sources that a query reads. The queries that read from the sources that can't be versioned,
+     * such as the custom data sources and the user table, are not cacheable.
+     */
+    public static class Dependencies
+    {
+        private final Set<String> collections = new TreeSet<>();
+        private boolean allCollections;
+        private boolean cacheable = true;
+
+        public void addCollection(String collection)
+        {
+            collections.add(collection);
+        }
+
+        public void addAllCollections()
+        {
+            allCollections = true;
+        }
+
+        public void markUncacheable()
+        {
+            cacheable = false;
+        }
+
+        public boolean isCacheable()
+        {
+            return cacheable;
+        }
+    }
+
+    private static class ProjectVersions
+    {
+        private final AtomicLong all = new AtomicLong();
+        private final Map<String, AtomicLong> collections = new ConcurrentHashMap<>();
+    }
+
+    private static class CachedResult
+    {
+        private final QueryResult result;
+        private final List<Object> snapshot;
+        private final Instant createdAt;
+        private final int weight;
+
+        private CachedResult(QueryResult result, List<Object> snapshot, Instant createdAt, int weight)
+        {
+            this.result = result;
+            this.snapshot = snapshot;
+            this.createdAt = createdAt;
+            this.weight = weight;
+        }
+    }
+
+    private static class CacheKey
+    {
+        private final String project;
+        private final String query;
+
+        private CacheKey(String project, String query)
+        {
+            this.project = project;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey cacheKey = (CacheKey) o;
+            return project.equals(cacheKey.project) && query.equals(cacheKey.query);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, query);
+        }
+    }
+}
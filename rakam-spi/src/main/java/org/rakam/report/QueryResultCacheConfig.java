@@ -0,0 +1,56 @@
+package org.rakam.report;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import javax.validation.constraints.Min;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+public class QueryResultCacheConfig
+{
+    private boolean enabled = true;
+    private long maxCells = 10_000_000;
+    private Duration maxStaleness = new Duration(1, MINUTES);
+
+    public boolean getEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("query.result-cache.enabled")
+    public QueryResultCacheConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    @Min(0)
+    public long getMaxCells()
+    {
+        return maxCells;
+    }
+
+    @Config("query.result-cache.max-cells")
+    @ConfigDescription("The total number of values (rows * columns) that can be kept in the cache")
+    public QueryResultCacheConfig setMaxCells(long maxCells)
+    {
+        this.maxCells = maxCells;
+        return this;
+    }
+
+    public Duration getMaxStaleness()
+    {
+        return maxStaleness;
+    }
+
+    @Config("query.result-cache.max-staleness")
+    @ConfigDescription("The entries are invalidated when the events are collected by this node, " +
+            "this limit bounds the staleness for the events that are collected by other nodes")
+    public QueryResultCacheConfig setMaxStaleness(Duration maxStaleness)
+    {
+        this.maxStaleness = maxStaleness;
+        return this;
+    }
+}
@@ -0,0 +1,76 @@
+package org.rakam.report;
+
+import org.rakam.collection.SchemaField;
+
+import java.util.List;
+
+/**
+ * A query result that is read incrementally. The implementations fetch the rows from the database
+ * as the pages are consumed, so only a page of the result is kept in memory at a time.
+ *
+ * If the query fails, either before the first page or while the rows are transferred, {@link #nextPage()}
+ * returns null and {@link #getError()} returns the error.
+ */
+public interface QueryResultStream
+        extends AutoCloseable
+{
+    /**
+     * Returns null if the query failed before returning any row.
+     */
+    List<SchemaField> getColumns();
+
+    /**
+     * Returns the next page of rows or null if the result is exhausted, the query failed or the stream is closed.
+     */
+    List<List<Object>> nextPage();
+
+    QueryError getError();
+
+    default boolean isFailed()
+    {
+        return getError() != null;
+    }
+
+    /**
+     * Releases the resources of the query and cancels it if it's still running.
+     * It's safe to call this method from a thread other than the consumer.
+     */
+    @Override
+    void close();
+
+    static QueryResultStream of(QueryResult result)
+    {
+        return new QueryResultStream()
+        {
+            private volatile boolean consumed;
+
+            @Override
+            public List<SchemaField> getColumns()
+            {
+                return result.getMetadata();
+            }
+
+            @Override
+            public List<List<Object>> nextPage()
+            {
+                if (consumed || result.isFailed()) {
+                    return null;
+                }
+                consumed = true;
+                return result.getResult();
+            }
+
+            @Override
+            public QueryError getError()
+            {
+                return result.getError();
+            }
+
+            @Override
+            public void close()
+            {
+                consumed = true;
+            }
+        };
+    }
+}
@@ -3,18 +3,64 @@ package org.rakam.report;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.math.BigDecimal;
+import java.time.Duration;
+
 public class QuerySampling
 {
     public final SampleMethod method;
-    public final int percentage;
+    public final Double percentage;
+    public final Duration targetLatency;
+    public final boolean scale;
+
+    public QuerySampling(SampleMethod method, double percentage)
+    {
+        this(method, percentage, null);
+    }
 
+    public QuerySampling(SampleMethod method, Double percentage, Double targetLatency)
+    {
+        this(method, percentage, targetLatency, null);
+    }
+
+    /**
+     * @param percentage the percentage of the rows that are sampled, it's picked from the table statistics
+     * in order to meet the target latency if it's not set.
+     * @param targetLatency the latency of the query that the percentage is picked for, the default
+     * of the server is used if it's not set.
+     * @param scale whether the aggregations of the result are scaled by the sampling factor, only the results of the
+     * automatic sampling are scaled if it's not set.
+     */
     @JsonCreator
     public QuerySampling(
             @JsonProperty("method") SampleMethod method,
-            @JsonProperty("percentage") int percentage)
+            @JsonProperty("percentage") Double percentage,
+            @JsonProperty("target_latency") Double targetLatency,
+            @JsonProperty("scale") Boolean scale)
     {
-        this.method = method;
+        if (percentage != null && (percentage <= 0 || percentage > 100)) {
+            throw new IllegalArgumentException("percentage must be between 0 and 100");
+        }
+        if (targetLatency != null && targetLatency <= 0) {
+            throw new IllegalArgumentException("target_latency must be a positive value");
+        }
+        this.method = method == null ? SampleMethod.SYSTEM : method;
         this.percentage = percentage;
+        this.targetLatency = targetLatency == null ? null : Duration.ofMillis((long) (targetLatency * 1000));
+        this.scale = scale == null ? percentage == null : scale;
+    }
+
+    public boolean isAutomatic()
+    {
+        return percentage == null;
+    }
+
+    /**
+     * Returns the TABLESAMPLE clause of the table references, the percentage must be resolved.
+     */
+    public String getTableSampleClause()
+    {
+        return " TABLESAMPLE " + method.name() + "(" + BigDecimal.valueOf(percentage).stripTrailingZeros().toPlainString() + ")";
     }
 
     public enum SampleMethod
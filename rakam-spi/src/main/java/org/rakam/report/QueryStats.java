@@ -12,6 +12,21 @@ public class QueryStats {
     public final Long userTime;
     public final Long cpuTime;
     public final Long wallTime;
+    public final Integer queuePosition;
+    /**
+     * The number of events that are not applied to the continuous query since they arrived after its watermark.
+     */
+    public final Long droppedRows;
+
+    public QueryStats(Integer percentage, State state, Integer node, Long processedRows, Long processedBytes,
+                      Long userTime, Long cpuTime, Long wallTime) {
+        this(percentage, state, node, processedRows, processedBytes, userTime, cpuTime, wallTime, null);
+    }
+
+    public QueryStats(Integer percentage, State state, Integer node, Long processedRows, Long processedBytes,
+                      Long userTime, Long cpuTime, Long wallTime, Integer queuePosition) {
+        this(percentage, state, node, processedRows, processedBytes, userTime, cpuTime, wallTime, queuePosition, null);
+    }
 
     @JsonCreator
     public QueryStats(@JsonProperty("percentage") Integer percentage,
@@ -21,7 +36,9 @@ public class QueryStats {
                       @JsonProperty("processedBytes") Long processedBytes,
                       @JsonProperty("userTime") Long userTime,
                       @JsonProperty("cpuTime") Long cpuTime,
-                      @JsonProperty("wallTime") Long wallTime) {
+                      @JsonProperty("wallTime") Long wallTime,
+                      @JsonProperty("queuePosition") Integer queuePosition,
+                      @JsonProperty("droppedRows") Long droppedRows) {
         this.percentage = percentage;
         this.state = state;
         this.node = node;
@@ -30,12 +47,18 @@ public class QueryStats {
         this.cpuTime = cpuTime;
         this.wallTime = wallTime;
         this.processedBytes = processedBytes;
+        this.queuePosition = queuePosition;
+        this.droppedRows = droppedRows;
     }
 
     public QueryStats(State state) {
         this(null, state, null, null, null, null, null, null);
     }
 
+    public static QueryStats queued(int queuePosition) {
+        return new QueryStats(null, State.QUEUED, null, null, null, null, null, null, queuePosition);
+    }
+
     public enum State {
         /**
          * Query is waiting for available thread and not yet sent to the database.
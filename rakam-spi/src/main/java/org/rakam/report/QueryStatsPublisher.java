@@ -0,0 +1,90 @@
+package org.rakam.report;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Publishes the stats of a query to the listeners. The updates are coalesced, the listeners are notified at most
+ * once in the interval with the latest stats except the final stats which are published immediately.
+ * The listeners are called from a shared thread so they must not block.
+ */
+public class QueryStatsPublisher
+{
+    private final static Logger LOGGER = Logger.get(QueryStatsPublisher.class);
+    private static final long INTERVAL_MILLIS = 500;
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("query-stats-publisher")
+            .setDaemon(true).build());
+
+    private final List<Consumer<QueryStats>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile QueryStats stats;
+    private QueryStats published;
+
+    public QueryStatsPublisher(QueryStats stats)
+    {
+        this.stats = stats;
+    }
+
+    public QueryStats current()
+    {
+        return stats;
+    }
+
+    public void addListener(Consumer<QueryStats> listener)
+    {
+        listeners.add(listener);
+        notify(listener, stats);
+    }
+
+    public void update(QueryStats stats)
+    {
+        this.stats = stats;
+        if (stats.state.isDone()) {
+            publish();
+        }
+        else if (scheduled.compareAndSet(false, true)) {
+            SCHEDULER.schedule(this::publish, INTERVAL_MILLIS, MILLISECONDS);
+        }
+    }
+
+    public void finish(QueryResult result)
+    {
+        update(result == null || result.isFailed() ?
+                new QueryStats(QueryStats.State.FAILED) :
+                new QueryStats(100, QueryStats.State.FINISHED, null, null, null, null, null, null));
+    }
+
+    private synchronized void publish()
+    {
+        scheduled.set(false);
+        QueryStats stats = this.stats;
+        if (stats == published) {
+            return;
+        }
+        published = stats;
+
+        for (Consumer<QueryStats> listener : listeners) {
+            notify(listener, stats);
+        }
+    }
+
+    private static void notify(Consumer<QueryStats> listener, QueryStats stats)
+    {
+        try {
+            listener.accept(stats);
+        }
+        catch (Exception e) {
+            LOGGER.error(e, "Error while publishing query stats");
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package org.rakam.report;
+
+import com.google.inject.Inject;
+import io.airlift.log.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+/**
+ * Each project has a resource group that limits the number of its running queries so that a project with
+ * heavy queries can't use all the connections of the database. The queries that exceed the limit wait in
+ * the queue of the project, the interactive queries are started before the batch queries and the batch
+ * queries can't use all the running slots of the project.
+ */
+public class ResourceGroupAdmissionController
+        implements QueryAdmissionController
+{
+    private final static Logger LOGGER = Logger.get(ResourceGroupAdmissionController.class);
+
+    private final boolean enabled;
+    private final int maxRunningQueries;
+    private final int maxRunningBatchQueries;
+    private final int maxQueuedQueries;
+    private final Map<String, ResourceGroup> groups = new ConcurrentHashMap<>();
+
+    @Inject
+    public ResourceGroupAdmissionController(ResourceGroupConfig config)
+    {
+        this.enabled = config.getEnabled();
+        this.maxRunningQueries = config.getMaxRunningQueries();
+        this.maxRunningBatchQueries = Math.min(config.getMaxRunningBatchQueries(), config.getMaxRunningQueries());
+        this.maxQueuedQueries = config.getMaxQueuedQueries();
+    }
+
+    @Override
+    public QueryExecution admit(String project, QueryPriority priority, Supplier<QueryExecution> execution)
+    {
+        if (!enabled) {
+            return execution.get();
+        }
+
+        ResourceGroup group = groups.computeIfAbsent(project, k -> new ResourceGroup());
+        QueuedQueryExecution queuedExecution = new QueuedQueryExecution(group, priority, execution);
+
+        synchronized (group) {
+            if (group.canRun(priority)) {
+                group.acquire(priority);
+            }
+            else if (group.interactive.size() + group.batch.size() >= maxQueuedQueries) {
+                String message = format("There are too many queued queries for the project, the limit is %d", maxQueuedQueries);
+                return QueryExecution.completedQueryExecution(null,
+                        QueryResult.errorResult(new QueryError(message, null, null, null, null)));
+            }
+            else {
+                (priority == QueryPriority.INTERACTIVE ? group.interactive : group.batch).add(queuedExecution);
+                return queuedExecution;
+            }
+        }
+
+        queuedExecution.start();
+        return queuedExecution;
+    }
+
+    public int getRunningQueries(String project)
+    {
+        ResourceGroup group = groups.get(project);
+        if (group == null) {
+            return 0;
+        }
+        synchronized (group) {
+            return group.running;
+        }
+    }
+
+    public int getQueuedQueries(String project)
+    {
+        ResourceGroup group = groups.get(project);
+        if (group == null) {
+            return 0;
+        }
+        synchronized (group) {
+            return group.interactive.size() + group.batch.size();
+        }
+    }
+
+    private class ResourceGroup
+    {
+        private final Deque<QueuedQueryExecution> interactive = new ArrayDeque<>();
+        private final Deque<QueuedQueryExecution> batch = new ArrayDeque<>();
+        private int running;
+        private int runningBatch;
+
+        private boolean canRun(QueryPriority priority)
+        {
+            if (running >= maxRunningQueries) {
+                return false;
+            }
+            if (priority == QueryPriority.BATCH) {
+                return runningBatch < maxRunningBatchQueries;
+            }
+            return true;
+        }
+
+        private void acquire(QueryPriority priority)
+        {
+            running++;
+            if (priority == QueryPriority.BATCH) {
+                runningBatch++;
+            }
+        }
+
+        private void release(QueryPriority priority)
+        {
+            QueuedQueryExecution next;
+            synchronized (this) {
+                running--;
+                if (priority == QueryPriority.BATCH) {
+                    runningBatch--;
+                }
+
+                if (!interactive.isEmpty() && canRun(QueryPriority.INTERACTIVE)) {
+                    next = interactive.poll();
+                }
+                else if (!batch.isEmpty() && canRun(QueryPriority.BATCH)) {
+                    next = batch.poll();
+                }
+                else {
+                    return;
+                }
+
+                acquire(next.priority);
+            }
+
+            next.start();
+            publishQueuePositions();
+        }
+
+        private void publishQueuePositions()
+        {
+            List<QueuedQueryExecution> queued;
+            synchronized (this) {
+                queued = new ArrayList<>(interactive.size() + batch.size());
+                queued.addAll(interactive);
+                queued.addAll(batch);
+            }
+
+            for (int i = 0; i < queued.size(); i++) {
+                queued.get(i).publishStats(QueryStats.queued(i));
+            }
+        }
+
+        private synchronized int position(QueuedQueryExecution execution)
+        {
+            int position = 0;
+            for (QueuedQueryExecution queued : interactive) {
+                if (queued == execution) {
+                    return position;
+                }
+                position++;
+            }
+            for (QueuedQueryExecution queued : batch) {
+                if (queued == execution) {
+                    return position;
+                }
+                position++;
+            }
+            return -1;
+        }
+
+        private synchronized boolean remove(QueuedQueryExecution execution)
+        {
+            return interactive.remove(execution) || batch.remove(execution);
+        }
+    }
+
+    private static class QueuedQueryExecution
+            implements QueryExecution
+    {
+        private final ResourceGroup group;
+        private final QueryPriority priority;
+        private final Supplier<QueryExecution> supplier;
+        private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
+        private final List<Consumer<QueryStats>> listeners = new ArrayList<>();
+        private volatile QueryExecution execution;
+
+        private QueuedQueryExecution(ResourceGroup group, QueryPriority priority, Supplier<QueryExecution> supplier)
+        {
+            this.group = group;
+            this.priority = priority;
+            this.supplier = supplier;
+        }
+
+        private void start()
+        {
+            QueryExecution execution;
+            try {
+                execution = supplier.get();
+            }
+            catch (RuntimeException e) {
+                LOGGER.error(e, "Error while starting the query");
+                group.release(priority);
+                publishStats(new QueryStats(QueryStats.State.FAILED));
+                result.complete(QueryResult.errorResult(new QueryError(e.getMessage(), null, null, null, null)));
+                return;
+            }
+
+            List<Consumer<QueryStats>> listeners;
+            synchronized (this) {
+                this.execution = execution;
+                listeners = new ArrayList<>(this.listeners);
+                this.listeners.clear();
+            }
+            listeners.forEach(execution::addStatsListener);
+
+            execution.getResult().whenComplete((queryResult, ex) -> {
+                group.release(priority);
+                if (ex != null) {
+                    result.completeExceptionally(ex);
+                }
+                else {
+                    result.complete(queryResult);
+                }
+            });
+        }
+
+        private void publishStats(QueryStats stats)
+        {
+            List<Consumer<QueryStats>> listeners;
+            synchronized (this) {
+                if (execution != null) {
+                    return;
+                }
+                listeners = new ArrayList<>(this.listeners);
+            }
+            listeners.forEach(listener -> listener.accept(stats));
+        }
+
+        @Override
+        public void addStatsListener(Consumer<QueryStats> listener)
+        {
+            QueryExecution execution;
+            synchronized (this) {
+                execution = this.execution;
+                if (execution == null) {
+                    listeners.add(listener);
+                }
+            }
+
+            if (execution != null) {
+                execution.addStatsListener(listener);
+            }
+            else {
+                listener.accept(currentStats());
+            }
+        }
+
+        @Override
+        public QueryStats currentStats()
+        {
+            QueryExecution execution = this.execution;
+            if (execution != null) {
+                return execution.currentStats();
+            }
+
+            int position = group.position(this);
+            if (position >= 0) {
+                return QueryStats.queued(position);
+            }
+            return new QueryStats(result.isDone() ? QueryStats.State.FAILED : QueryStats.State.STARTING);
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult()
+        {
+            return result;
+        }
+
+        @Override
+        public void kill()
+        {
+            QueryExecution execution = this.execution;
+            if (execution != null) {
+                execution.kill();
+            }
+            else if (group.remove(this)) {
+                publishStats(new QueryStats(QueryStats.State.FAILED));
+                group.publishQueuePositions();
+                result.complete(QueryResult.errorResult(new QueryError("Query is killed while waiting in the queue", null, null, null, null)));
+            }
+            else if (this.execution != null) {
+                // the query is started while it's being killed
+                this.execution.kill();
+            }
+        }
+    }
+}
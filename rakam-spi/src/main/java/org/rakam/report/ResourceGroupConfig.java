@@ -0,0 +1,69 @@
+package org.rakam.report;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+
+import javax.validation.constraints.Min;
+
+public class ResourceGroupConfig
+{
+    private boolean enabled = true;
+    private int maxRunningQueries = 10;
+    private int maxRunningBatchQueries = 3;
+    private int maxQueuedQueries = 100;
+
+    public boolean getEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("query.resource-group.enabled")
+    public ResourceGroupConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxRunningQueries()
+    {
+        return maxRunningQueries;
+    }
+
+    @Config("query.resource-group.max-running-queries")
+    @ConfigDescription("The maximum number of queries that a project can run concurrently")
+    public ResourceGroupConfig setMaxRunningQueries(int maxRunningQueries)
+    {
+        this.maxRunningQueries = maxRunningQueries;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxRunningBatchQueries()
+    {
+        return maxRunningBatchQueries;
+    }
+
+    @Config("query.resource-group.max-running-batch-queries")
+    @ConfigDescription("The maximum number of running slots of a project that can be used by the background queries " +
+            "such as materialized view refreshes")
+    public ResourceGroupConfig setMaxRunningBatchQueries(int maxRunningBatchQueries)
+    {
+        this.maxRunningBatchQueries = maxRunningBatchQueries;
+        return this;
+    }
+
+    @Min(0)
+    public int getMaxQueuedQueries()
+    {
+        return maxQueuedQueries;
+    }
+
+    @Config("query.resource-group.max-queued-queries")
+    @ConfigDescription("The queries of a project are rejected when this many queries are waiting for a slot")
+    public ResourceGroupConfig setMaxQueuedQueries(int maxQueuedQueries)
+    {
+        this.maxQueuedQueries = maxQueuedQueries;
+        return this;
+    }
+}
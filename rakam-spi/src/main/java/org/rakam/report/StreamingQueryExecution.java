@@ -0,0 +1,135 @@
+package org.rakam.report;
+
+import org.rakam.collection.SchemaField;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Exposes a streaming query as a {@link QueryExecution} so that it's admitted by the {@link QueryAdmissionController}
+ * like the other queries of the project. The execution finishes when the stream is closed, so the stream holds
+ * the running slot of the project while its rows are transferred.
+ */
+class StreamingQueryExecution
+        implements QueryExecution
+{
+    private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
+    private final CompletableFuture<QueryResultStream> stream;
+
+    private StreamingQueryExecution(CompletableFuture<QueryResultStream> stream)
+    {
+        this.stream = stream.thenApply(AdmittedStream::new);
+        this.stream.whenComplete((resultStream, ex) -> {
+            if (ex != null) {
+                result.completeExceptionally(ex);
+            }
+        });
+    }
+
+    /**
+     * @param execution starts the query, it's called once the project has an available slot.
+     */
+    public static CompletableFuture<QueryResultStream> admit(String project, QueryAdmissionController admissionController, Supplier<CompletableFuture<QueryResultStream>> execution)
+    {
+        CompletableFuture<QueryResultStream> future = new CompletableFuture<>();
+
+        QueryExecution admission = admissionController.admit(project, QueryPriority.INTERACTIVE, () -> {
+            StreamingQueryExecution streamingExecution = new StreamingQueryExecution(execution.get());
+            streamingExecution.stream.whenComplete((stream, ex) -> {
+                if (ex != null) {
+                    future.completeExceptionally(ex);
+                }
+                else if (!future.complete(stream)) {
+                    // the request is cancelled while the query is starting
+                    stream.close();
+                }
+            });
+            return streamingExecution;
+        });
+
+        // the query may be rejected or killed while it's waiting in the queue
+        admission.getResult().whenComplete((queryResult, ex) -> {
+            if (ex != null) {
+                future.completeExceptionally(ex);
+            }
+            else {
+                future.complete(QueryResultStream.of(queryResult));
+            }
+        });
+        future.whenComplete((stream, ex) -> {
+            if (ex instanceof CancellationException) {
+                admission.kill();
+            }
+        });
+
+        return future;
+    }
+
+    @Override
+    public QueryStats currentStats()
+    {
+        return new QueryStats(result.isDone() ? QueryStats.State.FINISHED : QueryStats.State.RUNNING);
+    }
+
+    @Override
+    public boolean isFinished()
+    {
+        return result.isDone();
+    }
+
+    @Override
+    public CompletableFuture<QueryResult> getResult()
+    {
+        return result;
+    }
+
+    @Override
+    public void kill()
+    {
+        // the consumer sees the end of the result once the stream is closed
+        stream.thenAccept(QueryResultStream::close);
+    }
+
+    private class AdmittedStream
+            implements QueryResultStream
+    {
+        private final QueryResultStream delegate;
+
+        private AdmittedStream(QueryResultStream delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public List<SchemaField> getColumns()
+        {
+            return delegate.getColumns();
+        }
+
+        @Override
+        public List<List<Object>> nextPage()
+        {
+            return delegate.nextPage();
+        }
+
+        @Override
+        public QueryError getError()
+        {
+            return delegate.getError();
+        }
+
+        @Override
+        public void close()
+        {
+            try {
+                delegate.close();
+            }
+            finally {
+                // releases the slot of the project
+                result.complete(delegate.isFailed() ? QueryResult.errorResult(delegate.getError()) : QueryResult.empty());
+            }
+        }
+    }
+}
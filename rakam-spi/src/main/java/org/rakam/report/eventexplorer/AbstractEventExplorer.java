@@ -68,6 +68,7 @@ public abstract class AbstractEventExplorer
     private final MaterializedViewService materializedViewService;
     private final ContinuousQueryService continuousQueryService;
     private final ProjectConfig projectConfig;
+    private final EventExplorerRollupService rollupService;
 
     public AbstractEventExplorer(
             ProjectConfig projectConfig,
@@ -75,12 +76,24 @@ public abstract class AbstractEventExplorer
             MaterializedViewService materializedViewService,
             ContinuousQueryService continuousQueryService,
             Map<TimestampTransformation, String> timestampMapping)
+    {
+        this(projectConfig, executor, materializedViewService, continuousQueryService, null, timestampMapping);
+    }
+
+    public AbstractEventExplorer(
+            ProjectConfig projectConfig,
+            QueryExecutorService executor,
+            MaterializedViewService materializedViewService,
+            ContinuousQueryService continuousQueryService,
+            EventExplorerRollupService rollupService,
+            Map<TimestampTransformation, String> timestampMapping)
     {
         this.projectConfig = projectConfig;
         this.executor = executor;
         this.timestampMapping = timestampMapping;
         this.materializedViewService = materializedViewService;
         this.continuousQueryService = continuousQueryService;
+        this.rollupService = rollupService;
     }
 
     public static void checkReference(String refValue, Instant startDate, Instant endDate, int size)
@@ -212,6 +225,15 @@ public abstract class AbstractEventExplorer
                     .map(view -> new AbstractMap.SimpleImmutableEntry<>(view, "continuous." + checkCollection(view.tableName)));
         }
 
+        Optional<List<EventExplorerRollup>> rollups = Optional.empty();
+        if (rollupService != null) {
+            Optional<Set<String>> filterColumns = EventExplorerRollupService.getFilterColumns(filterExpression);
+            rollupService.record(project, collections, measure, grouping, segment, filterColumns);
+            if (!preComputedTable.isPresent()) {
+                rollups = rollupService.findRollups(project, collections, measure, grouping, segment, filterColumns, startDate, endDate);
+            }
+        }
+
         String timeFilter = format(" %s between timestamp '%s' and timestamp '%s' + interval '1' day",
                 checkTableColumn(projectConfig.getTimeColumn()),
                 TIMESTAMP_FORMATTER.format(startDate), TIMESTAMP_FORMATTER.format(endDate));
@@ -249,6 +271,34 @@ public abstract class AbstractEventExplorer
                     ).filter(e -> e != null && !e.isEmpty()).collect(Collectors.joining(" AND ")),
                     groupBy);
         }
+        else if (rollups.isPresent()) {
+            // the buckets of the rollups don't overlap with the end of the time range
+            String where = format("%s >= timestamp '%s' and %s < timestamp '%s' + interval '1' day",
+                    checkTableColumn(projectConfig.getTimeColumn()), TIMESTAMP_FORMATTER.format(startDate),
+                    checkTableColumn(projectConfig.getTimeColumn()), TIMESTAMP_FORMATTER.format(endDate)) +
+                    (filterExpression == null ? "" : (" AND " + filterExpression));
+            String partialColumns = EventExplorerRollup.getPartialColumns(measure).stream()
+                    .map(column -> checkTableColumn(column)).collect(Collectors.joining(", "));
+
+            String selectPart = (grouping == null ? "" : checkTableColumn(getColumnReference(grouping) + "_group")) +
+                    (grouping == null ? "" : ", ") + checkTableColumn(getColumnReference(segment) + "_segment");
+
+            String queries = rollups.get().stream()
+                    .map(rollup -> {
+                        String select = generateComputeQuery(grouping, segment, rollup.collection);
+                        return format("select %s %s from materialized.%s where %s",
+                                select.isEmpty() ? select : select + ",",
+                                partialColumns,
+                                checkCollection(rollup.tableName), where);
+                    })
+                    .collect(Collectors.joining(" union all "));
+
+            computeQuery = format("select %s %s as value from (%s) as data %s",
+                    selectPart.isEmpty() ? "" : selectPart + ",",
+                    EventExplorerRollup.getFinalAggregation(measure, rollupService.getHyperLogLogFunctions()),
+                    queries,
+                    groupBy);
+        }
         else {
             String where = timeFilter + (filterExpression == null ? "" : (" AND " + filterExpression));
 
@@ -342,11 +392,16 @@ public abstract class AbstractEventExplorer
         }
 
         String table = preComputedTable.map(e -> e.getValue()).orElse(null);
+        List<String> rollupTables = rollups.map(list -> list.stream().map(rollup -> rollup.tableName).collect(Collectors.toList()))
+                .orElse(null);
 
         return new DelegateQueryExecution(executor.executeQuery(project, query), result -> {
             if (table != null) {
                 result.setProperty("olapTable", table);
             }
+            if (rollupTables != null) {
+                result.setProperty("rollupTables", rollupTables);
+            }
             if (result.isFailed()) {
                 RuntimeException exception = new RuntimeException("Error while running event explorer query", new RuntimeException(result.getError().message,
                         new RuntimeException(ofNullable(result.getProperties().get("query")).map(Object::toString).orElse("Query could not found"))));
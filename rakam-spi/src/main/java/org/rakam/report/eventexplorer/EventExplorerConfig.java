@@ -14,11 +14,20 @@
 package org.rakam.report.eventexplorer;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 
 public class EventExplorerConfig {
     private boolean enabled = false;
     private boolean precomputed = true;
+    private boolean rollupsEnabled = true;
+    private boolean rollupUpdater = true;
+    private int rollupMaxDimensions = 3;
+    private int rollupMinQueries = 5;
+    private Duration rollupCheckInterval = new Duration(10, MINUTES);
 
     @Config("event-explorer.enabled")
     public void setEventExplorerEnabled(boolean enabled) {
@@ -37,4 +46,58 @@ public class EventExplorerConfig {
     public boolean getPreComputed() {
         return precomputed;
     }
+
+    @Config("event-explorer.rollups.enabled")
+    @ConfigDescription("Creates the rollup tables of the frequently queried collections automatically")
+    public EventExplorerConfig setRollupsEnabled(boolean rollupsEnabled) {
+        this.rollupsEnabled = rollupsEnabled;
+        return this;
+    }
+
+    public boolean getRollupsEnabled() {
+        return rollupsEnabled;
+    }
+
+    @Config("event-explorer.rollups.updater")
+    @ConfigDescription("Records the event explorer queries and maintains the rollup tables on this node. " +
+            "The usage history is kept in memory, so only one node of the cluster should maintain the rollups")
+    public EventExplorerConfig setRollupUpdater(boolean rollupUpdater) {
+        this.rollupUpdater = rollupUpdater;
+        return this;
+    }
+
+    public boolean getRollupUpdater() {
+        return rollupUpdater;
+    }
+
+    @Config("event-explorer.rollups.max-dimensions")
+    public EventExplorerConfig setRollupMaxDimensions(int rollupMaxDimensions) {
+        this.rollupMaxDimensions = rollupMaxDimensions;
+        return this;
+    }
+
+    public int getRollupMaxDimensions() {
+        return rollupMaxDimensions;
+    }
+
+    @Config("event-explorer.rollups.min-queries")
+    @ConfigDescription("The minimum number of the queries that use a dimension to add it to the rollup table")
+    public EventExplorerConfig setRollupMinQueries(int rollupMinQueries) {
+        this.rollupMinQueries = rollupMinQueries;
+        return this;
+    }
+
+    public int getRollupMinQueries() {
+        return rollupMinQueries;
+    }
+
+    @Config("event-explorer.rollups.check-interval")
+    public EventExplorerConfig setRollupCheckInterval(Duration rollupCheckInterval) {
+        this.rollupCheckInterval = rollupCheckInterval;
+        return this;
+    }
+
+    public Duration getRollupCheckInterval() {
+        return rollupCheckInterval;
+    }
 }
@@ -0,0 +1,250 @@
+package org.rakam.report.eventexplorer;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.rakam.analysis.EventExplorer.Measure;
+import org.rakam.analysis.EventExplorer.Reference;
+import org.rakam.analysis.EventExplorer.TimestampTransformation;
+import org.rakam.analysis.HyperLogLogFunctions;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.report.realtime.AggregationType;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.lang.String.format;
+import static org.rakam.analysis.EventExplorer.ReferenceType.COLUMN;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.DAY;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.DAY_PART;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.HOUR;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.HOUR_OF_DAY;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.fromString;
+import static org.rakam.report.realtime.AggregationType.APPROXIMATE_UNIQUE;
+import static org.rakam.report.realtime.AggregationType.AVERAGE;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.MAXIMUM;
+import static org.rakam.report.realtime.AggregationType.MINIMUM;
+import static org.rakam.report.realtime.AggregationType.SUM;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * The pre-aggregated events of a collection in hourly or daily buckets that is grouped by the dimensions
+ * that are frequently used in the event explorer. The rollups are stored as incremental materialized views.
+ */
+public class EventExplorerRollup
+{
+    public static final String OPTION = "explorer_rollup";
+    public static final List<TimestampTransformation> GRANULARITIES = ImmutableList.of(DAY, HOUR);
+    private static final Set<TimestampTransformation> HOURLY_TRANSFORMATIONS = ImmutableSet.of(HOUR, HOUR_OF_DAY, DAY_PART);
+    private static final Set<AggregationType> SUPPORTED_AGGREGATIONS = ImmutableSet.of(COUNT, SUM, MINIMUM, MAXIMUM, AVERAGE, APPROXIMATE_UNIQUE);
+    private static final String TOTAL_COLUMN = "_total";
+
+    @JsonProperty("table_name") public final String tableName;
+    @JsonProperty("collection") public final String collection;
+    @JsonProperty("granularity") public final TimestampTransformation granularity;
+    @JsonProperty("dimensions") public final List<String> dimensions;
+    @JsonProperty("measures") public final Map<String, Set<AggregationType>> measures;
+
+    @JsonCreator
+    public EventExplorerRollup(@JsonProperty("table_name") String tableName,
+            @JsonProperty("collection") String collection,
+            @JsonProperty("granularity") TimestampTransformation granularity,
+            @JsonProperty("dimensions") List<String> dimensions,
+            @JsonProperty("measures") Map<String, Set<AggregationType>> measures)
+    {
+        this.tableName = tableName;
+        this.collection = collection;
+        this.granularity = granularity;
+        this.dimensions = dimensions;
+        this.measures = measures;
+    }
+
+    public static EventExplorerRollup create(String collection, TimestampTransformation granularity, List<String> dimensions, Map<String, Set<AggregationType>> measures)
+    {
+        if (!GRANULARITIES.contains(granularity)) {
+            throw new IllegalArgumentException("Rollup granularity is not supported: " + granularity);
+        }
+
+        List<String> sortedDimensions = dimensions.stream().sorted().collect(Collectors.toList());
+        Map<String, Set<AggregationType>> sortedMeasures = new TreeMap<>();
+        measures.forEach((column, aggregations) -> sortedMeasures.put(column, ImmutableSet.copyOf(aggregations)));
+        String definition = sortedDimensions + "|" + sortedMeasures.entrySet().stream()
+                .map(e -> e.getKey() + ":" + e.getValue().stream().map(Enum::name).sorted().collect(Collectors.joining(",")))
+                .collect(Collectors.joining(";"));
+
+        // the version of the rollup is at the beginning of the name so that the versions of the same rollup
+        // don't collide when the name is truncated by the database
+        String tableName = format("_rollup_%s_%s_%s", granularity.name().toLowerCase(),
+                Integer.toHexString(definition.hashCode()), collection);
+        return new EventExplorerRollup(tableName, collection, granularity, ImmutableList.copyOf(sortedDimensions),
+                ImmutableMap.copyOf(sortedMeasures));
+    }
+
+    public static boolean isSupported(AggregationType aggregation)
+    {
+        return SUPPORTED_AGGREGATIONS.contains(aggregation);
+    }
+
+    public MaterializedView toMaterializedView(String timeColumn, HyperLogLogFunctions hyperLogLogFunctions)
+    {
+        return new MaterializedView(tableName, "Event explorer rollup of " + collection, getQuery(timeColumn, hyperLogLogFunctions),
+                Duration.ofHours(1), true, true, ImmutableMap.of(OPTION, this));
+    }
+
+    public String getQuery(String timeColumn, HyperLogLogFunctions hyperLogLogFunctions)
+    {
+        String truncatedTime = format("date_trunc('%s', %s) as %s", granularity.name().toLowerCase(),
+                checkTableColumn(timeColumn), checkTableColumn(timeColumn));
+
+        String columns = Stream.of(
+                Stream.of(truncatedTime),
+                dimensions.stream().map(dimension -> checkTableColumn(dimension)),
+                Stream.of(format("count(*) as %s", checkTableColumn(TOTAL_COLUMN))),
+                measures.entrySet().stream().flatMap(measure -> getPartialAggregations(measure.getKey(), measure.getValue(), hyperLogLogFunctions)))
+                .flatMap(stream -> stream)
+                .collect(Collectors.joining(", "));
+
+        String groupBy = Stream.iterate(1, i -> i + 1).limit(dimensions.size() + 1)
+                .map(Object::toString).collect(Collectors.joining(", "));
+
+        return format("select %s from %s group by %s", columns, checkCollection(collection), groupBy);
+    }
+
+    private static Stream<String> getPartialAggregations(String column, Set<AggregationType> aggregations, HyperLogLogFunctions hyperLogLogFunctions)
+    {
+        // the partial columns are named after their functions so that AVERAGE can share them with COUNT and SUM
+        Map<String, String> functions = new LinkedHashMap<>();
+        for (AggregationType aggregation : aggregations) {
+            switch (aggregation) {
+                case COUNT:
+                    functions.put("count", "count(%s)");
+                    break;
+                case SUM:
+                    functions.put("sum", "sum(%s)");
+                    break;
+                case MINIMUM:
+                    functions.put("min", "min(%s)");
+                    break;
+                case MAXIMUM:
+                    functions.put("max", "max(%s)");
+                    break;
+                case AVERAGE:
+                    functions.put("sum", "sum(%s)");
+                    functions.put("count", "count(%s)");
+                    break;
+                case APPROXIMATE_UNIQUE:
+                    functions.put("sketch", hyperLogLogFunctions.sketch("%s"));
+                    break;
+            }
+        }
+        return functions.entrySet().stream()
+                .map(function -> format(function.getValue(), checkTableColumn(column)) + " as " + checkTableColumn(column + "_" + function.getKey()));
+    }
+
+    /**
+     * Returns the rollup columns that are needed for computing the measure.
+     */
+    public static List<String> getPartialColumns(Measure measure)
+    {
+        if (measure.column == null) {
+            return ImmutableList.of(TOTAL_COLUMN);
+        }
+        switch (measure.aggregation) {
+            case COUNT:
+                return ImmutableList.of(measure.column + "_count");
+            case SUM:
+                return ImmutableList.of(measure.column + "_sum");
+            case MINIMUM:
+                return ImmutableList.of(measure.column + "_min");
+            case MAXIMUM:
+                return ImmutableList.of(measure.column + "_max");
+            case AVERAGE:
+                return ImmutableList.of(measure.column + "_sum", measure.column + "_count");
+            case APPROXIMATE_UNIQUE:
+                return ImmutableList.of(measure.column + "_sketch");
+            default:
+                throw new IllegalArgumentException("aggregation type is not supported");
+        }
+    }
+
+    /**
+     * Returns the aggregation that computes the measure from the partial columns of the rollup.
+     */
+    public static String getFinalAggregation(Measure measure, HyperLogLogFunctions hyperLogLogFunctions)
+    {
+        List<String> columns = getPartialColumns(measure).stream().map(column -> checkTableColumn(column))
+                .collect(Collectors.toList());
+        switch (measure.aggregation) {
+            case COUNT:
+            case SUM:
+                return format("sum(%s)", columns.get(0));
+            case MINIMUM:
+                return format("min(%s)", columns.get(0));
+            case MAXIMUM:
+                return format("max(%s)", columns.get(0));
+            case AVERAGE:
+                return format("1.0 * sum(%s) / sum(%s)", columns.get(0), columns.get(1));
+            case APPROXIMATE_UNIQUE:
+                // the sketches of the buckets are merged so the distinct values are not counted more than once
+                return hyperLogLogFunctions.mergedCardinality(columns.get(0));
+            default:
+                throw new IllegalArgumentException("aggregation type is not supported");
+        }
+    }
+
+    public boolean canAnswer(Measure measure, Reference grouping, Reference segment, Optional<Set<String>> filterColumns, Instant startDate, Instant endDate)
+    {
+        if (!isSupported(measure.aggregation)) {
+            return false;
+        }
+        if (measure.column != null && !measures.getOrDefault(measure.column, ImmutableSet.of()).contains(measure.aggregation)) {
+            return false;
+        }
+        if (!canGroup(grouping) || !canGroup(segment)) {
+            return false;
+        }
+        if (!filterColumns.isPresent() || !dimensions.containsAll(filterColumns.get())) {
+            return false;
+        }
+
+        // the time range is converted to the buckets of the rollup
+        ChronoUnit unit = granularity == HOUR ? ChronoUnit.HOURS : ChronoUnit.DAYS;
+        return startDate.truncatedTo(unit).equals(startDate) && endDate.truncatedTo(unit).equals(endDate);
+    }
+
+    private boolean canGroup(Reference reference)
+    {
+        if (reference == null) {
+            return true;
+        }
+        if (reference.type == COLUMN) {
+            return reference.value.equals("_collection") || dimensions.contains(reference.value);
+        }
+        return granularity == HOUR || !HOURLY_TRANSFORMATIONS.contains(fromString(reference.value.replace(" ", "_")));
+    }
+
+    /**
+     * Returns true if the rollup can answer all the queries that the given rollup can answer.
+     */
+    public boolean covers(EventExplorerRollup rollup)
+    {
+        if (!collection.equals(rollup.collection) || granularity != rollup.granularity || !dimensions.containsAll(rollup.dimensions)) {
+            return false;
+        }
+        return rollup.measures.entrySet().stream()
+                .allMatch(measure -> measures.getOrDefault(measure.getKey(), ImmutableSet.of()).containsAll(measure.getValue()));
+    }
+}
@@ -0,0 +1,276 @@
+package org.rakam.report.eventexplorer;
+
+import com.facebook.presto.sql.parser.ParsingException;
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.DefaultExpressionTraversalVisitor;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.rakam.analysis.EventExplorer.Measure;
+import org.rakam.analysis.EventExplorer.Reference;
+import org.rakam.analysis.EventExplorer.TimestampTransformation;
+import org.rakam.analysis.HyperLogLogFunctions;
+import org.rakam.analysis.MaterializedViewService;
+import org.rakam.config.ProjectConfig;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.report.QueryResult;
+import org.rakam.report.realtime.AggregationType;
+import org.rakam.util.JsonHelper;
+import org.rakam.util.ProjectCollection;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.rakam.analysis.EventExplorer.ReferenceType.COLUMN;
+
+/**
+ * Keeps the history of the event explorer queries and maintains the rollups of the collections that are queried
+ * frequently. The rollups are grouped by the most frequently used dimensions of the collection and the queries
+ * that can be answered by a rollup are executed on the coarsest one.
+ * <p>
+ * The usage history is kept in memory so the rollups are maintained by a single node, the nodes that
+ * don't maintain the rollups only route the queries to the rollups that are already built. Otherwise the
+ * nodes would replace the rollups of each other based on their own history.
+ */
+public class EventExplorerRollupService
+{
+    private final static Logger LOGGER = Logger.get(EventExplorerRollupService.class);
+    private static final SqlParser sqlParser = new SqlParser();
+
+    private final MaterializedViewService materializedViewService;
+    private final HyperLogLogFunctions hyperLogLogFunctions;
+    private final String timeColumn;
+    private final boolean enabled;
+    private final boolean updater;
+    private final int maxDimensions;
+    private final int minQueries;
+    private final long checkIntervalMillis;
+    private final Map<ProjectCollection, CollectionUsage> usages = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    @Inject
+    public EventExplorerRollupService(ProjectConfig projectConfig, MaterializedViewService materializedViewService, HyperLogLogFunctions hyperLogLogFunctions,
+            EventExplorerConfig config)
+    {
+        this.materializedViewService = materializedViewService;
+        this.hyperLogLogFunctions = hyperLogLogFunctions;
+        this.timeColumn = projectConfig.getTimeColumn();
+        this.enabled = config.getRollupsEnabled();
+        this.updater = enabled && config.getRollupUpdater();
+        this.maxDimensions = config.getRollupMaxDimensions();
+        this.minQueries = config.getRollupMinQueries();
+        this.checkIntervalMillis = config.getRollupCheckInterval().toMillis();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("event-explorer-rollups")
+                .setUncaughtExceptionHandler((t, e) -> LOGGER.error(e))
+                .build());
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        if (!updater) {
+            return;
+        }
+
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                updateRollups();
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Error while updating the event explorer rollups");
+            }
+        }, checkIntervalMillis, checkIntervalMillis, MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        scheduler.shutdownNow();
+    }
+
+    public void record(String project, List<String> collections, Measure measure, Reference grouping, Reference segment, Optional<Set<String>> filterColumns)
+    {
+        if (!updater) {
+            return;
+        }
+
+        for (String collection : collections) {
+            CollectionUsage usage = usages.computeIfAbsent(new ProjectCollection(project, collection), k -> new CollectionUsage());
+            usage.queries.incrementAndGet();
+
+            for (Reference reference : new Reference[] {grouping, segment}) {
+                if (reference != null && reference.type == COLUMN && !reference.value.equals("_collection")) {
+                    usage.dimensions.merge(reference.value, 1L, Long::sum);
+                }
+            }
+            filterColumns.ifPresent(columns -> columns.forEach(column -> usage.dimensions.merge(column, 1L, Long::sum)));
+
+            if (measure.column != null && EventExplorerRollup.isSupported(measure.aggregation)) {
+                usage.measures.computeIfAbsent(measure.column, k -> ConcurrentHashMap.newKeySet()).add(measure.aggregation);
+            }
+        }
+    }
+
+    /**
+     * Returns the rollup of each collection with the coarsest granularity that can answer the query. The rollups
+     * are used only after they're built by the materialized view refresh.
+     */
+    public Optional<List<EventExplorerRollup>> findRollups(String project, List<String> collections, Measure measure, Reference grouping, Reference segment,
+            Optional<Set<String>> filterColumns, Instant startDate, Instant endDate)
+    {
+        if (!enabled) {
+            return Optional.empty();
+        }
+
+        List<EventExplorerRollup> rollups = getRollups(project, true);
+        for (TimestampTransformation granularity : EventExplorerRollup.GRANULARITIES) {
+            List<EventExplorerRollup> candidates = new ArrayList<>();
+            for (String collection : collections) {
+                rollups.stream()
+                        .filter(rollup -> rollup.collection.equals(collection) && rollup.granularity == granularity)
+                        .filter(rollup -> rollup.canAnswer(measure, grouping, segment, filterColumns, startDate, endDate))
+                        .findAny().ifPresent(candidates::add);
+            }
+            if (candidates.size() == collections.size()) {
+                return Optional.of(candidates);
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    public HyperLogLogFunctions getHyperLogLogFunctions()
+    {
+        return hyperLogLogFunctions;
+    }
+
+    @VisibleForTesting
+    void updateRollups()
+    {
+        Map<String, List<EventExplorerRollup>> rollupsOfProjects = new HashMap<>();
+
+        for (Map.Entry<ProjectCollection, CollectionUsage> entry : usages.entrySet()) {
+            String project = entry.getKey().project;
+            String collection = entry.getKey().collection;
+            CollectionUsage usage = entry.getValue();
+            if (usage.queries.get() < minQueries) {
+                continue;
+            }
+
+            List<String> dimensions = usage.dimensions.entrySet().stream()
+                    .filter(dimension -> dimension.getValue() >= minQueries)
+                    .sorted(Comparator.comparing((Map.Entry<String, Long> dimension) -> dimension.getValue()).reversed())
+                    .limit(maxDimensions)
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
+
+            List<EventExplorerRollup> existingRollups = rollupsOfProjects.computeIfAbsent(project, p -> getRollups(p, false));
+            for (TimestampTransformation granularity : EventExplorerRollup.GRANULARITIES) {
+                EventExplorerRollup rollup = EventExplorerRollup.create(collection, granularity, dimensions, usage.measures);
+                List<EventExplorerRollup> currentRollups = existingRollups.stream()
+                        .filter(current -> current.collection.equals(collection) && current.granularity == granularity)
+                        .collect(Collectors.toList());
+                EventExplorerRollup covering = currentRollups.stream().filter(current -> current.covers(rollup)).findAny().orElse(null);
+
+                try {
+                    if (covering == null) {
+                        // the new version is created before the current one is deleted so that the queries keep using the current one
+                        materializedViewService.create(project, rollup.toMaterializedView(timeColumn, hyperLogLogFunctions)).join();
+                    }
+                    for (EventExplorerRollup current : currentRollups) {
+                        if (current == covering) {
+                            continue;
+                        }
+                        // the rollups that couldn't be dropped are kept in the metadata and deleted in the next check
+                        QueryResult result = materializedViewService.delete(project, current.tableName).join();
+                        if (result.isFailed()) {
+                            LOGGER.warn("Unable to delete rollup %s of project %s: %s", current.tableName, project, result.getError().message);
+                        }
+                    }
+                }
+                catch (Exception e) {
+                    LOGGER.error(e, "Unable to create rollup %s of project %s", rollup.tableName, project);
+                }
+            }
+        }
+    }
+
+    private List<EventExplorerRollup> getRollups(String project, boolean onlyBuilt)
+    {
+        ImmutableList.Builder<EventExplorerRollup> rollups = ImmutableList.builder();
+        for (MaterializedView view : materializedViewService.list(project)) {
+            if (view.options == null || !view.options.containsKey(EventExplorerRollup.OPTION) || (onlyBuilt && view.lastUpdate == null)) {
+                continue;
+            }
+            rollups.add(JsonHelper.convert(view.options.get(EventExplorerRollup.OPTION), EventExplorerRollup.class));
+        }
+        return rollups.build();
+    }
+
+    /**
+     * Returns the columns that are referenced in the filter expression or empty if the expression references
+     * the columns of other relations.
+     */
+    public static Optional<Set<String>> getFilterColumns(String filterExpression)
+    {
+        if (filterExpression == null) {
+            return Optional.of(ImmutableSet.of());
+        }
+
+        Expression expression;
+        try {
+            synchronized (sqlParser) {
+                expression = sqlParser.createExpression(filterExpression);
+            }
+        }
+        catch (ParsingException e) {
+            return Optional.empty();
+        }
+
+        Set<String> columns = new HashSet<>();
+        boolean[] qualified = {false};
+        new DefaultExpressionTraversalVisitor<Void, Void>()
+        {
+            @Override
+            protected Void visitQualifiedNameReference(QualifiedNameReference node, Void context)
+            {
+                if (node.getName().getParts().size() != 1) {
+                    qualified[0] = true;
+                }
+                columns.add(node.getName().getParts().get(0));
+                return null;
+            }
+        }.process(expression, null);
+
+        return qualified[0] ? Optional.empty() : Optional.of(columns);
+    }
+
+    private static class CollectionUsage
+    {
+        private final AtomicLong queries = new AtomicLong();
+        private final Map<String, Long> dimensions = new ConcurrentHashMap<>();
+        private final Map<String, Set<AggregationType>> measures = new ConcurrentHashMap<>();
+    }
+}
@@ -1,6 +1,7 @@
 package org.rakam.report.realtime;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
 import io.airlift.units.Duration;
 import io.airlift.units.MinDuration;
 
@@ -9,6 +10,8 @@ public class RealTimeConfig {
     private boolean enabled;
     private Duration windowInterval = Duration.valueOf("120s");
     private Duration slideInterval = Duration.valueOf("5s");
+    private Duration reportReloadInterval = Duration.valueOf("1m");
+    private boolean inMemoryAggregation;
 
     @Config("real-time.enabled")
     public RealTimeConfig setRealtimeModuleEnabled(boolean enabled) {
@@ -38,10 +41,38 @@ public class RealTimeConfig {
         return slideInterval;
     }
 
-    @Config("realtime.window.interval")
+    @Config("realtime.slide.interval")
     public RealTimeConfig setSlideInterval(String slideInterval)
     {
         this.slideInterval = Duration.valueOf(slideInterval);
         return this;
     }
+
+    @MinDuration("1s")
+    public Duration getReportReloadInterval()
+    {
+        return reportReloadInterval;
+    }
+
+    @Config("realtime.reports.reload-interval")
+    @ConfigDescription("The interval that the real-time reports that are created or deleted by the other nodes are loaded")
+    public RealTimeConfig setReportReloadInterval(String reportReloadInterval)
+    {
+        this.reportReloadInterval = Duration.valueOf(reportReloadInterval);
+        return this;
+    }
+
+    public boolean getInMemoryAggregation()
+    {
+        return inMemoryAggregation;
+    }
+
+    @Config("realtime.in-memory-aggregation.enabled")
+    @ConfigDescription("Serves the real-time reports from the aggregates in the memory of the node. The aggregates only " +
+            "have the events that are collected by this node, so it should only be enabled if this is the only node that collects events.")
+    public RealTimeConfig setInMemoryAggregation(boolean inMemoryAggregation)
+    {
+        this.inMemoryAggregation = inMemoryAggregation;
+        return this;
+    }
 }
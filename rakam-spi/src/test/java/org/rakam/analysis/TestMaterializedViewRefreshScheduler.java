@@ -0,0 +1,199 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableMap;
+import io.airlift.units.Duration;
+import org.rakam.plugin.MaterializedView;
+import org.rakam.report.QueryError;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryResult;
+import org.rakam.report.QueryStats;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestMaterializedViewRefreshScheduler
+{
+    private static final String PROJECT = "test";
+
+    private InMemoryQueryMetadataStore database;
+    private InMemoryMetastore metastore;
+    private List<String> refreshedViews;
+    private Map<String, CompletableFuture<QueryResult>> refreshResults;
+
+    @BeforeMethod
+    public void setUp()
+            throws Exception
+    {
+        database = new InMemoryQueryMetadataStore();
+        metastore = new InMemoryMetastore(new InMemoryApiKeyService());
+        metastore.createProject(PROJECT);
+        refreshedViews = new CopyOnWriteArrayList<>();
+        refreshResults = new ConcurrentHashMap<>();
+    }
+
+    @Test
+    public void testRefreshesDueViews()
+            throws Exception
+    {
+        createView("stale", null);
+        createView("fresh", Instant.now());
+
+        MaterializedViewRefreshScheduler scheduler = createScheduler(4);
+        scheduler.refreshDueViews();
+        waitForRefreshes("stale");
+        refreshResults.get("stale").complete(QueryResult.empty());
+        waitUntilIdle(scheduler);
+
+        assertEquals(refreshedViews.size(), 1);
+    }
+
+    @Test
+    public void testConcurrencyLimit()
+            throws Exception
+    {
+        createView("first", null);
+        createView("second", null);
+
+        MaterializedViewRefreshScheduler scheduler = createScheduler(1);
+        scheduler.refreshDueViews();
+        String running = waitForRefreshes(null);
+        scheduler.refreshDueViews();
+        assertEquals(refreshedViews.size(), 1);
+
+        refreshResults.get(running).complete(QueryResult.empty());
+        waitUntilIdle(scheduler);
+        scheduler.refreshDueViews();
+        waitForRefreshes(running.equals("first") ? "second" : "first");
+    }
+
+    @Test
+    public void testBackoffAfterFailure()
+            throws Exception
+    {
+        createView("failing", null);
+
+        MaterializedViewRefreshScheduler scheduler = createScheduler(4);
+        scheduler.refreshDueViews();
+        waitForRefreshes("failing");
+        refreshResults.get("failing").complete(QueryResult.errorResult(QueryError.create("error")));
+        waitUntilIdle(scheduler);
+
+        // the next attempt is delayed by the check interval
+        scheduler.refreshDueViews();
+        waitUntilIdle(scheduler);
+        assertEquals(refreshedViews.size(), 1);
+    }
+
+    private void createView(String tableName, Instant lastUpdate)
+    {
+        MaterializedView view = new MaterializedView(tableName, tableName, "select 1", java.time.Duration.ofHours(1),
+                false, false, ImmutableMap.of());
+        view.lastUpdate = lastUpdate;
+        database.createMaterializedView(PROJECT, view);
+    }
+
+    private MaterializedViewRefreshScheduler createScheduler(int maxConcurrentRefreshes)
+    {
+        MaterializedViewService service = new MaterializedViewService(database, null, '"')
+        {
+            @Override
+            public CompletableFuture<Void> create(String project, MaterializedView materializedView)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<QueryResult> delete(String project, String name)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public MaterializedViewExecution lockAndUpdateView(String project, MaterializedView materializedView)
+            {
+                CompletableFuture<QueryResult> result = new CompletableFuture<>();
+                result.thenAccept(queryResult -> {
+                    if (!queryResult.isFailed()) {
+                        database.getMaterializedView(project, materializedView.tableName).lastUpdate = Instant.now();
+                    }
+                });
+                refreshResults.put(materializedView.tableName, result);
+                refreshedViews.add(materializedView.tableName);
+                return new MaterializedViewExecution(new CompletableQueryExecution(result), materializedView.tableName);
+            }
+        };
+
+        MaterializedViewRefreshConfig config = new MaterializedViewRefreshConfig()
+                .setMaxConcurrentRefreshes(maxConcurrentRefreshes)
+                .setCheckInterval(new Duration(1, HOURS));
+        return new MaterializedViewRefreshScheduler(metastore, service, config, Clock.systemUTC());
+    }
+
+    private String waitForRefreshes(String tableName)
+            throws InterruptedException
+    {
+        for (int i = 0; i < 500; i++) {
+            for (String view : refreshedViews) {
+                if ((tableName == null || view.equals(tableName)) && refreshResults.containsKey(view)) {
+                    return view;
+                }
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("The view is not refreshed");
+    }
+
+    private static void waitUntilIdle(MaterializedViewRefreshScheduler scheduler)
+            throws InterruptedException
+    {
+        for (int i = 0; i < 500 && scheduler.getRunningRefreshes() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(scheduler.getRunningRefreshes() == 0);
+    }
+
+    private static class CompletableQueryExecution
+            implements QueryExecution
+    {
+        private final CompletableFuture<QueryResult> result;
+
+        private CompletableQueryExecution(CompletableFuture<QueryResult> result)
+        {
+            this.result = result;
+        }
+
+        @Override
+        public QueryStats currentStats()
+        {
+            return new QueryStats(result.isDone() ? QueryStats.State.FINISHED : QueryStats.State.RUNNING);
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult()
+        {
+            return result;
+        }
+
+        @Override
+        public void kill()
+        {
+        }
+    }
+}
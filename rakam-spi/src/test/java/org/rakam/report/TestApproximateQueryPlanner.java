@@ -0,0 +1,239 @@
+package org.rakam.report;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.Statement;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import io.airlift.units.Duration;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.collection.SchemaField;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.rakam.report.QuerySampling.SampleMethod.BERNOULLI;
+import static org.rakam.report.QuerySampling.SampleMethod.SYSTEM;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestApproximateQueryPlanner
+{
+    private static final String PROJECT = "test";
+    private static final Map<String, Long> ROW_COUNTS = ImmutableMap.of("pageview", 100_000_000L, "purchase", 1_000L);
+
+    private final SqlParser parser = new SqlParser();
+    private final CountDownLatch slowRowCount = new CountDownLatch(1);
+    private ApproximateQueryPlanner planner;
+
+    @BeforeClass
+    public void setUp()
+            throws Exception
+    {
+        InMemoryMetastore metastore = new InMemoryMetastore(new InMemoryApiKeyService(), new EventBus());
+        metastore.createProject(PROJECT);
+        metastore.getOrCreateCollectionFields(PROJECT, "pageview", ImmutableSet.of(new SchemaField("_time", TIMESTAMP)));
+        metastore.getOrCreateCollectionFields(PROJECT, "purchase", ImmutableSet.of(new SchemaField("_time", TIMESTAMP)));
+        metastore.getOrCreateCollectionFields(PROJECT, "signup", ImmutableSet.of(new SchemaField("_time", TIMESTAMP)));
+
+        QueryExecutor executor = new QueryExecutor()
+        {
+            @Override
+            public QueryExecution executeRawQuery(String sqlQuery)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public QueryExecution executeRawStatement(String sqlQuery)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Optional<Long> estimateRowCount(String project, String collection)
+            {
+                if (collection.equals("click")) {
+                    try {
+                        slowRowCount.await();
+                    }
+                    catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return Optional.of(100_000_000L);
+                }
+                return Optional.ofNullable(ROW_COUNTS.get(collection));
+            }
+
+            @Override
+            public String formatTableReference(String project, QualifiedName name, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema)
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        planner = new ApproximateQueryPlanner(executor, metastore, new ApproximateQueryConfig()
+                .setTargetLatency(new Duration(1, SECONDS))
+                .setScanRate(1_000_000)
+                .setMinPercentage(0.1));
+
+        // the row counts are fetched in the background
+        planner.resolve(PROJECT, parse("select count(*) from _all"), "collection", new QuerySampling(SYSTEM, null, null));
+        awaitSample("select count(*) from pageview");
+    }
+
+    @Test
+    public void testResolveSampleRate()
+            throws Exception
+    {
+        QuerySampling automatic = new QuerySampling(BERNOULLI, null, null);
+
+        QuerySampling sample = planner.resolve(PROJECT, parse("select count(*) from pageview"), "collection", automatic).get();
+        assertEquals(sample.method, BERNOULLI);
+        assertEquals(sample.percentage, 1.0);
+        assertTrue(sample.scale);
+
+        // the latency of the request overrides the default
+        sample = planner.resolve(PROJECT, parse("select count(*) from collection.pageview"), "collection", new QuerySampling(SYSTEM, null, 5.0)).get();
+        assertEquals(sample.percentage, 5.0);
+
+        // the rate doesn't go below the minimum
+        sample = planner.resolve(PROJECT, parse("select count(*) from pageview"), "collection", new QuerySampling(SYSTEM, null, 0.01)).get();
+        assertEquals(sample.percentage, 0.1);
+    }
+
+    @Test
+    public void testResolveExactQueries()
+            throws Exception
+    {
+        QuerySampling automatic = new QuerySampling(SYSTEM, null, null);
+
+        // the collection can be scanned within the target latency
+        assertFalse(planner.resolve(PROJECT, parse("select count(*) from purchase"), "collection", automatic).isPresent());
+        // the row count of signup is not known
+        assertFalse(planner.resolve(PROJECT, parse("select count(*) from _all"), "collection", automatic).isPresent());
+        assertFalse(planner.resolve(PROJECT, parse("select count(*) from materialized.daily"), "collection", automatic).isPresent());
+        assertFalse(planner.resolve(PROJECT, parse("select count(*) from pageview"), "materialized", automatic).isPresent());
+
+        // the names of the WITH queries are not collections
+        assertTrue(planner.resolve(PROJECT, parse("with signup as (select * from pageview) select count(*) from signup"), "collection", automatic).isPresent());
+
+        // the sample rate is not changed if it's set
+        QuerySampling sample = new QuerySampling(SYSTEM, 20);
+        assertEquals(planner.resolve(PROJECT, parse("select count(*) from purchase"), "collection", sample).get(), sample);
+    }
+
+    @Test
+    public void testSlowRowCount()
+            throws Exception
+    {
+        QuerySampling automatic = new QuerySampling(SYSTEM, null, null);
+
+        // the query doesn't wait for the row count
+        assertFalse(planner.resolve(PROJECT, parse("select count(*) from click"), "collection", automatic).isPresent());
+        assertFalse(planner.resolve(PROJECT, parse("select count(*) from click"), "collection", automatic).isPresent());
+
+        slowRowCount.countDown();
+        assertEquals(awaitSample("select count(*) from click").percentage, 1.0);
+    }
+
+    @Test
+    public void testScaleAggregations()
+            throws Exception
+    {
+        QueryResult result = new QueryResult(ImmutableList.of(
+                new SchemaField("_user", STRING),
+                new SchemaField("total", LONG),
+                new SchemaField("amount", DOUBLE)),
+                ImmutableList.of(Arrays.asList("a", 100L, 25.5), Arrays.asList("b", 0L, null)));
+
+        QueryResult estimate = planner.estimate(result, parse("select _user, count(*) as total, sum(amount) from purchase group by 1"),
+                new QuerySampling(SYSTEM, 50.0, null, true));
+
+        assertEquals(estimate.getResult(), ImmutableList.of(Arrays.asList("a", 200L, 51.0), Arrays.asList("b", 0L, null)));
+        // the rows of the sampled result are not modified
+        assertEquals(result.getResult().get(0), Arrays.asList("a", 100L, 25.5));
+
+        Map<String, Object> sampling = (Map<String, Object>) estimate.getProperties().get(ApproximateQueryPlanner.SAMPLING);
+        assertEquals(sampling.get("percentage"), 50.0);
+        assertEquals(sampling.get("scaled"), true);
+        assertEquals(sampling.get("scaledColumns"), ImmutableList.of("total", "amount"));
+
+        List<List<double[]>> intervals = (List<List<double[]>>) sampling.get("confidenceIntervals");
+        assertNull(intervals.get(0).get(0));
+        assertNull(intervals.get(0).get(2));
+        double[] interval = intervals.get(0).get(1);
+        assertTrue(interval[0] < 200 && interval[0] > 170, "lower bound: " + interval[0]);
+        assertTrue(interval[1] > 200 && interval[1] < 230, "upper bound: " + interval[1]);
+        assertEquals(intervals.get(1).get(1), new double[] {0, 6});
+    }
+
+    @Test
+    public void testNotScaledQueries()
+            throws Exception
+    {
+        QueryResult result = new QueryResult(ImmutableList.of(new SchemaField("total", LONG)), ImmutableList.of(Arrays.asList(100L)));
+        QuerySampling sample = new QuerySampling(SYSTEM, 10.0, null, true);
+
+        for (String query : ImmutableList.of(
+                "select count(distinct _user) from pageview",
+                "select count(*) from pageview join purchase on (pageview._user = purchase._user)",
+                "select count(*) from pageview group by _user having count(*) > 10",
+                "with t as (select * from pageview) select count(*) from t")) {
+            QueryResult estimate = planner.estimate(result, parse(query), sample);
+            assertEquals(estimate.getResult(), result.getResult(), query);
+            Map<String, Object> sampling = (Map<String, Object>) estimate.getProperties().get(ApproximateQueryPlanner.SAMPLING);
+            assertEquals(sampling.get("scaled"), false, query);
+            assertEquals(sampling.get("scaledColumns"), ImmutableList.of(), query);
+        }
+
+        // the result of an explicit sample rate is not scaled unless it's requested
+        QueryResult estimate = planner.estimate(result, parse("select count(*) from pageview"), new QuerySampling(SYSTEM, 10));
+        assertEquals(estimate.getResult(), result.getResult());
+        Map<String, Object> sampling = (Map<String, Object>) estimate.getProperties().get(ApproximateQueryPlanner.SAMPLING);
+        assertEquals(sampling.get("scaled"), false);
+        assertEquals(sampling.get("percentage"), 10.0);
+
+        // only the count of the result is scaled
+        QueryResult mixed = new QueryResult(ImmutableList.of(new SchemaField("total", LONG), new SchemaField("average", DOUBLE)),
+                ImmutableList.of(Arrays.asList(100L, 2.5)));
+        estimate = planner.estimate(mixed, parse("select count(*) as total, avg(amount) as average from pageview"), sample);
+        assertEquals(estimate.getResult(), ImmutableList.of(Arrays.asList(1000L, 2.5)));
+        sampling = (Map<String, Object>) estimate.getProperties().get(ApproximateQueryPlanner.SAMPLING);
+        assertEquals(sampling.get("scaledColumns"), ImmutableList.of("total"));
+
+        assertTrue(ApproximateQueryPlanner.isScaled(parse("select count(*) from pageview p")));
+        assertFalse(ApproximateQueryPlanner.isScaled(parse("select _user from pageview")));
+    }
+
+    private QuerySampling awaitSample(String query)
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        Optional<QuerySampling> sample;
+        do {
+            sample = planner.resolve(PROJECT, parse(query), "collection", new QuerySampling(SYSTEM, null, null));
+        }
+        while (!sample.isPresent() && System.currentTimeMillis() < deadline);
+        return sample.get();
+    }
+
+    private Statement parse(String query)
+    {
+        return parser.createStatement(query);
+    }
+}
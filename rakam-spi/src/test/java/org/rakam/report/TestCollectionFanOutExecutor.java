@@ -0,0 +1,196 @@
+package org.rakam.report;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.Statement;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.RakamException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestCollectionFanOutExecutor
+{
+    private static final String PROJECT = "test";
+    private static final Map<String, String> RELATIONS = ImmutableMap.of(
+            "pageview", "select 'pageview' as _collection, _user, _time from test.pageview",
+            "purchase", "select 'purchase' as _collection, _user, _time from test.purchase",
+            "signup", "select 'signup' as _collection, _user, _time from test.signup");
+
+    private final SqlParser parser = new SqlParser();
+    private QueryExecutor executor;
+    private CollectionFanOutExecutor fanOutExecutor;
+    private Map<String, QueryResult> results;
+
+    @BeforeClass
+    public void setUp()
+            throws Exception
+    {
+        executor = new QueryExecutor()
+        {
+            @Override
+            public QueryExecution executeRawQuery(String sqlQuery)
+            {
+                QueryResult result = results.entrySet().stream()
+                        .filter(entry -> sqlQuery.contains("from test." + entry.getKey()))
+                        .map(Map.Entry::getValue).findAny().get();
+                return QueryExecution.completedQueryExecution(sqlQuery, result);
+            }
+
+            @Override
+            public QueryExecution executeRawStatement(String sqlQuery)
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Optional<Map<String, String>> getCollectionRelations(String project)
+            {
+                return Optional.of(RELATIONS);
+            }
+
+            @Override
+            public String formatTableReference(String project, QualifiedName name, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema)
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        fanOutExecutor = new CollectionFanOutExecutor(executor, '"', new QueryFanOutConfig()
+                .setMaxParallelism(2)
+                .setMinCollections(2)
+                .setMaxGroups(2));
+    }
+
+    @Test
+    public void testBranchQueries()
+            throws Exception
+    {
+        List<String> queries = fanOutExecutor.plan(PROJECT, parse("select _collection, count(*) as total from _all " +
+                "where _time > timestamp '2017-01-01' group by 1 order by 2 desc limit 10"), 1000).get().queries;
+
+        assertEquals(queries.size(), 3);
+        String query = queries.get(0);
+        assertTrue(query.contains("FROM (select 'pageview' as _collection, _user, _time from test.pageview) _all"), query);
+        assertTrue(query.contains(" WHERE "), query);
+        assertTrue(query.contains(" GROUP BY 1"), query);
+        // the groups are sorted and limited after they are merged, the extra group tells that there are too many groups
+        assertFalse(query.contains("ORDER BY"), query);
+        assertTrue(query.endsWith(" LIMIT 3"), query);
+
+        // the top rows of each collection are fetched
+        query = fanOutExecutor.plan(PROJECT, parse("select _user, _time from _all a where a._user = 'test' order by _time desc"), 1000)
+                .get().queries.get(1);
+        assertTrue(query.contains("FROM (select 'purchase' as _collection, _user, _time from test.purchase) a"), query);
+        assertTrue(query.endsWith(" ORDER BY \"_time\" DESC LIMIT 1000"), query);
+    }
+
+    @Test
+    public void testMergeAggregations()
+            throws Exception
+    {
+        List<SchemaField> metadata = ImmutableList.of(new SchemaField("_user", STRING), new SchemaField("total", LONG),
+                new SchemaField("first_event", LONG));
+        results = ImmutableMap.of(
+                "pageview", new QueryResult(metadata, ImmutableList.of(Arrays.asList("a", 10L, 5L), Arrays.asList("b", 1L, 7L))),
+                "purchase", new QueryResult(metadata, ImmutableList.of(Arrays.asList("a", 2L, 3L))),
+                "signup", new QueryResult(metadata, ImmutableList.of(Arrays.asList("c", 4L, null), Arrays.asList("b", 1L, 1L))));
+
+        CollectionFanOutExecutor.FanOutQuery query = fanOutExecutor.plan(PROJECT,
+                parse("select _user, count(*) as total, min(_time) as first_event from _all group by 1 order by total desc limit 2"), 1000).get();
+        QueryExecution execution = execute(query);
+        QueryResult result = execution.getResult().join();
+
+        assertEquals(result.getMetadata(), metadata);
+        assertEquals(result.getResult(), ImmutableList.of(Arrays.asList("a", 12L, 3L), Arrays.asList("c", 4L, null)));
+        assertEquals(execution.currentStats().state, QueryStats.State.FINISHED);
+    }
+
+    @Test
+    public void testMergeRows()
+            throws Exception
+    {
+        List<SchemaField> metadata = ImmutableList.of(new SchemaField("_collection", STRING), new SchemaField("_time", LONG));
+        results = ImmutableMap.of(
+                "pageview", new QueryResult(metadata, ImmutableList.of(Arrays.asList("pageview", 9L), Arrays.asList("pageview", 4L))),
+                "purchase", new QueryResult(metadata, ImmutableList.of(Arrays.asList("purchase", 7L))),
+                "signup", new QueryResult(metadata, ImmutableList.of(Arrays.asList("signup", null))));
+
+        CollectionFanOutExecutor.FanOutQuery query = fanOutExecutor.plan(PROJECT, parse("select * from _all order by _time desc limit 3"), 1000).get();
+        QueryResult result = execute(query).getResult().join();
+
+        // the nulls are the largest values
+        assertEquals(result.getResult(), ImmutableList.of(Arrays.asList("signup", null), Arrays.asList("pageview", 9L),
+                Arrays.asList("purchase", 7L)));
+    }
+
+    @Test
+    public void testFallbackForManyGroups()
+            throws Exception
+    {
+        List<SchemaField> metadata = ImmutableList.of(new SchemaField("_user", STRING), new SchemaField("total", LONG));
+        QueryResult unionResult = new QueryResult(metadata, ImmutableList.of(Arrays.asList("a", 100L)));
+        results = ImmutableMap.of(
+                "pageview", new QueryResult(metadata, ImmutableList.of(Arrays.asList("a", 10L))),
+                "purchase", new QueryResult(metadata, ImmutableList.of(Arrays.asList("a", 2L), Arrays.asList("b", 1L), Arrays.asList("c", 1L))),
+                "signup", new QueryResult(metadata, ImmutableList.of(Arrays.asList("c", 4L))));
+
+        CollectionFanOutExecutor.FanOutQuery query = fanOutExecutor.plan(PROJECT,
+                parse("select _user, count(*) as total from _all group by 1 order by 2 desc limit 10"), 1000).get();
+        // purchase has more groups than the limit so the query is executed on the union of the collections
+        QueryResult result = fanOutExecutor.execute(query, executor::executeRawQuery,
+                () -> QueryExecution.completedQueryExecution(null, unionResult)).getResult().join();
+
+        assertEquals(result, unionResult);
+    }
+
+    @Test
+    public void testNotSupportedQueries()
+            throws Exception
+    {
+        for (String query : ImmutableList.of(
+                "select count(*) from pageview",
+                "select count(distinct _user) from _all",
+                "select avg(_time) from _all",
+                "select _collection, count(*) from _all group by 1 having count(*) > 10",
+                "select count(*) from _all group by _user",
+                "select _user, row_number() over () from _all",
+                "select _user from _all order by _time",
+                "select count(*) from _all where _user in (select _user from purchase)",
+                "with t as (select * from _all) select count(*) from t",
+                "select count(*) from collection._all")) {
+            assertFalse(fanOutExecutor.plan(PROJECT, parse(query), 1000).isPresent(), query);
+        }
+    }
+
+    @Test(expectedExceptions = RakamException.class)
+    public void testMaxLimit()
+            throws Exception
+    {
+        fanOutExecutor.plan(PROJECT, parse("select * from _all limit 10000"), 1000);
+    }
+
+    private QueryExecution execute(CollectionFanOutExecutor.FanOutQuery query)
+    {
+        return fanOutExecutor.execute(query, executor::executeRawQuery, () -> {
+            throw new AssertionError("the query is executed on the union of the collections");
+        });
+    }
+
+    private Statement parse(String query)
+    {
+        return parser.createStatement(query);
+    }
+}
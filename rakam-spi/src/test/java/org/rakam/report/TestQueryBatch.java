@@ -0,0 +1,113 @@
+package org.rakam.report;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestQueryBatch
+{
+    private static final QueryResult RESULT = new QueryResult(ImmutableList.of(), ImmutableList.of());
+
+    @Test
+    public void testQueriesCompleteIndependently()
+            throws Exception
+    {
+        QueryBatch batch = new QueryBatch();
+        QueryExecution first = batch.add("select 1");
+        QueryExecution second = batch.add("select 2");
+
+        List<CompletableFuture<QueryResult>> results = new ArrayList<>();
+        List<List<String>> executed = new ArrayList<>();
+        batch.start("project", QueryAdmissionController.UNLIMITED, queries -> {
+            executed.add(queries);
+            return queries.stream().map(query -> {
+                CompletableFuture<QueryResult> result = new CompletableFuture<>();
+                results.add(result);
+                return execution(result);
+            }).collect(Collectors.toList());
+        });
+
+        assertEquals(executed, ImmutableList.of(ImmutableList.of("select 1", "select 2")));
+
+        results.get(1).complete(RESULT);
+        assertFalse(first.isFinished());
+        assertTrue(second.isFinished());
+
+        results.get(0).complete(RESULT);
+        assertTrue(first.isFinished());
+    }
+
+    @Test
+    public void testKilledQueryIsNotExecuted()
+            throws Exception
+    {
+        QueryBatch batch = new QueryBatch();
+        QueryExecution killed = batch.add("select 1");
+        batch.add("select 2");
+        killed.kill();
+
+        List<List<String>> executed = new ArrayList<>();
+        batch.start("project", QueryAdmissionController.UNLIMITED, queries -> {
+            executed.add(queries);
+            return queries.stream().map(query -> execution(CompletableFuture.completedFuture(RESULT))).collect(Collectors.toList());
+        });
+
+        assertEquals(executed, ImmutableList.of(ImmutableList.of("select 2")));
+        assertTrue(killed.getResult().join().isFailed());
+    }
+
+    @Test
+    public void testRejectedBatch()
+            throws Exception
+    {
+        QueryBatch batch = new QueryBatch();
+        QueryExecution first = batch.add("select 1");
+        QueryExecution second = batch.add("select 2");
+
+        QueryAdmissionController rejecting = (project, priority, execution) -> QueryExecution.completedQueryExecution(null,
+                QueryResult.errorResult(QueryError.create("too many queries")));
+        batch.start("project", rejecting, queries -> {
+            throw new AssertionError("the batch is rejected");
+        });
+
+        assertEquals(first.getResult().join().getError().message, "too many queries");
+        assertEquals(second.getResult().join().getError().message, "too many queries");
+    }
+
+    private static QueryExecution execution(CompletableFuture<QueryResult> result)
+    {
+        return new QueryExecution()
+        {
+            @Override
+            public QueryStats currentStats()
+            {
+                return new QueryStats(QueryStats.State.RUNNING);
+            }
+
+            @Override
+            public boolean isFinished()
+            {
+                return result.isDone();
+            }
+
+            @Override
+            public CompletableFuture<QueryResult> getResult()
+            {
+                return result;
+            }
+
+            @Override
+            public void kill()
+            {
+            }
+        };
+    }
+}
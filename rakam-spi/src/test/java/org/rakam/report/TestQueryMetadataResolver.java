@@ -0,0 +1,122 @@
+package org.rakam.report;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Query;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.collection.SchemaField;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.rakam.collection.FieldType.BOOLEAN;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class TestQueryMetadataResolver
+{
+    private static final String PROJECT = "test";
+    private static final List<SchemaField> FIELDS = ImmutableList.of(
+            new SchemaField("_time", TIMESTAMP),
+            new SchemaField("_user", STRING),
+            new SchemaField("amount", DOUBLE));
+
+    private final SqlParser parser = new SqlParser();
+    private QueryMetadataResolver resolver;
+
+    @BeforeClass
+    public void setUp()
+            throws Exception
+    {
+        InMemoryMetastore metastore = new InMemoryMetastore(new InMemoryApiKeyService(), new EventBus());
+        metastore.createProject(PROJECT);
+        metastore.getOrCreateCollectionFields(PROJECT, "pageview", ImmutableSet.copyOf(FIELDS));
+        resolver = new QueryMetadataResolver(metastore);
+    }
+
+    @Test
+    public void testAllColumns()
+            throws Exception
+    {
+        assertEquals(resolve("select * from pageview").get(), FIELDS);
+        assertEquals(resolve("select p.* from collection.pageview p").get(), FIELDS);
+    }
+
+    @Test
+    public void testColumnsAndExpressions()
+            throws Exception
+    {
+        assertEquals(resolve("select _user, p.amount, count(*) as total, max(_time) as last_seen, " +
+                "cast(amount as bigint) as rounded, 'a' as label, true as flag from pageview p where amount > 10 group by 1, 2").get(),
+                ImmutableList.of(
+                        new SchemaField("_user", STRING),
+                        new SchemaField("amount", DOUBLE),
+                        new SchemaField("total", LONG),
+                        new SchemaField("last_seen", TIMESTAMP),
+                        new SchemaField("rounded", LONG),
+                        new SchemaField("label", STRING),
+                        new SchemaField("flag", BOOLEAN)));
+    }
+
+    @Test
+    public void testFallback()
+            throws Exception
+    {
+        // the name of the column is generated by the database
+        assertFalse(resolve("select count(*) from pageview").isPresent());
+        // the type depends on the database
+        assertFalse(resolve("select sum(amount) as total from pageview").isPresent());
+        assertFalse(resolve("select unknown_column from pageview").isPresent());
+        assertFalse(resolve("select * from unknown_collection").isPresent());
+        assertFalse(resolve("select * from _all").isPresent());
+        assertFalse(resolve("select * from pageview join pageview p2 on (true)").isPresent());
+        assertFalse(resolve("select * from (select _user from pageview) t").isPresent());
+        assertFalse(resolve("select _user from pageview union all select _user from pageview").isPresent());
+    }
+
+    @Test
+    public void testInvalidQueries()
+            throws Exception
+    {
+        // the metadata of the queries that fail on the database must not be returned
+        for (String query : ImmutableList.of(
+                "select _user from pageview where unknown_column > 1",
+                "select _user from pageview where _time > 'abc'",
+                "select _user from pageview where amount",
+                "select _user from pageview where _user like 1",
+                "select _user from pageview group by unknown_column",
+                "select _user from pageview group by 2",
+                "select _user, count(*) as total from pageview",
+                "select _user, count(*) as total from pageview group by amount",
+                "select * from pageview group by _user",
+                "select _user, count(*) as total from pageview group by 1 having count(*) > 1",
+                "select cast(unknown_column as bigint) as value from pageview",
+                "select max(count(*)) as total from pageview",
+                "select count(unknown_column) as total from pageview",
+                "select _user, count(*) over () as total from pageview",
+                "select _user from pageview order by unknown_column",
+                "select _user from pageview order by 2",
+                "select _user, count(*) as total from pageview group by 1 order by amount")) {
+            assertFalse(resolve(query).isPresent(), query);
+        }
+
+        assertEquals(resolve("select _user, count(*) as total from pageview " +
+                "where _time between timestamp '2017-01-01' and timestamp '2017-02-01' and _user in ('a', 'b') and amount is not null " +
+                "group by _user order by total desc, _user").get(),
+                ImmutableList.of(new SchemaField("_user", STRING), new SchemaField("total", LONG)));
+    }
+
+    private Optional<List<SchemaField>> resolve(String query)
+    {
+        return resolver.resolve(PROJECT, (Query) parser.createStatement(query));
+    }
+}
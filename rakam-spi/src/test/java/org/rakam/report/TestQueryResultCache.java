@@ -0,0 +1,108 @@
+package org.rakam.report;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.rakam.collection.SchemaField;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.rakam.collection.FieldType.LONG;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+
+public class TestQueryResultCache
+{
+    private static final QueryResult RESULT = new QueryResult(ImmutableList.of(new SchemaField("count", LONG)),
+            ImmutableList.of(ImmutableList.of(1L)));
+
+    private static QueryResultCache.Dependencies dependsOn(String collection)
+    {
+        QueryResultCache.Dependencies dependencies = new QueryResultCache.Dependencies();
+        dependencies.addCollection(collection);
+        return dependencies;
+    }
+
+    @Test
+    public void testInvalidateOnNewEvents()
+            throws Exception
+    {
+        QueryResultCache cache = new QueryResultCache(new QueryResultCacheConfig());
+        QueryResultCache.Dependencies dependencies = dependsOn("pageview");
+
+        List<Object> snapshot = cache.snapshot("project", dependencies, ImmutableMap.of());
+        cache.put("project", "select count(*) from pageview", snapshot, RESULT);
+        assertEquals(cache.get("project", "select count(*) from pageview",
+                cache.snapshot("project", dependencies, ImmutableMap.of()), null), RESULT);
+
+        cache.markUpdated("project", "purchase");
+        assertEquals(cache.get("project", "select count(*) from pageview",
+                cache.snapshot("project", dependencies, ImmutableMap.of()), null), RESULT);
+
+        cache.markUpdated("project", "pageview");
+        assertNull(cache.get("project", "select count(*) from pageview",
+                cache.snapshot("project", dependencies, ImmutableMap.of()), null));
+    }
+
+    @Test
+    public void testAllCollections()
+            throws Exception
+    {
+        QueryResultCache cache = new QueryResultCache(new QueryResultCacheConfig());
+        QueryResultCache.Dependencies dependencies = new QueryResultCache.Dependencies();
+        dependencies.addAllCollections();
+
+        cache.put("project", "select count(*) from _all", cache.snapshot("project", dependencies, ImmutableMap.of()), RESULT);
+        cache.markUpdated("project", "purchase");
+
+        assertNull(cache.get("project", "select count(*) from _all",
+                cache.snapshot("project", dependencies, ImmutableMap.of()), null));
+    }
+
+    @Test
+    public void testMaxStaleness()
+            throws Exception
+    {
+        QueryResultCache cache = new QueryResultCache(new QueryResultCacheConfig());
+        QueryResultCache.Dependencies dependencies = dependsOn("pageview");
+
+        List<Object> snapshot = cache.snapshot("project", dependencies, ImmutableMap.of());
+        cache.put("project", "select 1", snapshot, RESULT);
+        Thread.sleep(10);
+
+        assertNull(cache.get("project", "select 1", snapshot, Duration.ofMillis(1)));
+        assertEquals(cache.get("project", "select 1", snapshot, Duration.ofMinutes(1)), RESULT);
+    }
+
+    @Test
+    public void testFailedResultsAreNotCached()
+            throws Exception
+    {
+        QueryResultCache cache = new QueryResultCache(new QueryResultCacheConfig());
+        List<Object> snapshot = cache.snapshot("project", dependsOn("pageview"), ImmutableMap.of());
+
+        cache.put("project", "select 1", snapshot, QueryResult.errorResult(new QueryError("error", null, null, null, null)));
+        assertNull(cache.get("project", "select 1", snapshot, null));
+    }
+
+    @Test
+    public void testResultIsNotShared()
+            throws Exception
+    {
+        QueryResultCache cache = new QueryResultCache(new QueryResultCacheConfig());
+        List<Object> snapshot = cache.snapshot("project", dependsOn("pageview"), ImmutableMap.of());
+
+        QueryResult result = new QueryResult(RESULT.getMetadata(), RESULT.getResult());
+        cache.put("project", "select 1", snapshot, result);
+        result.setProperty(QueryResult.EXECUTION_TIME, 10L);
+
+        QueryResult cached = cache.get("project", "select 1", snapshot, null);
+        assertEquals(cached, RESULT);
+        cached.setProperty("cached", true);
+
+        assertEquals(cache.get("project", "select 1", snapshot, null), RESULT);
+        assertNotSame(cache.get("project", "select 1", snapshot, null), cache.get("project", "select 1", snapshot, null));
+    }
+}
@@ -0,0 +1,45 @@
+package org.rakam.report;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.rakam.report.QueryStats.State.FINISHED;
+import static org.rakam.report.QueryStats.State.RUNNING;
+import static org.testng.Assert.assertEquals;
+
+public class TestQueryStatsPublisher
+{
+    @Test
+    public void testCoalesceUpdates()
+            throws Exception
+    {
+        QueryStatsPublisher publisher = new QueryStatsPublisher(new QueryStats(RUNNING));
+        List<QueryStats> received = new CopyOnWriteArrayList<>();
+        publisher.addListener(received::add);
+        assertEquals(received.size(), 1);
+
+        for (int i = 1; i <= 10; i++) {
+            publisher.update(new QueryStats(i * 10, RUNNING, null, null, null, null, null, null));
+        }
+        Thread.sleep(1000);
+
+        assertEquals(received.size(), 2);
+        assertEquals(received.get(1).percentage, Integer.valueOf(100));
+    }
+
+    @Test
+    public void testFinalStatsArePublishedImmediately()
+            throws Exception
+    {
+        QueryStatsPublisher publisher = new QueryStatsPublisher(new QueryStats(RUNNING));
+        List<QueryStats> received = new CopyOnWriteArrayList<>();
+        publisher.addListener(received::add);
+
+        publisher.finish(QueryResult.empty());
+
+        assertEquals(received.size(), 2);
+        assertEquals(received.get(1).state, FINISHED);
+    }
+}
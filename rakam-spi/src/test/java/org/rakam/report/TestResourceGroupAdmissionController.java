@@ -0,0 +1,180 @@
+package org.rakam.report;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestResourceGroupAdmissionController
+{
+    private static final QueryResult RESULT = new QueryResult(ImmutableList.of(), ImmutableList.of());
+
+    @Test
+    public void testQueueAndPriority()
+            throws Exception
+    {
+        ResourceGroupAdmissionController controller = new ResourceGroupAdmissionController(new ResourceGroupConfig()
+                .setMaxRunningQueries(1)
+                .setMaxQueuedQueries(10));
+        List<String> started = new ArrayList<>();
+
+        CompletableFuture<QueryResult> first = new CompletableFuture<>();
+        controller.admit("project", QueryPriority.INTERACTIVE, execution(started, "first", first));
+
+        CompletableFuture<QueryResult> batch = new CompletableFuture<>();
+        QueryExecution batchExecution = controller.admit("project", QueryPriority.BATCH, execution(started, "batch", batch));
+        QueryExecution interactiveExecution = controller.admit("project", QueryPriority.INTERACTIVE,
+                execution(started, "interactive", new CompletableFuture<>()));
+
+        assertEquals(started, ImmutableList.of("first"));
+        assertEquals(interactiveExecution.currentStats().state, QueryStats.State.QUEUED);
+        assertEquals(interactiveExecution.currentStats().queuePosition, Integer.valueOf(0));
+        assertEquals(batchExecution.currentStats().queuePosition, Integer.valueOf(1));
+        assertEquals(controller.getQueuedQueries("project"), 2);
+
+        // the other projects have their own slots
+        controller.admit("other", QueryPriority.INTERACTIVE, execution(started, "other", new CompletableFuture<>()));
+        assertEquals(started, ImmutableList.of("first", "other"));
+
+        first.complete(RESULT);
+        assertEquals(started, ImmutableList.of("first", "other", "interactive"));
+        assertFalse(batchExecution.isFinished());
+        assertEquals(controller.getRunningQueries("project"), 1);
+    }
+
+    @Test
+    public void testBatchQueriesCantUseAllSlots()
+            throws Exception
+    {
+        ResourceGroupAdmissionController controller = new ResourceGroupAdmissionController(new ResourceGroupConfig()
+                .setMaxRunningQueries(2)
+                .setMaxRunningBatchQueries(1));
+        List<String> started = new ArrayList<>();
+
+        controller.admit("project", QueryPriority.BATCH, execution(started, "batch1", new CompletableFuture<>()));
+        controller.admit("project", QueryPriority.BATCH, execution(started, "batch2", new CompletableFuture<>()));
+        controller.admit("project", QueryPriority.INTERACTIVE, execution(started, "interactive", new CompletableFuture<>()));
+
+        assertEquals(started, ImmutableList.of("batch1", "interactive"));
+    }
+
+    @Test
+    public void testRejectWhenQueueIsFull()
+            throws Exception
+    {
+        ResourceGroupAdmissionController controller = new ResourceGroupAdmissionController(new ResourceGroupConfig()
+                .setMaxRunningQueries(1)
+                .setMaxQueuedQueries(1));
+        List<String> started = new ArrayList<>();
+
+        controller.admit("project", QueryPriority.INTERACTIVE, execution(started, "running", new CompletableFuture<>()));
+        controller.admit("project", QueryPriority.INTERACTIVE, execution(started, "queued", new CompletableFuture<>()));
+        QueryExecution rejected = controller.admit("project", QueryPriority.INTERACTIVE, execution(started, "rejected", new CompletableFuture<>()));
+
+        assertTrue(rejected.isFinished());
+        assertTrue(rejected.getResult().join().isFailed());
+        assertEquals(started, ImmutableList.of("running"));
+    }
+
+    @Test
+    public void testKillQueuedQuery()
+            throws Exception
+    {
+        ResourceGroupAdmissionController controller = new ResourceGroupAdmissionController(new ResourceGroupConfig()
+                .setMaxRunningQueries(1));
+        List<String> started = new ArrayList<>();
+
+        CompletableFuture<QueryResult> running = new CompletableFuture<>();
+        controller.admit("project", QueryPriority.INTERACTIVE, execution(started, "running", running));
+        QueryExecution queued = controller.admit("project", QueryPriority.INTERACTIVE, execution(started, "queued", new CompletableFuture<>()));
+
+        queued.kill();
+        assertTrue(queued.getResult().join().isFailed());
+        assertEquals(controller.getQueuedQueries("project"), 0);
+
+        running.complete(RESULT);
+        assertEquals(started, ImmutableList.of("running"));
+        assertEquals(controller.getRunningQueries("project"), 0);
+        assertNull(queued.getResult().join().getResult());
+    }
+
+    @Test
+    public void testStreamHoldsSlotUntilClosed()
+            throws Exception
+    {
+        ResourceGroupAdmissionController controller = new ResourceGroupAdmissionController(new ResourceGroupConfig()
+                .setMaxRunningQueries(1));
+        List<String> started = new ArrayList<>();
+
+        CompletableFuture<QueryResultStream> first = StreamingQueryExecution.admit("project", controller,
+                stream(started, "first"));
+        CompletableFuture<QueryResultStream> second = StreamingQueryExecution.admit("project", controller,
+                stream(started, "second"));
+
+        assertEquals(started, ImmutableList.of("first"));
+        assertFalse(second.isDone());
+        assertEquals(controller.getQueuedQueries("project"), 1);
+
+        first.join().close();
+        assertEquals(started, ImmutableList.of("first", "second"));
+        assertTrue(second.isDone());
+
+        // the request is cancelled while the stream is waiting in the queue
+        CompletableFuture<QueryResultStream> cancelled = StreamingQueryExecution.admit("project", controller,
+                stream(started, "cancelled"));
+        cancelled.cancel(false);
+        assertEquals(controller.getQueuedQueries("project"), 0);
+
+        second.join().close();
+        assertEquals(controller.getRunningQueries("project"), 0);
+        assertEquals(started, ImmutableList.of("first", "second"));
+    }
+
+    private static Supplier<CompletableFuture<QueryResultStream>> stream(List<String> started, String name)
+    {
+        return () -> {
+            started.add(name);
+            return CompletableFuture.completedFuture(QueryResultStream.of(RESULT));
+        };
+    }
+
+    private static Supplier<QueryExecution> execution(List<String> started, String name, CompletableFuture<QueryResult> result)
+    {
+        return () -> {
+            started.add(name);
+            return new QueryExecution()
+            {
+                @Override
+                public QueryStats currentStats()
+                {
+                    return new QueryStats(QueryStats.State.RUNNING);
+                }
+
+                @Override
+                public boolean isFinished()
+                {
+                    return result.isDone();
+                }
+
+                @Override
+                public CompletableFuture<QueryResult> getResult()
+                {
+                    return result;
+                }
+
+                @Override
+                public void kill()
+                {
+                }
+            };
+        };
+    }
+}
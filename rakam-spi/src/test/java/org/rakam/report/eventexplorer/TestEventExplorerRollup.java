@@ -0,0 +1,108 @@
+package org.rakam.report.eventexplorer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.rakam.analysis.EventExplorer.Measure;
+import org.rakam.analysis.EventExplorer.Reference;
+import org.rakam.analysis.HyperLogLogFunctions;
+import org.testng.annotations.Test;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.rakam.analysis.EventExplorer.ReferenceType.COLUMN;
+import static org.rakam.analysis.EventExplorer.ReferenceType.REFERENCE;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.DAY;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.HOUR;
+import static org.rakam.report.realtime.AggregationType.APPROXIMATE_UNIQUE;
+import static org.rakam.report.realtime.AggregationType.AVERAGE;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.SUM;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestEventExplorerRollup
+{
+    private static final Instant START = Instant.parse("2016-12-01T00:00:00Z");
+    private static final Instant END = Instant.parse("2016-12-07T00:00:00Z");
+    private static final HyperLogLogFunctions HYPERLOGLOG = new HyperLogLogFunctions("hll_sketch(%s)", "hll_union(%s)", "hll_cardinality(%s)");
+
+    private final EventExplorerRollup dailyRollup = EventExplorerRollup.create("pageview", DAY,
+            ImmutableList.of("url", "country"), ImmutableMap.of("amount", ImmutableSet.of(AVERAGE)));
+
+    @Test
+    public void testQuery()
+            throws Exception
+    {
+        assertEquals(dailyRollup.dimensions, ImmutableList.of("country", "url"));
+        assertEquals(dailyRollup.getQuery("_time", HYPERLOGLOG), "select date_trunc('day', \"_time\") as \"_time\", \"country\", \"url\", " +
+                "count(*) as \"_total\", sum(\"amount\") as \"amount_sum\", count(\"amount\") as \"amount_count\" " +
+                "from \"pageview\" group by 1, 2, 3");
+        assertEquals(EventExplorerRollup.getFinalAggregation(new Measure("amount", AVERAGE), HYPERLOGLOG),
+                "1.0 * sum(\"amount_sum\") / sum(\"amount_count\")");
+        assertEquals(EventExplorerRollup.getFinalAggregation(new Measure(null, COUNT), HYPERLOGLOG), "sum(\"_total\")");
+    }
+
+    @Test
+    public void testSketchQuery()
+            throws Exception
+    {
+        EventExplorerRollup rollup = EventExplorerRollup.create("pageview", HOUR, ImmutableList.of(),
+                ImmutableMap.of("_user", ImmutableSet.of(APPROXIMATE_UNIQUE)));
+        assertEquals(rollup.getQuery("_time", HYPERLOGLOG), "select date_trunc('hour', \"_time\") as \"_time\", " +
+                "count(*) as \"_total\", hll_sketch(\"_user\") as \"_user_sketch\" from \"pageview\" group by 1");
+        assertEquals(EventExplorerRollup.getFinalAggregation(new Measure("_user", APPROXIMATE_UNIQUE), HYPERLOGLOG),
+                "hll_cardinality(hll_union(\"_user_sketch\"))");
+        assertTrue(rollup.canAnswer(new Measure("_user", APPROXIMATE_UNIQUE), new Reference(REFERENCE, "day"), null,
+                Optional.of(ImmutableSet.of()), START, END));
+    }
+
+    @Test
+    public void testCanAnswer()
+            throws Exception
+    {
+        Measure count = new Measure(null, COUNT);
+        Reference daily = new Reference(REFERENCE, "day");
+        Reference url = new Reference(COLUMN, "url");
+        Optional<Set<String>> noFilter = Optional.of(ImmutableSet.of());
+
+        assertTrue(dailyRollup.canAnswer(count, daily, url, noFilter, START, END));
+        assertTrue(dailyRollup.canAnswer(new Measure("amount", AVERAGE), daily, url, Optional.of(ImmutableSet.of("country")), START, END));
+
+        assertFalse(dailyRollup.canAnswer(new Measure("amount", SUM), daily, url, noFilter, START, END));
+        assertFalse(dailyRollup.canAnswer(new Measure("amount", APPROXIMATE_UNIQUE), daily, url, noFilter, START, END));
+        assertFalse(dailyRollup.canAnswer(count, new Reference(REFERENCE, "hour"), url, noFilter, START, END));
+        assertFalse(dailyRollup.canAnswer(count, daily, new Reference(COLUMN, "referrer"), noFilter, START, END));
+        assertFalse(dailyRollup.canAnswer(count, daily, url, Optional.of(ImmutableSet.of("referrer")), START, END));
+        assertFalse(dailyRollup.canAnswer(count, daily, url, Optional.empty(), START, END));
+        assertFalse(dailyRollup.canAnswer(count, daily, url, noFilter, START.plusSeconds(3600), END));
+
+        EventExplorerRollup hourlyRollup = EventExplorerRollup.create("pageview", HOUR, ImmutableList.of("url"), ImmutableMap.of());
+        assertTrue(hourlyRollup.canAnswer(count, new Reference(REFERENCE, "hour"), url, noFilter, START.plusSeconds(3600), END));
+    }
+
+    @Test
+    public void testCovers()
+            throws Exception
+    {
+        EventExplorerRollup smaller = EventExplorerRollup.create("pageview", DAY, ImmutableList.of("url"), ImmutableMap.of());
+        assertTrue(dailyRollup.covers(smaller));
+        assertFalse(smaller.covers(dailyRollup));
+        assertFalse(dailyRollup.covers(EventExplorerRollup.create("pageview", HOUR, ImmutableList.of("url"), ImmutableMap.of())));
+
+        EventExplorerRollup same = EventExplorerRollup.create("pageview", DAY,
+                ImmutableList.of("country", "url"), ImmutableMap.of("amount", ImmutableSet.of(AVERAGE)));
+        assertEquals(same.tableName, dailyRollup.tableName);
+    }
+
+    @Test
+    public void testFilterColumns()
+            throws Exception
+    {
+        assertEquals(EventExplorerRollupService.getFilterColumns("country = 'US' and url like '/a%'").get(), ImmutableSet.of("country", "url"));
+        assertFalse(EventExplorerRollupService.getFilterColumns("p.country = 'US'").isPresent());
+    }
+}
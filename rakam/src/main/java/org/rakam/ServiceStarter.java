@@ -33,6 +33,8 @@ import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.CustomParameter;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.MaterializedViewHttpService;
+import org.rakam.analysis.MaterializedViewRefreshConfig;
+import org.rakam.analysis.MaterializedViewRefreshScheduler;
 import org.rakam.analysis.ProjectHttpService;
 import org.rakam.analysis.QueryHttpService;
 import org.rakam.analysis.RequestPreProcessorItem;
@@ -57,6 +59,14 @@ import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserStorage;
 import org.rakam.plugin.user.mailbox.UserMailboxStorage;
+import org.rakam.report.ApproximateQueryConfig;
+import org.rakam.report.QueryAdmissionController;
+import org.rakam.report.QueryExecutorService;
+import org.rakam.report.QueryFanOutConfig;
+import org.rakam.report.QueryResultCache;
+import org.rakam.report.QueryResultCacheConfig;
+import org.rakam.report.ResourceGroupAdmissionController;
+import org.rakam.report.ResourceGroupConfig;
 import org.rakam.server.http.HttpRequestHandler;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.WebSocketService;
@@ -242,8 +252,18 @@ public final class ServiceStarter
             configBinder(binder).bindConfig(HttpServerConfig.class);
             configBinder(binder).bindConfig(ProjectConfig.class);
             configBinder(binder).bindConfig(EncryptionConfig.class);
+            configBinder(binder).bindConfig(QueryResultCacheConfig.class);
+            configBinder(binder).bindConfig(ResourceGroupConfig.class);
+            configBinder(binder).bindConfig(MaterializedViewRefreshConfig.class);
+            configBinder(binder).bindConfig(ApproximateQueryConfig.class);
+            configBinder(binder).bindConfig(QueryFanOutConfig.class);
+
+            binder.bind(QueryResultCache.class).in(Scopes.SINGLETON);
+            binder.bind(QueryAdmissionController.class).to(ResourceGroupAdmissionController.class).in(Scopes.SINGLETON);
+            binder.bind(QueryExecutorService.class).in(Scopes.SINGLETON);
 
             binder.bind(SchemaChecker.class).asEagerSingleton();
+            binder.bind(MaterializedViewRefreshScheduler.class).asEagerSingleton();
 
             binder.bind(RAsyncHttpClient.class)
                     .annotatedWith(Names.named("rakam-client"))
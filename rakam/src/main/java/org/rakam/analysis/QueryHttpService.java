@@ -18,22 +18,33 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.airlift.log.Logger;
-import io.netty.channel.EventLoopGroup;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.swagger.annotations.ApiModelProperty;
 import org.rakam.collection.SchemaField;
-import org.rakam.http.ForHttpServer;
 import org.rakam.plugin.EventStore.CopyType;
 import org.rakam.report.QueryError;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutorService;
 import org.rakam.report.QueryResult;
-import org.rakam.report.QueryStats;
+import org.rakam.report.QueryResultStream;
 import org.rakam.report.QuerySampling;
+import org.rakam.server.http.HttpServer;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.RakamHttpRequest;
-import org.rakam.server.http.Response;
 import org.rakam.server.http.annotations.Api;
 import org.rakam.server.http.annotations.ApiOperation;
 import org.rakam.server.http.annotations.ApiParam;
@@ -41,6 +52,8 @@ import org.rakam.server.http.annotations.Authorization;
 import org.rakam.server.http.annotations.BodyParam;
 import org.rakam.server.http.annotations.IgnoreApi;
 import org.rakam.server.http.annotations.JsonRequest;
+import org.rakam.util.ChunkedResponseOutputStream;
+import org.rakam.util.ColumnarResultEncoder;
 import org.rakam.util.ExportUtil;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
@@ -53,25 +66,39 @@ import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.time.Duration;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import static io.netty.handler.codec.http.HttpHeaders.Names.ACCEPT;
+import static io.netty.handler.codec.http.HttpHeaders.Names.ACCEPT_ENCODING;
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_ENCODING;
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
 import static org.rakam.analysis.ApiKeyService.AccessKeyType.READ_KEY;
+import static org.rakam.collection.EventCollectionHttpService.setBrowser;
 import static org.rakam.report.QueryExecutorService.DEFAULT_QUERY_RESULT_COUNT;
 import static org.rakam.report.QueryExecutorService.MAX_QUERY_RESULT_LIMIT;
 import static org.rakam.server.http.HttpServer.errorMessage;
@@ -86,10 +113,13 @@ public class QueryHttpService
         extends HttpService
 {
     private static final Logger LOGGER = Logger.get(QueryHttpService.class);
+    // each export blocks a thread while its rows are written, the exports that exceed the limit wait for a thread
+    private static final int MAX_RUNNING_EXPORTS = 16;
     private final QueryExecutorService executorService;
     private final ApiKeyService apiKeyService;
-    private EventLoopGroup eventLoopGroup;
     private final SqlParser sqlParser = new SqlParser();
+    private final ExecutorService exportExecutor = Executors.newFixedThreadPool(MAX_RUNNING_EXPORTS, new ThreadFactoryBuilder()
+            .setNameFormat("query-export-%d").setDaemon(true).build());
 
     @Inject
     public QueryHttpService(ApiKeyService apiKeyService, QueryExecutorService executorService)
@@ -100,24 +130,133 @@ public class QueryHttpService
 
     @Path("/execute")
     @ApiOperation(value = "Execute query on event data-set",
+            notes = "The result is returned in a columnar binary format if the Accept header is " + ColumnarResultEncoder.CONTENT_TYPE,
+            request = QueryRequest.class, response = QueryResult.class,
             authorizations = @Authorization(value = "read_key")
     )
     @JsonRequest
-    public CompletableFuture<Response<QueryResult>> execute(
+    public void execute(
+            RakamHttpRequest request,
             @Named("project") String project,
             @BodyParam QueryRequest query)
     {
+        String accept = request.headers().get(ACCEPT);
+        boolean columnar = accept != null && accept.contains(ColumnarResultEncoder.CONTENT_TYPE);
+
         QueryExecution queryExecution = executorService.executeQuery(project, query.query,
                 query.sample,
                 Optional.ofNullable(query.defaultSchema).orElse("collection"),
-                query.limit == null ? DEFAULT_QUERY_RESULT_COUNT : query.limit);
-        return queryExecution
-                .getResult().thenApply(result -> {
-                    if (result.isFailed()) {
-                        return Response.value(result, BAD_REQUEST);
+                query.limit == null ? DEFAULT_QUERY_RESULT_COUNT : query.limit,
+                query.maxStaleness);
+        queryExecution.getResult().whenComplete((result, ex) -> {
+            if (ex != null) {
+                LOGGER.error(ex, "Error while executing query");
+                HttpServer.returnError(request, "Couldn't execute query: Internal error", INTERNAL_SERVER_ERROR);
+                return;
+            }
+
+            FullHttpResponse response;
+            if (result.isFailed()) {
+                response = new DefaultFullHttpResponse(HTTP_1_1, BAD_REQUEST, Unpooled.wrappedBuffer(JsonHelper.encodeAsBytes(result)));
+                response.headers().set(CONTENT_TYPE, "application/json");
+            }
+            else if (columnar) {
+                response = new DefaultFullHttpResponse(HTTP_1_1, OK, Unpooled.wrappedBuffer(ColumnarResultEncoder.encode(result)));
+                response.headers().set(CONTENT_TYPE, ColumnarResultEncoder.CONTENT_TYPE);
+            }
+            else {
+                response = new DefaultFullHttpResponse(HTTP_1_1, OK, Unpooled.wrappedBuffer(JsonHelper.encodeAsBytes(result)));
+                response.headers().set(CONTENT_TYPE, "application/json");
+            }
+            setBrowser(request, response);
+            request.response(response).end();
+        });
+    }
+
+    @Path("/batch")
+    @ApiOperation(value = "Execute multiple queries on event data-set",
+            notes = "The queries are sent to the database together. The response is a stream of JSON objects separated " +
+                    "by new lines, each object has the index of the query and its result and they're sent as soon as the queries are completed.",
+            request = BatchQueryRequest.class,
+            authorizations = @Authorization(value = "read_key")
+    )
+    @JsonRequest
+    public void batch(RakamHttpRequest request, @Named("project") String project, @BodyParam BatchQueryRequest batch)
+    {
+        List<QueryExecution> executions = executorService.executeQueries(project, batch.queries, batch.sample,
+                Optional.ofNullable(batch.defaultSchema).orElse("collection"),
+                batch.limit == null ? DEFAULT_QUERY_RESULT_COUNT : batch.limit,
+                batch.maxStaleness);
+
+        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+        HttpHeaders.setTransferEncodingChunked(response);
+        response.headers().set(CONTENT_TYPE, "application/x-ndjson");
+        setBrowser(request, response);
+        request.context().writeAndFlush(response);
+
+        ChannelHandlerContext context = request.context();
+        boolean keepAlive = HttpHeaders.isKeepAlive(request);
+        AtomicInteger remaining = new AtomicInteger(executions.size());
+        for (int i = 0; i < executions.size(); i++) {
+            int index = i;
+            executions.get(i).getResult().whenComplete((result, ex) -> {
+                QueryResult queryResult = result;
+                if (ex != null) {
+                    LOGGER.error(ex, "Error while executing query");
+                    queryResult = QueryResult.errorResult(QueryError.create("Internal error"), batch.queries.get(index));
+                }
+
+                byte[] line = (encode(jsonObject().put("index", index).putPOJO("result", queryResult)) + "\n").getBytes(UTF_8);
+                // the writes are queued in the event loop so the lines are not interleaved
+                context.writeAndFlush(new DefaultHttpContent(Unpooled.wrappedBuffer(line)));
+
+                if (remaining.decrementAndGet() == 0) {
+                    ChannelFuture future = context.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+                    if (!keepAlive) {
+                        future.addListener(ChannelFutureListener.CLOSE);
                     }
-                    return Response.ok(result);
-                });
+                }
+            });
+        }
+
+        context.channel().closeFuture().addListener(future -> executions.stream()
+                .filter(execution -> !execution.isFinished())
+                .forEach(QueryExecution::kill));
+    }
+
+    public static class BatchQueryRequest
+    {
+        public static final int MAX_QUERIES = 100;
+
+        public final List<String> queries;
+        public final Integer limit;
+        public final String defaultSchema;
+        public final Optional<QuerySampling> sample;
+        public final Duration maxStaleness;
+
+        @JsonCreator
+        public BatchQueryRequest(
+                @ApiParam(value = "queries", description = "SQL queries that will be executed on data-set") List<String> queries,
+                @ApiParam(value = "sampling", required = false, description = "Optional parameter for specifying the sampling on source data") QuerySampling sample,
+                @ApiParam(value = "default_schema", required = false, defaultValue = "collection", description = "The default schema of the queries. If the schema is not defined, this schema will be used.") String defaultSchema,
+                @ApiParam(value = "limit", required = false, description = "The maximum rows that can be returned from each query is 500K") Integer limit,
+                @ApiParam(value = "max_staleness", required = false, description = "The maximum age of the cached results in seconds, set 0 to bypass the result cache") Long maxStaleness)
+        {
+            requireNonNull(queries, "queries is empty");
+            if (queries.isEmpty() || queries.size() > MAX_QUERIES) {
+                throw new IllegalArgumentException("The number of queries must be between 1 and " + MAX_QUERIES);
+            }
+            if (limit != null && limit > MAX_QUERY_RESULT_LIMIT) {
+                throw new IllegalArgumentException("Maximum value of limit is " + MAX_QUERY_RESULT_LIMIT);
+            }
+            this.queries = queries.stream()
+                    .map(query -> requireNonNull(query, "query is empty").trim().replaceAll(";+$", ""))
+                    .collect(Collectors.toList());
+            this.defaultSchema = defaultSchema;
+            this.sample = Optional.ofNullable(sample);
+            this.limit = limit;
+            this.maxStaleness = maxStaleness == null ? null : Duration.ofSeconds(maxStaleness);
+        }
     }
 
     @Path("/export")
@@ -128,28 +267,77 @@ public class QueryHttpService
     @JsonRequest
     public void export(RakamHttpRequest request, @Named("project") String project, @BodyParam QueryRequest query)
     {
-        executorService.executeQuery(project, query.query,
+        if (query.exportType == null) {
+            throw new RakamException("export_type is required", BAD_REQUEST);
+        }
+
+        String acceptEncoding = request.headers().get(ACCEPT_ENCODING);
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+
+        executorService.executeStreamingQuery(project, query.query,
                 query.sample, Optional.ofNullable(query.defaultSchema).orElse("collection"),
-                query.limit == null ? DEFAULT_QUERY_RESULT_COUNT : query.limit).getResult().thenAccept(result -> {
-            if (result.isFailed()) {
-                throw new RakamException(result.getError().toString(), BAD_REQUEST);
+                query.limit == null ? DEFAULT_QUERY_RESULT_COUNT : query.limit)
+                // the rows are written with blocking calls in order to apply backpressure, so the event loop threads are not used
+                .whenCompleteAsync((stream, ex) -> {
+                    if (ex != null) {
+                        LOGGER.error(ex, "Error while executing query");
+                        HttpServer.returnError(request, "Couldn't execute query: Internal error", INTERNAL_SERVER_ERROR);
+                        return;
+                    }
+
+                    try (QueryResultStream resultStream = stream) {
+                        if (resultStream.isFailed()) {
+                            HttpServer.returnError(request, resultStream.getError().toString(), BAD_REQUEST);
+                            return;
+                        }
+                        export(request, resultStream, query.exportType, gzip);
+                    }
+                }, exportExecutor);
+    }
+
+    private void export(RakamHttpRequest request, QueryResultStream stream, CopyType exportType, boolean gzip)
+    {
+        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+        HttpHeaders.setTransferEncodingChunked(response);
+        response.headers().set(CONTENT_TYPE, exportType == CopyType.CSV ? "text/csv" :
+                (exportType == CopyType.JSON ? "application/x-ndjson" : "application/octet-stream"));
+        response.headers().set("Content-Disposition", "attachment;filename=\"result." + exportType.name().toLowerCase(Locale.ENGLISH) + "\"");
+        if (gzip) {
+            response.headers().set(CONTENT_ENCODING, "gzip");
+        }
+        request.context().writeAndFlush(response);
+
+        ChunkedResponseOutputStream chunkedStream = new ChunkedResponseOutputStream(request.context(), HttpHeaders.isKeepAlive(request));
+        try {
+            OutputStream out = gzip ? new GZIPOutputStream(chunkedStream, 8192) : chunkedStream;
+            ExportUtil.RowWriter writer = ExportUtil.createWriter(exportType, stream.getColumns(), out);
+
+            List<List<Object>> page;
+            while ((page = stream.nextPage()) != null) {
+                for (List<Object> row : page) {
+                    writer.write(row);
+                }
             }
-            byte[] bytes;
-            switch (query.exportType) {
-                case CSV:
-                    bytes = ExportUtil.exportAsCSV(result);
-                    break;
-                case AVRO:
-                    bytes = ExportUtil.exportAsAvro(result);
-                    break;
-                case JSON:
-                    bytes = JsonHelper.encodeAsBytes(result.getResult());
-                default:
-                    throw new IllegalStateException();
+
+            if (stream.isFailed()) {
+                // the status is already sent, the client detects the error since the response is not completed
+                LOGGER.warn("Query failed while exporting the result: %s", stream.getError().message);
+                chunkedStream.abort();
+                return;
             }
 
-            request.response(bytes).end();
-        });
+            writer.finish();
+            out.close();
+        }
+        catch (IOException e) {
+            // the client is disconnected, the query is cancelled when the stream is closed
+            LOGGER.debug(e, "Unable to send the exported result");
+            chunkedStream.abort();
+        }
+        catch (RuntimeException e) {
+            LOGGER.error(e, "Error while exporting the result");
+            chunkedStream.abort();
+        }
     }
 
     @GET
@@ -165,7 +353,8 @@ public class QueryHttpService
                 executorService.executeQuery(project, query.query,
                         query.sample,
                         Optional.ofNullable(query.defaultSchema).orElse("collection"),
-                        query.limit == null ? DEFAULT_QUERY_RESULT_COUNT : query.limit));
+                        query.limit == null ? DEFAULT_QUERY_RESULT_COUNT : query.limit,
+                        query.maxStaleness));
     }
 
     public <T> void handleServerSentQueryExecution(RakamHttpRequest request, Class<T> clazz, BiFunction<String, T, QueryExecution> executorFunction, BiConsumer<T, QueryResult> exceptionCallback)
@@ -248,11 +437,11 @@ public class QueryHttpService
             return;
         }
 
-        handleServerSentQueryExecutionInternal(response, execute, killOnConnectionClose,
+        handleServerSentQueryExecutionInternal(request.context().channel(), response, execute, killOnConnectionClose,
                 queryResult -> exceptionCallback.ifPresent(e -> e.accept(query, queryResult)));
     }
 
-    private void handleServerSentQueryExecutionInternal(RakamHttpRequest.StreamResponse response, QueryExecution query, boolean killOnConnectionClose, Consumer<QueryResult> exceptionMapper)
+    private void handleServerSentQueryExecutionInternal(Channel channel, RakamHttpRequest.StreamResponse response, QueryExecution query, boolean killOnConnectionClose, Consumer<QueryResult> exceptionMapper)
     {
         if (query == null) {
             LOGGER.error("Query execution is null");
@@ -292,34 +481,20 @@ public class QueryHttpService
             }
         });
 
-        eventLoopGroup.schedule(new Runnable()
-        {
-            @Override
-            public void run()
-            {
-                boolean finished = query.isFinished();
-                if (response.isClosed() && !finished && killOnConnectionClose) {
-                    query.kill();
-                }
-                else if (!finished) {
-                    if (!response.isClosed()) {
-                        QueryStats stats = query.currentStats();
-                        response.send("stats", encode(stats));
-                        if (stats.state == QueryStats.State.FINISHED) {
-                            return;
-                        }
-                    }
-
-                    eventLoopGroup.schedule(this, 500, TimeUnit.MILLISECONDS);
-                }
+        query.addStatsListener(stats -> {
+            // the final stats are not sent since the result is sent when the query is finished
+            if (!stats.state.isDone() && !response.isClosed()) {
+                response.send("stats", encode(stats));
             }
-        }, 500, TimeUnit.MILLISECONDS);
-    }
+        });
 
-    @Inject
-    public void setWorkerGroup(@ForHttpServer EventLoopGroup eventLoopGroup)
-    {
-        this.eventLoopGroup = eventLoopGroup;
+        if (killOnConnectionClose) {
+            channel.closeFuture().addListener(future -> {
+                if (!query.isFinished()) {
+                    query.kill();
+                }
+            });
+        }
     }
 
     public static class QueryRequest
@@ -329,6 +504,7 @@ public class QueryHttpService
         public final String defaultSchema;
         public final Optional<QuerySampling> sample;
         public final CopyType exportType;
+        public final Duration maxStaleness;
 
         @JsonCreator
         public QueryRequest(
@@ -336,7 +512,8 @@ public class QueryHttpService
                 @ApiParam(value = "export_type", required = false, description = "Export data using different formats") CopyType exportType,
                 @ApiParam(value = "sampling", required = false, description = "Optional parameter for specifying the sampling on source data") QuerySampling sample,
                 @ApiParam(value = "default_schema", required = false, defaultValue = "collection", description = "The default schema of the query. If the schema is not defined, this schema will be used.") String defaultSchema,
-                @ApiParam(value = "limit", required = false, description = "The maximum rows that can be returned from a query is 500K") Integer limit)
+                @ApiParam(value = "limit", required = false, description = "The maximum rows that can be returned from a query is 500K") Integer limit,
+                @ApiParam(value = "max_staleness", required = false, description = "The maximum age of the cached result in seconds, set 0 to bypass the result cache") Long maxStaleness)
         {
             this.query = requireNonNull(query, "query is empty").trim().replaceAll(";+$", "");
             if (limit != null && limit > MAX_QUERY_RESULT_LIMIT) {
@@ -346,6 +523,7 @@ public class QueryHttpService
             this.defaultSchema = defaultSchema;
             this.sample = Optional.ofNullable(sample);
             this.limit = limit;
+            this.maxStaleness = maxStaleness == null ? null : Duration.ofSeconds(maxStaleness);
         }
     }
 
@@ -0,0 +1,91 @@
+package org.rakam.analysis;
+
+import org.rakam.collection.Event;
+import org.rakam.plugin.EventStore;
+import org.rakam.report.QueryResultCache;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Invalidates the cached query results of the collections after their events are stored. If the results were
+ * invalidated before the events are committed, a query that runs in between could cache a result that doesn't
+ * have the new events with the new version of the collection.
+ */
+public class QueryResultCacheInvalidator
+        implements EventStore
+{
+    private final EventStore delegate;
+    private final QueryResultCache resultCache;
+
+    public QueryResultCacheInvalidator(EventStore delegate, QueryResultCache resultCache)
+    {
+        this.delegate = delegate;
+        this.resultCache = resultCache;
+    }
+
+    @Override
+    public void store(Event event)
+    {
+        try {
+            delegate.store(event);
+        }
+        finally {
+            markUpdated(event);
+        }
+    }
+
+    @Override
+    public int[] storeBatch(List<Event> events)
+    {
+        try {
+            return delegate.storeBatch(events);
+        }
+        finally {
+            markUpdated(events);
+        }
+    }
+
+    @Override
+    public CompletableFuture<int[]> storeBatchAsync(List<Event> events)
+    {
+        // some of the events may be stored even if the batch fails
+        return delegate.storeBatchAsync(events).whenComplete((result, ex) -> markUpdated(events));
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAsync(Event event)
+    {
+        return delegate.storeAsync(event).whenComplete((result, ex) -> markUpdated(event));
+    }
+
+    @Override
+    public void storeBulk(List<Event> events)
+    {
+        try {
+            delegate.storeBulk(events);
+        }
+        finally {
+            markUpdated(events);
+        }
+    }
+
+    private void markUpdated(Event event)
+    {
+        resultCache.markUpdated(event.project(), event.collection());
+    }
+
+    private void markUpdated(List<Event> events)
+    {
+        String lastProject = null;
+        String lastCollection = null;
+        for (Event event : events) {
+            // the events of a batch are usually grouped by collection
+            if (!event.project().equals(lastProject) || !event.collection().equals(lastCollection)) {
+                markUpdated(event);
+                lastProject = event.project();
+                lastCollection = event.collection();
+            }
+        }
+    }
+}
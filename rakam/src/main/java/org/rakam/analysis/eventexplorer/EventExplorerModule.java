@@ -11,6 +11,7 @@ import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.TimestampEventMapper;
 import org.rakam.report.eventexplorer.EventExplorerConfig;
+import org.rakam.report.eventexplorer.EventExplorerRollupService;
 import org.rakam.server.http.HttpService;
 import org.rakam.util.ConditionalModule;
 
@@ -32,6 +33,8 @@ public class EventExplorerModule extends RakamModule {
         if (eventExplorerConfig.getPreComputed()) {
             binder.bind(EventExplorerListener.class).asEagerSingleton();
         }
+
+        binder.bind(EventExplorerRollupService.class).asEagerSingleton();
     }
 
     @Override
@@ -24,6 +24,7 @@ import javax.ws.rs.Path;
 
 import java.time.Instant;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 
 import static com.facebook.presto.sql.RakamSqlFormatter.formatExpression;
@@ -39,11 +40,13 @@ public class RealTimeHttpService
         extends HttpService
 {
     private final RealtimeService realtimeService;
+    private final RealtimeProcessingEventListener realtimeListener;
 
     @Inject
-    public RealTimeHttpService(RealtimeService realtimeService)
+    public RealTimeHttpService(RealtimeService realtimeService, RealtimeProcessingEventListener realtimeListener)
     {
         this.realtimeService = requireNonNull(realtimeService, "realtimeService is null");
+        this.realtimeListener = requireNonNull(realtimeListener, "realtimeListener is null");
     }
 
     /**
@@ -62,7 +65,10 @@ public class RealTimeHttpService
     @Path("/create")
     public CompletableFuture<SuccessMessage> createTable(@Named("project") String project, @BodyParam RealTimeReport report)
     {
-        return realtimeService.create(project, report);
+        return realtimeService.create(project, report).thenApply(result -> {
+            realtimeListener.register(project, report);
+            return result;
+        });
     }
 
     @JsonRequest
@@ -89,6 +95,11 @@ public class RealTimeHttpService
             @ApiParam(value = "date_start", required = false) Instant dateStart,
             @ApiParam(value = "date_end", required = false) Instant dateEnd)
     {
+        Optional<RealTimeQueryResult> result = realtimeListener.query(project, tableName, filter, measure, dimensions, aggregate, dateStart, dateEnd);
+        if (result.isPresent()) {
+            return CompletableFuture.completedFuture(result.get());
+        }
+
         return realtimeService.query(project, tableName, filter, measure, dimensions, aggregate, dateStart, dateEnd);
     }
 
@@ -101,6 +112,7 @@ public class RealTimeHttpService
         // TODO: Check if it's a real-time report.
         return realtimeService.delete(project, tableName).thenApply(result -> {
             if (result) {
+                realtimeListener.unregister(project, tableName);
                 return SuccessMessage.success();
             }
             else {
@@ -2,6 +2,7 @@ package org.rakam.analysis.realtime;
 
 import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
+import com.google.inject.Scopes;
 import com.google.inject.multibindings.Multibinder;
 import io.swagger.models.Tag;
 import org.rakam.config.MetadataConfig;
@@ -25,8 +26,11 @@ public class RealTimeModule extends RakamModule {
         Multibinder<HttpService> multiBinder = Multibinder.newSetBinder(binder, HttpService.class);
         multiBinder.addBinding().to(RealTimeHttpService.class);
 
+        binder.bind(RealtimeProcessingEventListener.class).in(Scopes.SINGLETON);
+
         Multibinder<EventMapper> mappers = Multibinder.newSetBinder(binder, EventMapper.class);
         mappers.permitDuplicates().addBinding().to(TimestampEventMapper.class);
+        mappers.addBinding().to(RealtimeProcessingEventListener.class);
 
         Multibinder.newSetBinder(binder, Tag.class).addBinding()
                 .toInstance( new Tag().name("realtime").description("Realtime")
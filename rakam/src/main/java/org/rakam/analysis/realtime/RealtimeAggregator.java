@@ -0,0 +1,388 @@
+package org.rakam.analysis.realtime;
+
+import com.google.common.collect.ImmutableList;
+import io.airlift.slice.Slices;
+import io.airlift.stats.cardinality.HyperLogLog;
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.collection.Event;
+import org.rakam.report.realtime.AggregationType;
+import org.rakam.report.realtime.RealTimeReport;
+import org.rakam.report.realtime.RealTimeReport.Measure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the partial aggregates of a single real-time report in memory, grouped by
+ * (time bucket, dimension values). Buckets that fall out of the window are evicted
+ * while the report receives new events. The aggregates only have the events that are
+ * received after the aggregator is created.
+ */
+public class RealtimeAggregator
+{
+    private static final int HLL_BUCKETS = 2048;
+
+    private final RealTimeReport report;
+    private final Predicate<Event> filter;
+    private final List<String> dimensions;
+    private final List<Measure> measures;
+    private final String timeColumn;
+    private final long slideMillis;
+    private final long windowMillis;
+    private final long startTime;
+    private final NavigableMap<Long, ConcurrentMap<List<Object>, MeasureState[]>> buckets;
+
+    public RealtimeAggregator(RealTimeReport report, Predicate<Event> filter, String timeColumn, long slideMillis, long windowMillis, long startTime)
+    {
+        this.report = report;
+        this.filter = filter;
+        this.dimensions = report.dimensions == null ? ImmutableList.of() : ImmutableList.copyOf(report.dimensions);
+        this.measures = ImmutableList.copyOf(report.measures);
+        this.timeColumn = timeColumn;
+        this.slideMillis = slideMillis;
+        this.windowMillis = windowMillis;
+        this.startTime = startTime;
+        this.buckets = new ConcurrentSkipListMap<>();
+    }
+
+    public RealTimeReport getReport()
+    {
+        return report;
+    }
+
+    /**
+     * Returns the first bucket that has all the events, the events of the earlier buckets are received
+     * before the aggregator is created.
+     */
+    public long getFirstCompleteBucket()
+    {
+        return (startTime + slideMillis - 1) / slideMillis;
+    }
+
+    public boolean accepts(Event event)
+    {
+        if (!report.collections.isEmpty() && !report.collections.contains(event.collection())) {
+            return false;
+        }
+
+        return filter == null || filter.test(event);
+    }
+
+    public void add(Event event, long now)
+    {
+        GenericRecord properties = event.properties();
+        Object time = properties.get(timeColumn);
+        long timestamp = time instanceof Number ? ((Number) time).longValue() : now;
+
+        // the window of the queries ends at the last complete bucket so an extra bucket is kept
+        long minBucket = (now - windowMillis - slideMillis) / slideMillis;
+        long bucket = timestamp / slideMillis;
+        if (bucket < minBucket) {
+            return;
+        }
+
+        List<Object> key;
+        if (dimensions.isEmpty()) {
+            key = ImmutableList.of();
+        }
+        else {
+            Object[] values = new Object[dimensions.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = properties.get(dimensions.get(i));
+            }
+            key = Arrays.asList(values);
+        }
+
+        MeasureState[] states = buckets.computeIfAbsent(bucket, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(key, k -> createStates());
+
+        for (int i = 0; i < states.length; i++) {
+            Object value = properties.get(measures.get(i).column);
+            if (value != null) {
+                states[i].add(value);
+            }
+        }
+
+        evict(minBucket);
+    }
+
+    public void evict(long minBucket)
+    {
+        if (!buckets.isEmpty() && buckets.firstKey() < minBucket) {
+            buckets.headMap(minBucket).clear();
+        }
+    }
+
+    /**
+     * Returns the combined value of the measure for each (bucket, requested dimensions) pair
+     * in [startBucket, endBucket). If mergeBuckets is set, all the buckets are combined under endBucket.
+     */
+    public Map<Long, Map<List<Object>, Object>> query(Measure measure, List<String> requestedDimensions, long startBucket, long endBucket, boolean mergeBuckets)
+    {
+        int measureIndex = measures.indexOf(measure);
+        if (measureIndex == -1) {
+            throw new IllegalArgumentException("Measure is not part of the report");
+        }
+
+        int[] dimensionIndexes = new int[requestedDimensions.size()];
+        for (int i = 0; i < dimensionIndexes.length; i++) {
+            dimensionIndexes[i] = dimensions.indexOf(requestedDimensions.get(i));
+            if (dimensionIndexes[i] == -1) {
+                throw new IllegalArgumentException("Dimension is not part of the report");
+            }
+        }
+
+        Map<Long, Map<List<Object>, MeasureState>> merged = new LinkedHashMap<>();
+        for (Map.Entry<Long, ConcurrentMap<List<Object>, MeasureState[]>> entry : buckets.subMap(startBucket, endBucket).entrySet()) {
+            Map<List<Object>, MeasureState> groups = merged.computeIfAbsent(mergeBuckets ? endBucket : entry.getKey(), k -> new HashMap<>());
+
+            for (Map.Entry<List<Object>, MeasureState[]> group : entry.getValue().entrySet()) {
+                Object[] values = new Object[dimensionIndexes.length];
+                boolean hasNull = false;
+                for (int i = 0; i < dimensionIndexes.length; i++) {
+                    values[i] = group.getKey().get(dimensionIndexes[i]);
+                    hasNull |= values[i] == null;
+                }
+                if (hasNull) {
+                    continue;
+                }
+
+                groups.computeIfAbsent(Arrays.asList(values), k -> createState(measure.aggregation))
+                        .merge(group.getValue()[measureIndex]);
+            }
+        }
+
+        Map<Long, Map<List<Object>, Object>> result = new LinkedHashMap<>(merged.size());
+        for (Map.Entry<Long, Map<List<Object>, MeasureState>> entry : merged.entrySet()) {
+            Map<List<Object>, Object> values = new LinkedHashMap<>(entry.getValue().size());
+            for (Map.Entry<List<Object>, MeasureState> group : entry.getValue().entrySet()) {
+                values.put(group.getKey(), group.getValue().value());
+            }
+            result.put(entry.getKey(), values);
+        }
+
+        return result;
+    }
+
+    private MeasureState[] createStates()
+    {
+        MeasureState[] states = new MeasureState[measures.size()];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = createState(measures.get(i).aggregation);
+        }
+        return states;
+    }
+
+    private static MeasureState createState(AggregationType type)
+    {
+        switch (type) {
+            case COUNT:
+                return new CountState();
+            case SUM:
+                return new SumState();
+            case MINIMUM:
+                return new ExtremeState(true);
+            case MAXIMUM:
+                return new ExtremeState(false);
+            case AVERAGE:
+                return new AverageState();
+            // the distinct values of a bucket are not kept in memory
+            case COUNT_UNIQUE:
+            case APPROXIMATE_UNIQUE:
+                return new ApproximateUniqueState();
+            default:
+                throw new IllegalStateException("Unsupported aggregation type: " + type);
+        }
+    }
+
+    private interface MeasureState
+    {
+        void add(Object value);
+
+        void merge(MeasureState other);
+
+        Object value();
+    }
+
+    private static class CountState
+            implements MeasureState
+    {
+        private long count;
+
+        @Override
+        public synchronized void add(Object value)
+        {
+            count++;
+        }
+
+        @Override
+        public synchronized void merge(MeasureState other)
+        {
+            CountState state = (CountState) other;
+            synchronized (state) {
+                count += state.count;
+            }
+        }
+
+        @Override
+        public synchronized Object value()
+        {
+            return count;
+        }
+    }
+
+    private static class SumState
+            implements MeasureState
+    {
+        private double sum;
+
+        @Override
+        public synchronized void add(Object value)
+        {
+            if (value instanceof Number) {
+                sum += ((Number) value).doubleValue();
+            }
+        }
+
+        @Override
+        public synchronized void merge(MeasureState other)
+        {
+            SumState state = (SumState) other;
+            synchronized (state) {
+                sum += state.sum;
+            }
+        }
+
+        @Override
+        public synchronized Object value()
+        {
+            return sum;
+        }
+    }
+
+    private static class ExtremeState
+            implements MeasureState
+    {
+        private final boolean minimum;
+        private Double value;
+
+        private ExtremeState(boolean minimum)
+        {
+            this.minimum = minimum;
+        }
+
+        @Override
+        public synchronized void add(Object value)
+        {
+            if (value instanceof Number) {
+                accumulate(((Number) value).doubleValue());
+            }
+        }
+
+        private void accumulate(double newValue)
+        {
+            if (value == null || (minimum ? newValue < value : newValue > value)) {
+                value = newValue;
+            }
+        }
+
+        @Override
+        public synchronized void merge(MeasureState other)
+        {
+            ExtremeState state = (ExtremeState) other;
+            synchronized (state) {
+                if (state.value != null) {
+                    accumulate(state.value);
+                }
+            }
+        }
+
+        @Override
+        public synchronized Object value()
+        {
+            return value;
+        }
+    }
+
+    private static class AverageState
+            implements MeasureState
+    {
+        private double sum;
+        private long count;
+
+        @Override
+        public synchronized void add(Object value)
+        {
+            if (value instanceof Number) {
+                sum += ((Number) value).doubleValue();
+                count++;
+            }
+        }
+
+        @Override
+        public synchronized void merge(MeasureState other)
+        {
+            AverageState state = (AverageState) other;
+            synchronized (state) {
+                sum += state.sum;
+                count += state.count;
+            }
+        }
+
+        @Override
+        public synchronized Object value()
+        {
+            return count == 0 ? null : sum / count;
+        }
+    }
+
+    private static class ApproximateUniqueState
+            implements MeasureState
+    {
+        private final HyperLogLog hll = HyperLogLog.newInstance(HLL_BUCKETS);
+
+        @Override
+        public synchronized void add(Object value)
+        {
+            if (value instanceof Number) {
+                hll.add(((Number) value).longValue());
+            }
+            else {
+                hll.add(Slices.utf8Slice(value.toString()));
+            }
+        }
+
+        @Override
+        public synchronized void merge(MeasureState other)
+        {
+            ApproximateUniqueState state = (ApproximateUniqueState) other;
+            synchronized (state) {
+                hll.mergeWith(state.hll);
+            }
+        }
+
+        @Override
+        public synchronized Object value()
+        {
+            return hll.cardinality();
+        }
+    }
+
+    public static List<Object> row(Object time, List<Object> dimensions, Object value)
+    {
+        List<Object> row = new ArrayList<>(dimensions.size() + 2);
+        row.add(time);
+        row.addAll(dimensions);
+        row.add(value);
+        return row;
+    }
+}
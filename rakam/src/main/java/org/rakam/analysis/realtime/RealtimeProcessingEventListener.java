@@ -1,87 +1,288 @@
 package org.rakam.analysis.realtime;
 
-import com.github.benmanes.caffeine.cache.CacheLoader;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.Expiry;
-import com.github.benmanes.caffeine.cache.LoadingCache;
-import com.google.common.collect.Table;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import io.airlift.log.Logger;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.cookie.Cookie;
-import org.apache.avro.generic.GenericRecord;
+import org.rakam.Mapper;
+import org.rakam.analysis.RealtimeService;
+import org.rakam.analysis.RealtimeService.RealTimeQueryResult;
+import org.rakam.automation.ExpressionCompiler;
 import org.rakam.collection.Event;
-import org.rakam.plugin.EventMapper;
+import org.rakam.config.ProjectConfig;
+import org.rakam.plugin.ContinuousQuery;
+import org.rakam.plugin.SyncEventMapper;
+import org.rakam.report.realtime.RealTimeConfig;
 import org.rakam.report.realtime.RealTimeReport;
+import org.rakam.util.JsonHelper;
 
-import javax.annotation.Nonnull;
+import javax.inject.Inject;
 
 import java.net.InetAddress;
-import java.util.HashMap;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 
-import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.Objects.requireNonNull;
 
-public class RealtimeProcessingEventListener implements EventMapper
+@Mapper(name = "Real-time aggregation listener", description = "An internal event mapper that aggregates the events of real-time reports in memory")
+public class RealtimeProcessingEventListener
+        implements SyncEventMapper
 {
-//    private final Table<String, String, String> map;
-    private final Map<String, List<RealTimeReport>> reports;
+    private static final Logger LOGGER = Logger.get(RealtimeProcessingEventListener.class);
 
-    public RealtimeProcessingEventListener()
+    private final RealtimeService realtimeService;
+    private final boolean enabled;
+    private final String timeColumn;
+    private final long slideMillis;
+    private final long windowMillis;
+    private final long reloadMillis;
+    private final Map<String, ProjectReports> reports;
+
+    @Inject
+    public RealtimeProcessingEventListener(RealtimeService realtimeService, ProjectConfig projectConfig, RealTimeConfig config)
     {
-        LoadingCache<RealTimeReport, String> graphs = Caffeine.newBuilder()
-                .expireAfterAccess(5, MINUTES)
-                .expireAfterWrite(10, MINUTES)
-                .expireAfter(new Expiry<RealTimeReport, String>()
-                {
-                    public long expireAfterCreate(RealTimeReport key, String graph, long currentTime)
-                    {
-//                        long seconds = graph.creationDate().plusHours(5)
-//                                .minus(System.currentTimeMillis(), MILLIS)
-//                                .toEpochSecond();
-                        long seconds = 0;
-                        return TimeUnit.SECONDS.toNanos(seconds);
-                    }
-
-                    public long expireAfterUpdate(RealTimeReport key, String graph,
-                            long currentTime, long currentDuration)
-                    {
-                        return currentDuration;
-                    }
-
-                    public long expireAfterRead(RealTimeReport key, String graph,
-                            long currentTime, long currentDuration)
-                    {
-                        return currentDuration;
-                    }
-                })
-                .build(k1 -> createExpensiveGraph(k1));
-        this.reports = new HashMap<>();
+        this.realtimeService = requireNonNull(realtimeService, "realtimeService is null");
+        this.enabled = config.getInMemoryAggregation();
+        this.timeColumn = projectConfig.getTimeColumn();
+        this.slideMillis = config.getSlideInterval().toMillis();
+        this.windowMillis = config.getWindowInterval().toMillis();
+        this.reloadMillis = config.getReportReloadInterval().toMillis();
+        this.reports = new ConcurrentHashMap<>();
     }
 
-    private String createExpensiveGraph(RealTimeReport key) {
-        return "";
+    @Override
+    public List<Cookie> map(Event event, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        if (!enabled) {
+            return null;
+        }
+
+        Collection<RealtimeAggregator> aggregators = getReports(event.project()).values();
+        if (aggregators.isEmpty()) {
+            return null;
+        }
+
+        long now = Instant.now().toEpochMilli();
+        for (RealtimeAggregator aggregator : aggregators) {
+            if (aggregator.accepts(event)) {
+                aggregator.add(event, now);
+            }
+        }
+
+        return null;
     }
 
-    @Override
-    public CompletableFuture<List<Cookie>> mapAsync(Event event, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    public void register(String project, RealTimeReport report)
+    {
+        if (!enabled) {
+            return;
+        }
+
+        RealtimeAggregator aggregator = createAggregator(report, Instant.now().toEpochMilli());
+        Map<String, RealtimeAggregator> aggregators = getReports(project);
+        if (aggregator == null) {
+            aggregators.remove(report.table_name);
+        }
+        else {
+            aggregators.put(report.table_name, aggregator);
+        }
+    }
+
+    public void unregister(String project, String tableName)
+    {
+        getReports(project).remove(tableName);
+    }
+
+    /**
+     * Answers the query from the in-memory aggregates. Returns an empty value if the report is not maintained
+     * in memory, the query requires the continuous query table or the aggregates don't have all the events of
+     * the requested range, so that the caller can fall back to it. The aggregates only have the events of this
+     * node, so they're not used unless the in-memory aggregation is enabled for a single collector node.
+     */
+    public Optional<RealTimeQueryResult> query(String project, String tableName, String filter,
+            RealTimeReport.Measure measure, List<String> dimensions, Boolean aggregate,
+            Instant dateStart, Instant dateEnd)
+    {
+        if (!enabled) {
+            return Optional.empty();
+        }
+
+        RealtimeAggregator aggregator = getReports(project).get(tableName);
+        if (aggregator == null || filter != null) {
+            return Optional.empty();
+        }
+
+        RealTimeReport report = aggregator.getReport();
+        List<String> requestedDimensions = dimensions == null ? ImmutableList.of() : dimensions;
+        Set<String> reportDimensions = report.dimensions == null ? ImmutableSet.of() : report.dimensions;
+        if (!report.measures.contains(measure) || !reportDimensions.containsAll(requestedDimensions)) {
+            return Optional.empty();
+        }
+
+        boolean finalAggregate = aggregate != null && aggregate;
+        long now = Instant.now().toEpochMilli();
+        long lastUpdate = now - slideMillis;
+        long previousWindow = (dateStart == null ? (lastUpdate - windowMillis) : dateStart.toEpochMilli()) / slideMillis;
+        long currentWindow = (dateEnd == null ? lastUpdate : dateEnd.toEpochMilli()) / slideMillis;
+
+        // the buckets before the aggregator is created and the evicted buckets are only in the continuous query table
+        long firstBucket = Math.max(aggregator.getFirstCompleteBucket(), (now - windowMillis - slideMillis) / slideMillis);
+        if (previousWindow < firstBucket) {
+            return Optional.empty();
+        }
+        // the events of the current bucket are still being received
+        long completeEnd = Math.max(previousWindow, Math.min(currentWindow, now / slideMillis));
+
+        Map<Long, Map<List<Object>, Object>> data = aggregator.query(measure, requestedDimensions,
+                previousWindow, currentWindow, finalAggregate);
+
+        Object result;
+        if (finalAggregate) {
+            Map<List<Object>, Object> groups = data.getOrDefault(currentWindow, ImmutableMap.of());
+            if (requestedDimensions.isEmpty()) {
+                Object value = groups.get(ImmutableList.of());
+                result = value == null ? 0 : value;
+            }
+            else {
+                List<List<Object>> rows = new ArrayList<>(groups.size());
+                groups.forEach((key, value) -> rows.add(RealtimeAggregator.row(currentWindow * slideMillis, key, value)));
+                result = rows;
+            }
+        }
+        else {
+            List<List<Object>> rows = new ArrayList<>();
+            if (requestedDimensions.isEmpty()) {
+                for (long bucket = previousWindow; bucket < currentWindow; bucket++) {
+                    Map<List<Object>, Object> groups = data.get(bucket);
+                    Object value = groups == null ? null : groups.get(ImmutableList.of());
+                    rows.add(RealtimeAggregator.row(bucket * slideMillis, ImmutableList.of(), value == null ? 0 : value));
+                }
+            }
+            else {
+                data.forEach((bucket, groups) -> groups.forEach((key, value) ->
+                        rows.add(RealtimeAggregator.row(bucket * slideMillis, key, value))));
+            }
+            result = rows;
+        }
+
+        return Optional.of(new RealTimeQueryResult(previousWindow * slideMillis / 1000,
+                currentWindow * slideMillis / 1000, result,
+                previousWindow * slideMillis / 1000, completeEnd * slideMillis / 1000));
+    }
+
+    /**
+     * Returns the aggregators of the project. The reports are created and deleted on any node, so the reports
+     * are reloaded periodically and the aggregators of the reports that are not changed keep their state.
+     */
+    private Map<String, RealtimeAggregator> getReports(String project)
     {
-        List<RealTimeReport> realTimeReports = reports.get(event.project());
-        if(realTimeReports == null) {
-            return COMPLETED_EMPTY_FUTURE;
+        ProjectReports projectReports = reports.computeIfAbsent(project, p -> new ProjectReports());
+        long now = Instant.now().toEpochMilli();
+        if (now - projectReports.loadedAt > reloadMillis && projectReports.loading.compareAndSet(false, true)) {
+            try {
+                load(project, projectReports.aggregators, now);
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Unable to load the real-time reports of project %s", project);
+            }
+            finally {
+                projectReports.loadedAt = now;
+                projectReports.loading.set(false);
+            }
         }
 
-        for (RealTimeReport report : realTimeReports) {
-            if(report.collections.isEmpty() && !report.collections.contains(event.collection())) {
+        return projectReports.aggregators;
+    }
+
+    private void load(String project, Map<String, RealtimeAggregator> aggregators, long now)
+    {
+        Set<String> tableNames = new HashSet<>();
+        for (ContinuousQuery query : realtimeService.list(project)) {
+            RealTimeReport report = toReport(query);
+            if (report == null) {
                 continue;
             }
+            tableNames.add(query.tableName);
 
-            Predicate<GenericRecord> filter = null;
-            String filter1 = report.filter;
+            RealtimeAggregator current = aggregators.get(query.tableName);
+            if (current != null && isSameReport(current.getReport(), report)) {
+                continue;
+            }
+            RealtimeAggregator aggregator = createAggregator(report, now);
+            if (aggregator == null) {
+                aggregators.remove(query.tableName);
+            }
+            else {
+                aggregators.put(query.tableName, aggregator);
+            }
         }
 
-        return null;
+        aggregators.keySet().retainAll(tableNames);
+    }
+
+    private static boolean isSameReport(RealTimeReport first, RealTimeReport second)
+    {
+        return Objects.equals(first.collections, second.collections) && Objects.equals(first.filter, second.filter)
+                && Objects.equals(first.measures, second.measures) && Objects.equals(first.dimensions, second.dimensions);
+    }
+
+    private RealtimeAggregator createAggregator(RealTimeReport report, long startTime)
+    {
+        Predicate<Event> filter;
+        if (report.filter == null) {
+            filter = null;
+        }
+        else {
+            try {
+                filter = ExpressionCompiler.compile(report.filter);
+            }
+            catch (Exception e) {
+                LOGGER.warn(e, "Filter of real-time report %s can't be compiled, the report will be served from the continuous query table", report.table_name);
+                return null;
+            }
+        }
+
+        return new RealtimeAggregator(report, filter, timeColumn, slideMillis, windowMillis, startTime);
+    }
+
+    private static RealTimeReport toReport(ContinuousQuery query)
+    {
+        Map<String, Object> options = query.options;
+        if (options.get("collections") == null || options.get("aggregation") == null) {
+            return null;
+        }
+
+        try {
+            return new RealTimeReport(query.name,
+                    JsonHelper.convert(options.get("aggregation"), new TypeReference<Set<RealTimeReport.Measure>>() {}),
+                    query.tableName,
+                    JsonHelper.convert(options.get("collections"), new TypeReference<Set<String>>() {}),
+                    (String) options.get("filter"),
+                    JsonHelper.convert(options.getOrDefault("dimensions", ImmutableList.of()), new TypeReference<Set<String>>() {}));
+        }
+        catch (Exception e) {
+            LOGGER.warn(e, "Unable to read real-time report %s", query.tableName);
+            return null;
+        }
+    }
+
+    private static class ProjectReports
+    {
+        private final Map<String, RealtimeAggregator> aggregators = new ConcurrentHashMap<>();
+        private final AtomicBoolean loading = new AtomicBoolean();
+        private volatile long loadedAt;
     }
 }
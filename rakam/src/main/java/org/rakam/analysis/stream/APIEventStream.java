@@ -7,17 +7,14 @@ import org.apache.avro.generic.GenericRecord;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder;
 import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder.CollectionFilter;
-import org.rakam.collection.Event;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.stream.CollectionStreamQuery;
 import org.rakam.plugin.stream.EventStream;
 import org.rakam.plugin.stream.StreamResponse;
-import org.rakam.util.JsonHelper;
 
 import javax.inject.Inject;
 
 import java.util.AbstractMap.SimpleImmutableEntry;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -30,14 +27,14 @@ import static org.rakam.presto.analysis.PrestoRakamRaptorMetastore.toType;
 public class APIEventStream
         implements EventStream
 {
-    private final Map<String, List<CollectionStreamHolder>> holder;
+    private final StreamSubscriptions subscriptions;
     private final ExpressionCompiler expressionCompiler;
     private final Metastore metastore;
 
     @Inject
-    public APIEventStream(Map<String, List<CollectionStreamHolder>> holder, Metastore metastore, ExpressionCompiler expressionCompiler)
+    public APIEventStream(StreamSubscriptions subscriptions, Metastore metastore, ExpressionCompiler expressionCompiler)
     {
-        this.holder = holder;
+        this.subscriptions = subscriptions;
         this.expressionCompiler = expressionCompiler;
         this.metastore = metastore;
     }
@@ -72,17 +69,15 @@ public class APIEventStream
         }
 
         CollectionStreamHolder streamHolder = new CollectionStreamHolder(collect1);
-        List<CollectionStreamHolder> holders = this.holder.computeIfAbsent(project, s -> new ArrayList<>());
-        synchronized (this) {
-            holders.add(streamHolder);
-        }
+        subscriptions.subscribe(project, streamHolder);
 
         return new EventStreamer()
         {
             @Override
             public void sync()
             {
-                Event message = streamHolder.messageQueue.poll();
+                // the events are serialized once when they're published, so the messages are only concatenated here
+                String message = streamHolder.messageQueue.poll();
                 StringBuilder builder = new StringBuilder("[");
 
                 boolean isFirst = true;
@@ -91,12 +86,7 @@ public class APIEventStream
                         builder.append(",");
                     }
 
-                    builder.append("{\"project\":")
-                            .append(JsonHelper.encode(message.project()))
-                            .append(", \"collection\":")
-                            .append(JsonHelper.encode(message.collection()))
-                            .append(", \"properties\": ")
-                            .append(message.properties().toString()).append("}");
+                    builder.append(message);
 
                     isFirst = false;
                     message = streamHolder.messageQueue.poll();
@@ -110,9 +100,7 @@ public class APIEventStream
             @Override
             public void shutdown()
             {
-                synchronized (this) {
-                    holder.remove(holder);
-                }
+                subscriptions.unsubscribe(project, streamHolder);
             }
         };
     }
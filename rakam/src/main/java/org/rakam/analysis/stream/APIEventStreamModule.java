@@ -5,20 +5,17 @@ import com.facebook.presto.metadata.MetadataManager;
 import com.facebook.presto.transaction.TransactionManager;
 import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
-import com.google.inject.TypeLiteral;
+import com.google.inject.Scopes;
 import com.google.inject.multibindings.Multibinder;
 import org.apache.avro.generic.GenericRecord;
-import org.rakam.collection.Event;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.stream.EventStream;
 import org.rakam.util.ConditionalModule;
 
 import java.util.List;
-import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 
 @AutoService(RakamModule.class)
@@ -31,8 +28,8 @@ public class APIEventStreamModule
     @Override
     protected void setup(Binder binder)
     {
-        binder.bind(new TypeLiteral<Map<String, List<CollectionStreamHolder>>>() {})
-                .toInstance(new ConcurrentHashMap<>());
+        binder.bind(StreamSubscriptions.class).in(Scopes.SINGLETON);
+        binder.bind(ExpressionCompiler.class).in(Scopes.SINGLETON);
         binder.bind(EventStream.class).to(APIEventStream.class);
         Multibinder<EventMapper> mapperMultibinder = Multibinder.newSetBinder(binder, EventMapper.class);
         mapperMultibinder.addBinding().to(EventListenerMapper.class);
@@ -56,7 +53,7 @@ public class APIEventStreamModule
     public static class CollectionStreamHolder
     {
         public final List<CollectionFilter> collections;
-        public final Queue<Event> messageQueue;
+        public final Queue<String> messageQueue;
 
         public CollectionStreamHolder(List<CollectionFilter> collections)
         {
@@ -34,6 +34,9 @@ import com.facebook.presto.sql.tree.ExpressionTreeRewriter;
 import com.facebook.presto.sql.tree.SymbolReference;
 import com.facebook.presto.transaction.TransactionManager;
 import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import org.apache.avro.generic.GenericRecord;
 
@@ -48,6 +51,7 @@ import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Predicate;
 
@@ -70,6 +74,7 @@ public class ExpressionCompiler
     private final TypeManager typeManager;
     private final FeaturesConfig featuresConfig;
     private final ExpressionOptimizer expressionOptimizer;
+    private final LoadingCache<FilterKey, FilterContext> filters;
 
     @Inject
     public ExpressionCompiler(Metadata metadata, TransactionManager transactionManager, FeaturesConfig featuresConfig)
@@ -86,25 +91,65 @@ public class ExpressionCompiler
                 .setTransactionId(transactionManager.beginTransaction(IsolationLevel.REPEATABLE_READ, true, true))
                 .build();
         this.expressionOptimizer = new ExpressionOptimizer(metadata.getFunctionRegistry(), metadata.getTypeManager(), session);
-
+        this.filters = CacheBuilder.newBuilder()
+                .maximumSize(1000)
+                .build(CacheLoader.from(key -> analyze(key.expression, key.columns)));
     }
 
+    /**
+     * Returns a predicate that evaluates the expression on the records that have the given column layout.
+     * The generated class is cached, so the subscribers that share a filter don't compile it again.
+     * The returned predicate is thread-safe.
+     */
     public Predicate<GenericRecord> generate(Expression expression, List<Map.Entry<String, Type>> columns)
     {
-        FilterContext filterContext = analyze(expression, columns);
+        FilterContext filterContext = filters.getUnchecked(new FilterKey(expression, columns));
 
         ImmutableList<Type> types = copyOf(filterContext.sourceTypes.values());
-        AvroRecordCursor cursor = new AvroRecordCursor(types, filterContext.projections);
+        int[] projections = filterContext.projections;
         Filter filter = filterContext.filter;
 
         ConnectorSession connectorSession = session.toConnectorSession();
 
         return genericRecord -> {
+            // the cursor is cheap and not thread-safe so each evaluation gets its own instance
+            AvroRecordCursor cursor = new AvroRecordCursor(types, projections);
             cursor.setRecord(genericRecord);
             return filter.filter(connectorSession, cursor);
         };
     }
 
+    private static class FilterKey
+    {
+        private final Expression expression;
+        private final List<Map.Entry<String, Type>> columns;
+
+        private FilterKey(Expression expression, List<Map.Entry<String, Type>> columns)
+        {
+            this.expression = expression;
+            this.columns = ImmutableList.copyOf(columns);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FilterKey)) {
+                return false;
+            }
+            FilterKey filterKey = (FilterKey) o;
+            return expression.equals(filterKey.expression) && columns.equals(filterKey.columns);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(expression, columns);
+        }
+    }
+
     private static class FilterContext
     {
         public final Map<Integer, Type> sourceTypes;
@@ -0,0 +1,119 @@
+package org.rakam.analysis.stream;
+
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder;
+import org.rakam.collection.Event;
+import org.rakam.util.JsonHelper;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+/**
+ * Indexes the active stream subscriptions by project and collection so that an event is only tested
+ * against the subscribers of its own collection. Each subscriber receives an event at most once and the
+ * event is serialized once, regardless of the number of subscribers that it's delivered to.
+ */
+public class StreamSubscriptions
+{
+    private final Map<String, ProjectSubscriptions> projects = new ConcurrentHashMap<>();
+
+    public void subscribe(String project, CollectionStreamHolder holder)
+    {
+        ProjectSubscriptions subscriptions = projects.computeIfAbsent(project, k -> new ProjectSubscriptions());
+
+        boolean allCollections = holder.collections.stream().anyMatch(item -> item.collection == null);
+        if (allCollections) {
+            subscriptions.allCollections.add(new Subscription(holder, null));
+            return;
+        }
+
+        // the filters of the same collection are combined so that the subscriber receives the event once
+        Map<String, Predicate<GenericRecord>> filters = new LinkedHashMap<>();
+        Set<String> unfiltered = new HashSet<>();
+        for (CollectionStreamHolder.CollectionFilter item : holder.collections) {
+            if (item.filter == null) {
+                unfiltered.add(item.collection);
+            }
+            filters.merge(item.collection, item.filter == null ? record -> true : item.filter, Predicate::or);
+        }
+
+        filters.forEach((collection, filter) ->
+                subscriptions.byCollection.computeIfAbsent(collection, k -> new CopyOnWriteArrayList<>())
+                        .add(new Subscription(holder, unfiltered.contains(collection) ? null : filter)));
+    }
+
+    public void unsubscribe(String project, CollectionStreamHolder holder)
+    {
+        ProjectSubscriptions subscriptions = projects.get(project);
+        if (subscriptions == null) {
+            return;
+        }
+
+        subscriptions.allCollections.removeIf(subscription -> subscription.holder == holder);
+        for (List<Subscription> list : subscriptions.byCollection.values()) {
+            list.removeIf(subscription -> subscription.holder == holder);
+        }
+    }
+
+    public void publish(Event event)
+    {
+        ProjectSubscriptions subscriptions = projects.get(event.project());
+        if (subscriptions == null) {
+            return;
+        }
+
+        String message = publish(subscriptions.allCollections, event, null);
+
+        List<Subscription> collectionSubscriptions = subscriptions.byCollection.get(event.collection());
+        if (collectionSubscriptions != null) {
+            publish(collectionSubscriptions, event, message);
+        }
+    }
+
+    private static String publish(List<Subscription> subscriptions, Event event, String message)
+    {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.filter != null && !subscription.filter.test(event.properties())) {
+                continue;
+            }
+
+            if (message == null) {
+                message = serialize(event);
+            }
+            subscription.holder.messageQueue.offer(message);
+        }
+
+        return message;
+    }
+
+    private static String serialize(Event event)
+    {
+        return "{\"project\":" + JsonHelper.encode(event.project()) +
+                ", \"collection\":" + JsonHelper.encode(event.collection()) +
+                ", \"properties\": " + event.properties().toString() + "}";
+    }
+
+    private static class ProjectSubscriptions
+    {
+        private final List<Subscription> allCollections = new CopyOnWriteArrayList<>();
+        private final Map<String, List<Subscription>> byCollection = new ConcurrentHashMap<>();
+    }
+
+    private static class Subscription
+    {
+        private final CollectionStreamHolder holder;
+        private final Predicate<GenericRecord> filter;
+
+        private Subscription(CollectionStreamHolder holder, Predicate<GenericRecord> filter)
+        {
+            this.holder = holder;
+            this.filter = filter;
+        }
+    }
+}
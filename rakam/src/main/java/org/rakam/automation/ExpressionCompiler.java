@@ -17,6 +17,7 @@ import com.google.common.base.Throwables;
 import net.openhft.compiler.CompilerUtils;
 import org.rakam.collection.Event;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 
 import static org.rakam.util.ValidationUtil.checkTableColumn;
@@ -25,6 +26,7 @@ public final class ExpressionCompiler
 {
 
     private static final SqlParser sqlParser = new SqlParser();
+    private static final AtomicInteger classCounter = new AtomicInteger();
 
     private ExpressionCompiler()
             throws InstantiationException
@@ -40,18 +42,20 @@ public final class ExpressionCompiler
             expression = sqlParser.createExpression(expressionStr);
         }
         final String javaExp = new JavaSourceAstVisitor().process(expression, false);
-        String className = "org.rakam.automation.compiled.Predicate1";
+        // the compiler caches the classes by name so each predicate needs a unique one
+        String simpleClassName = "Predicate" + classCounter.incrementAndGet();
+        String className = "org.rakam.automation.compiled." + simpleClassName;
         String javaCode = String.format("package org.rakam.automation.compiled;\n" +
                 "import org.rakam.collection.Event;\n" +
                 "import org.apache.avro.generic.GenericRecord;\n" +
                 "import java.lang.Comparable;\n" +
                 "import java.util.function.Predicate;\n" +
-                "public class Predicate1 implements Predicate<Event> {\n" +
+                "public class %s implements Predicate<Event> {\n" +
                 "    public boolean test(Event event) {\n" +
                 "        GenericRecord props = event.properties();\n" +
                 "        return %s;\n" +
                 "    }\n" +
-                "}\n", javaExp);
+                "}\n", simpleClassName, javaExp);
 
         try {
             Class aClass = CompilerUtils.CACHED_COMPILER.loadFromJava(className, javaCode);
@@ -29,10 +29,12 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.cookie.Cookie;
 import org.apache.avro.generic.GenericData;
 import org.rakam.analysis.ApiKeyService;
+import org.rakam.analysis.QueryResultCacheInvalidator;
 import org.rakam.collection.Event.EventContext;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.EventStore.CopyType;
+import org.rakam.report.QueryResultCache;
 import org.rakam.server.http.HttpRequestException;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.RakamHttpRequest;
@@ -129,9 +131,10 @@ public class EventCollectionHttpService
             AvroEventDeserializer avroEventDeserializer,
             EventListDeserializer eventListDeserializer,
             CsvEventDeserializer csvEventDeserializer,
-            Set<EventMapper> mappers)
+            Set<EventMapper> mappers,
+            QueryResultCache resultCache)
     {
-        this.eventStore = eventStore;
+        this.eventStore = new QueryResultCacheInvalidator(eventStore, resultCache);
         this.eventMappers = ImmutableList.copyOf(mappers);
         this.apiKeyService = apiKeyService;
 
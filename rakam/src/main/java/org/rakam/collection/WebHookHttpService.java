@@ -25,6 +25,8 @@ import io.netty.util.concurrent.FutureListener;
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import org.rakam.analysis.ApiKeyService;
 import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.QueryResultCacheInvalidator;
+import org.rakam.report.QueryResultCache;
 import org.rakam.util.javascript.JSCodeCompiler;
 import org.rakam.util.javascript.JSCodeLoggerService;
 import org.rakam.plugin.EventStore;
@@ -109,7 +111,8 @@ public class WebHookHttpService
             ApiKeyService apiKeyService,
             JSCodeCompiler jsCodeCompiler,
             JSCodeLoggerService loggerService,
-            EventStore eventStore)
+            EventStore eventStore,
+            QueryResultCache resultCache)
     {
         this.apiKeyService = apiKeyService;
         this.jsCodeCompiler = jsCodeCompiler;
@@ -123,27 +126,20 @@ public class WebHookHttpService
             {
                 WebHook webHook = get(key.project, key.identifier);
                 String prefix = "webhook." + key.project + "." + key.identifier;
-                return jsCodeCompiler.createEngine(
-                        webHook.script,
+                Map<String, Object> parameters = new HashMap<>();
+                webHook.parameters.forEach((k, v) -> parameters.put(k, v.value));
+
+                // the glue is compiled together with the script so that the pooled engines don't evaluate it per request
+                return jsCodeCompiler.createPooledEngine(
+                        webHook.script + "\nvar $$module = function(queryParams, body, headers) { return module(queryParams, body, $$params, headers)}",
                         loggerService.createLogger(key.project, prefix),
                         null,
-                        jsCodeCompiler.createConfigManager(key.project, prefix), (engine, bindings) -> {
-                            Map<String, Parameter> parameters = webHook.parameters;
-                            Map<String, Object> map = new HashMap<>();
-                            parameters.forEach((k,v) -> map.put(k, v.value));
-
-                            bindings.put("$$params", map);
-                            try {
-                                engine.eval("var $$module = function(queryParams, body, headers) { return module(queryParams, body, $$params, headers)}");
-                            }
-                            catch (ScriptException e) {
-                                throw Throwables.propagate(e);
-                            }
-                        });
+                        jsCodeCompiler.createConfigManager(key.project, prefix),
+                        bindings -> bindings.put("$$params", parameters));
             }
         });
         this.dbi = new DBI(dataSource);
-        this.eventStore = eventStore;
+        this.eventStore = new QueryResultCacheInvalidator(eventStore, resultCache);
         jsonMapper = new ObjectMapper();
         SimpleModule module = new SimpleModule();
         module.addDeserializer(Event.class, deserializer);
@@ -94,6 +94,10 @@ public class CustomEventMapperHttpService
 {
     private final DBI dbi;
     private final Logger logger = Logger.get(CustomEventMapperHttpService.class);
+    // exposes the optional batchMapper function that receives all the events of a batch request as a single array
+    private static final String BATCH_MAPPER_GLUE = "\nvar $$batchMapper = typeof batchMapper === 'function' ? " +
+            "function(events, requestParams, sourceAddress, responseHeaders, sql, parameters) " +
+            "{ return batchMapper(JSON.parse(events), requestParams, sourceAddress, responseHeaders, sql, parameters); } : undefined;";
     private final LoadingCache<String, List<JSEventMapperCompiledCode>> scripts;
     private final ThreadPoolExecutor executor;
     private final JSCodeCompiler jsCodeCompiler;
@@ -400,7 +404,123 @@ public class CustomEventMapperHttpService
                 });
             }
         };
-        return mapInternal(events.project, eventsProxy, requestParams, sourceAddress, responseHeaders);
+
+        List<JSEventMapperCompiledCode> unchecked = scripts.getUnchecked(events.project);
+        CompletableFuture<Object>[] futures = new CompletableFuture[unchecked.size()];
+        for (int i = 0; i < unchecked.size(); i++) {
+            JSEventMapperCompiledCode compiledCode = unchecked.get(i);
+            futures[i] = CompletableFuture.supplyAsync(() -> {
+                if (!Boolean.FALSE.equals(compiledCode.batchSupported)) {
+                    Optional<Object> cookies = mapBatch(compiledCode, events, requestParams, sourceAddress, responseHeaders);
+                    if (cookies.isPresent()) {
+                        return cookies.get();
+                    }
+                }
+                return invokeMapper(compiledCode, events.project, eventsProxy, requestParams, sourceAddress, responseHeaders);
+            }, executor);
+        }
+
+        return collectCookies(futures);
+    }
+
+    /**
+     * Passes all the events to the batchMapper function of the script in a single call. The events are serialized
+     * to JSON once for the whole batch and the function returns an array where the element at each position
+     * contains the properties that will be set to the event in the same position. The function may also return
+     * an object that has the array in its properties field and the cookies of the response in its cookies field.
+     *
+     * @return the cookies that are returned by the function or empty if the script doesn't define a batchMapper function
+     */
+    private Optional<Object> mapBatch(JSEventMapperCompiledCode compiledCode, EventList events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        List<Map<String, Object>> eventList = new ArrayList<>(events.events.size());
+        for (Event event : events.events) {
+            Map<String, Object> properties = new LinkedHashMap<>();
+            for (Schema.Field field : event.properties().getSchema().getFields()) {
+                properties.put(field.name(), toJsonValue(event.properties().get(field.pos())));
+            }
+            eventList.add(ImmutableMap.<String, Object>of("collection", event.collection(), "properties", properties));
+        }
+
+        Object result;
+        try {
+            result = compiledCode.code.invokeFunction("$$batchMapper",
+                    JsonHelper.encode(eventList),
+                    requestParams,
+                    sourceAddress,
+                    responseHeaders,
+                    new JSSQLExecutor(events.project),
+                    compiledCode.parameters);
+            compiledCode.batchSupported = true;
+        }
+        catch (NoSuchMethodException e) {
+            compiledCode.batchSupported = false;
+            return Optional.empty();
+        }
+        catch (ScriptException e) {
+            logger.warn(e, "Error executing event mapper function.");
+            return Optional.of(ImmutableMap.of());
+        }
+        catch (Throwable e) {
+            logger.warn(e, "Unknown error executing the js mapper.");
+            return Optional.of(ImmutableMap.of());
+        }
+
+        if (result == null || result instanceof Undefined) {
+            return Optional.of(ImmutableMap.of());
+        }
+
+        Object cookies = ImmutableMap.of();
+        if (result instanceof ScriptObjectMirror && !((ScriptObjectMirror) result).isArray()) {
+            ScriptObjectMirror object = (ScriptObjectMirror) result;
+            Object objectCookies = object.get("cookies");
+            if (objectCookies != null && !(objectCookies instanceof Undefined)) {
+                cookies = objectCookies;
+            }
+            result = object.get("properties");
+        }
+
+        if (!(result instanceof ScriptObjectMirror) || !((ScriptObjectMirror) result).isArray()) {
+            logger.warn(format("Batch event mapper didn't return an array, it returned %s",
+                    result == null ? null : result.getClass().getName()));
+            return Optional.of(cookies);
+        }
+
+        ScriptObjectMirror array = (ScriptObjectMirror) result;
+        if (array.size() != events.events.size()) {
+            logger.warn(format("Batch event mapper returned %d elements for %d events", array.size(), events.events.size()));
+            return Optional.of(cookies);
+        }
+
+        for (int i = 0; i < events.events.size(); i++) {
+            Object properties = array.getSlot(i);
+            if (!(properties instanceof ScriptObjectMirror)) {
+                continue;
+            }
+
+            ListEventProxy proxy = new ListEventProxy(events.events.get(i));
+            for (Map.Entry<String, Object> entry : ((ScriptObjectMirror) properties).entrySet()) {
+                proxy.set(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return Optional.of(cookies);
+    }
+
+    private static Object toJsonValue(Object value)
+    {
+        if (value instanceof CharSequence) {
+            return value.toString();
+        }
+        if (value instanceof List) {
+            return ((List<Object>) value).stream().map(CustomEventMapperHttpService::toJsonValue).collect(Collectors.toList());
+        }
+        if (value instanceof Map) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            ((Map<Object, Object>) value).forEach((key, item) -> map.put(key.toString(), toJsonValue(item)));
+            return map;
+        }
+        return value;
     }
 
     private static class NewField
@@ -448,30 +568,39 @@ public class CustomEventMapperHttpService
         for (int i = 0; i < unchecked.size(); i++) {
             JSEventMapperCompiledCode compiledCode = unchecked.get(i);
 
-            futures[i] = CompletableFuture.supplyAsync(() -> {
-                try {
-                    return compiledCode.code.invokeFunction("mapper",
-                            events,
-                            requestParams,
-                            sourceAddress,
-                            responseHeaders,
-                            new JSSQLExecutor(project),
-                            compiledCode.parameters);
-                }
-                catch (ScriptException e) {
-                    logger.warn(e, "Error executing event mapper function.");
-                }
-                catch (NoSuchMethodException e) {
-                    logger.warn(e, "'mapper' function does not exist in event mapper function.");
-                }
-                catch (Throwable e) {
-                    logger.warn(e, "Unknown error executing the js mapper.");
-                }
+            futures[i] = CompletableFuture.supplyAsync(() ->
+                    invokeMapper(compiledCode, project, events, requestParams, sourceAddress, responseHeaders), executor);
+        }
 
-                return null;
-            }, executor);
+        return collectCookies(futures);
+    }
+
+    private Object invokeMapper(JSEventMapperCompiledCode compiledCode, String project, EventsProxy events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        try {
+            return compiledCode.code.invokeFunction("mapper",
+                    events,
+                    requestParams,
+                    sourceAddress,
+                    responseHeaders,
+                    new JSSQLExecutor(project),
+                    compiledCode.parameters);
+        }
+        catch (ScriptException e) {
+            logger.warn(e, "Error executing event mapper function.");
+        }
+        catch (NoSuchMethodException e) {
+            logger.warn(e, "'mapper' function does not exist in event mapper function.");
+        }
+        catch (Throwable e) {
+            logger.warn(e, "Unknown error executing the js mapper.");
         }
 
+        return null;
+    }
+
+    private CompletableFuture<List<Cookie>> collectCookies(CompletableFuture<Object>[] futures)
+    {
         return CompletableFuture.allOf(futures)
                 .thenApply(aVoid -> {
                     List<Cookie> list = new ArrayList<>();
@@ -523,6 +652,8 @@ public class CustomEventMapperHttpService
         public final Invocable code;
         public final Map<String, Object> parameters;
         public int codeHashCode;
+        // unknown until the first batch request
+        public volatile Boolean batchSupported;
 
         public JSEventMapperCompiledCode(int id, Invocable code, Map<String, Object> parameters, int codeHashCode)
         {
@@ -771,8 +902,8 @@ public class CustomEventMapperHttpService
         {
             Invocable unchecked;
             try {
-                unchecked = jsCodeCompiler.createEngine(project,
-                        item.script, "event-mapper." + item.id);
+                unchecked = jsCodeCompiler.createPooledEngine(project,
+                        item.script + BATCH_MAPPER_GLUE, "event-mapper." + item.id);
             }
             catch (Exception e) {
                 return Stream.of();
@@ -0,0 +1,128 @@
+package org.rakam.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the data to the channel as HTTP chunks. The response headers must be sent with chunked transfer encoding
+ * before the stream is used. Each chunk is written to the socket before the next one is buffered so that a slow
+ * client doesn't cause the whole response to be buffered in memory, therefore the stream must not be used in
+ * the event loop threads.
+ */
+public class ChunkedResponseOutputStream
+        extends OutputStream
+{
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final ChannelHandlerContext context;
+    private final boolean keepAlive;
+    private ByteBuf buffer;
+    private boolean closed;
+
+    public ChunkedResponseOutputStream(ChannelHandlerContext context, boolean keepAlive)
+    {
+        this.context = context;
+        this.keepAlive = keepAlive;
+    }
+
+    @Override
+    public void write(int b)
+            throws IOException
+    {
+        buffer().writeByte(b);
+        if (buffer.writableBytes() == 0) {
+            writeChunk();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length)
+            throws IOException
+    {
+        while (length > 0) {
+            int size = Math.min(length, buffer().writableBytes());
+            buffer.writeBytes(bytes, offset, size);
+            offset += size;
+            length -= size;
+            if (buffer.writableBytes() == 0) {
+                writeChunk();
+            }
+        }
+    }
+
+    @Override
+    public void flush()
+            throws IOException
+    {
+        writeChunk();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        writeChunk();
+        closed = true;
+
+        ChannelFuture future = context.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Discards the buffered data and closes the connection without completing the response so that
+     * the client can detect that the response is incomplete.
+     */
+    public void abort()
+    {
+        closed = true;
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+        context.close();
+    }
+
+    private ByteBuf buffer()
+            throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (buffer == null) {
+            buffer = context.alloc().buffer(CHUNK_SIZE, CHUNK_SIZE);
+        }
+        return buffer;
+    }
+
+    private void writeChunk()
+            throws IOException
+    {
+        if (buffer == null || !buffer.isReadable()) {
+            return;
+        }
+
+        ByteBuf chunk = buffer;
+        buffer = null;
+        if (!context.channel().isActive()) {
+            chunk.release();
+            throw new IOException("Connection is closed");
+        }
+
+        ChannelFuture future = context.writeAndFlush(new DefaultHttpContent(chunk)).awaitUninterruptibly();
+        if (!future.isSuccess()) {
+            throw new IOException("Unable to write the response", future.cause());
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.rakam.util;
+
+import com.google.common.base.Throwables;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.QueryResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Encodes the query results column by column in a compact binary format. All the numbers are big-endian.
+ * <pre>
+ * magic             "RKC1"
+ * properties        string, the JSON encoded properties of the result
+ * column count      int32
+ * columns           (name string, type string) for each column, the type is the name of the {@link FieldType}
+ * row count         int32
+ * column vectors    for each column, a validity bitmap followed by the values
+ * </pre>
+ * The strings are encoded as int32 length followed by the UTF-8 bytes. The validity bitmap has a bit for each row,
+ * the least significant bit of the first byte is the first row and the bit is set if the value is not null.
+ * The null values have a placeholder (zero) in the fixed-width vectors and they're skipped in the variable-width vectors.
+ * <ul>
+ * <li>LONG, TIMESTAMP (epoch millis): int64 for each row</li>
+ * <li>INTEGER, DATE (epoch day), TIME (second of day): int32 for each row</li>
+ * <li>DOUBLE, DECIMAL: float64 for each row</li>
+ * <li>BOOLEAN: a bitmap in the same layout as the validity bitmap</li>
+ * <li>STRING: an encoding byte, 0 for plain strings for each non-null row, 1 for dictionary encoding which is
+ * int32 dictionary size, the strings in the dictionary and int32 dictionary index for each row</li>
+ * <li>BINARY: int32 length and the bytes for each non-null row</li>
+ * <li>array and map types: JSON encoded string for each non-null row</li>
+ * </ul>
+ */
+public final class ColumnarResultEncoder
+{
+    public static final String CONTENT_TYPE = "application/vnd.rakam.columnar";
+
+    private static final byte[] MAGIC = "RKC1".getBytes(UTF_8);
+    private static final byte PLAIN = 0;
+    private static final byte DICTIONARY = 1;
+
+    private ColumnarResultEncoder()
+            throws InstantiationException
+    {
+        throw new InstantiationException("The class is not created for instantiation");
+    }
+
+    public static byte[] encode(QueryResult result)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        List<SchemaField> columns = result.getMetadata();
+        List<List<Object>> rows = result.getResult();
+        try {
+            out.write(MAGIC);
+            writeString(out, JsonHelper.encode(result.getProperties()));
+
+            out.writeInt(columns.size());
+            for (SchemaField column : columns) {
+                writeString(out, column.getName());
+                writeString(out, column.getType().name());
+            }
+
+            out.writeInt(rows.size());
+            for (int i = 0; i < columns.size(); i++) {
+                writeColumn(out, columns.get(i).getType(), rows, i);
+            }
+            out.flush();
+        }
+        catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void writeColumn(DataOutputStream out, FieldType type, List<List<Object>> rows, int index)
+            throws IOException
+    {
+        writeBitmap(out, rows, index, value -> value != null);
+
+        switch (type) {
+            case LONG:
+                for (List<Object> row : rows) {
+                    Object value = row.get(index);
+                    out.writeLong(value == null ? 0 : ((Number) value).longValue());
+                }
+                break;
+            case TIMESTAMP:
+                for (List<Object> row : rows) {
+                    Object value = row.get(index);
+                    out.writeLong(value == null ? 0 : ((Instant) value).toEpochMilli());
+                }
+                break;
+            case INTEGER:
+                for (List<Object> row : rows) {
+                    Object value = row.get(index);
+                    out.writeInt(value == null ? 0 : ((Number) value).intValue());
+                }
+                break;
+            case DATE:
+                for (List<Object> row : rows) {
+                    Object value = row.get(index);
+                    out.writeInt(value == null ? 0 : (int) ((LocalDate) value).toEpochDay());
+                }
+                break;
+            case TIME:
+                for (List<Object> row : rows) {
+                    Object value = row.get(index);
+                    out.writeInt(value == null ? 0 : ((LocalTime) value).toSecondOfDay());
+                }
+                break;
+            case DOUBLE:
+            case DECIMAL:
+                for (List<Object> row : rows) {
+                    Object value = row.get(index);
+                    out.writeDouble(value == null ? 0 : ((Number) value).doubleValue());
+                }
+                break;
+            case BOOLEAN:
+                writeBitmap(out, rows, index, Boolean.TRUE::equals);
+                break;
+            case STRING:
+                writeStringColumn(out, rows, index);
+                break;
+            case BINARY:
+                for (List<Object> row : rows) {
+                    Object value = row.get(index);
+                    if (value != null) {
+                        out.writeInt(((byte[]) value).length);
+                        out.write((byte[]) value);
+                    }
+                }
+                break;
+            default:
+                for (List<Object> row : rows) {
+                    Object value = row.get(index);
+                    if (value != null) {
+                        writeString(out, JsonHelper.encode(value));
+                    }
+                }
+        }
+    }
+
+    private static void writeStringColumn(DataOutputStream out, List<List<Object>> rows, int index)
+            throws IOException
+    {
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> values = new ArrayList<>();
+        int nonNull = 0;
+        for (List<Object> row : rows) {
+            Object value = row.get(index);
+            if (value != null) {
+                nonNull++;
+                if (dictionary.putIfAbsent(value.toString(), dictionary.size()) == null) {
+                    values.add(value.toString());
+                }
+            }
+        }
+
+        // the dictionary is only beneficial if the values are repeated
+        if (values.size() * 2 > nonNull) {
+            out.writeByte(PLAIN);
+            for (List<Object> row : rows) {
+                Object value = row.get(index);
+                if (value != null) {
+                    writeString(out, value.toString());
+                }
+            }
+            return;
+        }
+
+        out.writeByte(DICTIONARY);
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+        for (List<Object> row : rows) {
+            Object value = row.get(index);
+            out.writeInt(value == null ? 0 : dictionary.get(value.toString()));
+        }
+    }
+
+    private static void writeBitmap(DataOutputStream out, List<List<Object>> rows, int index, Predicate<Object> predicate)
+            throws IOException
+    {
+        int current = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            if (predicate.test(rows.get(i).get(index))) {
+                current |= 1 << (i % 8);
+            }
+            if (i % 8 == 7) {
+                out.writeByte(current);
+                current = 0;
+            }
+        }
+        if (rows.size() % 8 != 0) {
+            out.writeByte(current);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value)
+            throws IOException
+    {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
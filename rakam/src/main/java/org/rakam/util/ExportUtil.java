@@ -1,5 +1,6 @@
 package org.rakam.util;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 import org.apache.avro.Schema;
@@ -13,13 +14,16 @@ import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.QuoteMode;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.plugin.EventStore.CopyType;
 import org.rakam.report.QueryResult;
 
 import javax.xml.bind.DatatypeConverter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalTime;
@@ -32,23 +36,23 @@ public class ExportUtil
 {
     public static byte[] exportAsCSV(QueryResult result)
     {
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-        final CSVPrinter csvPrinter;
+        return export(CopyType.CSV, result);
+    }
+
+    public static byte[] exportAsAvro(QueryResult result)
+    {
+        return export(CopyType.AVRO, result);
+    }
+
+    private static byte[] export(CopyType type, QueryResult result)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            final CSVFormat format = CSVFormat.DEFAULT.withQuoteMode(QuoteMode.NON_NUMERIC);
-            csvPrinter = new CSVPrinter(new PrintWriter(out), format);
-            csvPrinter.printRecord(result.getMetadata().stream().map(SchemaField::getName)
-                    .collect(Collectors.toList()));
-            csvPrinter.printRecords(Iterables.transform(result.getResult(), input -> Iterables.transform(input, input1 -> {
-                if (input1 instanceof List || input1 instanceof Map) {
-                    return JsonHelper.encode(input1);
-                }
-                if (input1 instanceof byte[]) {
-                    return DatatypeConverter.printBase64Binary((byte[]) input1);
-                }
-                return input1;
-            })));
-            csvPrinter.flush();
+            RowWriter writer = createWriter(type, result.getMetadata(), out);
+            for (List<Object> row : result.getResult()) {
+                writer.write(row);
+            }
+            writer.finish();
         }
         catch (IOException e) {
             throw Throwables.propagate(e);
@@ -57,32 +61,149 @@ public class ExportUtil
         return out.toByteArray();
     }
 
-    public static byte[] exportAsAvro(QueryResult result)
+    /**
+     * Creates a writer that serializes the rows to the output stream as they are written so that the
+     * result doesn't need to be kept in memory. The JSON format writes a JSON object for each row in a separate line.
+     */
+    public static RowWriter createWriter(CopyType type, List<SchemaField> columns, OutputStream out)
+            throws IOException
     {
-        Schema avroSchema = AvroUtil.convertAvroSchema(result.getMetadata());
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        switch (type) {
+            case CSV:
+                return new CsvRowWriter(columns, out);
+            case AVRO:
+                return new AvroRowWriter(columns, out);
+            case JSON:
+                return new JsonLinesRowWriter(columns, out);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    public interface RowWriter
+    {
+        void write(List<Object> row)
+                throws IOException;
+
+        /**
+         * Flushes the buffered data to the output stream, the output stream is not closed.
+         */
+        void finish()
+                throws IOException;
+    }
+
+    private static class CsvRowWriter
+            implements RowWriter
+    {
+        private final CSVPrinter csvPrinter;
 
-        DatumWriter writer = new FilteredRecordWriter(avroSchema, GenericData.get());
+        private CsvRowWriter(List<SchemaField> columns, OutputStream out)
+                throws IOException
+        {
+            CSVFormat format = CSVFormat.DEFAULT.withQuoteMode(QuoteMode.NON_NUMERIC);
+            csvPrinter = new CSVPrinter(new OutputStreamWriter(out, StandardCharsets.UTF_8), format);
+            csvPrinter.printRecord(columns.stream().map(SchemaField::getName)
+                    .collect(Collectors.toList()));
+        }
 
-        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
-        GenericData.Record record = new GenericData.Record(avroSchema);
+        @Override
+        public void write(List<Object> row)
+                throws IOException
+        {
+            csvPrinter.printRecord(Iterables.transform(row, value -> {
+                if (value instanceof List || value instanceof Map) {
+                    return JsonHelper.encode(value);
+                }
+                if (value instanceof byte[]) {
+                    return DatatypeConverter.printBase64Binary((byte[]) value);
+                }
+                return value;
+            }));
+        }
 
-        for (List<Object> row : result.getResult()) {
-            List<SchemaField> metadata = result.getMetadata();
+        @Override
+        public void finish()
+                throws IOException
+        {
+            csvPrinter.flush();
+        }
+    }
+
+    private static class AvroRowWriter
+            implements RowWriter
+    {
+        private final List<SchemaField> columns;
+        private final DatumWriter writer;
+        private final BinaryEncoder encoder;
+        private final GenericData.Record record;
 
+        private AvroRowWriter(List<SchemaField> columns, OutputStream out)
+        {
+            Schema avroSchema = AvroUtil.convertAvroSchema(columns);
+            this.columns = columns;
+            this.writer = new FilteredRecordWriter(avroSchema, GenericData.get());
+            this.encoder = EncoderFactory.get().binaryEncoder(out, null);
+            this.record = new GenericData.Record(avroSchema);
+        }
+
+        @Override
+        public void write(List<Object> row)
+                throws IOException
+        {
             for (int i = 0; i < row.size(); i++) {
-                record.put(i, getAvroValue(row.get(i), metadata.get(i).getType()));
+                record.put(i, getAvroValue(row.get(i), columns.get(i).getType()));
             }
 
             try {
                 writer.write(record, encoder);
             }
-            catch (Exception e) {
+            catch (RuntimeException e) {
                 throw new RuntimeException("Couldn't serialize event", e);
             }
         }
 
-        return out.toByteArray();
+        @Override
+        public void finish()
+                throws IOException
+        {
+            encoder.flush();
+        }
+    }
+
+    private static class JsonLinesRowWriter
+            implements RowWriter
+    {
+        private final List<SchemaField> columns;
+        private final JsonGenerator generator;
+
+        private JsonLinesRowWriter(List<SchemaField> columns, OutputStream out)
+                throws IOException
+        {
+            this.columns = columns;
+            this.generator = JsonHelper.getMapper().getFactory().createGenerator(out);
+            // the rows are separated by the new lines, the default separator of the root values is a space
+            this.generator.setRootValueSeparator(null);
+        }
+
+        @Override
+        public void write(List<Object> row)
+                throws IOException
+        {
+            generator.writeStartObject();
+            for (int i = 0; i < row.size(); i++) {
+                generator.writeFieldName(columns.get(i).getName());
+                generator.writeObject(row.get(i));
+            }
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+
+        @Override
+        public void finish()
+                throws IOException
+        {
+            generator.flush();
+        }
     }
 
     private static Object getAvroValue(Object value, FieldType type)
@@ -46,6 +46,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import static com.fasterxml.jackson.core.JsonToken.START_OBJECT;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
@@ -67,6 +68,7 @@ public class JSCodeCompiler
             "crypt", new JSUtil.JSCryptUtil(),
             "request", new JSUtil.JSRequestUtil());
     private final boolean customEnabled;
+    private final JSEnginePool enginePool;
 
     @Inject
     public JSCodeCompiler(
@@ -77,7 +79,7 @@ public class JSCodeCompiler
     {
         this(configManager, httpClient,
                 (project, prefix) -> loggerService.createLogger(project, prefix),
-                false, config.getCustomEnabled());
+                false, config);
     }
 
     public JSCodeCompiler(
@@ -86,12 +88,27 @@ public class JSCodeCompiler
             LoggerFactory loggerService,
             boolean loadAllowed,
             boolean customEnabled)
+    {
+        this(configManager, httpClient, loggerService, loadAllowed, new JavascriptConfig().setCustomEnabled(customEnabled));
+    }
+
+    private JSCodeCompiler(
+            ConfigManager configManager,
+            RAsyncHttpClient httpClient,
+            LoggerFactory loggerService,
+            boolean loadAllowed,
+            JavascriptConfig config)
     {
         this.configManager = configManager;
         this.httpClient = httpClient;
         this.loggerService = loggerService;
         this.loadAllowed = loadAllowed;
-        this.customEnabled = customEnabled;
+        this.customEnabled = config.getCustomEnabled();
+        this.enginePool = new JSEnginePool(() -> factory.getScriptEngine(args, classLoader, classFilter),
+                config.getEnginePoolSize(),
+                config.getWorkerThreads(),
+                config.getEnginePoolIdleTimeout().toMillis(),
+                config.getMaxCpuTime().toMillis());
         try {
             localhost = InetAddress.getLocalHost();
         }
@@ -190,6 +207,48 @@ public class JSCodeCompiler
 
     public Invocable createEngine(String code, ILogger logger, JSEventStore eventStore, IJSConfigManager configManager, BiConsumer<ScriptEngine, Bindings> binding)
             throws ScriptException
+    {
+        checkCustomCode(code);
+        ScriptEngine engine = factory.getScriptEngine(args, classLoader, classFilter);
+        Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+
+        prepareBindings(bindings, logger, eventStore, configManager);
+        if (eventStore != null) {
+            engine.eval("var eventStore = {store: function(call) { $$eventStore.store(JSON.stringify(call)); }}");
+        }
+
+        engine.eval(code);
+        binding.accept(engine, bindings);
+
+        return (Invocable) engine;
+    }
+
+    /**
+     * Similar to {@link #createEngine(String, String, String)} but the engines are pooled and the script is compiled
+     * only once per pooled engine. Each invocation evaluates the script in fresh bindings, so the script must not rely
+     * on the global state left by the previous invocations.
+     */
+    public Invocable createPooledEngine(String project, String code, String prefix)
+            throws ScriptException
+    {
+        return createPooledEngine(code,
+                loggerService.createLogger(project, prefix),
+                null,
+                prefix == null ? new MemoryConfigManager() : createConfigManager(project, prefix),
+                bindings -> {});
+    }
+
+    public Invocable createPooledEngine(String code, ILogger logger, JSEventStore eventStore, IJSConfigManager configManager, Consumer<Bindings> binding)
+            throws ScriptException
+    {
+        checkCustomCode(code);
+        return enginePool.getInvocable(code, eventStore != null, bindings -> {
+            prepareBindings(bindings, logger, eventStore, configManager);
+            binding.accept(bindings);
+        });
+    }
+
+    private void checkCustomCode(String code)
     {
         if (!customEnabled) {
             int firstLineBreak = code.indexOf("\n");
@@ -200,12 +259,11 @@ public class JSCodeCompiler
             if(!substring.startsWith("//@ sourceURL=rakam-ui/src/main/resources/")) {
                 throw new RakamException("Custom javascript code is not allowed in trial mode.", BAD_REQUEST);
             }
-
-            String path = substring.substring("//@ sourceURL=rakam-ui/src/main/resources/".length());
         }
-        ScriptEngine engine = factory.getScriptEngine(args, classLoader, classFilter);
-        Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+    }
 
+    private void prepareBindings(Bindings bindings, ILogger logger, JSEventStore eventStore, IJSConfigManager configManager)
+    {
         bindings.remove("print");
         if (!loadAllowed) {
             bindings.remove("load");
@@ -223,14 +281,8 @@ public class JSCodeCompiler
         bindings.put("config", configManager);
         if (eventStore != null) {
             bindings.put("$$eventStore", eventStore);
-            engine.eval("var eventStore = {store: function(call) { $$eventStore.store(JSON.stringify(call)); }}");
         }
         bindings.put("http", httpClient);
-
-        engine.eval(code);
-        binding.accept(engine, bindings);
-
-        return (Invocable) engine;
     }
 
     public static class TestLogger
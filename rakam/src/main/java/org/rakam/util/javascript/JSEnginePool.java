@@ -0,0 +1,403 @@
+package org.rakam.util.javascript;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+import org.rakam.util.CryptUtil;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Keeps a bounded pool of Nashorn engines for each script. The script is compiled once per engine and
+ * every invocation evaluates it in fresh bindings, so invocations don't share global state and don't
+ * pay for the compilation. Invocations that exceed the CPU time limit are stopped.
+ * <p>
+ * Nashorn doesn't check the interrupt flag so the only way to stop a script is {@link Thread#stop()}, which may
+ * leave the state of the stopped thread inconsistent. The invocations run on a fixed set of worker threads that
+ * the pool owns, so that the threads of the callers are never stopped. A worker is only replaced after it's
+ * stopped for exceeding the CPU time limit.
+ */
+public class JSEnginePool
+{
+    private final static Logger LOGGER = Logger.get(JSEnginePool.class);
+    private static final String BOOTSTRAP_SCRIPT = "var eventStore = {store: function(call) { $$eventStore.store(JSON.stringify(call)); }}";
+
+    private final Supplier<ScriptEngine> engineFactory;
+    private final int poolSize;
+    private final long maxCpuTimeNanos;
+    private final Cache<String, Queue<PooledEngine>> pools;
+    private final Map<Thread, Invocation> runningInvocations;
+    private final BlockingQueue<Invocation> queuedInvocations;
+    private final ThreadMXBean threadMXBean;
+    private final ThreadFactory workerThreadFactory;
+
+    public JSEnginePool(Supplier<ScriptEngine> engineFactory, int poolSize, int workerCount, long idleTimeoutMillis, long maxCpuTimeMillis)
+    {
+        this.engineFactory = engineFactory;
+        this.poolSize = poolSize;
+        this.maxCpuTimeNanos = MILLISECONDS.toNanos(maxCpuTimeMillis);
+        this.pools = CacheBuilder.newBuilder()
+                .expireAfterAccess(idleTimeoutMillis, MILLISECONDS)
+                .build();
+        this.runningInvocations = new ConcurrentHashMap<>();
+        this.queuedInvocations = new LinkedBlockingQueue<>();
+        this.threadMXBean = ManagementFactory.getThreadMXBean();
+        this.workerThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("javascript-worker-%d")
+                .setDaemon(true)
+                .build();
+
+        for (int i = 0; i < workerCount; i++) {
+            startWorker();
+        }
+
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("javascript-cpu-watchdog")
+                .setDaemon(true)
+                .build());
+        long checkInterval = Math.max(5, Math.min(100, maxCpuTimeMillis / 10));
+        watchdog.scheduleAtFixedRate(this::checkCpuTime, checkInterval, checkInterval, MILLISECONDS);
+    }
+
+    /**
+     * Returns an {@link Invocable} that runs the functions of the script using the pooled engines.
+     * The bindings consumer is called for each invocation with the fresh bindings before the script is evaluated.
+     */
+    public Invocable getInvocable(String code, boolean bootstrapEventStore, Consumer<Bindings> bindings)
+            throws ScriptException
+    {
+        String key = CryptUtil.sha1(code);
+        Queue<PooledEngine> pool = getPool(key);
+
+        // compile eagerly so that syntax errors are reported to the caller
+        PooledEngine engine = pool.poll();
+        if (engine == null) {
+            engine = new PooledEngine(code);
+        }
+        pool.offer(engine);
+
+        return new PooledInvocable(key, code, bootstrapEventStore, bindings);
+    }
+
+    private Queue<PooledEngine> getPool(String key)
+    {
+        try {
+            return pools.get(key, () -> new ArrayBlockingQueue<>(poolSize));
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public long getCachedScriptCount()
+    {
+        return pools.size();
+    }
+
+    private void startWorker()
+    {
+        workerThreadFactory.newThread(this::work).start();
+    }
+
+    private void work()
+    {
+        Thread thread = Thread.currentThread();
+        while (true) {
+            Invocation invocation;
+            try {
+                invocation = queuedInvocations.take();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            // the worker is reused, so the CPU time of the invocation is measured from its start
+            invocation.startCpuTime = threadMXBean.getCurrentThreadCpuTime();
+            runningInvocations.put(thread, invocation);
+            boolean stopped;
+            try {
+                invocation.result.complete(invocation.task.run());
+            }
+            catch (ThreadDeath e) {
+                // the invocation is stopped, the worker is replaced by the watchdog
+                throw e;
+            }
+            catch (Throwable e) {
+                invocation.result.completeExceptionally(e);
+            }
+            finally {
+                runningInvocations.remove(thread, invocation);
+                synchronized (invocation) {
+                    invocation.finished = true;
+                    stopped = invocation.cpuLimitExceeded;
+                }
+            }
+
+            // the engine may be in an inconsistent state if the thread is stopped in the middle of the invocation
+            if (!stopped) {
+                invocation.onFinish.run();
+            }
+        }
+    }
+
+    private void checkCpuTime()
+    {
+        for (Map.Entry<Thread, Invocation> entry : runningInvocations.entrySet()) {
+            Invocation invocation = entry.getValue();
+            synchronized (invocation) {
+                if (invocation.finished) {
+                    continue;
+                }
+
+                long cpuTime = threadMXBean.getThreadCpuTime(entry.getKey().getId()) - invocation.startCpuTime;
+                if (cpuTime > maxCpuTimeNanos) {
+                    invocation.cpuLimitExceeded = true;
+                    invocation.finished = true;
+                    LOGGER.warn("Stopping Javascript invocation that exceeded the CPU time limit of %dms",
+                            NANOSECONDS.toMillis(maxCpuTimeNanos));
+                    // the caller is notified here since the stopped thread may not reach its exception handler
+                    invocation.result.completeExceptionally(new ScriptException("The script exceeded the CPU time limit."));
+                    runningInvocations.remove(entry.getKey());
+                    entry.getKey().stop();
+                    startWorker();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the task on a worker thread and waits for its result.
+     */
+    private Object execute(ScriptTask task, Runnable onFinish)
+            throws ScriptException, NoSuchMethodException
+    {
+        Invocation invocation = new Invocation(task, onFinish);
+        queuedInvocations.add(invocation);
+
+        try {
+            return invocation.result.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ScriptException("The invocation is interrupted.");
+        }
+        catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), ScriptException.class);
+            Throwables.propagateIfInstanceOf(e.getCause(), NoSuchMethodException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private interface ScriptTask
+    {
+        Object run()
+                throws ScriptException, NoSuchMethodException;
+    }
+
+    private static class Invocation
+    {
+        private final ScriptTask task;
+        private final Runnable onFinish;
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+        private volatile long startCpuTime;
+        private boolean finished;
+        private boolean cpuLimitExceeded;
+
+        private Invocation(ScriptTask task, Runnable onFinish)
+        {
+            this.task = task;
+            this.onFinish = onFinish;
+        }
+    }
+
+    private class PooledEngine
+    {
+        private final ScriptEngine engine;
+        private final CompiledScript script;
+        private final CompiledScript bootstrap;
+
+        private PooledEngine(String code)
+                throws ScriptException
+        {
+            this.engine = engineFactory.get();
+            this.script = ((Compilable) engine).compile(code);
+            this.bootstrap = ((Compilable) engine).compile(BOOTSTRAP_SCRIPT);
+        }
+    }
+
+    private class PooledInvocable
+            implements Invocable
+    {
+        private final String key;
+        private final String code;
+        private final boolean bootstrapEventStore;
+        private final Consumer<Bindings> bindingsConsumer;
+
+        private PooledInvocable(String key, String code, boolean bootstrapEventStore, Consumer<Bindings> bindingsConsumer)
+        {
+            this.key = key;
+            this.code = code;
+            this.bootstrapEventStore = bootstrapEventStore;
+            this.bindingsConsumer = bindingsConsumer;
+        }
+
+        @Override
+        public Object invokeFunction(String name, Object... args)
+                throws ScriptException, NoSuchMethodException
+        {
+            return invokeWithEngine(bindings -> {
+                Object function = bindings.get(name);
+                if (!isFunction(function)) {
+                    throw new NoSuchMethodException(name);
+                }
+                return ((ScriptObjectMirror) function).call(null, args);
+            });
+        }
+
+        /**
+         * Evaluates the script in fresh bindings of a pooled engine on a worker and runs the function with them.
+         */
+        private Object invokeWithEngine(BindingsFunction function)
+                throws ScriptException, NoSuchMethodException
+        {
+            Queue<PooledEngine> pool = getPool(key);
+            PooledEngine pooledEngine = pool.poll();
+            PooledEngine engine = pooledEngine == null ? new PooledEngine(code) : pooledEngine;
+
+            return execute(() -> {
+                Bindings bindings = engine.engine.createBindings();
+                bindingsConsumer.accept(bindings);
+                if (bootstrapEventStore) {
+                    engine.bootstrap.eval(bindings);
+                }
+                engine.script.eval(bindings);
+                return function.apply(bindings);
+            }, () -> pool.offer(engine));
+        }
+
+        @Override
+        public Object invokeMethod(Object thiz, String name, Object... args)
+                throws ScriptException, NoSuchMethodException
+        {
+            if (!(thiz instanceof ScriptObjectMirror)) {
+                throw new IllegalArgumentException("The object is not a script object");
+            }
+
+            // the object is returned by a previous invocation, it's called on a worker with the same CPU time limit
+            ScriptObjectMirror object = (ScriptObjectMirror) thiz;
+            return execute(() -> {
+                if (!isFunction(object.getMember(name))) {
+                    throw new NoSuchMethodException(name);
+                }
+                return object.callMember(name, args);
+            }, () -> {});
+        }
+
+        @Override
+        public <T> T getInterface(Class<T> clasz)
+        {
+            checkInterface(clasz);
+            try {
+                // same as the script engines, returns null if the script doesn't implement all the methods
+                Object implemented = invokeWithEngine(bindings -> {
+                    for (Method method : clasz.getMethods()) {
+                        if (!isFunction(bindings.get(method.getName()))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+                if (!Boolean.TRUE.equals(implemented)) {
+                    return null;
+                }
+            }
+            catch (ScriptException | NoSuchMethodException e) {
+                throw Throwables.propagate(e);
+            }
+
+            return createProxy(clasz, (method, args) -> invokeFunction(method.getName(), args));
+        }
+
+        @Override
+        public <T> T getInterface(Object thiz, Class<T> clasz)
+        {
+            checkInterface(clasz);
+            if (!(thiz instanceof ScriptObjectMirror)) {
+                throw new IllegalArgumentException("The object is not a script object");
+            }
+
+            return createProxy(clasz, (method, args) -> invokeMethod(thiz, method.getName(), args));
+        }
+
+        private void checkInterface(Class<?> clasz)
+        {
+            if (clasz == null || !clasz.isInterface()) {
+                throw new IllegalArgumentException("The class must be an interface");
+            }
+        }
+    }
+
+    private interface BindingsFunction
+    {
+        Object apply(Bindings bindings)
+                throws ScriptException, NoSuchMethodException;
+    }
+
+    private interface MethodInvoker
+    {
+        Object invoke(Method method, Object[] args)
+                throws ScriptException, NoSuchMethodException;
+    }
+
+    private static boolean isFunction(Object value)
+    {
+        return value instanceof ScriptObjectMirror && ((ScriptObjectMirror) value).isFunction();
+    }
+
+    private static <T> T createProxy(Class<T> clasz, MethodInvoker invoker)
+    {
+        InvocationHandler handler = new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable
+            {
+                if (method.getDeclaringClass() == Object.class) {
+                    return method.invoke(this, args);
+                }
+                return invoker.invoke(method, args == null ? new Object[0] : args);
+            }
+        };
+        return clasz.cast(Proxy.newProxyInstance(clasz.getClassLoader(), new Class<?>[] {clasz}, handler));
+    }
+}
@@ -1,10 +1,19 @@
 package org.rakam.util.javascript;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+import io.airlift.units.MinDuration;
+
+import javax.validation.constraints.Min;
 
 public class JavascriptConfig
 {
     private boolean customEnabled = true;
+    private int enginePoolSize = Runtime.getRuntime().availableProcessors() * 2;
+    private int workerThreads = Runtime.getRuntime().availableProcessors() * 2;
+    private Duration enginePoolIdleTimeout = Duration.valueOf("10m");
+    private Duration maxCpuTime = Duration.valueOf("10s");
 
     @Config("custom-javascript-enabled")
     public JavascriptConfig setCustomEnabled(boolean customEnabled)
@@ -17,4 +26,57 @@ public class JavascriptConfig
     {
         return customEnabled;
     }
+
+    @Config("javascript.engine-pool.size")
+    public JavascriptConfig setEnginePoolSize(int enginePoolSize)
+    {
+        this.enginePoolSize = enginePoolSize;
+        return this;
+    }
+
+    @Min(1)
+    public int getEnginePoolSize()
+    {
+        return enginePoolSize;
+    }
+
+    @Config("javascript.worker-threads")
+    @ConfigDescription("The number of threads that run the pooled scripts, the invocations wait for an available thread")
+    public JavascriptConfig setWorkerThreads(int workerThreads)
+    {
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    @Min(1)
+    public int getWorkerThreads()
+    {
+        return workerThreads;
+    }
+
+    @Config("javascript.engine-pool.idle-timeout")
+    public JavascriptConfig setEnginePoolIdleTimeout(String enginePoolIdleTimeout)
+    {
+        this.enginePoolIdleTimeout = Duration.valueOf(enginePoolIdleTimeout);
+        return this;
+    }
+
+    @MinDuration("1s")
+    public Duration getEnginePoolIdleTimeout()
+    {
+        return enginePoolIdleTimeout;
+    }
+
+    @Config("javascript.max-cpu-time")
+    public JavascriptConfig setMaxCpuTime(String maxCpuTime)
+    {
+        this.maxCpuTime = Duration.valueOf(maxCpuTime);
+        return this;
+    }
+
+    @MinDuration("10ms")
+    public Duration getMaxCpuTime()
+    {
+        return maxCpuTime;
+    }
 }
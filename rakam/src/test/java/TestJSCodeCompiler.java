@@ -1,21 +1,86 @@
+import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
 import okhttp3.OkHttpClient;
 import org.rakam.TestingConfigManager;
 import org.rakam.util.javascript.JSCodeCompiler;
+import org.rakam.util.javascript.JSEnginePool;
 import org.rakam.plugin.RAsyncHttpClient;
 import org.testng.annotations.Test;
 
+import javax.script.Invocable;
 import javax.script.ScriptException;
 
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
 public class TestJSCodeCompiler
 {
+    private JSCodeCompiler createCompiler()
+    {
+        return new JSCodeCompiler(new TestingConfigManager(),
+                new RAsyncHttpClient(new OkHttpClient()),
+                (project, prefix) -> new JSCodeCompiler.TestLogger(), false, true);
+    }
+
     @Test
     public void testName()
             throws ScriptException
     {
 
-        JSCodeCompiler jsCodeCompiler = new JSCodeCompiler(new TestingConfigManager(),
-                new RAsyncHttpClient(new OkHttpClient()),
-                (project, prefix) -> new JSCodeCompiler.TestLogger(), false, true);
+        JSCodeCompiler jsCodeCompiler = createCompiler();
 //        jsCodeCompiler.createEngine("test", "new Array(100000000).concat(new Array(100000000));", "");
     }
+
+    @Test
+    public void testPooledEngineUsesFreshBindings()
+            throws Exception
+    {
+        Invocable engine = createCompiler().createPooledEngine("test",
+                "var counter = 0; function main(value) { counter++; return value + counter; }", null);
+
+        assertEquals(engine.invokeFunction("main", 1), 2.0);
+        assertEquals(engine.invokeFunction("main", 1), 2.0);
+    }
+
+    @Test(expectedExceptions = NoSuchMethodException.class)
+    public void testPooledEngineMissingFunction()
+            throws Exception
+    {
+        createCompiler().createPooledEngine("test", "function main() {}", null)
+                .invokeFunction("mapper");
+    }
+
+    @Test
+    public void testPooledEngineCpuLimit()
+            throws Exception
+    {
+        JSEnginePool pool = new JSEnginePool(() -> new NashornScriptEngineFactory().getScriptEngine(), 1, 1, 60000, 200);
+        Invocable engine = pool.getInvocable("function main(loop) { while (loop) {} return 1; }", false, bindings -> {});
+
+        try {
+            engine.invokeFunction("main", true);
+            fail("the invocation must be stopped");
+        }
+        catch (ScriptException e) {
+            // only the thread of the invocation is stopped
+        }
+        // the stopped worker is replaced
+        assertEquals(engine.invokeFunction("main", false), 1);
+        assertEquals(engine.invokeFunction("main", false), 1);
+    }
+
+    @Test
+    public void testPooledEngineInterface()
+            throws Exception
+    {
+        Invocable engine = createCompiler().createPooledEngine("test",
+                "function run() { return {next: function(value) { return value + 1; }}; }", null);
+
+        Runnable runnable = engine.getInterface(Runnable.class);
+        runnable.run();
+        assertNull(engine.getInterface(Comparable.class));
+
+        Object object = engine.invokeFunction("run");
+        assertEquals(engine.invokeMethod(object, "next", 1), 2.0);
+    }
 }
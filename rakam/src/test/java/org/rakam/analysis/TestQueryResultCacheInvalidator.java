@@ -0,0 +1,59 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.EventStore;
+import org.rakam.plugin.SyncEventStore;
+import org.rakam.report.QueryResult;
+import org.rakam.report.QueryResultCache;
+import org.rakam.report.QueryResultCacheConfig;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.rakam.collection.FieldType.LONG;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+public class TestQueryResultCacheInvalidator
+{
+    private static final String QUERY = "select count(*) from pageview";
+    private static final QueryResult RESULT = new QueryResult(ImmutableList.of(new SchemaField("count", LONG)),
+            ImmutableList.of(ImmutableList.of(1L)));
+
+    @Test
+    public void testInvalidateAfterStore()
+            throws Exception
+    {
+        QueryResultCache cache = new QueryResultCache(new QueryResultCacheConfig());
+        QueryResultCache.Dependencies dependencies = new QueryResultCache.Dependencies();
+        dependencies.addCollection("pageview");
+        cache.put("project", QUERY, cache.snapshot("project", dependencies, ImmutableMap.of()), RESULT);
+
+        EventStore eventStore = new QueryResultCacheInvalidator(new SyncEventStore()
+        {
+            @Override
+            public void store(Event event)
+            {
+                // the query that runs before the event is committed sees the previous version
+                assertNotNull(cache.get("project", QUERY, cache.snapshot("project", dependencies, ImmutableMap.of()), null));
+            }
+
+            @Override
+            public int[] storeBatch(List<Event> events)
+            {
+                events.forEach(this::store);
+                return SUCCESSFUL_BATCH;
+            }
+        }, cache);
+
+        eventStore.storeAsync(new Event("project", "pageview", null, null, null)).join();
+        assertNull(cache.get("project", QUERY, cache.snapshot("project", dependencies, ImmutableMap.of()), null));
+
+        cache.put("project", QUERY, cache.snapshot("project", dependencies, ImmutableMap.of()), RESULT);
+        eventStore.storeBatch(ImmutableList.of(new Event("project", "purchase", null, null, null)));
+        assertNotNull(cache.get("project", QUERY, cache.snapshot("project", dependencies, ImmutableMap.of()), null));
+    }
+}
@@ -0,0 +1,131 @@
+package org.rakam.analysis.realtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.apache.avro.generic.GenericData;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.realtime.RealTimeReport;
+import org.rakam.report.realtime.RealTimeReport.Measure;
+import org.rakam.util.AvroUtil;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.FieldType.TIMESTAMP;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.COUNT_UNIQUE;
+import static org.rakam.report.realtime.AggregationType.MAXIMUM;
+import static org.rakam.report.realtime.AggregationType.SUM;
+import static org.testng.Assert.assertEquals;
+
+public class TestRealtimeAggregator
+{
+    private static final List<SchemaField> FIELDS = ImmutableList.of(
+            new SchemaField("_time", TIMESTAMP),
+            new SchemaField("country", STRING),
+            new SchemaField("amount", DOUBLE));
+
+    private static final Measure COUNT_MEASURE = new Measure("amount", COUNT);
+    private static final Measure SUM_MEASURE = new Measure("amount", SUM);
+    private static final Measure MAX_MEASURE = new Measure("amount", MAXIMUM);
+
+    private static RealtimeAggregator createAggregator()
+    {
+        RealTimeReport report = new RealTimeReport("test", ImmutableSet.of(COUNT_MEASURE, SUM_MEASURE, MAX_MEASURE),
+                "test", ImmutableSet.of("purchase"), null, ImmutableSet.of("country"));
+        return new RealtimeAggregator(report, null, "_time", 1000, 60000, 0);
+    }
+
+    private static Event event(String collection, long time, String country, double amount)
+    {
+        GenericData.Record record = new GenericData.Record(AvroUtil.convertAvroSchema(FIELDS));
+        record.put("_time", time);
+        record.put("country", country);
+        record.put("amount", amount);
+        return new Event("project", collection, Event.EventContext.empty(), FIELDS, record);
+    }
+
+    @Test
+    public void testAggregateByBucket()
+            throws Exception
+    {
+        RealtimeAggregator aggregator = createAggregator();
+        long now = 100_000;
+
+        aggregator.add(event("purchase", 98_100, "us", 10), now);
+        aggregator.add(event("purchase", 98_900, "tr", 5), now);
+        aggregator.add(event("purchase", 99_200, "us", 7), now);
+
+        Map<Long, Map<List<Object>, Object>> result = aggregator.query(SUM_MEASURE, ImmutableList.of(), 98, 100, false);
+        assertEquals(result.get(98L).get(ImmutableList.of()), 15.0);
+        assertEquals(result.get(99L).get(ImmutableList.of()), 7.0);
+
+        result = aggregator.query(COUNT_MEASURE, ImmutableList.of("country"), 98, 100, true);
+        assertEquals(result.get(100L).get(ImmutableList.of("us")), 2L);
+        assertEquals(result.get(100L).get(ImmutableList.of("tr")), 1L);
+
+        result = aggregator.query(MAX_MEASURE, ImmutableList.of(), 98, 100, true);
+        assertEquals(result.get(100L).get(ImmutableList.of()), 10.0);
+    }
+
+    @Test
+    public void testFilterCollection()
+            throws Exception
+    {
+        RealtimeAggregator aggregator = createAggregator();
+        assertEquals(aggregator.accepts(event("purchase", 0, "us", 1)), true);
+        assertEquals(aggregator.accepts(event("pageview", 0, "us", 1)), false);
+    }
+
+    @Test
+    public void testEvictOutsideWindow()
+            throws Exception
+    {
+        RealtimeAggregator aggregator = createAggregator();
+
+        aggregator.add(event("purchase", 1_000, "us", 10), 2_000);
+        aggregator.add(event("purchase", 70_000, "us", 10), 70_000);
+        // late event that is already out of the window
+        aggregator.add(event("purchase", 2_000, "us", 10), 70_000);
+
+        Map<Long, Map<List<Object>, Object>> result = aggregator.query(COUNT_MEASURE, ImmutableList.of(), 0, 100, true);
+        assertEquals(result.get(100L).get(ImmutableList.of()), 1L);
+    }
+
+    @Test
+    public void testCountUnique()
+            throws Exception
+    {
+        Measure uniqueMeasure = new Measure("country", COUNT_UNIQUE);
+        RealTimeReport report = new RealTimeReport("test", ImmutableSet.of(uniqueMeasure), "test", ImmutableSet.of("purchase"), null, ImmutableSet.of());
+        RealtimeAggregator aggregator = new RealtimeAggregator(report, null, "_time", 1000, 60000, 0);
+        long now = 100_000;
+
+        aggregator.add(event("purchase", 98_100, "us", 1), now);
+        aggregator.add(event("purchase", 98_200, "tr", 1), now);
+        aggregator.add(event("purchase", 99_100, "us", 1), now);
+        aggregator.add(event("purchase", 99_200, "de", 1), now);
+
+        Map<Long, Map<List<Object>, Object>> result = aggregator.query(uniqueMeasure, ImmutableList.of(), 98, 100, false);
+        assertEquals(result.get(98L).get(ImmutableList.of()), 2L);
+        assertEquals(result.get(99L).get(ImmutableList.of()), 2L);
+
+        // the sketches of the buckets are merged
+        result = aggregator.query(uniqueMeasure, ImmutableList.of(), 98, 100, true);
+        assertEquals(result.get(100L).get(ImmutableList.of()), 3L);
+    }
+
+    @Test
+    public void testFirstCompleteBucket()
+            throws Exception
+    {
+        RealTimeReport report = new RealTimeReport("test", ImmutableSet.of(COUNT_MEASURE), "test", ImmutableSet.of("purchase"), null, ImmutableSet.of());
+        // the events of the bucket that the aggregator is created in are not complete
+        assertEquals(new RealtimeAggregator(report, null, "_time", 1000, 60000, 5_500).getFirstCompleteBucket(), 6);
+        assertEquals(new RealtimeAggregator(report, null, "_time", 1000, 60000, 5_000).getFirstCompleteBucket(), 5);
+    }
+}
@@ -0,0 +1,78 @@
+package org.rakam.analysis.stream;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.avro.generic.GenericData;
+import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder;
+import org.rakam.analysis.stream.APIEventStreamModule.CollectionStreamHolder.CollectionFilter;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroUtil;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.rakam.collection.FieldType.LONG;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+public class TestStreamSubscriptions
+{
+    private static final List<SchemaField> FIELDS = ImmutableList.of(new SchemaField("value", LONG));
+
+    private static Event event(String collection, long value)
+    {
+        GenericData.Record record = new GenericData.Record(AvroUtil.convertAvroSchema(FIELDS));
+        record.put("value", value);
+        return new Event("project", collection, Event.EventContext.empty(), FIELDS, record);
+    }
+
+    @Test
+    public void testPublishByCollection()
+            throws Exception
+    {
+        StreamSubscriptions subscriptions = new StreamSubscriptions();
+        CollectionStreamHolder pageview = new CollectionStreamHolder(ImmutableList.of(new CollectionFilter("pageview", null)));
+        CollectionStreamHolder all = new CollectionStreamHolder(ImmutableList.of(new CollectionFilter(null, null)));
+        subscriptions.subscribe("project", pageview);
+        subscriptions.subscribe("project", all);
+
+        subscriptions.publish(event("pageview", 1));
+        subscriptions.publish(event("purchase", 1));
+
+        assertEquals(pageview.messageQueue.size(), 1);
+        assertEquals(all.messageQueue.size(), 2);
+        // the event is serialized once for all the subscribers
+        assertSame(pageview.messageQueue.poll(), all.messageQueue.poll());
+    }
+
+    @Test
+    public void testDeliverOnceForMultipleFilters()
+            throws Exception
+    {
+        StreamSubscriptions subscriptions = new StreamSubscriptions();
+        CollectionStreamHolder holder = new CollectionStreamHolder(ImmutableList.of(
+                new CollectionFilter("pageview", record -> ((Long) record.get("value")) > 5),
+                new CollectionFilter("pageview", record -> ((Long) record.get("value")) > 10)));
+        subscriptions.subscribe("project", holder);
+
+        subscriptions.publish(event("pageview", 20));
+        subscriptions.publish(event("pageview", 1));
+
+        assertEquals(holder.messageQueue.size(), 1);
+    }
+
+    @Test
+    public void testUnsubscribe()
+            throws Exception
+    {
+        StreamSubscriptions subscriptions = new StreamSubscriptions();
+        CollectionStreamHolder holder = new CollectionStreamHolder(ImmutableList.of(new CollectionFilter("pageview", null)));
+        subscriptions.subscribe("project", holder);
+        subscriptions.unsubscribe("project", holder);
+
+        subscriptions.publish(event("pageview", 1));
+
+        assertNull(holder.messageQueue.poll());
+    }
+}
@@ -0,0 +1,91 @@
+package org.rakam.plugin;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.airlift.testing.postgresql.TestingPostgreSqlServer;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.cookie.Cookie;
+import okhttp3.OkHttpClient;
+import org.rakam.EventBuilder;
+import org.rakam.TestingConfigManager;
+import org.rakam.analysis.InMemoryApiKeyService;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.collection.Event;
+import org.rakam.collection.EventList;
+import org.rakam.config.JDBCConfig;
+import org.rakam.util.javascript.JSCodeCompiler;
+import org.rakam.util.javascript.JSCodeLoggerService;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestCustomEventMapperHttpService
+{
+    private static final String PROJECT = "test";
+
+    private TestingPostgreSqlServer server;
+    private CustomEventMapperHttpService service;
+    private EventBuilder eventBuilder;
+
+    @BeforeClass
+    public void setUp()
+            throws Exception
+    {
+        server = new TestingPostgreSqlServer("testuser", "testdb");
+        JDBCPoolDataSource dataSource = JDBCPoolDataSource.getOrCreateDataSource(new JDBCConfig()
+                .setUrl(server.getJdbcUrl())
+                .setUsername(server.getUser()));
+
+        InMemoryMetastore metastore = new InMemoryMetastore(new InMemoryApiKeyService());
+        metastore.createProject(PROJECT);
+        eventBuilder = new EventBuilder(PROJECT, metastore);
+
+        JSCodeCompiler jsCodeCompiler = new JSCodeCompiler(new TestingConfigManager(),
+                new RAsyncHttpClient(new OkHttpClient()),
+                (project, prefix) -> new JSCodeCompiler.TestLogger(), false, true);
+        service = new CustomEventMapperHttpService(dataSource, metastore, jsCodeCompiler, new JSCodeLoggerService(dataSource), null);
+        service.setup();
+    }
+
+    @AfterClass
+    public void tearDown()
+            throws Exception
+    {
+        server.close();
+    }
+
+    @Test
+    public void testBatchMapper()
+            throws Exception
+    {
+        service.create(PROJECT, "batch", "function batchMapper(events) {" +
+                "  return {" +
+                "    properties: events.map(function(event) { return {label: event.collection + ':' + event.properties.name}; })," +
+                "    cookies: {batch_size: String(events.length)}" +
+                "  };" +
+                "}", null, null);
+
+        List<Event> events = ImmutableList.of(
+                eventBuilder.createEvent("pageview", ImmutableMap.of("name", "a", "label", "")),
+                eventBuilder.createEvent("signup", ImmutableMap.of("name", "b", "label", "")),
+                eventBuilder.createEvent("pageview", ImmutableMap.of("name", "c", "label", "")));
+
+        List<Cookie> cookies = service.mapAsync(new EventList(Event.EventContext.empty(), PROJECT, events),
+                EventMapper.RequestParams.EMPTY_PARAMS, InetAddress.getLoopbackAddress(), new DefaultHttpHeaders()).join();
+
+        // the properties are set to the events in the same position
+        assertEquals(events.get(0).getAttribute("label"), "pageview:a");
+        assertEquals(events.get(1).getAttribute("label"), "signup:b");
+        assertEquals(events.get(2).getAttribute("label"), "pageview:c");
+
+        assertEquals(cookies.size(), 1);
+        assertEquals(cookies.get(0).name(), "batch_size");
+        assertEquals(cookies.get(0).value(), "3");
+    }
+}
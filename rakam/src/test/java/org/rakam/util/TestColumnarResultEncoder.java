@@ -0,0 +1,66 @@
+package org.rakam.util;
+
+import com.google.common.collect.ImmutableList;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.QueryResult;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+
+public class TestColumnarResultEncoder
+{
+    @Test
+    public void testEncode()
+            throws Exception
+    {
+        List<List<Object>> rows = ImmutableList.of(
+                Arrays.asList("pageview", 1L),
+                Arrays.asList("pageview", null),
+                Arrays.asList(null, 3L),
+                Arrays.asList("pageview", 4L));
+        QueryResult result = new QueryResult(ImmutableList.of(new SchemaField("collection", STRING), new SchemaField("count", LONG)), rows);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(ColumnarResultEncoder.encode(result)));
+        assertEquals(readString(in, 4), "RKC1");
+        readString(in, in.readInt());
+
+        assertEquals(in.readInt(), 2);
+        assertEquals(readString(in, in.readInt()), "collection");
+        assertEquals(readString(in, in.readInt()), "STRING");
+        assertEquals(readString(in, in.readInt()), "count");
+        assertEquals(readString(in, in.readInt()), "LONG");
+        assertEquals(in.readInt(), 4);
+
+        // collection column is dictionary encoded
+        assertEquals(in.readByte(), 0b1011);
+        assertEquals(in.readByte(), 1);
+        assertEquals(in.readInt(), 1);
+        assertEquals(readString(in, in.readInt()), "pageview");
+        for (int i = 0; i < 4; i++) {
+            assertEquals(in.readInt(), 0);
+        }
+
+        assertEquals(in.readByte(), 0b1101);
+        assertEquals(in.readLong(), 1L);
+        assertEquals(in.readLong(), 0L);
+        assertEquals(in.readLong(), 3L);
+        assertEquals(in.readLong(), 4L);
+        assertEquals(in.read(), -1);
+    }
+
+    private static String readString(DataInputStream in, int length)
+            throws Exception
+    {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
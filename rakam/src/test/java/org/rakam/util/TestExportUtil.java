@@ -0,0 +1,45 @@
+package org.rakam.util;
+
+import com.google.common.collect.ImmutableList;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.EventStore.CopyType;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+
+public class TestExportUtil
+{
+    private static final List<SchemaField> COLUMNS = ImmutableList.of(new SchemaField("name", STRING), new SchemaField("count", LONG));
+
+    @Test
+    public void testJsonLines()
+            throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExportUtil.RowWriter writer = ExportUtil.createWriter(CopyType.JSON, COLUMNS, out);
+        writer.write(ImmutableList.of("a", 1L));
+        writer.write(ImmutableList.of("b", 2L));
+        writer.finish();
+
+        assertEquals(new String(out.toByteArray(), StandardCharsets.UTF_8),
+                "{\"name\":\"a\",\"count\":1}\n{\"name\":\"b\",\"count\":2}\n");
+    }
+
+    @Test
+    public void testCsv()
+            throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExportUtil.RowWriter writer = ExportUtil.createWriter(CopyType.CSV, COLUMNS, out);
+        writer.write(ImmutableList.of("a", 1L));
+        writer.finish();
+
+        assertEquals(new String(out.toByteArray(), StandardCharsets.UTF_8), "\"name\",\"count\"\r\n\"a\",1\r\n");
+    }
+}